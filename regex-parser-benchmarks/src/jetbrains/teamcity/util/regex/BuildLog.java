@@ -0,0 +1,143 @@
+package jetbrains.teamcity.util.regex;
+
+import com.intellij.openapi.util.io.StreamUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Build output of some tool together with a parser recognizing it.
+ * <br/>
+ * Lines are generated from samples: lines the parser should recognize and lines no parser pattern matches.
+ * Every {@code #} in a sample is replaced with a random number, so lines do not repeat too often.
+ */
+public enum BuildLog {
+  GCC("gcc-parser.xml",
+      new String[]{
+          "src/core/parser_#.cpp:#:#: error: 'value_#' was not declared in this scope",
+          "src/core/parser_#.cpp:#:#: warning: unused variable 'tmp#' [-Wunused-variable]",
+          "src/core/parser_#.cpp:#:#: warning: comparison between signed and unsigned integer expressions",
+          "src/core/parser_#.cpp:#:#: note: in expansion of macro 'CHECK_#'",
+          "In file included from src/core/parser_#.cpp:#:",
+          "src/core/parser_#.cpp: In member function 'void Parser#::run()':",
+          "parser_#.o:parser_#.cpp:#: undefined reference to `Lexer#::next()'",
+          "collect2: error: ld returned 1 exit status",
+          "make[#]: Entering directory '/home/agent/work/build/src/module#'",
+          "make[#]: Leaving directory '/home/agent/work/build/src/module#'",
+          "make[#]: *** [src/module#/CMakeFiles/module#.dir/all] Error 2",
+      },
+      new String[]{
+          "g++ -O2 -g -Wall -Wextra -std=c++11 -I/home/agent/work/include -c src/core/parser_#.cpp -o parser_#.o",
+          "gcc -O2 -fPIC -DNDEBUG -I/usr/local/include -c src/util/hash_#.c -o hash_#.o",
+          "ar rcs libcore_#.a parser_#.o lexer_#.o hash_#.o",
+          "   # |   int value = compute(input, #);",
+          "     |       ^~~~~~~~",
+          "mkdir -p build/obj/#",
+      }),
+  MSBUILD("msbuild-parser.xml",
+      new String[]{
+          "Project \"C:\\BuildAgent\\work\\src\\Module#\\Module#.csproj\" on node # (Build target(s)).",
+          "Done Building Project \"C:\\BuildAgent\\work\\src\\Module#\\Module#.csproj\" (Build target(s)).",
+          "  Parser#.cs(#,#): error CS#: The name 'value#' does not exist in the current context [C:\\BuildAgent\\work\\src\\Module#\\Module#.csproj]",
+          "  Parser#.cs(#,#): warning CS#: The variable 'ex' is declared but never used [C:\\BuildAgent\\work\\src\\Module#\\Module#.csproj]",
+          "  LINK : fatal error LNK#: cannot open file 'module#.lib' [C:\\BuildAgent\\work\\src\\Native#\\Native#.vcxproj]",
+          "  CSC : warning CS#: Invalid search path 'C:\\lib#' specified in 'LIB environment variable' [C:\\BuildAgent\\work\\src\\Module#\\Module#.csproj]",
+          "    # Warning(s)",
+          "    # Error(s)",
+          "Build FAILED.",
+      },
+      new String[]{
+          "  Module# -> C:\\BuildAgent\\work\\src\\Module#\\bin\\Release\\Module#.dll",
+          "  Restoring packages for C:\\BuildAgent\\work\\src\\Module#\\Module#.csproj...",
+          "  C:\\Program Files (x86)\\Microsoft Visual Studio\\2017\\BuildTools\\MSBuild\\15.0\\Bin\\Roslyn\\csc.exe /noconfig /nowarn:#,# /fullpaths /nostdlib+",
+          "Time Elapsed 00:00:#.#",
+          "  Copying file from \"obj\\Release\\Module#.dll\" to \"bin\\Release\\Module#.dll\".",
+          "_CopyFilesMarkedCopyLocal:",
+      }),
+  CMAKE("cmake-parser.xml",
+      new String[]{
+          "CMake Error at src/module#/CMakeLists.txt:# (add_library):",
+          "CMake Warning (dev) at src/module#/CMakeLists.txt:# (find_package):",
+          "CMake Deprecation Warning at cmake/Module#.cmake:# (cmake_policy):",
+          "-- Configuring done",
+          "-- Generating done",
+          "-- Looking for pthread_create in pthreads - not found",
+          "Scanning dependencies of target module#",
+          "[ #%] Building CXX object src/module#/CMakeFiles/module#.dir/source_#.cpp.o",
+          "[ #%] Linking CXX static library libmodule#.a",
+          "[ #%] Built target module#",
+          "src/module#/source_#.cpp:#:#: error: expected ';' before '}' token",
+          "src/module#/source_#.cpp:#:#: warning: unused parameter 'argc' [-Wunused-parameter]",
+      },
+      new String[]{
+          "cd /home/agent/work/build/src/module# && /usr/bin/c++ -DMODULE_# -O3 -DNDEBUG -o CMakeFiles/module#.dir/source_#.cpp.o -c source_#.cpp",
+          "/usr/bin/cmake -E cmake_link_script CMakeFiles/module#.dir/link.txt --verbose=1",
+          "make[#]: Nothing to be done for 'all'.",
+          "Install the project...",
+          "Call Stack (most recent call first):",
+          "  src/CMakeLists.txt:# (include)",
+      });
+
+  @NotNull
+  private final String myParserResource;
+  @NotNull
+  private final String[] myRecognized;
+  @NotNull
+  private final String[] myNoise;
+
+  BuildLog(@NotNull final String parserResource, @NotNull final String[] recognized, @NotNull final String[] noise) {
+    myParserResource = parserResource;
+    myRecognized = recognized;
+    myNoise = noise;
+  }
+
+  @NotNull
+  public String getParserXml() throws IOException {
+    final InputStream stream = BuildLog.class.getClassLoader().getResourceAsStream(myParserResource);
+    if (stream == null) {
+      throw new IOException("Parser resource not found: " + myParserResource);
+    }
+    try {
+      return StreamUtil.readText(stream, "UTF-8");
+    } finally {
+      stream.close();
+    }
+  }
+
+  @NotNull
+  public RegexParser loadParser() throws IOException, ParserLoadingException {
+    return RegexParser.deserialize(getParserXml());
+  }
+
+  /**
+   * @param hitRatio - share of lines the parser recognizes
+   * @param count    - number of lines
+   * @param seed     - random seed, same seed gives the same lines
+   */
+  @NotNull
+  public String[] generate(final double hitRatio, final int count, final long seed) {
+    final Random random = new Random(seed);
+    final String[] lines = new String[count];
+    for (int i = 0; i < count; i++) {
+      final String[] samples = random.nextDouble() < hitRatio ? myRecognized : myNoise;
+      lines[i] = fill(samples[random.nextInt(samples.length)], random);
+    }
+    return lines;
+  }
+
+  @NotNull
+  private static String fill(@NotNull final String sample, @NotNull final Random random) {
+    final StringBuilder sb = new StringBuilder(sample.length() + 16);
+    for (int i = 0; i < sample.length(); i++) {
+      final char c = sample.charAt(i);
+      if (c == '#') {
+        sb.append(1 + random.nextInt(999));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+}
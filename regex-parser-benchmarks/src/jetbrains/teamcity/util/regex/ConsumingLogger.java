@@ -0,0 +1,44 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Logger passing everything logged to a {@link Blackhole}, so logged texts are not optimized away.
+ */
+public class ConsumingLogger implements Logger {
+  @NotNull
+  private final Blackhole myBlackhole;
+
+  public ConsumingLogger(@NotNull final Blackhole blackhole) {
+    myBlackhole = blackhole;
+  }
+
+  public void message(@NotNull final String message) {
+    myBlackhole.consume(message);
+  }
+
+  public void error(@NotNull final String message) {
+    myBlackhole.consume(message);
+  }
+
+  public void warning(@NotNull final String message) {
+    myBlackhole.consume(message);
+  }
+
+  public void blockStart(@NotNull final String name) {
+    myBlackhole.consume(name);
+  }
+
+  public void blockFinish(@NotNull final String name) {
+    myBlackhole.consume(name);
+  }
+
+  public void compilationBlockStart(@NotNull final String name) {
+    myBlackhole.consume(name);
+  }
+
+  public void compilationBlockFinish(@NotNull final String name) {
+    myBlackhole.consume(name);
+  }
+}
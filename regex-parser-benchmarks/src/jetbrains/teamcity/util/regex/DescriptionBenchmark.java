@@ -0,0 +1,46 @@
+package jetbrains.teamcity.util.regex;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Cost of building a description of a matched line with different {@code output-expr}:
+ * generic {@link RegexPattern#getDescription(Matcher)} against the precompiled template.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class DescriptionBenchmark {
+  private static final String LINE = "src/core/parser_17.cpp:128:5: error: 'value_3' was not declared in this scope";
+
+  @Param({"$0", "$4", "$4 at $1:$2:$3", "compilation error"})
+  public String expression;
+
+  private RegexPattern myPattern;
+  private Matcher myMatcher;
+
+  @Setup
+  public void setUp() {
+    myPattern = new RegexPattern(Pattern.compile("(.+?):(\\d+):(\\d+): error: (.*)"), expression, Severity.ERROR, true);
+    myMatcher = myPattern.getCompiled().getPattern().matcher(LINE);
+    if (!myMatcher.matches()) {
+      throw new IllegalStateException("Pattern does not match " + LINE);
+    }
+  }
+
+  @Benchmark
+  public String getDescription() {
+    return myPattern.getDescription(myMatcher);
+  }
+
+  @Benchmark
+  public String describe() {
+    return myPattern.getCompiled().describe(myMatcher, LINE);
+  }
+}
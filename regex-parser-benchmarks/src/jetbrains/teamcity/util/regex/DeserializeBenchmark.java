@@ -0,0 +1,37 @@
+package jetbrains.teamcity.util.regex;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of loading a parser: XML deserialization alone and together with compiling it for matching.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class DeserializeBenchmark {
+  @Param({"GCC", "MSBUILD", "CMAKE"})
+  public BuildLog log;
+
+  private String myXml;
+
+  @Setup
+  public void setUp() throws IOException {
+    myXml = log.getParserXml();
+  }
+
+  @Benchmark
+  public RegexParser deserialize() throws ParserLoadingException {
+    return RegexParser.deserialize(myXml);
+  }
+
+  @Benchmark
+  public Object deserializeAndCompile() throws ParserLoadingException {
+    return RegexParser.deserialize(myXml).getCompiled();
+  }
+}
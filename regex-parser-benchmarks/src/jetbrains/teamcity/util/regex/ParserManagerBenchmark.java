@@ -0,0 +1,54 @@
+package jetbrains.teamcity.util.regex;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of dispatching a description through {@link ParserManager} by severity.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ParserManagerBenchmark {
+  private static final String TEXT = "src/core/parser_17.cpp:128:5: 'value_3' was not declared in this scope";
+  private static final String BLOCK = "/home/agent/work/build/src/module17";
+
+  private ParserManager myManager;
+
+  @Setup(Level.Iteration)
+  public void setUp(final Blackhole blackhole) {
+    myManager = new ParserManager(new ConsumingLogger(blackhole));
+  }
+
+  @Benchmark
+  public void message() {
+    myManager.log(TEXT, Severity.INFO);
+  }
+
+  @Benchmark
+  public void warning() {
+    myManager.log(TEXT, Severity.WARN);
+  }
+
+  @Benchmark
+  public void error() {
+    myManager.log(TEXT, Severity.ERROR);
+  }
+
+  @Benchmark
+  public void block() {
+    myManager.log(BLOCK, Severity.BLOCK_START);
+    myManager.log(BLOCK, Severity.BLOCK_FINISH);
+  }
+
+  @Benchmark
+  public void compilationBlock() {
+    myManager.log(BLOCK, Severity.COMPILATION_START);
+    myManager.log(BLOCK, Severity.COMPILATION_FINISH);
+  }
+}
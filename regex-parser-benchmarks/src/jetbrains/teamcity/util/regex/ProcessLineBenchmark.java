@@ -0,0 +1,73 @@
+package jetbrains.teamcity.util.regex;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link RegexParser} on generated build logs.
+ * <br/>
+ * {@code hitRatio} is the share of lines recognized by the parser: most of real build output is not recognized,
+ * so low ratios show the cost of rejecting a line, high ones the cost of building and logging descriptions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ProcessLineBenchmark {
+  private static final int LINES_COUNT = 4096;
+
+  @Param({"GCC", "MSBUILD", "CMAKE"})
+  public BuildLog log;
+
+  @Param({"0.05", "0.5"})
+  public double hitRatio;
+
+  @Param({"true", "false"})
+  public boolean compiled;
+
+  private RegexParser myParser;
+  private String[] myLines;
+  private List<String> myLinesList;
+  private ParserManager myManager;
+  private ParsingSession mySession;
+  private int myNext;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, ParserLoadingException {
+    myParser = log.loadParser();
+    myParser.setCompiledMatching(compiled);
+    myLines = log.generate(hitRatio, LINES_COUNT, 42);
+    myLinesList = Arrays.asList(myLines);
+  }
+
+  /**
+   * Fresh manager for every iteration, so blocks opened by the log do not pile up.
+   * Lines are processed in a session, as the agent does.
+   */
+  @Setup(Level.Iteration)
+  public void setUpIteration(final Blackhole blackhole) {
+    myManager = new ParserManager(new ConsumingLogger(blackhole));
+    mySession = myParser.createSession();
+    myNext = 0;
+  }
+
+  @Benchmark
+  public boolean processLine() {
+    final String line = myLines[myNext];
+    myNext = (myNext + 1) % LINES_COUNT;
+    return mySession.processLine(line, myManager);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LINES_COUNT)
+  public boolean[] processLines() {
+    return mySession.processLines(myLinesList, myManager);
+  }
+}
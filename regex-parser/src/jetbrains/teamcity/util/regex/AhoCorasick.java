@@ -0,0 +1,176 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aho-Corasick automaton finding all occurrences of a set of keys in a single pass over the text.
+ * <br/>
+ * Keys and text are compared case-insensitively (see {@link #fold(char)}), callers verify case-sensitive keys themselves.
+ * Transitions for ASCII characters are precomputed into a table, so scanning ASCII text costs one array lookup per char.
+ */
+final class AhoCorasick {
+  private static final int ASCII = 128;
+
+  /**
+   * Transitions by ASCII characters, {@code myAsciiDelta[state * ASCII + c]}.
+   */
+  @NotNull
+  private final int[] myAsciiDelta;
+  /**
+   * Trie transitions by non-ASCII characters, {@code null} for states without them.
+   */
+  @NotNull
+  private final char[][] myOtherChars;
+  @NotNull
+  private final int[][] myOtherTargets;
+  @NotNull
+  private final int[] myFail;
+  /**
+   * Keys ending at the state including keys of its suffixes, {@code null} if none.
+   */
+  @NotNull
+  private final int[][] myOutputs;
+
+  interface Visitor {
+    /**
+     * @param key - index of the key found
+     * @param end - index after the last char of key occurrence
+     */
+    void found(int key, int end);
+  }
+
+  AhoCorasick(@NotNull final List<String> keys) {
+    final List<Map<Character, Integer>> trie = new ArrayList<Map<Character, Integer>>();
+    final List<List<Integer>> ownOutputs = new ArrayList<List<Integer>>();
+    trie.add(new HashMap<Character, Integer>());
+    ownOutputs.add(null);
+    for (int k = 0; k < keys.size(); k++) {
+      final String key = keys.get(k);
+      int state = 0;
+      for (int i = 0; i < key.length(); i++) {
+        final Character c = fold(key.charAt(i));
+        Integer next = trie.get(state).get(c);
+        if (next == null) {
+          next = trie.size();
+          trie.add(new HashMap<Character, Integer>());
+          ownOutputs.add(null);
+          trie.get(state).put(c, next);
+        }
+        state = next;
+      }
+      List<Integer> outputs = ownOutputs.get(state);
+      if (outputs == null) {
+        outputs = new ArrayList<Integer>(1);
+        ownOutputs.set(state, outputs);
+      }
+      outputs.add(k);
+    }
+
+    final int states = trie.size();
+    myAsciiDelta = new int[states * ASCII];
+    myOtherChars = new char[states][];
+    myOtherTargets = new int[states][];
+    myFail = new int[states];
+    myOutputs = new int[states][];
+
+    // Breadth-first order guarantees fail states are complete before their dependants
+    final LinkedList<Integer> queue = new LinkedList<Integer>();
+    queue.add(0);
+    while (!queue.isEmpty()) {
+      final int state = queue.removeFirst();
+      final int fail = myFail[state];
+      final Map<Character, Integer> children = trie.get(state);
+      int others = 0;
+      for (Character c : children.keySet()) {
+        if (c >= ASCII) others++;
+      }
+      if (others > 0) {
+        myOtherChars[state] = new char[others];
+        myOtherTargets[state] = new int[others];
+      }
+      int other = 0;
+      for (Map.Entry<Character, Integer> entry : children.entrySet()) {
+        final char c = entry.getKey();
+        final int child = entry.getValue();
+        myFail[child] = state == 0 ? 0 : next(fail, c);
+        if (c < ASCII) {
+          myAsciiDelta[state * ASCII + c] = child;
+        } else {
+          myOtherChars[state][other] = c;
+          myOtherTargets[state][other] = child;
+          other++;
+        }
+        queue.add(child);
+      }
+      if (state != 0) {
+        for (char c = 0; c < ASCII; c++) {
+          if (!children.containsKey(c)) {
+            myAsciiDelta[state * ASCII + c] = myAsciiDelta[fail * ASCII + c];
+          }
+        }
+      }
+      myOutputs[state] = merge(ownOutputs.get(state), state == 0 ? null : myOutputs[fail]);
+    }
+  }
+
+  void scan(@NotNull final CharSequence text, @NotNull final Visitor visitor) {
+    int state = 0;
+    final int length = text.length();
+    for (int i = 0; i < length; i++) {
+      final char c = fold(text.charAt(i));
+      state = c < ASCII ? myAsciiDelta[state * ASCII + c] : next(state, c);
+      final int[] outputs = myOutputs[state];
+      if (outputs != null) {
+        for (int key : outputs) {
+          visitor.found(key, i + 1);
+        }
+      }
+    }
+  }
+
+  /**
+   * Folds character so that any two characters equal ignoring case (in both ASCII and Unicode senses) fold to the same value.
+   */
+  static char fold(final char c) {
+    if (c < ASCII) {
+      return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+    return Character.toLowerCase(Character.toUpperCase(c));
+  }
+
+  private int next(int state, final char c) {
+    if (c < ASCII) return myAsciiDelta[state * ASCII + c];
+    while (true) {
+      final char[] chars = myOtherChars[state];
+      if (chars != null) {
+        for (int i = 0; i < chars.length; i++) {
+          if (chars[i] == c) return myOtherTargets[state][i];
+        }
+      }
+      if (state == 0) return 0;
+      state = myFail[state];
+    }
+  }
+
+  private static int[] merge(final List<Integer> own, final int[] inherited) {
+    if (own == null) return inherited;
+    final int size = own.size() + (inherited == null ? 0 : inherited.length);
+    final int[] result = new int[size];
+    int i = 0;
+    for (Integer key : own) {
+      result[i++] = key;
+    }
+    if (inherited != null) {
+      System.arraycopy(inherited, 0, result, i, inherited.length);
+    }
+    Arrays.sort(result);
+    return result;
+  }
+}
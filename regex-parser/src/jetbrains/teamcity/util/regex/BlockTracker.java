@@ -0,0 +1,143 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Open blocks of a {@link ParserManager}, innermost last. Not thread safe, same as the manager.
+ * <br/>
+ * Every name maps to the innermost open block with it, so finding the block to finish takes constant time
+ * however deep the nesting is. Block names are interned: output of long builds repeats the same few names over and over.
+ *
+ * @see ParserManager#setMaxBlocksDepth(int)
+ */
+public final class BlockTracker<T extends ParserManager.Block> {
+  /**
+   * Least recently used names are dropped from the pool once it grows that big, so unique names like timestamps could not make it grow forever.
+   */
+  private static final int MAX_INTERNED_NAMES = 1024;
+  private static final int INITIAL_CAPACITY = 8;
+
+  @NotNull
+  private Object[] myBlocks = new Object[INITIAL_CAPACITY];
+  @NotNull
+  private boolean[] myCompilation = new boolean[INITIAL_CAPACITY];
+  /**
+   * Index of the next outer block with the same name, {@code -1} if there is no such block.
+   */
+  @NotNull
+  private int[] myPrevious = new int[INITIAL_CAPACITY];
+  private int mySize;
+  /**
+   * Index of the innermost open block by its name.
+   */
+  @NotNull
+  private final Map<String, Integer> myInnermost = new HashMap<String, Integer>();
+  @NotNull
+  private final Map<String, String> myNames = new NamesPool();
+
+  /**
+   * @return the same name string as the one returned for an equal name before
+   */
+  @NotNull
+  public String intern(@NotNull final String name) {
+    final String interned = myNames.get(name);
+    if (interned != null) return interned;
+    myNames.put(name, name);
+    return name;
+  }
+
+  public int size() {
+    return mySize;
+  }
+
+  public boolean isEmpty() {
+    return mySize == 0;
+  }
+
+  /**
+   * @param index - block index, {@code 0} is the outermost one
+   */
+  @NotNull
+  public T get(final int index) {
+    if (index < 0 || index >= mySize) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", size: " + mySize);
+    }
+    @SuppressWarnings("unchecked")
+    final T block = (T) myBlocks[index];
+    return block;
+  }
+
+  /**
+   * @return whether the block was started as a compilation block
+   */
+  public boolean isCompilation(final int index) {
+    get(index);
+    return myCompilation[index];
+  }
+
+  /**
+   * @return innermost open block or {@code null} if there is none
+   */
+  @Nullable
+  public T peek() {
+    return mySize == 0 ? null : get(mySize - 1);
+  }
+
+  /**
+   * @return index of the innermost open block with the name or {@code -1} if there is none
+   */
+  public int indexOf(@NotNull final String name) {
+    final Integer index = myInnermost.get(name);
+    return index == null ? -1 : index;
+  }
+
+  public void push(@NotNull final T block, final boolean compilation) {
+    if (mySize == myBlocks.length) {
+      final int capacity = mySize * 2;
+      myBlocks = Arrays.copyOf(myBlocks, capacity);
+      myCompilation = Arrays.copyOf(myCompilation, capacity);
+      myPrevious = Arrays.copyOf(myPrevious, capacity);
+    }
+    final Integer previous = myInnermost.put(block.getName(), mySize);
+    myBlocks[mySize] = block;
+    myCompilation[mySize] = compilation;
+    myPrevious[mySize] = previous == null ? -1 : previous;
+    mySize++;
+  }
+
+  /**
+   * @return innermost open block, which is removed
+   */
+  @NotNull
+  public T pop() {
+    final T block = get(mySize - 1);
+    mySize--;
+    final int previous = myPrevious[mySize];
+    if (previous < 0) {
+      myInnermost.remove(block.getName());
+    } else {
+      myInnermost.put(block.getName(), previous);
+    }
+    myBlocks[mySize] = null;
+    return block;
+  }
+
+  private static final class NamesPool extends LinkedHashMap<String, String> {
+    private static final long serialVersionUID = 1L;
+
+    NamesPool() {
+      super(16, 0.75f, true);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+      return size() > MAX_INTERNED_NAMES;
+    }
+  }
+}
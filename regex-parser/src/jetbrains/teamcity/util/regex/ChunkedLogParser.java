@@ -0,0 +1,310 @@
+package jetbrains.teamcity.util.regex;
+
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+
+/**
+ * Parses a large log file with a {@link RegexParser} on several threads, e.g. to re-parse archived build logs.
+ * <br/>
+ * The file is memory-mapped and split into chunks ending with {@code \n}, chunks are decoded and parsed in parallel,
+ * each with its own {@link ParsingSession}. A chunk does not log to the {@link ParserManager} directly: it records matched lines
+ * with their rendered descriptions and parsing errors, and records are replayed into the manager chunk by chunk in the file order.
+ * So all the block starts and finishes go through the single manager in the same order as for a sequential run, and blocks opened
+ * in one chunk and finished in another one are matched the same way. The manager gets exactly the calls
+ * {@link ParsingSession#process(Reader, ParserManager)} would make, including events passed to its {@link ParseEventSink}s,
+ * only their lines are detached copies.
+ * <br/>
+ * Parsers keeping state between lines, those with {@link MultilinePattern}s, and parsers with {@link RegexPattern} subclasses,
+ * which may call the manager on their own, are run sequentially over the chunks on the calling thread.
+ * <br/>
+ * Lines are split the same way {@link LineReader} does, so the charset should encode {@code \n} as a single {@code 0x0A} byte
+ * never found inside other characters, e.g. UTF-8 or ISO-8859-1.
+ */
+public final class ChunkedLogParser {
+  public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+  /**
+   * Bytes mapped at once while looking for the end of a chunk.
+   */
+  private static final int SCAN_WINDOW = 64 * 1024;
+
+  @NotNull
+  private final RegexParser myParser;
+  private int myChunkSize = DEFAULT_CHUNK_SIZE;
+
+  public ChunkedLogParser(@NotNull final RegexParser parser) {
+    myParser = parser;
+  }
+
+  public int getChunkSize() {
+    return myChunkSize;
+  }
+
+  /**
+   * @param chunkSize - approximate chunk size in bytes, a chunk is extended to the end of its last line
+   */
+  public void setChunkSize(final int chunkSize) {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("Chunk size should be positive: " + chunkSize);
+    }
+    myChunkSize = chunkSize;
+  }
+
+  /**
+   * Same as {@link #process(File, Charset, ParserManager, ExecutorService)} with a pool of a thread per processor,
+   * the pool is not created if the file should be parsed sequentially.
+   */
+  public long process(@NotNull final File file, @NotNull final Charset charset, @NotNull final ParserManager parserManager) throws IOException {
+    if (!isParallel()) {
+      return processFile(file, charset, parserManager, null);
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    try {
+      return process(file, charset, parserManager, executor);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Parses the file and logs the results to the manager on the calling thread.
+   *
+   * @param executor - executor to parse chunks, at most twice its {@link ThreadPoolExecutor#getMaximumPoolSize() pool size} chunks
+   *                 are kept in memory, the executor is not shut down
+   * @return number of lines processed
+   */
+  public long process(@NotNull final File file,
+                      @NotNull final Charset charset,
+                      @NotNull final ParserManager parserManager,
+                      @NotNull final ExecutorService executor) throws IOException {
+    return processFile(file, charset, parserManager, executor);
+  }
+
+  /**
+   * @param executor - executor to parse chunks, {@code null} to parse the file sequentially
+   */
+  private long processFile(@NotNull final File file,
+                           @NotNull final Charset charset,
+                           @NotNull final ParserManager parserManager,
+                           @Nullable final ExecutorService executor) throws IOException {
+    checkCharset(charset);
+    final FileInputStream input = new FileInputStream(file);
+    try {
+      final FileChannel channel = input.getChannel();
+      if (executor == null || !isParallel()) {
+        return processSequentially(channel, charset, parserManager);
+      }
+      final int window = executor instanceof ThreadPoolExecutor ? 2 * ((ThreadPoolExecutor) executor).getMaximumPoolSize()
+                                                                : 2 * Runtime.getRuntime().availableProcessors();
+      final LinkedList<Future<Chunk>> pending = new LinkedList<Future<Chunk>>();
+      long lines = 0;
+      long start = 0;
+      final long size = channel.size();
+      try {
+        while (start < size || !pending.isEmpty()) {
+          while (start < size && pending.size() < window) {
+            final long end = findChunkEnd(channel, start);
+            pending.add(executor.submit(new Chunk(channel, start, end, charset)));
+            start = end;
+          }
+          final Chunk chunk = pending.removeFirst().get();
+          lines += chunk.replay(parserManager);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Parsing of " + file.getAbsolutePath() + " is interrupted");
+      } catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof IOException) throw (IOException) cause;
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        throw new IOException("Failed to parse " + file.getAbsolutePath() + ": " + cause);
+      } finally {
+        for (Future<Chunk> future : pending) {
+          future.cancel(true);
+        }
+      }
+      return lines;
+    } finally {
+      FileUtil.close(input);
+    }
+  }
+
+  /**
+   * @return whether lines could be parsed independently of lines before them
+   */
+  private boolean isParallel() {
+    if (!myParser.getMultilinePatterns().isEmpty()) return false;
+    for (RegexPattern pattern : myParser.getPatterns()) {
+      if (pattern.getClass() != RegexPattern.class) return false;
+    }
+    return true;
+  }
+
+  private long processSequentially(@NotNull final FileChannel channel,
+                                   @NotNull final Charset charset,
+                                   @NotNull final ParserManager parserManager) throws IOException {
+    final ParsingSession session = myParser.createSession();
+    final long size = channel.size();
+    long lines = 0;
+    long start = 0;
+    while (start < size) {
+      final long end = findChunkEnd(channel, start);
+      final LineReader reader = new LineReader(decode(channel, start, end, charset));
+      CharSequence line;
+      while ((line = reader.readLine()) != null) {
+        session.processLine(line, parserManager);
+        lines++;
+      }
+      start = end;
+    }
+    session.flush(parserManager);
+    return lines;
+  }
+
+  /**
+   * @return end of the chunk starting at the offset: offset after the first {@code \n} found {@link #getChunkSize()} bytes later,
+   * or the file size
+   */
+  private long findChunkEnd(@NotNull final FileChannel channel, final long start) throws IOException {
+    final long size = channel.size();
+    long position = start + myChunkSize - 1;
+    while (position < size) {
+      final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SCAN_WINDOW, size - position));
+      while (window.hasRemaining()) {
+        if (window.get() == '\n') {
+          return position + window.position();
+        }
+      }
+      position += window.limit();
+    }
+    return size;
+  }
+
+  @NotNull
+  private static Reader decode(@NotNull final FileChannel channel, final long start, final long end, @NotNull final Charset charset) throws IOException {
+    final MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    // Same replacement of malformed input as InputStreamReader does
+    final CharBuffer chars = charset.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE)
+        .decode(bytes);
+    return new CharArrayReader(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+  }
+
+  private static void checkCharset(@NotNull final Charset charset) throws CharacterCodingException {
+    if (!charset.canEncode()) {
+      throw new IllegalArgumentException("Charset " + charset + " is not supported: lines could not be found");
+    }
+    final ByteBuffer lf = charset.newEncoder().encode(CharBuffer.wrap("\n"));
+    if (lf.remaining() != 1 || lf.get() != '\n') {
+      throw new IllegalArgumentException("Charset " + charset + " is not supported: line feed is not a single byte");
+    }
+  }
+
+  /**
+   * Lines of a chunk parsed on a worker thread, logs are kept until {@link #replay(ParserManager)}.
+   */
+  private final class Chunk implements Callable<Chunk> {
+    @NotNull
+    private final FileChannel myChannel;
+    private final long myStart;
+    private final long myEnd;
+    @NotNull
+    private final Charset myCharset;
+    @NotNull
+    private final Recorder myRecorder = new Recorder();
+    private long myLines;
+
+    Chunk(@NotNull final FileChannel channel, final long start, final long end, @NotNull final Charset charset) {
+      myChannel = channel;
+      myStart = start;
+      myEnd = end;
+      myCharset = charset;
+    }
+
+    public Chunk call() throws IOException {
+      final ParsingSession session = myParser.createSession();
+      final LineReader reader = new LineReader(decode(myChannel, myStart, myEnd, myCharset));
+      CharSequence line;
+      while ((line = reader.readLine()) != null) {
+        session.processLine(line, myRecorder);
+        myLines++;
+      }
+      return this;
+    }
+
+    long replay(@NotNull final ParserManager parserManager) {
+      myRecorder.replay(parserManager);
+      return myLines;
+    }
+  }
+
+  /**
+   * Records what a {@link ParsingSession} logs instead of logging it. The session of a parser without {@link MultilinePattern}s and
+   * {@link RegexPattern} subclasses only calls {@link #logMatch}, {@link #logRecord} and {@link #parsingError}.
+   */
+  private static final class Recorder extends ParserManager<ParserManager.Block> {
+    /**
+     * Matched lines: pattern, severity, line and description, or parsing errors: {@code null}, {@code null}, {@code null} and message.
+     */
+    @NotNull
+    private final List<Object> myRecords = new ArrayList<Object>();
+
+    Recorder() {
+      super(new LoggerAdapter());
+    }
+
+    @Override
+    void logMatch(@NotNull final RegexPattern pattern, @NotNull final Matcher matcher, @NotNull final CharSequence line) {
+      record(pattern, pattern.getSeverity(), line.toString(), pattern.getCompiled().describe(matcher, line));
+    }
+
+    @Override
+    void logRecord(@NotNull final RegexPattern pattern, @NotNull final Severity severity, @NotNull final String record) {
+      record(pattern, severity, record, record);
+    }
+
+    @Override
+    public void parsingError(@NotNull final String message) {
+      record(null, null, null, message);
+    }
+
+    private void record(@Nullable final RegexPattern pattern,
+                        @Nullable final Severity severity,
+                        @Nullable final String line,
+                        @NotNull final String description) {
+      myRecords.add(pattern);
+      myRecords.add(severity);
+      myRecords.add(line);
+      myRecords.add(description);
+    }
+
+    void replay(@NotNull final ParserManager parserManager) {
+      for (int i = 0; i < myRecords.size(); i += 4) {
+        final RegexPattern pattern = (RegexPattern) myRecords.get(i);
+        final String description = (String) myRecords.get(i + 3);
+        if (pattern == null) {
+          parserManager.parsingError(description);
+        } else {
+          parserManager.logDescribed(pattern, (Severity) myRecords.get(i + 1), (String) myRecords.get(i + 2), description);
+        }
+      }
+      myRecords.clear();
+    }
+  }
+}
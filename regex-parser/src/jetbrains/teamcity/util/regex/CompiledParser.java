@@ -0,0 +1,356 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Compiled matching plan of {@link RegexParser} patterns.
+ * <br/>
+ * Runs of consecutive patterns are merged into a single {@link Pattern} of form {@code (?>(p1))\z|(?>(p2))\z|...},
+ * so a line not matched by any of them is checked by one matcher instead of one matcher per pattern.
+ * Atomic group keeps the match each pattern finds on its own, thus the first alternative covering the whole line
+ * is exactly the pattern the interpreted mode would select.
+ * <br/>
+ * A pattern with {@code eat-line="false"} closes the run since patterns after it must see the same line too.
+ * Patterns which cannot be embedded into another pattern (back references, named groups, some flags),
+ * patterns matched by {@link RegexEngine#AUTOMATON} and {@link RegexPattern} subclasses are evaluated on their own.
+ * <br/>
+ * Before matching, the line is scanned by {@link LiteralPrefilter} and patterns whose required literals
+ * are absent from the line are skipped.
+ * <br/>
+ * The plan itself is immutable and shared, everything changing from line to line lives in {@link State}.
+ */
+final class CompiledParser {
+  @NotNull
+  private final RegexPattern[] myPatterns;
+  /**
+   * Automata of patterns matched by {@link RegexEngine#AUTOMATON}, {@code null} for patterns matched by the JDK only.
+   */
+  @NotNull
+  private final RegexAutomaton[] myAutomata;
+  @NotNull
+  private final Segment[] mySegments;
+  @NotNull
+  private final LiteralPrefilter myPrefilter;
+
+  /**
+   * @param engine - engine of the parser, see {@link RegexPattern#getAutomaton(RegexEngine)}
+   */
+  CompiledParser(@NotNull final List<RegexPattern> patterns, @Nullable final RegexEngine engine) {
+    myPatterns = patterns.toArray(new RegexPattern[patterns.size()]);
+    myAutomata = new RegexAutomaton[myPatterns.length];
+    for (int i = 0; i < myPatterns.length; i++) {
+      if (!isSubclass(myPatterns[i])) {
+        myAutomata[i] = myPatterns[i].getAutomaton(engine);
+      }
+    }
+    final List<List<List<RequiredLiterals.Factor>>> requirements = new ArrayList<List<List<RequiredLiterals.Factor>>>();
+    final List<Segment> segments = new ArrayList<Segment>();
+    int runStart = 0;
+    for (int i = 0; i < patterns.size(); i++) {
+      final RegexPattern pattern = patterns.get(i);
+      requirements.add(isSubclass(pattern) ? Collections.<List<RequiredLiterals.Factor>>emptyList() : pattern.getAnalysis().getRequiredLiterals());
+      if (!isCombinable(pattern) || myAutomata[i] != null) {
+        addRun(patterns, runStart, i, segments);
+        segments.add(new SingleSegment(pattern, i));
+        runStart = i + 1;
+      } else if (!pattern.getEatLine()) {
+        addRun(patterns, runStart, i + 1, segments);
+        runStart = i + 1;
+      }
+    }
+    addRun(patterns, runStart, patterns.size(), segments);
+    mySegments = segments.toArray(new Segment[segments.size()]);
+    myPrefilter = new LiteralPrefilter(requirements);
+  }
+
+  int getPatternsCount() {
+    return myPatterns.length;
+  }
+
+  /**
+   * @return whether patterns are evaluated exactly in the given order
+   */
+  boolean hasOrder(@NotNull final List<RegexPattern> patterns) {
+    if (patterns.size() != myPatterns.length) return false;
+    for (int i = 0; i < myPatterns.length; i++) {
+      if (patterns.get(i) != myPatterns[i]) return false;
+    }
+    return true;
+  }
+
+  @NotNull
+  State createState() {
+    return new State();
+  }
+
+  boolean processLine(@NotNull final CharSequence line,
+                      @NotNull final ParserManager parserManager,
+                      @Nullable final MatchingBudget budget,
+                      @NotNull final State state,
+                      @Nullable final PatternMetrics metrics) {
+    state.myPrefilter.scan(line);
+    for (int i = 0; i < mySegments.length; i++) {
+      if (mySegments[i].processLine(line, parserManager, budget, state, metrics, i)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Matches patterns one by one, as if there is no compiled plan.
+   */
+  boolean processLineSequentially(@NotNull final CharSequence line,
+                                  @NotNull final ParserManager parserManager,
+                                  @Nullable final MatchingBudget budget,
+                                  @NotNull final State state,
+                                  @Nullable final PatternMetrics metrics) {
+    for (int i = 0; i < myPatterns.length; i++) {
+      if (RegexParser.processLine(myPatterns[i], line, parserManager, budget, state.getMatcher(i), state.getSimulation(i), metrics)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Matches patterns one by one without a {@link State}, each pattern creates matcher for the line itself.
+   * Meant for single lines, where creating and warming a state costs more than it saves.
+   */
+  boolean processLineStateless(@NotNull final CharSequence line,
+                               @NotNull final ParserManager parserManager,
+                               @Nullable final MatchingBudget budget,
+                               @Nullable final PatternMetrics metrics) {
+    for (int i = 0; i < myPatterns.length; i++) {
+      final RegexAutomaton automaton = myAutomata[i];
+      if (RegexParser.processLine(myPatterns[i], line, parserManager, budget, null, automaton == null ? null : automaton.createSimulation(), metrics)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isSubclass(@NotNull final RegexPattern pattern) {
+    return pattern.getClass() != RegexPattern.class;
+  }
+
+  private static boolean isCombinable(@NotNull final RegexPattern pattern) {
+    return !isSubclass(pattern) && pattern.getAnalysis().getTree().isEmbeddable();
+  }
+
+  private static void addRun(@NotNull final List<RegexPattern> patterns, final int from, final int to, @NotNull final List<Segment> segments) {
+    if (from == to) return;
+    if (to - from == 1) {
+      segments.add(new SingleSegment(patterns.get(from), from));
+      return;
+    }
+    final Segment combined = CombinedSegment.create(patterns, from, to);
+    if (combined != null) {
+      segments.add(combined);
+    } else {
+      for (int i = from; i < to; i++) {
+        segments.add(new SingleSegment(patterns.get(i), i));
+      }
+    }
+  }
+
+  /**
+   * Matching state of a single parsing session: prefilter results for the current line and matchers
+   * created on first use and reset for every next line, so lines nothing matches are processed without allocations.
+   * Not thread safe.
+   */
+  final class State {
+    @NotNull
+    private final LiteralPrefilter.State myPrefilter = CompiledParser.this.myPrefilter.createState();
+    @NotNull
+    private final Matcher[] myPatternMatchers = new Matcher[myPatterns.length];
+    @NotNull
+    private final Matcher[] mySegmentMatchers = new Matcher[mySegments.length];
+    @NotNull
+    private final RegexAutomaton.Simulation[] mySimulations = new RegexAutomaton.Simulation[myAutomata.length];
+
+    @NotNull
+    CompiledParser getParser() {
+      return CompiledParser.this;
+    }
+
+    /**
+     * @return reusable matcher of pattern with given index, {@code null} for {@link RegexPattern} subclasses which match lines on their own
+     */
+    @Nullable
+    Matcher getMatcher(final int pattern) {
+      Matcher matcher = myPatternMatchers[pattern];
+      if (matcher == null && !isSubclass(myPatterns[pattern])) {
+        matcher = myPatterns[pattern].getCompiled().getPattern().matcher("");
+        myPatternMatchers[pattern] = matcher;
+      }
+      return matcher;
+    }
+
+    /**
+     * @return reusable automaton simulation of pattern with given index, {@code null} for patterns matched by the JDK only
+     */
+    @Nullable
+    RegexAutomaton.Simulation getSimulation(final int pattern) {
+      RegexAutomaton.Simulation simulation = mySimulations[pattern];
+      if (simulation == null && myAutomata[pattern] != null) {
+        simulation = myAutomata[pattern].createSimulation();
+        mySimulations[pattern] = simulation;
+      }
+      return simulation;
+    }
+
+    @NotNull
+    private Matcher getSegmentMatcher(final int segment, @NotNull final Pattern pattern) {
+      Matcher matcher = mySegmentMatchers[segment];
+      if (matcher == null) {
+        matcher = pattern.matcher("");
+        mySegmentMatchers[segment] = matcher;
+      }
+      return matcher;
+    }
+  }
+
+  private interface Segment {
+    boolean processLine(@NotNull CharSequence line,
+                        @NotNull ParserManager parserManager,
+                        @Nullable MatchingBudget budget,
+                        @NotNull State state,
+                        @Nullable PatternMetrics metrics,
+                        int index);
+  }
+
+  private static class SingleSegment implements Segment {
+    @NotNull
+    private final RegexPattern myPattern;
+    private final int myIndex;
+
+    SingleSegment(@NotNull final RegexPattern pattern, final int index) {
+      myPattern = pattern;
+      myIndex = index;
+    }
+
+    public boolean processLine(@NotNull final CharSequence line,
+                               @NotNull final ParserManager parserManager,
+                               @Nullable final MatchingBudget budget,
+                               @NotNull final State state,
+                               @Nullable final PatternMetrics metrics,
+                               final int index) {
+      return state.myPrefilter.isCandidate(myIndex)
+          && RegexParser.processLine(myPattern, line, parserManager, budget, state.getMatcher(myIndex), state.getSimulation(myIndex), metrics);
+    }
+  }
+
+  private static class CombinedSegment implements Segment {
+    @NotNull
+    private final RegexPattern[] myPatterns;
+    /**
+     * Index of the first pattern of the segment in the parser.
+     */
+    private final int myFrom;
+    @NotNull
+    private final Pattern myCombined;
+    /**
+     * Index of the group wrapping each pattern in {@link #myCombined}.
+     */
+    @NotNull
+    private final int[] myTagGroups;
+
+    private CombinedSegment(@NotNull final RegexPattern[] patterns, final int from, @NotNull final Pattern combined, @NotNull final int[] tagGroups) {
+      myPatterns = patterns;
+      myFrom = from;
+      myCombined = combined;
+      myTagGroups = tagGroups;
+    }
+
+    static CombinedSegment create(@NotNull final List<RegexPattern> all, final int from, final int to) {
+      final RegexPattern[] patterns = all.subList(from, to).toArray(new RegexPattern[to - from]);
+      final StringBuilder sb = new StringBuilder("(?:");
+      final int[] tags = new int[patterns.length];
+      int group = 1;
+      for (int i = 0; i < patterns.length; i++) {
+        final CompiledPattern compiled = patterns[i].getCompiled();
+        final Pattern pattern = compiled.getPattern();
+        if (i > 0) sb.append('|');
+        sb.append("(?>(").append(compiled.getAnalysis().getTree().getInlineFlagsPrefix()).append(pattern.pattern()).append("))\\z");
+        tags[i] = group;
+        group += 1 + pattern.matcher("").groupCount();
+      }
+      sb.append(')');
+      final Pattern combined;
+      try {
+        combined = Pattern.compile(sb.toString());
+      } catch (PatternSyntaxException e) {
+        return null;
+      }
+      // Guard against patterns which changed their meaning once embedded
+      if (combined.matcher("").groupCount() != group - 1) {
+        return null;
+      }
+      return new CombinedSegment(patterns, from, combined, tags);
+    }
+
+    public boolean processLine(@NotNull final CharSequence line,
+                               @NotNull final ParserManager parserManager,
+                               @Nullable final MatchingBudget budget,
+                               @NotNull final State state,
+                               @Nullable final PatternMetrics metrics,
+                               final int index) {
+      if (!hasCandidates(state)) return false;
+      // Time spent by the combined pattern cannot be attributed to a single pattern
+      if (metrics != null) return processSequentially(0, line, parserManager, budget, state, metrics);
+      final int matched;
+      try {
+        if (budget != null) budget.reset();
+        final Matcher matcher = state.getSegmentMatcher(index, myCombined);
+        matched = findFirstMatched(matcher.reset(budget == null ? line : budget.wrap(line)));
+      } catch (Exception e) {
+        // Including exceeded budget: patterns are given their own budgets then and the one to blame is reported
+        return processSequentially(0, line, parserManager, budget, state, null);
+      }
+      if (matched < 0) return false;
+      return processSequentially(matched, line, parserManager, budget, state, null);
+    }
+
+    private boolean hasCandidates(@NotNull final State state) {
+      for (int i = 0; i < myPatterns.length; i++) {
+        if (state.myPrefilter.isCandidate(myFrom + i)) return true;
+      }
+      return false;
+    }
+
+    private int findFirstMatched(@NotNull final Matcher matcher) {
+      if (!matcher.lookingAt()) return -1;
+      for (int i = 0; i < myTagGroups.length; i++) {
+        if (matcher.start(myTagGroups[i]) != -1) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private boolean processSequentially(final int from,
+                                        @NotNull final CharSequence line,
+                                        @NotNull final ParserManager parserManager,
+                                        @Nullable final MatchingBudget budget,
+                                        @NotNull final State state,
+                                        @Nullable final PatternMetrics metrics) {
+      for (int i = from; i < myPatterns.length; i++) {
+        final int pattern = myFrom + i;
+        if (state.myPrefilter.isCandidate(pattern)
+            && RegexParser.processLine(myPatterns[i], line, parserManager, budget, state.getMatcher(pattern), state.getSimulation(pattern), metrics)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
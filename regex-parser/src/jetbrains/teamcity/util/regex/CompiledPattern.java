@@ -0,0 +1,174 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Form of a {@link RegexPattern} prepared for whole-line matching.
+ * <br/>
+ * {@code output-expr} is parsed into a {@link DescriptionTemplate} once, so describing a match does not reparse it.
+ * <br/>
+ * Capturing groups {@code output-expr} never references are turned into non-capturing ones,
+ * so the matcher does not track them, the expression is rewritten to use new group numbers.
+ * Patterns are left as is if they use back references (which refer to groups by numbers),
+ * are compiled with {@link Pattern#LITERAL} or if {@code output-expr} is malformed.
+ * {@link RegexPattern} subclasses are never rewritten since they could access groups directly.
+ */
+final class CompiledPattern {
+  @NotNull
+  private final PatternAnalysis myAnalysis;
+  @NotNull
+  private final Pattern myPattern;
+  private final String myDescriptionExpression;
+  /**
+   * Parsed {@link #myDescriptionExpression}, {@code null} if it is malformed and left to {@link Matcher#replaceAll(String)} to fail.
+   */
+  @Nullable
+  private final DescriptionTemplate myTemplate;
+
+  private CompiledPattern(@NotNull final PatternAnalysis analysis,
+                          @NotNull final Pattern pattern,
+                          final String descriptionExpression,
+                          @Nullable final DescriptionTemplate template) {
+    myAnalysis = analysis;
+    myPattern = pattern;
+    myDescriptionExpression = descriptionExpression;
+    myTemplate = template;
+  }
+
+  /**
+   * @param analysis - analysis of the pattern regex
+   * @see PatternPool#acquire(RegexPattern)
+   */
+  @NotNull
+  static CompiledPattern compile(@NotNull final RegexPattern regexPattern, @NotNull final PatternAnalysis analysis) {
+    final Pattern pattern = regexPattern.getPattern();
+    final String expression = regexPattern.getDescriptionExpression();
+    final RegexTree tree = analysis.getTree();
+    if (expression == null) {
+      return new CompiledPattern(analysis, pattern, null, null);
+    }
+    final DescriptionTemplate template = tree.isSupported()
+        ? DescriptionTemplate.parse(expression, tree.getGroupCount(), tree.getNamedGroups())
+        : DescriptionTemplate.parse(expression, pattern.matcher("").groupCount(), Collections.<String, Integer>emptyMap());
+    if (template == null
+        || regexPattern.getClass() != RegexPattern.class
+        || !tree.isSupported()
+        || tree.hasBackReferences()
+        || (pattern.flags() & Pattern.LITERAL) != 0) {
+      return new CompiledPattern(analysis, pattern, expression, template);
+    }
+
+    final List<RegexTree.Group> unreferenced = new ArrayList<RegexTree.Group>();
+    //noinspection ConstantConditions
+    collectUnreferencedGroups(tree.getRoot(), template, unreferenced);
+    if (unreferenced.isEmpty()) {
+      return new CompiledPattern(analysis, pattern, expression, template);
+    }
+
+    final String source = pattern.pattern();
+    final StringBuilder sb = new StringBuilder(source.length() + 2 * unreferenced.size());
+    final int[] groupMapping = new int[tree.getGroupCount() + 1];
+    int last = 0;
+    int removed = 0;
+    for (RegexTree.Group group : unreferenced) {
+      sb.append(source, last, group.start + 1).append("?:");
+      last = group.start + 1;
+    }
+    sb.append(source, last, source.length());
+    int next = 0;
+    for (int i = 0; i <= tree.getGroupCount(); i++) {
+      if (removed < unreferenced.size() && unreferenced.get(removed).index == i) {
+        removed++;
+      } else {
+        groupMapping[i] = next++;
+      }
+    }
+
+    final Pattern rewritten;
+    try {
+      rewritten = Pattern.compile(sb.toString(), pattern.flags());
+    } catch (PatternSyntaxException e) {
+      return new CompiledPattern(analysis, pattern, expression, template);
+    }
+    if (rewritten.matcher("").groupCount() != next - 1) {
+      return new CompiledPattern(analysis, pattern, expression, template);
+    }
+    return new CompiledPattern(analysis, rewritten, template.toExpression(groupMapping), template.remap(groupMapping));
+  }
+
+  /**
+   * Collects unreferenced unnamed capturing groups in order of their indices, which is also the order of their sources.
+   */
+  private static void collectUnreferencedGroups(@NotNull final RegexTree.Node node,
+                                                @NotNull final DescriptionTemplate template,
+                                                @NotNull final List<RegexTree.Group> result) {
+    if (node instanceof RegexTree.Group) {
+      final RegexTree.Group group = (RegexTree.Group) node;
+      if (group.kind == RegexTree.GroupKind.CAPTURING && group.name == null && !template.references(group.index)) {
+        result.add(group);
+      }
+      collectUnreferencedGroups(group.body, template, result);
+    } else if (node instanceof RegexTree.Repeat) {
+      collectUnreferencedGroups(((RegexTree.Repeat) node).body, template, result);
+    } else if (node instanceof RegexTree.Sequence) {
+      for (RegexTree.Node item : ((RegexTree.Sequence) node).items) {
+        collectUnreferencedGroups(item, template, result);
+      }
+    } else if (node instanceof RegexTree.Alternation) {
+      for (RegexTree.Node branch : ((RegexTree.Alternation) node).branches) {
+        collectUnreferencedGroups(branch, template, result);
+      }
+    }
+  }
+
+  @NotNull
+  PatternAnalysis getAnalysis() {
+    return myAnalysis;
+  }
+
+  /**
+   * @return pattern to match lines with, equivalent to the original one apart from group numbers
+   */
+  @NotNull
+  Pattern getPattern() {
+    return myPattern;
+  }
+
+  /**
+   * Same as {@link Matcher#replaceAll(String)} with {@link #getDescriptionExpression()} for a matcher
+   * which has just matched the whole input, but without parsing the expression and rescanning the input.
+   *
+   * @param input - text the matcher was reset with
+   */
+  @NotNull
+  String describe(@NotNull final Matcher matcher, @NotNull final CharSequence input) {
+    if (myTemplate == null) {
+      return matcher.replaceAll(myDescriptionExpression);
+    }
+    final String description = myTemplate.render(matcher, input);
+    if (myAnalysis.getMinLength() > 0) {
+      return description;
+    }
+    // replaceAll also replaces an empty match at the end of the input
+    final StringBuilder sb = new StringBuilder(description);
+    while (matcher.find()) {
+      sb.append(myTemplate.render(matcher, input));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return {@code output-expr} referencing groups of {@link #getPattern()}
+   */
+  String getDescriptionExpression() {
+    return myDescriptionExpression;
+  }
+}
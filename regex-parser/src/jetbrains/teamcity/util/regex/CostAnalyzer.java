@@ -0,0 +1,589 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Static estimate of the time {@link RegexEngine#JDK} takes to match a line against a {@link RegexTree}, see {@link PatternCost}.
+ * <br/>
+ * Sets of chars are approximated by a sample: ASCII, some other letters, spaces and line separators, and all literals of the pattern,
+ * two sets overlap if they share a sampled char. Like other ReDoS linters it relies on shapes, so a safe pattern like {@code (a|ab)+}
+ * may be flagged, but the known shapes of exponential and polynomial backtracking are found:
+ * <ul>
+ * <li>a repetition inside a repeated group, when what follows it in the group may be matched by the repetition too, e.g. {@code (a+)+},
+ * {@code (\w+\s?)*}</li>
+ * <li>alternatives of a repeated group starting with the same chars, e.g. {@code (\d|\w)+}</li>
+ * <li>two unbounded repetitions in a sequence which may match the same text, followed by something which may fail, e.g. {@code .*a.*b}.
+ * A match is looked for only at the line start, so a repetition ending the pattern never fails and is not counted</li>
+ * </ul>
+ */
+final class CostAnalyzer {
+  /**
+   * Counted repetitions above it take that many copies of their body in {@link RegexAutomaton}.
+   */
+  private static final int LARGE_REPEAT = 100;
+  private static final int MAX_SNIPPET = 40;
+  private static final int[] EXTRA_SAMPLES = {0x85, 0xA0, 0xDF, 0xE9, 0xFC, 0x416, 0x436, 0x4E2D, 0x2028, 0x2029, 0x1F600};
+  private static final int[] LINE_SEPARATORS = {'\n', '\r', 0x85, 0x2028, 0x2029};
+
+  @NotNull
+  private final RegexTree myTree;
+  /**
+   * Sampled code points, sorted.
+   */
+  @NotNull
+  private final int[] myAlphabet;
+  @NotNull
+  private final BitSet myAll;
+  /**
+   * Sampled chars a line may contain, as line separators split lines.
+   */
+  @NotNull
+  private final BitSet myLineChars;
+  @NotNull
+  private final Map<RegexTree.Node, BitSet> mySets = new IdentityHashMap<RegexTree.Node, BitSet>();
+  @NotNull
+  private final List<ParserCostReport.Finding> myFindings = new ArrayList<ParserCostReport.Finding>();
+  @NotNull
+  private PatternCost myCost = PatternCost.LINEAR;
+  private boolean myCatchAll;
+
+  private CostAnalyzer(@NotNull final RegexTree tree) {
+    myTree = tree;
+    final Set<Integer> alphabet = new TreeSet<Integer>();
+    for (int c = 0; c < 128; c++) {
+      alphabet.add(c);
+    }
+    for (int c : EXTRA_SAMPLES) {
+      alphabet.add(c);
+    }
+    final RegexTree.Node root = tree.getRoot();
+    if (root != null) {
+      collectLiterals(root, alphabet);
+    }
+    myAlphabet = new int[alphabet.size()];
+    int i = 0;
+    for (Integer c : alphabet) {
+      myAlphabet[i++] = c;
+    }
+    myAll = new BitSet(myAlphabet.length);
+    myAll.set(0, myAlphabet.length);
+    myLineChars = (BitSet) myAll.clone();
+    for (int c : LINE_SEPARATORS) {
+      myLineChars.clear(Arrays.binarySearch(myAlphabet, c));
+    }
+  }
+
+  @NotNull
+  static CostAnalyzer analyze(@NotNull final RegexTree tree) {
+    final CostAnalyzer analyzer = new CostAnalyzer(tree);
+    final RegexTree.Node root = tree.getRoot();
+    if (root == null) {
+      analyzer.myCost = PatternCost.UNKNOWN;
+    } else {
+      analyzer.myCatchAll = analyzer.isCatchAll(root);
+      analyzer.checkAnchor(root);
+      analyzer.visit(root, true, false);
+    }
+    return analyzer;
+  }
+
+  @NotNull
+  PatternCost getCost() {
+    return myCost;
+  }
+
+  @NotNull
+  List<ParserCostReport.Finding> getFindings() {
+    return myFindings;
+  }
+
+  /**
+   * @return whether the pattern matches every line, except ones with rare Unicode line separators, e.g. {@code .*}
+   */
+  boolean isCatchAll() {
+    return myCatchAll;
+  }
+
+  private void visit(@NotNull final RegexTree.Node node, final boolean tail, final boolean repeated) {
+    if (node instanceof RegexTree.Repeat) {
+      final RegexTree.Repeat repeat = (RegexTree.Repeat) node;
+      if (repeat.min > LARGE_REPEAT || repeat.max > LARGE_REPEAT) {
+        report(ParserCostReport.Issue.EXPENSIVE, PatternCost.LINEAR,
+            "counted repetition " + snippet(repeat) + " is expanded " + Math.max(repeat.min, repeat.max) + " times by the automaton engine");
+      }
+      final boolean again = repeat.max == RegexTree.UNBOUNDED || repeat.max > 1;
+      if (again && repeat.quantifier != RegexTree.Quantifier.POSSESSIVE) {
+        checkRepeatedBody(repeat);
+      }
+      visit(repeat.body, false, repeated || again);
+    } else if (node instanceof RegexTree.Group) {
+      final RegexTree.Group group = (RegexTree.Group) node;
+      if (group.kind.zeroWidth && repeated && hasUnboundedRepeat(group.body)) {
+        report(ParserCostReport.Issue.EXPENSIVE, PatternCost.POLYNOMIAL,
+            "lookaround " + snippet(group) + " inside a repetition scans the rest of the line again on every iteration");
+      }
+      visit(group.body, tail && !group.kind.zeroWidth, repeated);
+    } else if (node instanceof RegexTree.BackReference) {
+      report(ParserCostReport.Issue.EXPENSIVE, hasUnboundedRepeat(myTree.getRoot()) ? PatternCost.POLYNOMIAL : PatternCost.LINEAR,
+          "back reference " + snippet(node) + " compares text matched earlier, so every split of that text is tried");
+    } else if (node instanceof RegexTree.Sequence) {
+      final List<RegexTree.Node> items = ((RegexTree.Sequence) node).items;
+      checkSequence(items, tail);
+      for (int i = 0; i < items.size(); i++) {
+        visit(items.get(i), tail && isTail(items, i), repeated);
+      }
+    } else if (node instanceof RegexTree.Alternation) {
+      for (RegexTree.Node branch : ((RegexTree.Alternation) node).branches) {
+        visit(branch, tail, repeated);
+      }
+    }
+  }
+
+  /**
+   * Finds repetitions and alternatives which let a repeated group split the same text into iterations in many ways.
+   */
+  private void checkRepeatedBody(@NotNull final RegexTree.Repeat repeat) {
+    final PatternCost cost = repeat.max == RegexTree.UNBOUNDED ? PatternCost.EXPONENTIAL : PatternCost.POLYNOMIAL;
+    final RegexTree.Node body = repeat.body;
+    final List<RegexTree.Node> inner = new ArrayList<RegexTree.Node>();
+    collectBacktracking(body, inner);
+    for (RegexTree.Node node : inner) {
+      if (node instanceof RegexTree.Repeat) {
+        final Follow follow = follow(body, node);
+        if (follow == null) continue;
+        if (follow.reachesEnd) {
+          // The next iteration
+          addFirst(body, follow.chars);
+        }
+        if (follow.chars.intersects(chars(((RegexTree.Repeat) node).body))) {
+          report(ParserCostReport.Issue.REDOS, cost,
+              "repetition " + snippet(node) + " inside repetition " + snippet(repeat) + " may split the same text in many ways");
+          return;
+        }
+      } else {
+        final List<RegexTree.Node> branches = ((RegexTree.Alternation) node).branches;
+        for (int i = 0; i < branches.size(); i++) {
+          final BitSet first = first(branches.get(i));
+          for (int j = i + 1; j < branches.size(); j++) {
+            if (first.intersects(first(branches.get(j)))) {
+              report(ParserCostReport.Issue.REDOS, cost,
+                  "alternatives " + snippet(branches.get(i)) + " and " + snippet(branches.get(j)) + " inside repetition " + snippet(repeat)
+                      + " may match the same text");
+              return;
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Finds unbounded repetitions of a sequence which may match the same text, so backtracking tries every split of it between them.
+   *
+   * @param tail - whether the sequence ends the pattern
+   */
+  private void checkSequence(@NotNull final List<RegexTree.Node> items, final boolean tail) {
+    for (int i = 0; i < items.size(); i++) {
+      final RegexTree.Repeat first = unwrapRepeat(items.get(i));
+      if (first == null) continue;
+      final BitSet firstChars = chars(first.body);
+      for (int j = i + 1; j < items.size(); j++) {
+        final RegexTree.Node item = items.get(j);
+        final RegexTree.Repeat second = unwrapRepeat(item);
+        // A repetition ending the pattern never fails, so it never makes the first one backtrack
+        if (second != null && !(tail && isTail(items, j))) {
+          final BitSet common = chars(second.body);
+          common.and(firstChars);
+          if (!common.isEmpty() && isBridged(items, i, j, common)) {
+            report(ParserCostReport.Issue.REDOS, PatternCost.POLYNOMIAL,
+                "repetitions " + snippet(items.get(i)) + " and " + snippet(item) + " may match the same text, backtracking tries every split of it");
+            return;
+          }
+        }
+        if (!nullable(item) && !chars(item).intersects(firstChars)) break;
+      }
+    }
+  }
+
+  /**
+   * @return whether items between two repetitions could be matched by both of them
+   */
+  private boolean isBridged(@NotNull final List<RegexTree.Node> items, final int from, final int to, @NotNull final BitSet common) {
+    for (int k = from + 1; k < to; k++) {
+      final RegexTree.Node item = items.get(k);
+      if (!nullable(item) && !chars(item).intersects(common)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Lines are matched whole, so a pattern is anchored at the line start anyway, but a pattern starting with a broad repetition
+   * has no literal to reject lines by quickly: every line is scanned to its end and the repetition backtracks over it.
+   */
+  private void checkAnchor(@NotNull final RegexTree.Node root) {
+    if (myCatchAll) return;
+    final RegexTree.Repeat repeat = unwrapRepeat(firstItem(root));
+    if (repeat == null || !isSingleChar(repeat.body)) return;
+    final BitSet set = set(repeat.body);
+    int printable = 0;
+    for (int c = ' '; c < 127; c++) {
+      if (set.get(Arrays.binarySearch(myAlphabet, c))) printable++;
+    }
+    if (printable * 3 >= ('~' - ' ' + 1) * 2) {
+      report(ParserCostReport.Issue.UNANCHORED, PatternCost.LINEAR,
+          "pattern starts with " + snippet(repeat) + " instead of the text lines start with, so every line is scanned and backtracked over");
+    }
+  }
+
+  @NotNull
+  private RegexTree.Node firstItem(@NotNull final RegexTree.Node node) {
+    RegexTree.Node current = node;
+    while (true) {
+      if (current instanceof RegexTree.Group && !((RegexTree.Group) current).kind.zeroWidth) {
+        current = ((RegexTree.Group) current).body;
+      } else if (current instanceof RegexTree.Sequence) {
+        RegexTree.Node next = null;
+        for (RegexTree.Node item : ((RegexTree.Sequence) current).items) {
+          if (!(item instanceof RegexTree.Assertion)) {
+            next = item;
+            break;
+          }
+        }
+        if (next == null) return current;
+        current = next;
+      } else {
+        return current;
+      }
+    }
+  }
+
+  private boolean isCatchAll(@NotNull final RegexTree.Node node) {
+    if (node instanceof RegexTree.Group) {
+      final RegexTree.Group group = (RegexTree.Group) node;
+      return !group.kind.zeroWidth && isCatchAll(group.body);
+    }
+    if (node instanceof RegexTree.Repeat) {
+      final RegexTree.Repeat repeat = (RegexTree.Repeat) node;
+      if (repeat.max == 0) return false;
+      if (repeat.min == 0 && repeat.max == RegexTree.UNBOUNDED && isSingleChar(repeat.body)) {
+        final BitSet missing = (BitSet) myLineChars.clone();
+        missing.andNot(set(repeat.body));
+        return missing.isEmpty();
+      }
+      return isCatchAll(repeat.body);
+    }
+    if (node instanceof RegexTree.Alternation) {
+      for (RegexTree.Node branch : ((RegexTree.Alternation) node).branches) {
+        if (isCatchAll(branch)) return true;
+      }
+      return false;
+    }
+    if (node instanceof RegexTree.Sequence) {
+      boolean result = false;
+      for (RegexTree.Node item : ((RegexTree.Sequence) node).items) {
+        if (item instanceof RegexTree.Assertion) {
+          final RegexTree.AssertionKind kind = ((RegexTree.Assertion) item).kind;
+          // Boundaries hold at the line start or end, where catch-all items may stop
+          if (kind == RegexTree.AssertionKind.WORD_BOUNDARY || kind == RegexTree.AssertionKind.NON_WORD_BOUNDARY
+              || kind == RegexTree.AssertionKind.LAST_MATCH_END) return false;
+        } else if (isCatchAll(item)) {
+          result = true;
+        } else {
+          return false;
+        }
+      }
+      return result;
+    }
+    return false;
+  }
+
+  /**
+   * Collects unbounded repetitions and alternations which may backtrack, i.e. are not inside atomic groups or lookaround.
+   */
+  private static void collectBacktracking(@NotNull final RegexTree.Node node, @NotNull final List<RegexTree.Node> result) {
+    if (node instanceof RegexTree.Repeat) {
+      final RegexTree.Repeat repeat = (RegexTree.Repeat) node;
+      if (repeat.max == RegexTree.UNBOUNDED && repeat.quantifier != RegexTree.Quantifier.POSSESSIVE) {
+        result.add(repeat);
+      }
+      collectBacktracking(repeat.body, result);
+    } else if (node instanceof RegexTree.Group) {
+      final RegexTree.Group group = (RegexTree.Group) node;
+      if (!group.kind.zeroWidth && group.kind != RegexTree.GroupKind.ATOMIC) {
+        collectBacktracking(group.body, result);
+      }
+    } else if (node instanceof RegexTree.Sequence) {
+      for (RegexTree.Node item : ((RegexTree.Sequence) node).items) {
+        collectBacktracking(item, result);
+      }
+    } else if (node instanceof RegexTree.Alternation) {
+      result.add(node);
+      for (RegexTree.Node branch : ((RegexTree.Alternation) node).branches) {
+        collectBacktracking(branch, result);
+      }
+    }
+  }
+
+  /**
+   * @return chars which may follow the target inside the node, {@code null} if the node does not contain the target
+   */
+  @Nullable
+  private Follow follow(@NotNull final RegexTree.Node node, @NotNull final RegexTree.Node target) {
+    if (node == target) return new Follow();
+    if (node instanceof RegexTree.Group) {
+      final RegexTree.Group group = (RegexTree.Group) node;
+      return group.kind.zeroWidth ? null : follow(group.body, target);
+    }
+    if (node instanceof RegexTree.Repeat) {
+      final RegexTree.Repeat repeat = (RegexTree.Repeat) node;
+      final Follow follow = follow(repeat.body, target);
+      if (follow != null && follow.reachesEnd && repeat.max != 1) {
+        addFirst(repeat.body, follow.chars);
+      }
+      return follow;
+    }
+    if (node instanceof RegexTree.Alternation) {
+      for (RegexTree.Node branch : ((RegexTree.Alternation) node).branches) {
+        final Follow follow = follow(branch, target);
+        if (follow != null) return follow;
+      }
+      return null;
+    }
+    if (node instanceof RegexTree.Sequence) {
+      final List<RegexTree.Node> items = ((RegexTree.Sequence) node).items;
+      for (int i = 0; i < items.size(); i++) {
+        final Follow follow = follow(items.get(i), target);
+        if (follow == null) continue;
+        for (int j = i + 1; j < items.size() && follow.reachesEnd; j++) {
+          addFirst(items.get(j), follow.chars);
+          follow.reachesEnd = nullable(items.get(j));
+        }
+        return follow;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return unbounded repetition which may backtrack the node is, possibly wrapped into groups, {@code null} otherwise
+   */
+  @Nullable
+  private static RegexTree.Repeat unwrapRepeat(@NotNull final RegexTree.Node node) {
+    RegexTree.Node current = node;
+    while (current instanceof RegexTree.Group) {
+      final RegexTree.Group group = (RegexTree.Group) current;
+      if (group.kind.zeroWidth || group.kind == RegexTree.GroupKind.ATOMIC) return null;
+      current = group.body;
+    }
+    if (!(current instanceof RegexTree.Repeat)) return null;
+    final RegexTree.Repeat repeat = (RegexTree.Repeat) current;
+    return repeat.max == RegexTree.UNBOUNDED && repeat.quantifier != RegexTree.Quantifier.POSSESSIVE ? repeat : null;
+  }
+
+  /**
+   * @return whether items after the given one always match the empty text
+   */
+  private static boolean isTail(@NotNull final List<RegexTree.Node> items, final int index) {
+    for (int i = index + 1; i < items.size(); i++) {
+      if (!nullable(items.get(i))) return false;
+    }
+    return true;
+  }
+
+  private static boolean hasUnboundedRepeat(@Nullable final RegexTree.Node node) {
+    if (node instanceof RegexTree.Repeat) {
+      final RegexTree.Repeat repeat = (RegexTree.Repeat) node;
+      return repeat.max == RegexTree.UNBOUNDED || hasUnboundedRepeat(repeat.body);
+    }
+    if (node instanceof RegexTree.Group) return hasUnboundedRepeat(((RegexTree.Group) node).body);
+    if (node instanceof RegexTree.Sequence) {
+      for (RegexTree.Node item : ((RegexTree.Sequence) node).items) {
+        if (hasUnboundedRepeat(item)) return true;
+      }
+    }
+    if (node instanceof RegexTree.Alternation) {
+      for (RegexTree.Node branch : ((RegexTree.Alternation) node).branches) {
+        if (hasUnboundedRepeat(branch)) return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean nullable(@NotNull final RegexTree.Node node) {
+    if (node instanceof RegexTree.Literal || node instanceof RegexTree.CharClass) return false;
+    if (node instanceof RegexTree.Opaque) return ((RegexTree.Opaque) node).minLength == 0;
+    if (node instanceof RegexTree.Group) {
+      final RegexTree.Group group = (RegexTree.Group) node;
+      return group.kind.zeroWidth || nullable(group.body);
+    }
+    if (node instanceof RegexTree.Repeat) {
+      final RegexTree.Repeat repeat = (RegexTree.Repeat) node;
+      return repeat.min == 0 || nullable(repeat.body);
+    }
+    if (node instanceof RegexTree.Sequence) {
+      for (RegexTree.Node item : ((RegexTree.Sequence) node).items) {
+        if (!nullable(item)) return false;
+      }
+      return true;
+    }
+    if (node instanceof RegexTree.Alternation) {
+      for (RegexTree.Node branch : ((RegexTree.Alternation) node).branches) {
+        if (nullable(branch)) return true;
+      }
+      return false;
+    }
+    // Assertions are zero width, back references could be empty
+    return true;
+  }
+
+  /**
+   * @return sampled chars the node may start with
+   */
+  @NotNull
+  private BitSet first(@NotNull final RegexTree.Node node) {
+    final BitSet result = new BitSet(myAlphabet.length);
+    addFirst(node, result);
+    return result;
+  }
+
+  private void addFirst(@NotNull final RegexTree.Node node, @NotNull final BitSet result) {
+    if (isSingleChar(node)) {
+      result.or(set(node));
+    } else if (node instanceof RegexTree.Opaque || node instanceof RegexTree.BackReference) {
+      result.or(myAll);
+    } else if (node instanceof RegexTree.Group) {
+      final RegexTree.Group group = (RegexTree.Group) node;
+      if (!group.kind.zeroWidth) addFirst(group.body, result);
+    } else if (node instanceof RegexTree.Repeat) {
+      final RegexTree.Repeat repeat = (RegexTree.Repeat) node;
+      if (repeat.max != 0) addFirst(repeat.body, result);
+    } else if (node instanceof RegexTree.Sequence) {
+      for (RegexTree.Node item : ((RegexTree.Sequence) node).items) {
+        addFirst(item, result);
+        if (!nullable(item)) break;
+      }
+    } else if (node instanceof RegexTree.Alternation) {
+      for (RegexTree.Node branch : ((RegexTree.Alternation) node).branches) {
+        addFirst(branch, result);
+      }
+    }
+  }
+
+  /**
+   * @return sampled chars the node may match anywhere
+   */
+  @NotNull
+  private BitSet chars(@NotNull final RegexTree.Node node) {
+    final BitSet result = new BitSet(myAlphabet.length);
+    addChars(node, result);
+    return result;
+  }
+
+  private void addChars(@NotNull final RegexTree.Node node, @NotNull final BitSet result) {
+    if (isSingleChar(node)) {
+      result.or(set(node));
+    } else if (node instanceof RegexTree.Opaque || node instanceof RegexTree.BackReference) {
+      result.or(myAll);
+    } else if (node instanceof RegexTree.Group) {
+      final RegexTree.Group group = (RegexTree.Group) node;
+      if (!group.kind.zeroWidth) addChars(group.body, result);
+    } else if (node instanceof RegexTree.Repeat) {
+      final RegexTree.Repeat repeat = (RegexTree.Repeat) node;
+      if (repeat.max != 0) addChars(repeat.body, result);
+    } else if (node instanceof RegexTree.Sequence) {
+      for (RegexTree.Node item : ((RegexTree.Sequence) node).items) {
+        addChars(item, result);
+      }
+    } else if (node instanceof RegexTree.Alternation) {
+      for (RegexTree.Node branch : ((RegexTree.Alternation) node).branches) {
+        addChars(branch, result);
+      }
+    }
+  }
+
+  private static boolean isSingleChar(@NotNull final RegexTree.Node node) {
+    return node instanceof RegexTree.Literal || node instanceof RegexTree.CharClass;
+  }
+
+  /**
+   * @return sampled chars a literal or a char class matches, not to be modified
+   */
+  @NotNull
+  private BitSet set(@NotNull final RegexTree.Node node) {
+    BitSet set = mySets.get(node);
+    if (set != null) return set;
+    Pattern pattern;
+    try {
+      if (node instanceof RegexTree.Literal) {
+        final RegexTree.Literal literal = (RegexTree.Literal) node;
+        pattern = Pattern.compile(Pattern.quote(new String(Character.toChars(literal.codePoint))), literal.flags);
+      } else {
+        final RegexTree.CharClass charClass = (RegexTree.CharClass) node;
+        pattern = Pattern.compile(charClass.text, charClass.flags);
+      }
+    } catch (PatternSyntaxException e) {
+      pattern = null;
+    }
+    if (pattern == null) {
+      set = myAll;
+    } else {
+      set = new BitSet(myAlphabet.length);
+      for (int i = 0; i < myAlphabet.length; i++) {
+        if (pattern.matcher(new String(Character.toChars(myAlphabet[i]))).matches()) {
+          set.set(i);
+        }
+      }
+    }
+    mySets.put(node, set);
+    return set;
+  }
+
+  private static void collectLiterals(@NotNull final RegexTree.Node node, @NotNull final Set<Integer> result) {
+    if (node instanceof RegexTree.Literal) {
+      final int c = ((RegexTree.Literal) node).codePoint;
+      result.add(c);
+      result.add(Character.toLowerCase(c));
+      result.add(Character.toUpperCase(c));
+      result.add(Character.toTitleCase(c));
+    } else if (node instanceof RegexTree.Group) {
+      collectLiterals(((RegexTree.Group) node).body, result);
+    } else if (node instanceof RegexTree.Repeat) {
+      collectLiterals(((RegexTree.Repeat) node).body, result);
+    } else if (node instanceof RegexTree.Sequence) {
+      for (RegexTree.Node item : ((RegexTree.Sequence) node).items) {
+        collectLiterals(item, result);
+      }
+    } else if (node instanceof RegexTree.Alternation) {
+      for (RegexTree.Node branch : ((RegexTree.Alternation) node).branches) {
+        collectLiterals(branch, result);
+      }
+    }
+  }
+
+  @NotNull
+  private String snippet(@NotNull final RegexTree.Node node) {
+    final String text = myTree.getSource().substring(node.start, node.end);
+    return "'" + (text.length() > MAX_SNIPPET ? text.substring(0, MAX_SNIPPET) + "..." : text) + "'";
+  }
+
+  private void report(@NotNull final ParserCostReport.Issue issue, @NotNull final PatternCost cost, @NotNull final String message) {
+    myFindings.add(new ParserCostReport.Finding(issue, message));
+    if (cost.compareTo(myCost) > 0) {
+      myCost = cost;
+    }
+  }
+
+  private static final class Follow {
+    @NotNull
+    final BitSet chars = new BitSet();
+    /**
+     * Whether the rest of the node after the target may match the empty text.
+     */
+    boolean reachesEnd = true;
+  }
+}
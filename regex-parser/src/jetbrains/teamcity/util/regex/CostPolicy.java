@@ -0,0 +1,20 @@
+package jetbrains.teamcity.util.regex;
+
+/**
+ * What happens to patterns whose {@link PatternCost} reaches a threshold, see {@link RegexParser#applyCostPolicy(CostPolicy, PatternCost)}.
+ */
+public enum CostPolicy {
+  /**
+   * Patterns are kept as they are, {@link ParserCostReport} describes them.
+   */
+  WARN,
+  /**
+   * Parser is not loaded at all.
+   */
+  REJECT,
+  /**
+   * Patterns are matched with {@link RegexEngine#AUTOMATON}, so lines they do not match are rejected in linear time.
+   * Patterns the automaton does not support stay on {@link RegexEngine#JDK}, limited by the matching budget only.
+   */
+  SAFE_ENGINE
+}
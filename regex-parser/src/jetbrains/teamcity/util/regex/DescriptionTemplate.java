@@ -0,0 +1,166 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+/**
+ * Parsed {@code output-expr} of a {@link RegexPattern}: literal parts interleaved with group references.
+ * <br/>
+ * Parsing follows {@link Matcher#appendReplacement(StringBuffer, String)} rules, so the template
+ * means exactly what {@link Matcher#replaceAll(String)} would do with the expression.
+ * Expression is parsed once, rendering copies group text by offsets of the existing match.
+ */
+final class DescriptionTemplate {
+  /**
+   * {@code myLiterals[i]} precedes reference to group {@code myGroups[i]}, the last literal ends the template.
+   */
+  @NotNull
+  private final String[] myLiterals;
+  @NotNull
+  private final int[] myGroups;
+
+  private DescriptionTemplate(@NotNull final String[] literals, @NotNull final int[] groups) {
+    myLiterals = literals;
+    myGroups = groups;
+  }
+
+  /**
+   * @param expression  - {@code output-expr} value
+   * @param groupCount  - number of capturing groups in the pattern
+   * @param namedGroups - group indices by group names
+   * @return parsed template or {@code null} if {@link Matcher#replaceAll(String)} would reject the expression
+   */
+  @Nullable
+  static DescriptionTemplate parse(@NotNull final String expression, final int groupCount, @NotNull final Map<String, Integer> namedGroups) {
+    final List<String> literals = new ArrayList<String>();
+    final List<Integer> groups = new ArrayList<Integer>();
+    final StringBuilder literal = new StringBuilder();
+    int pos = 0;
+    while (pos < expression.length()) {
+      final char c = expression.charAt(pos++);
+      if (c == '\\') {
+        if (pos == expression.length()) return null;
+        literal.append(expression.charAt(pos++));
+      } else if (c == '$') {
+        if (pos == expression.length()) return null;
+        int group;
+        if (expression.charAt(pos) == '{') {
+          final int nameStart = ++pos;
+          while (pos < expression.length() && isAsciiLetterOrDigit(expression.charAt(pos))) pos++;
+          if (pos == nameStart || pos == expression.length() || expression.charAt(pos) != '}') return null;
+          final Integer index = namedGroups.get(expression.substring(nameStart, pos));
+          if (index == null) return null;
+          group = index;
+          pos++;
+        } else {
+          group = expression.charAt(pos) - '0';
+          if (group < 0 || group > 9) return null;
+          pos++;
+          // Following digits are a part of the reference while the number stays a valid group index
+          while (pos < expression.length()) {
+            final int digit = expression.charAt(pos) - '0';
+            if (digit < 0 || digit > 9 || group * 10 + digit > groupCount) break;
+            group = group * 10 + digit;
+            pos++;
+          }
+          if (group > groupCount) return null;
+        }
+        literals.add(literal.toString());
+        groups.add(group);
+        literal.setLength(0);
+      } else {
+        literal.append(c);
+      }
+    }
+    literals.add(literal.toString());
+    final int[] groupsArray = new int[groups.size()];
+    for (int i = 0; i < groupsArray.length; i++) {
+      groupsArray[i] = groups.get(i);
+    }
+    return new DescriptionTemplate(literals.toArray(new String[literals.size()]), groupsArray);
+  }
+
+  /**
+   * @param groupMapping - new index of every group of the pattern
+   * @return template referencing groups by their new indices
+   */
+  @NotNull
+  DescriptionTemplate remap(@NotNull final int[] groupMapping) {
+    final int[] groups = new int[myGroups.length];
+    for (int i = 0; i < groups.length; i++) {
+      groups[i] = groupMapping[myGroups[i]];
+    }
+    return new DescriptionTemplate(myLiterals, groups);
+  }
+
+  /**
+   * Builds the description from the current match of the matcher.
+   *
+   * @param input - text the matcher was reset with, used to copy groups directly from, {@code null} if not known
+   */
+  @NotNull
+  String render(@NotNull final Matcher matcher, @Nullable final CharSequence input) {
+    if (myGroups.length == 0) return myLiterals[0];
+    if (myGroups.length == 1 && myGroups[0] == 0 && myLiterals[0].isEmpty() && myLiterals[1].isEmpty()) {
+      // '$0': group of a match covering whole String input is the input itself, nothing is copied
+      return matcher.group();
+    }
+    int length = 0;
+    for (String literal : myLiterals) {
+      length += literal.length();
+    }
+    final StringBuilder sb = new StringBuilder(length + 16);
+    for (int i = 0; i < myGroups.length; i++) {
+      sb.append(myLiterals[i]);
+      final int start = matcher.start(myGroups[i]);
+      if (start == -1) continue;
+      if (input != null) {
+        sb.append(input, start, matcher.end(myGroups[i]));
+      } else {
+        sb.append(matcher.group(myGroups[i]));
+      }
+    }
+    sb.append(myLiterals[myGroups.length]);
+    return sb.toString();
+  }
+
+  boolean references(final int group) {
+    for (int g : myGroups) {
+      if (g == group) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param groupMapping - new index of every group of the pattern
+   * @return replacement expression referencing groups by their new indices
+   */
+  @NotNull
+  String toExpression(@NotNull final int[] groupMapping) {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < myGroups.length; i++) {
+      appendLiteral(sb, myLiterals[i]);
+      sb.append('$').append(groupMapping[myGroups[i]]);
+    }
+    appendLiteral(sb, myLiterals[myGroups.length]);
+    return sb.toString();
+  }
+
+  private static void appendLiteral(@NotNull final StringBuilder sb, @NotNull final String literal) {
+    for (int i = 0; i < literal.length(); i++) {
+      final char c = literal.charAt(i);
+      // Digits are escaped too, so they are never taken as a part of preceding group reference
+      if (c == '\\' || c == '$' || c >= '0' && c <= '9') sb.append('\\');
+      sb.append(c);
+    }
+  }
+
+  private static boolean isAsciiLetterOrDigit(final char c) {
+    return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9';
+  }
+}
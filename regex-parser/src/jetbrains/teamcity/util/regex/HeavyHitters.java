@@ -0,0 +1,158 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Most frequent texts of a stream in fixed memory, the Space-Saving sketch.
+ * <br/>
+ * The sketch keeps at most {@code capacity} texts with counters. A text not kept yet replaces the one with the smallest counter
+ * and inherits that counter plus one, the inherited part is remembered as the {@link Entry#getError() error}. Any text occurring
+ * more than {@code total / capacity} times is guaranteed to be kept, and the count of a kept text is overestimated at most by its error.
+ * <br/>
+ * Texts are kept cut to {@link #MAX_TEXT_LENGTH}: longer texts are told apart by their length and hash code, so adding a known text
+ * allocates nothing. Not thread safe.
+ */
+public final class HeavyHitters {
+  public static final int MAX_TEXT_LENGTH = 200;
+
+  @NotNull
+  private final String[] myTexts;
+  @NotNull
+  private final int[] myHashes;
+  @NotNull
+  private final int[] myLengths;
+  @NotNull
+  private final long[] myCounts;
+  @NotNull
+  private final long[] myErrors;
+  private int mySize;
+  private long myTotal;
+
+  public HeavyHitters(final int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity should be positive: " + capacity);
+    }
+    myTexts = new String[capacity];
+    myHashes = new int[capacity];
+    myLengths = new int[capacity];
+    myCounts = new long[capacity];
+    myErrors = new long[capacity];
+  }
+
+  public int getCapacity() {
+    return myTexts.length;
+  }
+
+  /**
+   * @return number of texts added since creation or the last {@link #clear()}
+   */
+  public long getTotal() {
+    return myTotal;
+  }
+
+  public void add(@NotNull final String text) {
+    myTotal++;
+    final int hash = text.hashCode();
+    final int length = text.length();
+    for (int i = 0; i < mySize; i++) {
+      if (myHashes[i] == hash && myLengths[i] == length && text.startsWith(myTexts[i])) {
+        myCounts[i]++;
+        return;
+      }
+    }
+    final int slot;
+    final long error;
+    if (mySize < myTexts.length) {
+      slot = mySize++;
+      error = 0;
+    } else {
+      int min = 0;
+      for (int i = 1; i < mySize; i++) {
+        if (myCounts[i] < myCounts[min]) min = i;
+      }
+      slot = min;
+      error = myCounts[min];
+    }
+    myTexts[slot] = length > MAX_TEXT_LENGTH ? text.substring(0, MAX_TEXT_LENGTH) : text;
+    myHashes[slot] = hash;
+    myLengths[slot] = length;
+    myCounts[slot] = error + 1;
+    myErrors[slot] = error;
+  }
+
+  /**
+   * @return kept texts, the most frequent first
+   */
+  @NotNull
+  public List<Entry> getTop() {
+    final List<Entry> result = new ArrayList<Entry>(mySize);
+    for (int i = 0; i < mySize; i++) {
+      result.add(new Entry(myTexts[i], myLengths[i] > MAX_TEXT_LENGTH, myCounts[i], myErrors[i]));
+    }
+    Collections.sort(result, new Comparator<Entry>() {
+      public int compare(final Entry o1, final Entry o2) {
+        return o1.myCount < o2.myCount ? 1 : o1.myCount == o2.myCount ? 0 : -1;
+      }
+    });
+    return result;
+  }
+
+  public void clear() {
+    for (int i = 0; i < mySize; i++) {
+      myTexts[i] = null;
+    }
+    mySize = 0;
+    myTotal = 0;
+  }
+
+  public static final class Entry {
+    @NotNull
+    private final String myText;
+    private final boolean myCut;
+    private final long myCount;
+    private final long myError;
+
+    Entry(@NotNull final String text, final boolean cut, final long count, final long error) {
+      myText = text;
+      myCut = cut;
+      myCount = count;
+      myError = error;
+    }
+
+    /**
+     * @return the text, cut to {@link #MAX_TEXT_LENGTH} if {@link #isCut()}
+     */
+    @NotNull
+    public String getText() {
+      return myText;
+    }
+
+    public boolean isCut() {
+      return myCut;
+    }
+
+    /**
+     * @return upper bound of the text count
+     */
+    public long getCount() {
+      return myCount;
+    }
+
+    /**
+     * @return maximal overestimation of the {@link #getCount() count}
+     */
+    public long getError() {
+      return myError;
+    }
+
+    @Override
+    public String toString() {
+      return myText + (myCut ? "..." : "") + ": " + myCount;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits text of a {@link Reader} into lines terminated by {@code \n}, {@code \r\n} or {@code \r}, same as
+ * {@link java.io.BufferedReader#readLine()} does.
+ * <br/>
+ * Text is read into a single growable buffer and lines are returned as views of it, so no {@link String}
+ * is created unless somebody asks for one via {@link CharSequence#toString()} or {@link CharSequence#subSequence(int, int)}.
+ * The view is reused, so the line returned is valid only until the next {@link #readLine()} call.
+ * <br/>
+ * Not thread safe.
+ */
+final class LineReader {
+  private static final int INITIAL_BUFFER_SIZE = 8192;
+
+  @NotNull
+  private final Reader myReader;
+  @NotNull
+  private final Line myLine = new Line();
+  @NotNull
+  private char[] myBuffer;
+  /**
+   * Start of the text not returned yet.
+   */
+  private int myStart;
+  /**
+   * End of the text read into the buffer.
+   */
+  private int myEnd;
+  /**
+   * Whether the previous line ended with {@code \r}, so {@code \n} following it belongs to the same terminator.
+   */
+  private boolean mySkipLf;
+  private boolean myEof;
+
+  LineReader(@NotNull final Reader reader) {
+    this(reader, INITIAL_BUFFER_SIZE);
+  }
+
+  LineReader(@NotNull final Reader reader, final int bufferSize) {
+    myReader = reader;
+    myBuffer = new char[Math.max(1, bufferSize)];
+  }
+
+  /**
+   * @return the next line without terminator or {@code null} if the end of the input is reached
+   */
+  @Nullable
+  CharSequence readLine() throws IOException {
+    int scanned = myStart;
+    while (true) {
+      if (mySkipLf && scanned < myEnd) {
+        mySkipLf = false;
+        if (myBuffer[scanned] == '\n') {
+          myStart = ++scanned;
+        }
+      }
+      for (int i = scanned; i < myEnd; i++) {
+        final char c = myBuffer[i];
+        if (c == '\n' || c == '\r') {
+          myLine.set(myStart, i);
+          myStart = i + 1;
+          mySkipLf = c == '\r';
+          return myLine;
+        }
+      }
+      if (myEof) {
+        if (myStart == myEnd) return null;
+        // The last line has no terminator
+        myLine.set(myStart, myEnd);
+        myStart = myEnd;
+        return myLine;
+      }
+      scanned = myEnd - myStart;
+      fill();
+    }
+  }
+
+  /**
+   * Moves the pending text to the buffer start, grows the buffer if it is full and reads more text.
+   */
+  private void fill() throws IOException {
+    final int pending = myEnd - myStart;
+    if (myStart > 0) {
+      System.arraycopy(myBuffer, myStart, myBuffer, 0, pending);
+      myStart = 0;
+      myEnd = pending;
+    }
+    if (myEnd == myBuffer.length) {
+      final char[] buffer = new char[myBuffer.length * 2];
+      System.arraycopy(myBuffer, 0, buffer, 0, myEnd);
+      myBuffer = buffer;
+    }
+    final int read = myReader.read(myBuffer, myEnd, myBuffer.length - myEnd);
+    if (read < 0) {
+      myEof = true;
+    } else {
+      myEnd += read;
+    }
+  }
+
+  private final class Line implements CharSequence {
+    private int myFrom;
+    private int myLength;
+
+    void set(final int from, final int to) {
+      myFrom = from;
+      myLength = to - from;
+    }
+
+    public int length() {
+      return myLength;
+    }
+
+    public char charAt(final int index) {
+      if (index < 0 || index >= myLength) {
+        throw new IndexOutOfBoundsException("Index " + index + " is out of line of length " + myLength);
+      }
+      return myBuffer[myFrom + index];
+    }
+
+    @NotNull
+    public CharSequence subSequence(final int start, final int end) {
+      if (start < 0 || start > end || end > myLength) {
+        throw new IndexOutOfBoundsException("Range [" + start + ", " + end + ") is out of line of length " + myLength);
+      }
+      // Detached copy, the buffer is reused for the next lines
+      return new String(myBuffer, myFrom + start, end - start);
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+      return new String(myBuffer, myFrom, myLength);
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Selects patterns which could match a line judging by literals the line contains.
+ * <br/>
+ * Required literals of all patterns are put into a single {@link AhoCorasick} index, so a line is scanned once
+ * no matter how many patterns there are. Patterns without required literals are always candidates.
+ */
+final class LiteralPrefilter {
+  private final AhoCorasick myIndex;
+  @NotNull
+  private final String[] myFactors;
+  @NotNull
+  private final boolean[] myCaseSensitive;
+  @NotNull
+  private final int[] myFactorClause;
+  @NotNull
+  private final int[] myClausePattern;
+  /**
+   * Number of clauses pattern requires, 0 for patterns which should always run.
+   */
+  @NotNull
+  private final int[] myRequiredClauses;
+
+  /**
+   * @param requirements - required literals of each pattern, see {@link RequiredLiterals#extract(RegexTree)}
+   */
+  LiteralPrefilter(@NotNull final List<List<List<RequiredLiterals.Factor>>> requirements) {
+    final List<String> factors = new ArrayList<String>();
+    final List<Boolean> caseSensitive = new ArrayList<Boolean>();
+    final List<Integer> factorClause = new ArrayList<Integer>();
+    final List<Integer> clausePattern = new ArrayList<Integer>();
+    myRequiredClauses = new int[requirements.size()];
+    for (int pattern = 0; pattern < requirements.size(); pattern++) {
+      for (List<RequiredLiterals.Factor> clause : requirements.get(pattern)) {
+        for (RequiredLiterals.Factor factor : clause) {
+          factors.add(factor.text);
+          caseSensitive.add(!factor.caseInsensitive);
+          factorClause.add(clausePattern.size());
+        }
+        clausePattern.add(pattern);
+        myRequiredClauses[pattern]++;
+      }
+    }
+    myFactors = factors.toArray(new String[factors.size()]);
+    myCaseSensitive = new boolean[factors.size()];
+    myFactorClause = new int[factors.size()];
+    for (int i = 0; i < myFactors.length; i++) {
+      myCaseSensitive[i] = caseSensitive.get(i);
+      myFactorClause[i] = factorClause.get(i);
+    }
+    myClausePattern = new int[clausePattern.size()];
+    for (int i = 0; i < myClausePattern.length; i++) {
+      myClausePattern[i] = clausePattern.get(i);
+    }
+    myIndex = myFactors.length == 0 ? null : new AhoCorasick(factors);
+  }
+
+  /**
+   * @return whether any pattern could be skipped at all
+   */
+  boolean isEnabled() {
+    return myIndex != null;
+  }
+
+  @NotNull
+  State createState() {
+    return new State();
+  }
+
+  /**
+   * Per-line scanning results. Not thread safe, each thread should use its own state.
+   */
+  final class State implements AhoCorasick.Visitor {
+    private final int[] myClauseStamp = new int[myClausePattern.length];
+    private final int[] myPatternStamp = new int[myRequiredClauses.length];
+    private final int[] myPatternClauses = new int[myRequiredClauses.length];
+    private int myStamp;
+    private CharSequence myLine;
+
+    void scan(@NotNull final CharSequence line) {
+      if (++myStamp == 0) {
+        // Stamp wrapped around, forget everything seen so far
+        Arrays.fill(myClauseStamp, 0);
+        Arrays.fill(myPatternStamp, 0);
+        myStamp = 1;
+      }
+      if (myIndex == null) return;
+      myLine = line;
+      myIndex.scan(line, this);
+      myLine = null;
+    }
+
+    boolean isCandidate(final int pattern) {
+      final int required = myRequiredClauses[pattern];
+      return required == 0 || myPatternStamp[pattern] == myStamp && myPatternClauses[pattern] == required;
+    }
+
+    public void found(final int factor, final int end) {
+      final int clause = myFactorClause[factor];
+      if (myClauseStamp[clause] == myStamp) return;
+      if (myCaseSensitive[factor] && !occursAt(myFactors[factor], myLine, end)) return;
+      myClauseStamp[clause] = myStamp;
+      final int pattern = myClausePattern[clause];
+      if (myPatternStamp[pattern] != myStamp) {
+        myPatternStamp[pattern] = myStamp;
+        myPatternClauses[pattern] = 0;
+      }
+      myPatternClauses[pattern]++;
+    }
+  }
+
+  private static boolean occursAt(@NotNull final String factor, @NotNull final CharSequence line, final int end) {
+    final int start = end - factor.length();
+    for (int i = 0; i < factor.length(); i++) {
+      if (factor.charAt(i) != line.charAt(start + i)) return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,111 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Limits the work a pattern may spend matching a single line.
+ * <br/>
+ * {@link java.util.regex.Matcher} has no timeouts, but it reads input only via {@link CharSequence#charAt(int)},
+ * so matchers are given the line wrapped into {@link #wrap(CharSequence)} which counts reads and fails with
+ * {@link ExceededException} once the limit is reached. This interrupts catastrophic backtracking.
+ * <br/>
+ * Budget is per pattern: {@link #reset()} it before each pattern tries the line, and {@link #startLine()} before
+ * each line. Budget is reused from line to line, so it is not thread safe.
+ */
+final class MatchingBudget {
+  private final int myLimit;
+  private int myLeft;
+  private boolean myReported;
+  @NotNull
+  private final Input myInput = new Input();
+
+  MatchingBudget(final int limit) {
+    myLimit = limit;
+    myLeft = limit;
+  }
+
+  int getLimit() {
+    return myLimit;
+  }
+
+  /**
+   * Prepares the budget for the next line.
+   */
+  void startLine() {
+    myLeft = myLimit;
+    myReported = false;
+  }
+
+  /**
+   * Restores the whole budget for the next pattern.
+   */
+  void reset() {
+    myLeft = myLimit;
+  }
+
+  /**
+   * Stops counting reads until next {@link #reset()}, e.g. once the pattern matched and only description is built.
+   */
+  void disarm() {
+    myLeft = Integer.MAX_VALUE;
+  }
+
+  /**
+   * @return {@code true} for the first call only, so an overrun is reported once per line no matter how many patterns exceeded the budget
+   */
+  boolean markReported() {
+    if (myReported) return false;
+    myReported = true;
+    return true;
+  }
+
+  /**
+   * @return the input counting reads, the same instance is returned every time, so only the last wrapped input should be used
+   */
+  @NotNull
+  CharSequence wrap(@NotNull final CharSequence input) {
+    myInput.myDelegate = input;
+    return myInput;
+  }
+
+  static class ExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    ExceededException() {
+      super("Pattern matching budget exceeded");
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      // Thrown deep inside of the matcher, the stack trace is never of interest
+      return this;
+    }
+  }
+
+  private class Input implements CharSequence {
+    @NotNull
+    private CharSequence myDelegate = "";
+
+    public int length() {
+      return myDelegate.length();
+    }
+
+    public char charAt(final int index) {
+      if (--myLeft < 0) {
+        throw new ExceededException();
+      }
+      return myDelegate.charAt(index);
+    }
+
+    public CharSequence subSequence(final int start, final int end) {
+      // Used to extract matched groups only, not counted
+      return myDelegate.subSequence(start, end);
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+      return myDelegate.toString();
+    }
+  }
+}
@@ -0,0 +1,216 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Drops matched lines of a {@link ParserManager} whose descriptions were logged recently, e.g. the same deprecation warning
+ * reported for every compiled file.
+ * <br/>
+ * Descriptions are remembered as 64-bit fingerprints in a fixed size set-associative table: a fingerprint may go to one of
+ * {@link #WAYS} slots of its set, and once all of them are taken the clock algorithm evicts a slot not hit since the hand passed it.
+ * So a frequent description stays remembered, while a rare one may be forgotten and logged again. Memory use does not depend on
+ * the log size, and checking a line allocates nothing besides its description, which the {@link Logger} gets anyway.
+ * <br/>
+ * What happens to duplicates is chosen per severity, see {@link Policy}. Blocks and special lines are never dropped.
+ * Deduplication is synchronized, so a step could be finished while lines are parsed.
+ *
+ * @see ParserManager#addEventSink(ParseEventSink)
+ */
+public final class MessageDeduplicator implements ParseEventSink {
+  public static final int DEFAULT_CAPACITY = 4096;
+  static final int WAYS = 4;
+  private static final int SUMMARY_TOP_SIZE = 5;
+
+  public enum Policy {
+    /**
+     * Duplicates are logged.
+     */
+    NONE,
+    /**
+     * Only the first occurrence is logged, duplicates are counted per severity.
+     */
+    FIRST,
+    /**
+     * Only the first occurrence is logged, duplicates are counted per severity and the most repeated descriptions are summarized.
+     */
+    FIRST_AND_COUNT
+  }
+
+  @NotNull
+  private final Policy[] myPolicies = new Policy[Severity.values().length];
+  /**
+   * Fingerprints of set {@code s} are {@code [s * WAYS, (s + 1) * WAYS)}, {@code 0} marks an empty slot.
+   */
+  @NotNull
+  private final long[] myFingerprints;
+  @NotNull
+  private final boolean[] myReferenced;
+  @NotNull
+  private final byte[] myHands;
+  private final int mySetMask;
+  @NotNull
+  private final long[] myCollapsed = new long[Severity.values().length];
+  @NotNull
+  private final HeavyHitters myRepeated = new HeavyHitters(MessageStatistics.DEFAULT_TOP_SIZE);
+
+  public MessageDeduplicator() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param capacity - number of fingerprints to remember, rounded up to a power of two not less than {@link #WAYS}
+   */
+  public MessageDeduplicator(final int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity should be positive: " + capacity);
+    }
+    int sets = 1;
+    while (sets * WAYS < capacity) {
+      sets <<= 1;
+    }
+    mySetMask = sets - 1;
+    myFingerprints = new long[sets * WAYS];
+    myReferenced = new boolean[sets * WAYS];
+    myHands = new byte[sets];
+    for (int i = 0; i < myPolicies.length; i++) {
+      myPolicies[i] = Policy.NONE;
+    }
+  }
+
+  public int getCapacity() {
+    return myFingerprints.length;
+  }
+
+  public synchronized void setPolicy(@NotNull final Severity severity, @NotNull final Policy policy) {
+    if (severity != Severity.ERROR && severity != Severity.WARN && severity != Severity.INFO) {
+      throw new IllegalArgumentException("Lines of severity " + severity + " could not be deduplicated");
+    }
+    myPolicies[severity.ordinal()] = policy;
+  }
+
+  @NotNull
+  public synchronized Policy getPolicy(@NotNull final Severity severity) {
+    return myPolicies[severity.ordinal()];
+  }
+
+  public synchronized boolean handle(@NotNull final ParseEvent event) {
+    final Severity severity = event.getSeverity();
+    final Policy policy = myPolicies[severity.ordinal()];
+    if (policy == Policy.NONE) return false;
+    final String description = event.getDescription();
+    if (!remember(fingerprint(description, severity))) return false;
+    myCollapsed[severity.ordinal()]++;
+    if (policy == Policy.FIRST_AND_COUNT) {
+      myRepeated.add(description);
+    }
+    return true;
+  }
+
+  /**
+   * @return {@code true} if the fingerprint is already remembered
+   */
+  private boolean remember(final long fingerprint) {
+    final int set = (int) (fingerprint ^ fingerprint >>> 32) & mySetMask;
+    final int first = set * WAYS;
+    int empty = -1;
+    for (int i = first; i < first + WAYS; i++) {
+      if (myFingerprints[i] == fingerprint) {
+        myReferenced[i] = true;
+        return true;
+      }
+      if (empty < 0 && myFingerprints[i] == 0) {
+        empty = i;
+      }
+    }
+    if (empty < 0) {
+      // Clock: the hand clears reference bits until it finds a slot not hit since its previous pass
+      int hand = myHands[set];
+      while (myReferenced[first + hand]) {
+        myReferenced[first + hand] = false;
+        hand = (hand + 1) % WAYS;
+      }
+      empty = first + hand;
+      myHands[set] = (byte) ((hand + 1) % WAYS);
+    }
+    myFingerprints[empty] = fingerprint;
+    myReferenced[empty] = false;
+    return false;
+  }
+
+  /**
+   * 64-bit FNV-1a hash of the description and severity, never {@code 0}.
+   */
+  static long fingerprint(@NotNull final String description, @NotNull final Severity severity) {
+    long hash = 0xcbf29ce484222325L ^ severity.ordinal();
+    for (int i = 0; i < description.length(); i++) {
+      hash = (hash ^ description.charAt(i)) * 0x100000001b3L;
+    }
+    return hash == 0 ? 1 : hash;
+  }
+
+  /**
+   * @return number of dropped duplicates of the severity
+   */
+  public synchronized long getCollapsed(@NotNull final Severity severity) {
+    return myCollapsed[severity.ordinal()];
+  }
+
+  /**
+   * @return the most repeated descriptions of severities with {@link Policy#FIRST_AND_COUNT} policy, counts exclude first occurrences
+   */
+  @NotNull
+  public synchronized List<HeavyHitters.Entry> getRepeated() {
+    return myRepeated.getTop();
+  }
+
+  /**
+   * Forgets all descriptions and resets counts.
+   */
+  public synchronized void clear() {
+    for (int i = 0; i < myFingerprints.length; i++) {
+      myFingerprints[i] = 0;
+      myReferenced[i] = false;
+    }
+    for (int i = 0; i < myHands.length; i++) {
+      myHands[i] = 0;
+    }
+    for (int i = 0; i < myCollapsed.length; i++) {
+      myCollapsed[i] = 0;
+    }
+    myRepeated.clear();
+  }
+
+  /**
+   * @return counts of dropped duplicates followed by the most repeated descriptions, {@code null} if nothing is dropped, e.g.
+   * <pre>
+   * 0 errors, 2400 warnings, 0 messages repeated
+   * Most repeated:
+   *   2399: deprecated API is used
+   * </pre>
+   */
+  @Nullable
+  public synchronized String getSummary() {
+    final long errors = getCollapsed(Severity.ERROR);
+    final long warnings = getCollapsed(Severity.WARN);
+    final long messages = getCollapsed(Severity.INFO);
+    if (errors + warnings + messages == 0) return null;
+    final StringBuilder sb = new StringBuilder();
+    sb.append(errors).append(errors == 1 ? " error, " : " errors, ");
+    sb.append(warnings).append(warnings == 1 ? " warning, " : " warnings, ");
+    sb.append(messages).append(messages == 1 ? " message repeated" : " messages repeated");
+    final List<HeavyHitters.Entry> top = myRepeated.getTop();
+    if (!top.isEmpty()) {
+      sb.append("\nMost repeated:");
+      for (HeavyHitters.Entry entry : top.subList(0, Math.min(SUMMARY_TOP_SIZE, top.size()))) {
+        sb.append("\n  ").append(entry.getCount()).append(": ").append(entry.getText());
+        if (entry.isCut()) {
+          sb.append("...");
+        }
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,126 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Drops matched lines of a {@link ParserManager} exceeding rate limits, so a broken loop printing the same warning millions of times
+ * could not flood the log.
+ * <br/>
+ * Errors, warnings and messages are limited per severity by a token bucket refilled {@code perSecond} times a second and holding at most
+ * {@code perSecond} tokens, and by an absolute {@code perStep} cap reset by {@link #finishStep()}. Blocks and special lines are never
+ * dropped: that would leave blocks open. Dropped lines are only counted: the limiter logs nothing, as a line it would log with belongs
+ * to another pattern. The owner reports the count as a single warning once the second after the first dropped line passes,
+ * see {@link #pollSuppressed()}, and the count not reported yet at the step end, see {@link #finishStep()}.
+ * <br/>
+ * Limiting is synchronized, so a step could be finished while lines are parsed.
+ *
+ * @see ParserManager#addEventSink(ParseEventSink)
+ */
+public class MessageRateLimiter implements ParseEventSink {
+  public static final int UNLIMITED = 0;
+  private static final long WINDOW_NANOS = 1000000000L;
+
+  @NotNull
+  private final int[] myRates = new int[Severity.values().length];
+  @NotNull
+  private final long[] myStepLimits = new long[Severity.values().length];
+  @NotNull
+  private final double[] myTokens = new double[Severity.values().length];
+  @NotNull
+  private final long[] myRefilled = new long[Severity.values().length];
+  @NotNull
+  private final long[] myStepCounts = new long[Severity.values().length];
+  /**
+   * Lines dropped and not reported yet, and when the first of them was dropped.
+   */
+  private long mySuppressed;
+  private long mySuppressedSince;
+  private long myStepSuppressed;
+
+  /**
+   * @param perSecond - lines of the severity allowed per second, {@link #UNLIMITED} to allow any number
+   * @param perStep   - lines of the severity allowed till {@link #finishStep()}, {@link #UNLIMITED} to allow any number
+   */
+  public synchronized void setLimits(@NotNull final Severity severity, final int perSecond, final long perStep) {
+    if (severity != Severity.ERROR && severity != Severity.WARN && severity != Severity.INFO) {
+      throw new IllegalArgumentException("Lines of severity " + severity + " could not be limited");
+    }
+    if (perSecond < 0 || perStep < 0) {
+      throw new IllegalArgumentException("Limits should not be negative: " + perSecond + ", " + perStep);
+    }
+    final int i = severity.ordinal();
+    myRates[i] = perSecond;
+    myStepLimits[i] = perStep;
+    myTokens[i] = perSecond;
+    myRefilled[i] = nanoTime();
+  }
+
+  public synchronized boolean handle(@NotNull final ParseEvent event) {
+    final long now = nanoTime();
+    final int i = event.getSeverity().ordinal();
+    final int rate = myRates[i];
+    final long stepLimit = myStepLimits[i];
+    if (stepLimit != UNLIMITED && myStepCounts[i] >= stepLimit) {
+      return suppress(now);
+    }
+    if (rate != UNLIMITED) {
+      final double tokens = Math.min(rate, myTokens[i] + (double) (now - myRefilled[i]) * rate / WINDOW_NANOS);
+      myRefilled[i] = now;
+      if (tokens < 1) {
+        myTokens[i] = tokens;
+        return suppress(now);
+      }
+      myTokens[i] = tokens - 1;
+    }
+    myStepCounts[i]++;
+    return false;
+  }
+
+  private boolean suppress(final long now) {
+    if (mySuppressed == 0) {
+      mySuppressedSince = now;
+    }
+    mySuppressed++;
+    myStepSuppressed++;
+    return true;
+  }
+
+  /**
+   * @return number of lines dropped since the last {@link #finishStep()}
+   */
+  public synchronized long getSuppressed() {
+    return myStepSuppressed;
+  }
+
+  /**
+   * Takes the count of dropped lines to report once the second after the first of them passed, the caller should report it.
+   * Call it periodically, e.g. from a timer, so dropped lines are reported even if no more lines come.
+   *
+   * @return number of dropped lines to report, {@code 0} if there are none or the second did not pass yet
+   */
+  public synchronized long pollSuppressed() {
+    if (mySuppressed == 0 || nanoTime() - mySuppressedSince < WINDOW_NANOS) return 0;
+    final long suppressed = mySuppressed;
+    mySuppressed = 0;
+    return suppressed;
+  }
+
+  /**
+   * Resets per step limits.
+   *
+   * @return number of dropped lines which were not reported to the logger, the caller should report them
+   */
+  public synchronized long finishStep() {
+    final long suppressed = mySuppressed;
+    mySuppressed = 0;
+    myStepSuppressed = 0;
+    for (int i = 0; i < myStepCounts.length; i++) {
+      myStepCounts[i] = 0;
+    }
+    return suppressed;
+  }
+
+  long nanoTime() {
+    return System.nanoTime();
+  }
+}
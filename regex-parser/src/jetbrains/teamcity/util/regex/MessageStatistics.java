@@ -0,0 +1,136 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts matched lines of a {@link ParserManager} in constant memory, so a build could be summarized without
+ * sending every message to the server.
+ * <br/>
+ * Lines are counted per {@link Severity} and per {@link RegexPattern}, descriptions of errors and warnings are put into
+ * {@link HeavyHitters} to find the most frequent ones. Counting a line allocates nothing: the description is rendered for errors and
+ * warnings only, and it is the one the {@link Logger} gets later. The sink never handles events, they are still logged.
+ * <br/>
+ * Counting and reading are synchronized, so a summary could be taken while lines are parsed.
+ *
+ * @see ParserManager#addEventSink(ParseEventSink)
+ */
+public final class MessageStatistics implements ParseEventSink {
+  public static final int DEFAULT_TOP_SIZE = 16;
+  private static final int SUMMARY_TOP_SIZE = 5;
+  private static final Severity[] SEVERITIES = Severity.values();
+
+  @NotNull
+  private final long[] mySeverityCounts = new long[SEVERITIES.length];
+  /**
+   * Counters by pattern, their number is bounded by the number of parser patterns.
+   */
+  @NotNull
+  private final Map<RegexPattern, long[]> myPatternCounts = new IdentityHashMap<RegexPattern, long[]>();
+  @NotNull
+  private final HeavyHitters myTop;
+
+  public MessageStatistics() {
+    this(DEFAULT_TOP_SIZE);
+  }
+
+  /**
+   * @param topSize - number of the most frequent descriptions to keep
+   */
+  public MessageStatistics(final int topSize) {
+    myTop = new HeavyHitters(topSize);
+  }
+
+  public synchronized boolean handle(@NotNull final ParseEvent event) {
+    final Severity severity = event.getSeverity();
+    mySeverityCounts[severity.ordinal()]++;
+    final long[] count = myPatternCounts.get(event.getPattern());
+    if (count != null) {
+      count[0]++;
+    } else {
+      myPatternCounts.put(event.getPattern(), new long[]{1});
+    }
+    if (severity == Severity.ERROR || severity == Severity.WARN) {
+      myTop.add(event.getDescription());
+    }
+    return false;
+  }
+
+  public synchronized long getCount(@NotNull final Severity severity) {
+    return mySeverityCounts[severity.ordinal()];
+  }
+
+  /**
+   * @return number of lines matched by the pattern, for {@link MultilinePattern}s lines matched by their first line pattern
+   */
+  public synchronized long getCount(@NotNull final RegexPattern pattern) {
+    final long[] count = myPatternCounts.get(pattern);
+    return count == null ? 0 : count[0];
+  }
+
+  /**
+   * @return number of all matched lines
+   */
+  public synchronized long getTotal() {
+    long total = 0;
+    for (long count : mySeverityCounts) {
+      total += count;
+    }
+    return total;
+  }
+
+  /**
+   * @return the most frequent descriptions of errors and warnings
+   */
+  @NotNull
+  public synchronized List<HeavyHitters.Entry> getTop() {
+    return myTop.getTop();
+  }
+
+  public synchronized void reset() {
+    for (int i = 0; i < mySeverityCounts.length; i++) {
+      mySeverityCounts[i] = 0;
+    }
+    myPatternCounts.clear();
+    myTop.clear();
+  }
+
+  /**
+   * @return counts of errors, warnings and other lines followed by the most frequent errors and warnings, e.g.
+   * <pre>
+   * 3 errors, 12 warnings, 40 other lines
+   * Most frequent:
+   *   10: deprecated API is used
+   *   3: cannot find symbol
+   * </pre>
+   */
+  @NotNull
+  public synchronized String getSummary() {
+    final long errors = getCount(Severity.ERROR);
+    final long warnings = getCount(Severity.WARN);
+    final long other = getTotal() - errors - warnings;
+    final StringBuilder sb = new StringBuilder();
+    sb.append(errors).append(errors == 1 ? " error, " : " errors, ");
+    sb.append(warnings).append(warnings == 1 ? " warning, " : " warnings, ");
+    sb.append(other).append(other == 1 ? " other line" : " other lines");
+    final List<HeavyHitters.Entry> top = myTop.getTop();
+    if (!top.isEmpty()) {
+      sb.append("\nMost frequent:");
+      for (HeavyHitters.Entry entry : top.subList(0, Math.min(SUMMARY_TOP_SIZE, top.size()))) {
+        sb.append("\n  ").append(entry.getCount()).append(": ").append(entry.getText());
+        if (entry.isCut()) {
+          sb.append("...");
+        }
+      }
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public String toString() {
+    return getSummary();
+  }
+}
@@ -0,0 +1,185 @@
+package jetbrains.teamcity.util.regex;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+import com.thoughtworks.xstream.annotations.XStreamAsAttribute;
+import com.thoughtworks.xstream.annotations.XStreamConverter;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Pattern recognizing a diagnostic printed over several lines, e.g. a stack trace or a CMake {@code Call Stack} section.
+ * <br/>
+ * A record starts with a line matching {@code regex} and goes on while following lines match {@code continuation}.
+ * Each line is checked against the continuation pattern only, the record collected so far is never rescanned.
+ * The record is logged as a single message with the pattern severity: description of the first line built from {@code output-expr},
+ * followed by the continuation lines as is. It is logged as soon as a line does not continue it, once it reached {@code max-lines}
+ * or if the next line came after {@code flush-timeout} milliseconds, and at the end of the input.
+ * <br/>
+ * Multi-line patterns are tried before ordinary {@link RegexPattern}s, with {@code eat-line} lines of a record are not passed to them.
+ *
+ * @see ParsingSession#flush(ParserManager)
+ */
+@XStreamAlias("multiline-pattern")
+public class MultilinePattern {
+  public static final int DEFAULT_MAX_LINES = 100;
+  public static final long DEFAULT_FLUSH_TIMEOUT = 1000;
+
+  @NotNull
+  @XStreamAlias("regex")
+  @XStreamAsAttribute
+  @XStreamConverter(RegexPattern.PatternConverter.class)
+  private final Pattern myPattern;
+  @NotNull
+  @XStreamAlias("continuation")
+  @XStreamAsAttribute
+  @XStreamConverter(RegexPattern.PatternConverter.class)
+  private final Pattern myContinuation;
+  @XStreamAlias("output-expr")
+  @XStreamAsAttribute
+  private String myDescriptionExpression;
+  @XStreamAlias("severity")
+  @XStreamAsAttribute
+  private Severity mySeverity;
+  @XStreamAlias("eat-line")
+  @XStreamAsAttribute
+  private Boolean myEatLine;
+  @XStreamAlias("max-lines")
+  @XStreamAsAttribute
+  private Integer myMaxLines;
+  @XStreamAlias("flush-timeout")
+  @XStreamAsAttribute
+  private Long myFlushTimeout;
+
+  /**
+   * First line and continuation lines as ordinary patterns, so they share matching and describing with them.
+   */
+  private transient volatile RegexPattern myStartPattern;
+  private transient volatile RegexPattern myContinuationPattern;
+
+  /**
+   * @param maxLines     - maximal number of lines in a record, including the first one
+   * @param flushTimeout - milliseconds after which a record is logged even if the next line continues it
+   */
+  public MultilinePattern(@NotNull final Pattern pattern,
+                          @NotNull final Pattern continuation,
+                          @NotNull final String descriptionExpression,
+                          @NotNull final Severity severity,
+                          final boolean eatLine,
+                          final int maxLines,
+                          final long flushTimeout) {
+    if (maxLines < 1) {
+      throw new IllegalArgumentException("Maximal number of lines should be positive: " + maxLines);
+    }
+    if (flushTimeout < 1) {
+      throw new IllegalArgumentException("Flush timeout should be positive: " + flushTimeout);
+    }
+    myPattern = pattern;
+    myContinuation = continuation;
+    myDescriptionExpression = descriptionExpression;
+    mySeverity = severity;
+    myEatLine = eatLine;
+    myMaxLines = maxLines;
+    myFlushTimeout = flushTimeout;
+  }
+
+  @NotNull
+  public Pattern getPattern() {
+    return myPattern;
+  }
+
+  @NotNull
+  public Pattern getContinuation() {
+    return myContinuation;
+  }
+
+  public String getDescriptionExpression() {
+    return myDescriptionExpression;
+  }
+
+  public Severity getSeverity() {
+    return mySeverity;
+  }
+
+  public boolean getEatLine() {
+    return myEatLine;
+  }
+
+  public int getMaxLines() {
+    return myMaxLines;
+  }
+
+  /**
+   * @return flush timeout in milliseconds
+   */
+  public long getFlushTimeout() {
+    return myFlushTimeout;
+  }
+
+  long getFlushTimeoutNanos() {
+    return TimeUnit.MILLISECONDS.toNanos(myFlushTimeout);
+  }
+
+  /**
+   * @return pattern of the first line of a record, records are passed to {@link ParseEventSink}s with it as {@link ParseEvent#getPattern()}
+   */
+  @NotNull
+  public RegexPattern getStartPattern() {
+    RegexPattern pattern = myStartPattern;
+    if (pattern == null) {
+      pattern = new RegexPattern(myPattern, myDescriptionExpression, mySeverity, myEatLine);
+      myStartPattern = pattern;
+    }
+    return pattern;
+  }
+
+  @NotNull
+  RegexPattern getContinuationPattern() {
+    RegexPattern pattern = myContinuationPattern;
+    if (pattern == null) {
+      // Output of continuation lines is never built, so no group is captured
+      pattern = new RegexPattern(myContinuation, "", mySeverity, myEatLine);
+      myContinuationPattern = pattern;
+    }
+    return pattern;
+  }
+
+  /**
+   * Special for XStream. Setting null params to defaults.
+   *
+   * @return this
+   */
+  @NotNull
+  @SuppressWarnings({"UnusedDeclaration"})
+  private Object readResolve() {
+    if (myEatLine == null) myEatLine = RegexPattern.DEFAULT_EAT_LINE;
+    if (myDescriptionExpression == null) myDescriptionExpression = RegexPattern.DEFAULT_DESCRIPTION_EXPR;
+    if (mySeverity == null) mySeverity = RegexPattern.DEFAULT_SEVERITY;
+    if (myMaxLines == null || myMaxLines < 1) myMaxLines = DEFAULT_MAX_LINES;
+    if (myFlushTimeout == null || myFlushTimeout < 1) myFlushTimeout = DEFAULT_FLUSH_TIMEOUT;
+    getStartPattern().getCompiled();
+    getContinuationPattern().getCompiled();
+    return this;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (o instanceof MultilinePattern) {
+      final MultilinePattern mp = (MultilinePattern) o;
+      return this.myEatLine.equals(mp.myEatLine)
+          && this.mySeverity.equals(mp.mySeverity)
+          && this.myDescriptionExpression.equals(mp.myDescriptionExpression)
+          && this.myMaxLines.equals(mp.myMaxLines)
+          && this.myFlushTimeout.equals(mp.myFlushTimeout)
+          && this.myPattern.pattern().equals(mp.myPattern.pattern())
+          && this.myContinuation.pattern().equals(mp.myContinuation.pattern());
+    }
+    return super.equals(o);
+  }
+
+  @Override
+  public int hashCode() {
+    return myPattern.pattern().hashCode() * 31 + myContinuation.pattern().hashCode();
+  }
+}
@@ -0,0 +1,166 @@
+package jetbrains.teamcity.util.regex;
+
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.regex.Matcher;
+
+/**
+ * Multi-line matching state of a {@link ParsingSession}: the record being collected and matchers of {@link MultilinePattern}s.
+ * <br/>
+ * Only one record is collected at a time. Its text is kept in a buffer reused from record to record,
+ * a line is copied there only once it is known to belong to the record.
+ */
+final class MultilineState {
+  @NotNull
+  private final List<MultilinePattern> myPatterns;
+  @NotNull
+  private final Matcher[] myStartMatchers;
+  @NotNull
+  private final Matcher[] myContinuationMatchers;
+  @NotNull
+  private final StringBuilder myRecord = new StringBuilder();
+  /**
+   * Pattern of the record being collected, {@code -1} if there is no such record.
+   */
+  private int myPending = -1;
+  private int myLines;
+  private long myLastLineNanos;
+
+  MultilineState(@NotNull final List<MultilinePattern> patterns) {
+    myPatterns = patterns;
+    myStartMatchers = new Matcher[patterns.size()];
+    myContinuationMatchers = new Matcher[patterns.size()];
+  }
+
+  int getPatternsCount() {
+    return myStartMatchers.length;
+  }
+
+  /**
+   * Adds the line to the pending record or starts a new record with it. Pending record is logged first
+   * if the line does not continue it.
+   *
+   * @return whether the line belongs to a record of a pattern eating lines
+   */
+  boolean processLine(@NotNull final CharSequence line, @NotNull final ParserManager parserManager, @Nullable final MatchingBudget budget) {
+    if (myPending >= 0) {
+      final MultilinePattern pattern = myPatterns.get(myPending);
+      final long now = System.nanoTime();
+      if (myLines < pattern.getMaxLines()
+          && now - myLastLineNanos <= pattern.getFlushTimeoutNanos()
+          && matches(pattern.getContinuationPattern(), getContinuationMatcher(myPending), line, parserManager, budget)) {
+        myRecord.append('\n').append(line);
+        myLines++;
+        myLastLineNanos = now;
+        return pattern.getEatLine();
+      }
+      flush(parserManager);
+    }
+    for (int i = 0; i < myStartMatchers.length; i++) {
+      final MultilinePattern pattern = myPatterns.get(i);
+      final RegexPattern start = pattern.getStartPattern();
+      final Matcher matcher = getStartMatcher(i);
+      if (matches(start, matcher, line, parserManager, budget)) {
+        myRecord.append(start.getCompiled().describe(matcher, line));
+        myPending = i;
+        myLines = 1;
+        myLastLineNanos = System.nanoTime();
+        return pattern.getEatLine();
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Stateless counterpart of {@link #processLine}: a record started by the line is logged right away as its only line.
+   *
+   * @return whether the line starts a record of a pattern eating lines
+   */
+  static boolean processSingleLine(@NotNull final List<MultilinePattern> patterns,
+                                   @NotNull final CharSequence line,
+                                   @NotNull final ParserManager parserManager,
+                                   @Nullable final MatchingBudget budget) {
+    for (MultilinePattern pattern : patterns) {
+      final RegexPattern start = pattern.getStartPattern();
+      final Matcher matcher = start.getCompiled().getPattern().matcher("");
+      if (matches(start, matcher, line, parserManager, budget)) {
+        parserManager.logRecord(start, pattern.getSeverity(), start.getCompiled().describe(matcher, line));
+        return pattern.getEatLine();
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Logs the pending record if its flush timeout passed since its last line, as the next line could not continue it anyway.
+   *
+   * @return whether a record was logged
+   */
+  boolean flushExpired(@NotNull final ParserManager parserManager) {
+    if (myPending < 0) return false;
+    if (System.nanoTime() - myLastLineNanos <= myPatterns.get(myPending).getFlushTimeoutNanos()) return false;
+    flush(parserManager);
+    return true;
+  }
+
+  /**
+   * Logs the pending record, if any.
+   */
+  void flush(@NotNull final ParserManager parserManager) {
+    if (myPending < 0) return;
+    final MultilinePattern pattern = myPatterns.get(myPending);
+    final String record = myRecord.toString();
+    myPending = -1;
+    myRecord.setLength(0);
+    parserManager.logRecord(pattern.getStartPattern(), pattern.getSeverity(), record);
+  }
+
+  @NotNull
+  private Matcher getStartMatcher(final int index) {
+    Matcher matcher = myStartMatchers[index];
+    if (matcher == null) {
+      matcher = myPatterns.get(index).getStartPattern().getCompiled().getPattern().matcher("");
+      myStartMatchers[index] = matcher;
+    }
+    return matcher;
+  }
+
+  @NotNull
+  private Matcher getContinuationMatcher(final int index) {
+    Matcher matcher = myContinuationMatchers[index];
+    if (matcher == null) {
+      matcher = myPatterns.get(index).getContinuationPattern().getCompiled().getPattern().matcher("");
+      myContinuationMatchers[index] = matcher;
+    }
+    return matcher;
+  }
+
+  /**
+   * Same whole line matching as {@link RegexPattern} does, failures are reported and treated as not matched.
+   */
+  private static boolean matches(@NotNull final RegexPattern pattern,
+                                 @NotNull final Matcher matcher,
+                                 @NotNull final CharSequence line,
+                                 @NotNull final ParserManager parserManager,
+                                 @Nullable final MatchingBudget budget) {
+    if (!pattern.getAnalysis().isLengthAccepted(line.length())) return false;
+    try {
+      if (budget != null) budget.reset();
+      matcher.reset(budget == null ? line : budget.wrap(line));
+      final boolean matched = matcher.lookingAt() && matcher.end() == line.length();
+      if (budget != null) budget.disarm();
+      return matched;
+    } catch (MatchingBudget.ExceededException e) {
+      if (budget != null && budget.markReported()) {
+        parserManager.parsingError("Pattern [" + pattern.getPattern().pattern() + "] exceeded matching budget on line [" + line + "], line is treated as not matched by the pattern");
+      }
+      return false;
+    } catch (Exception e) {
+      parserManager.parsingError("Error parsing line [" + line + "]" + StringUtil.stackTrace(e));
+      return false;
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.regex.Matcher;
+
+/**
+ * Line matched by a {@link RegexPattern}, as passed to {@link ParseEventSink}s before it is logged.
+ * <br/>
+ * Description is rendered from {@code output-expr} only when {@link #getDescription()} is called, so sinks counting or dropping
+ * events never build it. The event is reused for the next match: it and its {@link #getLine() line} are valid only during
+ * {@link ParseEventSink#handle(ParseEvent)}, copy what should be kept.
+ */
+public final class ParseEvent {
+  private RegexPattern myPattern;
+  private Severity mySeverity;
+  private Matcher myMatcher;
+  private CharSequence myLine;
+  private String myDescription;
+
+  ParseEvent() {
+  }
+
+  /**
+   * @param matcher     - matcher which has just matched the whole line, {@code null} if the description is given
+   * @param description - description if it is already known
+   */
+  void reset(@NotNull final RegexPattern pattern,
+             @NotNull final Severity severity,
+             @Nullable final Matcher matcher,
+             @NotNull final CharSequence line,
+             @Nullable final String description) {
+    myPattern = pattern;
+    mySeverity = severity;
+    myMatcher = matcher;
+    myLine = line;
+    myDescription = description;
+  }
+
+  void clear() {
+    myPattern = null;
+    myMatcher = null;
+    myLine = null;
+    myDescription = null;
+  }
+
+  /**
+   * @return pattern matched the line, for a record of a {@link MultilinePattern} it is the pattern of its first line
+   */
+  @NotNull
+  public RegexPattern getPattern() {
+    return myPattern;
+  }
+
+  @NotNull
+  public Severity getSeverity() {
+    return mySeverity;
+  }
+
+  /**
+   * @return matched line, for a record of a {@link MultilinePattern} the whole record
+   */
+  @NotNull
+  public CharSequence getLine() {
+    return myLine;
+  }
+
+  /**
+   * @return offset of the match in {@link #getLine()}, patterns match whole lines so it is always {@code 0}
+   */
+  public int getStart() {
+    return 0;
+  }
+
+  /**
+   * @return end offset of the match in {@link #getLine()}
+   */
+  public int getEnd() {
+    return myLine.length();
+  }
+
+  /**
+   * @return text to be logged, rendered on the first call
+   */
+  @NotNull
+  public String getDescription() {
+    String description = myDescription;
+    if (description == null) {
+      description = myPattern.getCompiled().describe(myMatcher, myLine);
+      myDescription = description;
+    }
+    return description;
+  }
+
+  @Override
+  public String toString() {
+    return mySeverity + " [" + myLine + "]";
+  }
+}
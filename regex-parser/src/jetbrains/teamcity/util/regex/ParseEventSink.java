@@ -0,0 +1,16 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Receives lines matched by patterns before they are logged, e.g. to count, filter or deduplicate them.
+ *
+ * @see ParserManager#addEventSink(ParseEventSink)
+ */
+public interface ParseEventSink {
+  /**
+   * @param event - matched line, valid only during the call
+   * @return {@code true} if the event is handled and should not reach the following sinks and the {@link Logger}
+   */
+  boolean handle(@NotNull ParseEvent event);
+}
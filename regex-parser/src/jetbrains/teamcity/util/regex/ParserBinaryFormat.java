@@ -0,0 +1,183 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Compact binary form of a {@link RegexParser}, see {@link RegexParser#serializeBinary(OutputStream)}.
+ * <br/>
+ * Holds exactly what the XML configuration defines: parser id, name and engine and every pattern with its flags,
+ * {@code output-expr}, severity, {@code eat-line} and engine, then every {@link MultilinePattern} with its continuation,
+ * {@code max-lines} and {@code flush-timeout} too, with defaults already applied.
+ * Reading it skips XML parsing and XStream reflection entirely.
+ */
+final class ParserBinaryFormat {
+  private static final int MAGIC = 0x54435250;
+  /**
+   * Increment on any change of the layout, data of other versions is rejected.
+   */
+  private static final int VERSION = 3;
+  private static final String CHARSET = "UTF-8";
+  /**
+   * Sanity limit, so corrupted data could not make reader allocate gigabytes.
+   */
+  private static final int MAX_STRING_BYTES = 1 << 24;
+
+  private ParserBinaryFormat() {
+  }
+
+  static void write(@NotNull final RegexParser parser, @NotNull final OutputStream output) throws IOException {
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    writeString(out, parser.getId());
+    writeString(out, parser.getName());
+    writeEngine(out, parser.getEngine());
+    final List<RegexPattern> patterns = parser.getPatterns();
+    out.writeInt(patterns.size());
+    for (RegexPattern pattern : patterns) {
+      // Subclasses could have state and behaviour of their own
+      if (pattern.getClass() != RegexPattern.class) {
+        throw new NotSerializableException(pattern.getClass().getName());
+      }
+      writeString(out, pattern.getPattern().pattern());
+      out.writeInt(pattern.getPattern().flags());
+      writeString(out, pattern.getDescriptionExpression());
+      writeString(out, pattern.getSeverity().name());
+      out.writeBoolean(pattern.getEatLine());
+      writeEngine(out, pattern.getEngine());
+    }
+    final List<MultilinePattern> multilinePatterns = parser.getMultilinePatterns();
+    out.writeInt(multilinePatterns.size());
+    for (MultilinePattern pattern : multilinePatterns) {
+      writeString(out, pattern.getPattern().pattern());
+      out.writeInt(pattern.getPattern().flags());
+      writeString(out, pattern.getContinuation().pattern());
+      out.writeInt(pattern.getContinuation().flags());
+      writeString(out, pattern.getDescriptionExpression());
+      writeString(out, pattern.getSeverity().name());
+      out.writeBoolean(pattern.getEatLine());
+      out.writeInt(pattern.getMaxLines());
+      out.writeLong(pattern.getFlushTimeout());
+    }
+    out.flush();
+  }
+
+  @NotNull
+  static RegexParser read(@NotNull final InputStream input) throws IOException, ParserLoadingException {
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+    if (in.readInt() != MAGIC) {
+      throw new ParserLoadingException("Not a binary parser configuration");
+    }
+    final int version = in.readInt();
+    if (version != VERSION) {
+      throw new ParserLoadingException("Unsupported binary parser configuration version: " + version);
+    }
+    final String id = readString(in);
+    final String name = readString(in);
+    final RegexParser parser = new RegexParser(id, name);
+    parser.setEngine(readEngine(in));
+    final int count = readCount(in);
+    for (int i = 0; i < count; i++) {
+      final String regex = readString(in);
+      final int flags = in.readInt();
+      final String expression = readString(in);
+      final String severity = readString(in);
+      final boolean eatLine = in.readBoolean();
+      final RegexEngine engine = readEngine(in);
+      if (regex == null || expression == null || severity == null) {
+        throw new ParserLoadingException("Malformed binary parser configuration: pattern #" + i + " is incomplete");
+      }
+      final RegexPattern pattern;
+      try {
+        pattern = new RegexPattern(PatternPool.compile(regex, flags), expression, Severity.valueOf(severity), eatLine, engine);
+      } catch (PatternSyntaxException e) {
+        throw new ParserLoadingException("Malformed binary parser configuration: " + e.getMessage(), e);
+      } catch (IllegalArgumentException e) {
+        throw new ParserLoadingException("Malformed binary parser configuration: unknown severity " + severity, e);
+      }
+      // Same as XStream loading does
+      pattern.getCompiled();
+      parser.addPattern(pattern);
+    }
+    final int multilineCount = readCount(in);
+    for (int i = 0; i < multilineCount; i++) {
+      final String regex = readString(in);
+      final int flags = in.readInt();
+      final String continuation = readString(in);
+      final int continuationFlags = in.readInt();
+      final String expression = readString(in);
+      final String severity = readString(in);
+      final boolean eatLine = in.readBoolean();
+      final int maxLines = in.readInt();
+      final long flushTimeout = in.readLong();
+      if (regex == null || continuation == null || expression == null || severity == null) {
+        throw new ParserLoadingException("Malformed binary parser configuration: multi-line pattern #" + i + " is incomplete");
+      }
+      final MultilinePattern pattern;
+      try {
+        pattern = new MultilinePattern(PatternPool.compile(regex, flags), PatternPool.compile(continuation, continuationFlags),
+            expression, Severity.valueOf(severity), eatLine, maxLines, flushTimeout);
+      } catch (PatternSyntaxException e) {
+        throw new ParserLoadingException("Malformed binary parser configuration: " + e.getMessage(), e);
+      } catch (IllegalArgumentException e) {
+        // Unknown severity or non-positive limits
+        throw new ParserLoadingException("Malformed binary parser configuration: " + e.getMessage(), e);
+      }
+      pattern.getStartPattern().getCompiled();
+      pattern.getContinuationPattern().getCompiled();
+      parser.addMultilinePattern(pattern);
+    }
+    return parser;
+  }
+
+  private static int readCount(@NotNull final DataInputStream in) throws IOException, ParserLoadingException {
+    final int count = in.readInt();
+    if (count < 0) {
+      throw new ParserLoadingException("Malformed binary parser configuration: negative patterns count");
+    }
+    return count;
+  }
+
+  private static void writeEngine(@NotNull final DataOutputStream out, @Nullable final RegexEngine engine) throws IOException {
+    writeString(out, engine == null ? null : engine.name());
+  }
+
+  @Nullable
+  private static RegexEngine readEngine(@NotNull final DataInputStream in) throws IOException, ParserLoadingException {
+    final String engine = readString(in);
+    if (engine == null) return null;
+    try {
+      return RegexEngine.valueOf(engine);
+    } catch (IllegalArgumentException e) {
+      throw new ParserLoadingException("Malformed binary parser configuration: unknown engine " + engine, e);
+    }
+  }
+
+  private static void writeString(@NotNull final DataOutputStream out, @Nullable final String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+      return;
+    }
+    // Not writeUTF: it is limited to 64K bytes
+    final byte[] bytes = s.getBytes(CHARSET);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  @Nullable
+  private static String readString(@NotNull final DataInputStream in) throws IOException, ParserLoadingException {
+    final int length = in.readInt();
+    if (length == -1) return null;
+    if (length < 0 || length > MAX_STRING_BYTES) {
+      throw new ParserLoadingException("Malformed binary parser configuration: string length " + length);
+    }
+    final byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, CHARSET);
+  }
+}
@@ -0,0 +1,269 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Static analysis of {@link RegexParser} patterns, done before any line is parsed, see {@link RegexParser#getCostReport()}.
+ * <br/>
+ * Every pattern gets a {@link PatternCost} class and findings of these {@link Issue}s:
+ * <ul>
+ * <li>{@link Issue#REDOS}: shapes making backtracking take polynomial or exponential time, like nested repetitions, see {@link CostAnalyzer}</li>
+ * <li>{@link Issue#UNANCHORED}: a pattern starts with a broad repetition like {@code .*} instead of a text lines start with</li>
+ * <li>{@link Issue#SHADOWED}: a pattern is never applied, as an earlier catch-all pattern like {@code .*} eats every line</li>
+ * <li>{@link Issue#EXPENSIVE}: constructs costly on their own, like back references or lookaround inside repetitions</li>
+ * </ul>
+ * The analysis uses no lines, so it is an estimate: hit counts and timings of real lines are collected by {@link PatternMetrics}.
+ */
+public final class ParserCostReport {
+  public enum Issue {
+    REDOS,
+    UNANCHORED,
+    SHADOWED,
+    EXPENSIVE
+  }
+
+  public static final class Finding {
+    @NotNull
+    private final Issue myIssue;
+    @NotNull
+    private final String myMessage;
+
+    Finding(@NotNull final Issue issue, @NotNull final String message) {
+      myIssue = issue;
+      myMessage = message;
+    }
+
+    @NotNull
+    public Issue getIssue() {
+      return myIssue;
+    }
+
+    @NotNull
+    public String getMessage() {
+      return myMessage;
+    }
+
+    @Override
+    public String toString() {
+      return myIssue + ": " + myMessage;
+    }
+  }
+
+  public static final class PatternReport {
+    @NotNull
+    private final String myName;
+    @NotNull
+    private final RegexPattern myPattern;
+    @NotNull
+    private final PatternCost myCost;
+    @NotNull
+    private final List<Finding> myFindings;
+    private final boolean myAutomaton;
+    private final boolean myCatchAll;
+
+    PatternReport(@NotNull final String name,
+                  @NotNull final RegexPattern pattern,
+                  @NotNull final PatternCost cost,
+                  @NotNull final List<Finding> findings,
+                  final boolean automaton,
+                  final boolean catchAll) {
+      myName = name;
+      myPattern = pattern;
+      myCost = cost;
+      myFindings = Collections.unmodifiableList(findings);
+      myAutomaton = automaton;
+      myCatchAll = catchAll;
+    }
+
+    /**
+     * @return place of the pattern in the parser, e.g. {@code pattern #2} or {@code multiline-pattern #1 continuation}
+     */
+    @NotNull
+    public String getName() {
+      return myName;
+    }
+
+    @NotNull
+    public RegexPattern getPattern() {
+      return myPattern;
+    }
+
+    @NotNull
+    public PatternCost getCost() {
+      return myCost;
+    }
+
+    @NotNull
+    public List<Finding> getFindings() {
+      return myFindings;
+    }
+
+    /**
+     * @return whether lines are rejected by {@link RegexEngine#AUTOMATON} before the JDK matches them
+     */
+    public boolean isAutomaton() {
+      return myAutomaton;
+    }
+
+    /**
+     * @return whether the pattern matches every line, see {@link CostAnalyzer#isCatchAll()}
+     */
+    boolean isCatchAll() {
+      return myCatchAll;
+    }
+
+    @Override
+    public String toString() {
+      final StringBuilder sb = new StringBuilder();
+      sb.append(myName).append(" [").append(myPattern.getPattern().pattern()).append("]: ").append(myCost);
+      if (myAutomaton) {
+        sb.append(", matched by automaton");
+      }
+      for (Finding finding : myFindings) {
+        sb.append("\n    ").append(finding);
+      }
+      return sb.toString();
+    }
+  }
+
+  @NotNull
+  private final String myParserName;
+  @NotNull
+  private final List<PatternReport> myPatterns;
+
+  private ParserCostReport(@NotNull final String parserName, @NotNull final List<PatternReport> patterns) {
+    myParserName = parserName;
+    myPatterns = Collections.unmodifiableList(patterns);
+  }
+
+  @NotNull
+  static ParserCostReport analyze(@NotNull final RegexParser parser) {
+    final List<PatternReport> reports = new ArrayList<PatternReport>();
+    final List<RegexPattern> patterns = parser.getPatterns();
+    String catchAll = null;
+    for (int i = 0; i < patterns.size(); i++) {
+      final RegexPattern pattern = patterns.get(i);
+      final String name = "pattern #" + (i + 1);
+      final PatternReport report = analyze(name, pattern, parser.getEngine(), catchAll);
+      reports.add(report);
+      if (catchAll == null && pattern.getEatLine() && report.isCatchAll()) {
+        catchAll = name;
+      }
+    }
+    final List<MultilinePattern> multilinePatterns = parser.getMultilinePatterns();
+    for (int i = 0; i < multilinePatterns.size(); i++) {
+      final MultilinePattern pattern = multilinePatterns.get(i);
+      final String name = "multiline-pattern #" + (i + 1);
+      // Always matched by the JDK
+      reports.add(analyze(name, pattern.getStartPattern(), RegexEngine.JDK, null));
+      reports.add(analyze(name + " continuation", pattern.getContinuationPattern(), RegexEngine.JDK, null));
+    }
+    return new ParserCostReport(parser.getName(), reports);
+  }
+
+  /**
+   * @param catchAll - name of an earlier pattern eating every line, {@code null} if there is none
+   */
+  @NotNull
+  private static PatternReport analyze(@NotNull final String name,
+                                       @NotNull final RegexPattern pattern,
+                                       @Nullable final RegexEngine parserEngine,
+                                       @Nullable final String catchAll) {
+    final List<Finding> findings = new ArrayList<Finding>();
+    final PatternCost cost;
+    boolean catchAllPattern = false;
+    // Subclasses could match lines in their own way
+    if (pattern.getClass() != RegexPattern.class) {
+      cost = PatternCost.UNKNOWN;
+    } else {
+      final CostAnalyzer analyzer = CostAnalyzer.analyze(pattern.getAnalysis().getTree());
+      cost = analyzer.getCost();
+      findings.addAll(analyzer.getFindings());
+      catchAllPattern = analyzer.isCatchAll();
+    }
+    if (catchAll != null) {
+      findings.add(new Finding(Issue.SHADOWED, "never applied, every line is eaten by catch-all " + catchAll));
+    }
+    final boolean automaton = pattern.getClass() == RegexPattern.class && pattern.getAutomaton(parserEngine) != null;
+    return new PatternReport(name, pattern, cost, findings, automaton, catchAllPattern);
+  }
+
+  @NotNull
+  public String getParserName() {
+    return myParserName;
+  }
+
+  /**
+   * @return reports of patterns followed by reports of {@link MultilinePattern}s, in the declared order
+   */
+  @NotNull
+  public List<PatternReport> getPatterns() {
+    return myPatterns;
+  }
+
+  /**
+   * @return reports of patterns whose cost is known and is at least the threshold
+   */
+  @NotNull
+  public List<PatternReport> getPatterns(@NotNull final PatternCost threshold) {
+    final List<PatternReport> result = new ArrayList<PatternReport>();
+    for (PatternReport report : myPatterns) {
+      if (report.getCost().isAtLeast(threshold)) {
+        result.add(report);
+      }
+    }
+    return result;
+  }
+
+  public boolean hasFindings() {
+    for (PatternReport report : myPatterns) {
+      if (!report.getFindings().isEmpty()) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return number of patterns of every cost class found and number of findings, e.g. {@code 5 LINEAR, 1 EXPONENTIAL, 2 findings}
+   */
+  @NotNull
+  public String getSummary() {
+    final int[] counts = new int[PatternCost.values().length];
+    int findings = 0;
+    for (PatternReport report : myPatterns) {
+      counts[report.getCost().ordinal()]++;
+      findings += report.getFindings().size();
+    }
+    final StringBuilder sb = new StringBuilder();
+    for (PatternCost cost : PatternCost.values()) {
+      if (counts[cost.ordinal()] > 0) {
+        sb.append(counts[cost.ordinal()]).append(' ').append(cost).append(", ");
+      }
+    }
+    return sb.append(findings).append(findings == 1 ? " finding" : " findings").toString();
+  }
+
+  /**
+   * @return summary followed by patterns with findings or of cost above {@link PatternCost#LINEAR}, e.g.
+   * <pre>
+   * Parser 'gcc' cost: 5 LINEAR, 1 EXPONENTIAL, 1 finding
+   *   pattern #3 [(\w+\s?)+: error]: EXPONENTIAL
+   *     REDOS: repetition '\w+' inside repetition '(\w+\s?)+' may split the same text in many ways
+   * </pre>
+   */
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("Parser '").append(myParserName).append("' cost: ").append(getSummary());
+    for (PatternReport report : myPatterns) {
+      if (report.getCost() != PatternCost.LINEAR || !report.getFindings().isEmpty()) {
+        sb.append("\n  ").append(report);
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,125 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parsers applied to the same lines, e.g. all parsers enabled in a build.
+ * <br/>
+ * Required literals of all patterns of all parsers are put into a single {@link LiteralPrefilter}, so a line is scanned once
+ * to find parsers which could match it at all. Only such parsers have to run their patterns, others are known not to match
+ * the line without touching it. Selection is exact: a skipped parser would neither accept the line nor log anything for it.
+ * <br/>
+ * Parsers with {@link MultilinePattern}s or {@link RegexPattern} subclasses, with metrics enabled or with compiled matching disabled
+ * are always selected: their sessions should see every line.
+ * <br/>
+ * The group is immutable, patterns added to the parsers later make it {@link #isUpToDate() stale}.
+ */
+public final class ParserGroup {
+  @NotNull
+  private final RegexParser[] myParsers;
+  @NotNull
+  private final PatternAnalysis[] myAnalyses;
+  /**
+   * Patterns of parser {@code i} are {@code [myFirstPattern[i], myFirstPattern[i + 1])} in {@link #myAnalyses}.
+   */
+  @NotNull
+  private final int[] myFirstPattern;
+  @NotNull
+  private final int[] myMultilineCounts;
+  @NotNull
+  private final boolean[] myAlwaysSelected;
+  @NotNull
+  private final LiteralPrefilter myPrefilter;
+
+  public ParserGroup(@NotNull final List<RegexParser> parsers) {
+    myParsers = parsers.toArray(new RegexParser[parsers.size()]);
+    myFirstPattern = new int[myParsers.length + 1];
+    myMultilineCounts = new int[myParsers.length];
+    myAlwaysSelected = new boolean[myParsers.length];
+    final List<PatternAnalysis> analyses = new ArrayList<PatternAnalysis>();
+    final List<List<List<RequiredLiterals.Factor>>> requirements = new ArrayList<List<List<RequiredLiterals.Factor>>>();
+    for (int i = 0; i < myParsers.length; i++) {
+      myFirstPattern[i] = analyses.size();
+      myMultilineCounts[i] = myParsers[i].getMultilinePatterns().size();
+      myAlwaysSelected[i] = myMultilineCounts[i] > 0;
+      for (RegexPattern pattern : myParsers[i].getPatterns()) {
+        analyses.add(pattern.getAnalysis());
+        if (pattern.getClass() != RegexPattern.class) {
+          // Subclasses match lines on their own, so nothing is known about lines they accept
+          myAlwaysSelected[i] = true;
+          requirements.add(Collections.<List<RequiredLiterals.Factor>>emptyList());
+        } else {
+          requirements.add(pattern.getAnalysis().getRequiredLiterals());
+        }
+      }
+    }
+    myFirstPattern[myParsers.length] = analyses.size();
+    myAnalyses = analyses.toArray(new PatternAnalysis[analyses.size()]);
+    myPrefilter = new LiteralPrefilter(requirements);
+  }
+
+  public int size() {
+    return myParsers.length;
+  }
+
+  @NotNull
+  public RegexParser getParser(final int index) {
+    return myParsers[index];
+  }
+
+  /**
+   * @return whether parsers still have the patterns the group was created with
+   */
+  public boolean isUpToDate() {
+    for (int i = 0; i < myParsers.length; i++) {
+      if (myParsers[i].getPatterns().size() != myFirstPattern[i + 1] - myFirstPattern[i]
+          || myParsers[i].getMultilinePatterns().size() != myMultilineCounts[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @NotNull
+  public Selection createSelection() {
+    return new Selection();
+  }
+
+  /**
+   * Parsers selected for the current line. Not thread safe, each thread should use its own selection.
+   */
+  public final class Selection {
+    @NotNull
+    private final LiteralPrefilter.State myState = myPrefilter.createState();
+    private int myLength = -1;
+
+    /**
+     * Scans the line, the line is not retained.
+     */
+    public void select(@NotNull final CharSequence line) {
+      myState.scan(line);
+      myLength = line.length();
+    }
+
+    /**
+     * @return whether the parser could accept the line or log something for it
+     */
+    public boolean isSelected(final int parser) {
+      if (myLength < 0) {
+        throw new IllegalStateException("No line is selected");
+      }
+      final RegexParser regexParser = myParsers[parser];
+      if (myAlwaysSelected[parser] || regexParser.getMetrics() != null || !regexParser.isCompiledMatching()) {
+        return true;
+      }
+      for (int i = myFirstPattern[parser]; i < myFirstPattern[parser + 1]; i++) {
+        if (myState.isCandidate(i) && myAnalyses[i].isLengthAccepted(myLength)) return true;
+      }
+      return false;
+    }
+  }
+}
@@ -3,6 +3,7 @@
 package jetbrains.teamcity.util.regex;
 
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.StreamUtil;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.FileNotFoundException;
@@ -41,8 +42,16 @@ public class ParserLoader {
 
   @NotNull
   public static RegexParser loadParser(@NotNull final InputStream parserConfigStream) throws ParserLoadingException {
+    return loadParser(parserConfigStream, false);
+  }
+
+  /**
+   * @param validate - whether configuration should be checked against {@code parser-configuration.xsd}, see {@link RegexParser#validate(String)}
+   */
+  @NotNull
+  public static RegexParser loadParser(@NotNull final InputStream parserConfigStream, final boolean validate) throws ParserLoadingException {
     try {
-      return RegexParser.deserialize(parserConfigStream);
+      return RegexParser.deserialize(StreamUtil.readText(parserConfigStream, "UTF-8"), validate);
     } catch (final IOException e) {
       LOG.warnAndDebugDetails("Failed to read parser configuration", e);
       throw new ParserLoadingException("Failed to read parser configuration: " + e.getMessage());
@@ -3,17 +3,31 @@
 package jetbrains.teamcity.util.regex;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.Stack;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
 
 /**
  * @author Vladislav.Rassokhin
  */
 public class ParserManager<T extends ParserManager.Block> extends LoggerAdapter {
+  public static final int DEFAULT_MAX_BLOCKS_DEPTH = 100;
+
   @NotNull
   private final Logger myLogger;
   @NotNull
-  protected final Stack<T> myBlocksStack = new Stack<T>();
+  protected final BlockTracker<T> myBlocks = new BlockTracker<T>();
+  private int myMaxBlocksDepth = DEFAULT_MAX_BLOCKS_DEPTH;
+  @NotNull
+  private ParseEventSink[] mySinks = new ParseEventSink[0];
+  /**
+   * Reused from match to match, the manager is used by a single thread.
+   */
+  @NotNull
+  private final ParseEvent myEvent = new ParseEvent();
 
   public ParserManager(@NotNull final Logger myLogger) {
     this.myLogger = myLogger;
@@ -24,6 +38,97 @@ public class ParserManager<T extends ParserManager.Block> extends LoggerAdapter
     return myLogger;
   }
 
+  public int getMaxBlocksDepth() {
+    return myMaxBlocksDepth;
+  }
+
+  /**
+   * Starting a block nested that deep finishes all open blocks first, so output with unbalanced blocks
+   * could not make them pile up during a long build.
+   */
+  public void setMaxBlocksDepth(final int maxDepth) {
+    if (maxDepth < 1) {
+      throw new IllegalArgumentException("Maximal blocks depth should be positive: " + maxDepth);
+    }
+    myMaxBlocksDepth = maxDepth;
+  }
+
+  /**
+   * Adds sink to receive matched lines before they are logged, sinks are called in the order they were added.
+   */
+  public void addEventSink(@NotNull final ParseEventSink sink) {
+    final ParseEventSink[] sinks = Arrays.copyOf(mySinks, mySinks.length + 1);
+    sinks[mySinks.length] = sink;
+    mySinks = sinks;
+  }
+
+  public void removeEventSink(@NotNull final ParseEventSink sink) {
+    for (int i = 0; i < mySinks.length; i++) {
+      if (mySinks[i] == sink) {
+        final ParseEventSink[] sinks = new ParseEventSink[mySinks.length - 1];
+        System.arraycopy(mySinks, 0, sinks, 0, i);
+        System.arraycopy(mySinks, i + 1, sinks, i, sinks.length - i);
+        mySinks = sinks;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Logs a line matched by the pattern, description is rendered only if no {@link ParseEventSink} handles it.
+   *
+   * @param matcher - matcher which has just matched the whole line
+   */
+  void logMatch(@NotNull final RegexPattern pattern, @NotNull final Matcher matcher, @NotNull final CharSequence line) {
+    if (mySinks.length == 0) {
+      log(pattern.getCompiled().describe(matcher, line), pattern.getSeverity());
+    } else {
+      logEvent(pattern, pattern.getSeverity(), matcher, line, null);
+    }
+  }
+
+  /**
+   * Logs a record of lines with already known description.
+   */
+  void logRecord(@NotNull final RegexPattern pattern, @NotNull final Severity severity, @NotNull final String record) {
+    if (mySinks.length == 0) {
+      log(record, severity);
+    } else {
+      logEvent(pattern, severity, null, record, record);
+    }
+  }
+
+  /**
+   * Logs a line matched by the pattern with already rendered description, e.g. a line parsed on another thread.
+   */
+  void logDescribed(@NotNull final RegexPattern pattern,
+                    @NotNull final Severity severity,
+                    @NotNull final String line,
+                    @NotNull final String description) {
+    if (mySinks.length == 0) {
+      log(description, severity);
+    } else {
+      logEvent(pattern, severity, null, line, description);
+    }
+  }
+
+  private void logEvent(@NotNull final RegexPattern pattern,
+                        @NotNull final Severity severity,
+                        @Nullable final Matcher matcher,
+                        @NotNull final CharSequence line,
+                        @Nullable final String description) {
+    final ParseEvent event = myEvent;
+    event.reset(pattern, severity, matcher, line, description);
+    try {
+      for (ParseEventSink sink : mySinks) {
+        if (sink.handle(event)) return;
+      }
+      log(event.getDescription(), severity);
+    } finally {
+      event.clear();
+    }
+  }
+
   public final void log(@NotNull final String text, @NotNull final Severity severity) {
     switch (severity) {
       case INFO:
@@ -60,61 +165,102 @@ public class ParserManager<T extends ParserManager.Block> extends LoggerAdapter
     }
   }
 
+  @SuppressWarnings("unchecked")
   protected T createBlock(@NotNull final String name) {
-    //noinspection unchecked
     return (T) new Block(name);
   }
 
+  @SuppressWarnings("unchecked")
   protected T createCompilationBlock(@NotNull final String name) {
-    //noinspection unchecked
     return (T) new Block(name);
   }
 
   @Override
   public void blockStart(@NotNull final String name) {
-    final T block = createBlock(name);
-    myBlocksStack.push(block);
+    final String interned = myBlocks.intern(name);
+    ensureDepth();
+    final T block = createBlock(interned);
+    myBlocks.push(block, false);
     myLogger.blockStart(block.getName());
   }
 
   @Override
   public void compilationBlockStart(@NotNull final String name) {
-    final T block = createCompilationBlock(name);
-    myBlocksStack.push(block);
-    myLogger.compilationBlockStart(name);
+    final String interned = myBlocks.intern(name);
+    ensureDepth();
+    final T block = createCompilationBlock(interned);
+    myBlocks.push(block, true);
+    myLogger.compilationBlockStart(interned);
   }
 
-
+  /**
+   * Finishes the innermost open block with the name and all blocks opened inside of it, innermost first.
+   * Finish of a block which is not open is ignored.
+   */
   @Override
   public void blockFinish(@NotNull final String name) {
-    if (!myBlocksStack.isEmpty()) {
-      if (!myBlocksStack.peek().getName().equals(name)) return;
-      myLogger.blockFinish(myBlocksStack.pop().getName());
-    }
+    finishBlocks(myBlocks.indexOf(name));
   }
 
+  /**
+   * Same as {@link #blockFinish(String)}.
+   */
   @Override
   public void compilationBlockFinish(@NotNull final String name) {
-    if (!myBlocksStack.isEmpty()) {
-      if (!myBlocksStack.peek().getName().equals(name)) return;
-      myLogger.compilationBlockFinish(myBlocksStack.pop().getName());
-    }
+    finishBlocks(myBlocks.indexOf(name));
   }
 
   protected void blockChange(@NotNull final String text) {
-    if (!myBlocksStack.isEmpty()) {
-      myLogger.blockFinish(myBlocksStack.pop().getName());
-    }
+    finishBlocks(myBlocks.size() - 1);
     blockStart(text);
   }
 
   protected void compilationBlockChange(@NotNull final String text) {
-    if (!myBlocksStack.isEmpty()) {
-      myLogger.compilationBlockFinish(myBlocksStack.pop().getName());
-    }
+    finishBlocks(myBlocks.size() - 1);
     compilationBlockStart(text);
   }
 
+  /**
+   * Finishes open blocks down to the one with the index, nothing is finished for a negative index.
+   */
+  private void finishBlocks(final int index) {
+    if (index < 0) return;
+    while (myBlocks.size() > index) {
+      final boolean compilation = myBlocks.isCompilation(myBlocks.size() - 1);
+      final String name = myBlocks.pop().getName();
+      if (compilation) {
+        myLogger.compilationBlockFinish(name);
+      } else {
+        myLogger.blockFinish(name);
+      }
+    }
+  }
+
+  private void ensureDepth() {
+    if (myBlocks.size() < myMaxBlocksDepth) return;
+    parsingError("Blocks are nested deeper than " + myMaxBlocksDepth + ", all open blocks are finished");
+    finishBlocks(0);
+  }
+
+  /**
+   * @return read-only view of open blocks, outermost first, which replaces the former {@code myBlocksStack} field
+   * @deprecated use {@link #myBlocks}
+   */
+  @Deprecated
+  @NotNull
+  protected List<T> getBlocksStack() {
+    return new AbstractList<T>() {
+      @Override
+      public T get(final int index) {
+        return myBlocks.get(index);
+      }
+
+      @Override
+      public int size() {
+        return myBlocks.size();
+      }
+    };
+  }
 
   protected boolean specialParse(@NotNull final String line) {
     return false;
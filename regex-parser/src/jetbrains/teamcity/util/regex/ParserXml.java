@@ -0,0 +1,407 @@
+package jetbrains.teamcity.util.regex;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.URL;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Streaming reader and writer of {@code parser-configuration.xsd} documents.
+ * <br/>
+ * Reader accepts only documents XStream maps in the obvious way: {@code parser} root with {@code id}, {@code name} and
+ * {@code engine} attributes and {@code pattern} children with {@code regex}, {@code output-expr}, {@code severity},
+ * {@code eat-line} and {@code engine} attributes, {@code multiline-pattern} children have the same attributes but {@code engine}
+ * and also {@code continuation}, {@code max-lines} and {@code flush-timeout} ones.
+ * Anything else (unknown elements or attributes, malformed values, DTDs) makes it give up, so the caller falls back to XStream
+ * which produces the parser or the error exactly as before.
+ */
+final class ParserXml {
+  private static final Logger LOG = Logger.getInstance(ParserXml.class.getName());
+  private static final String SCHEMA_RESOURCE = "/parser-configuration.xsd";
+
+  private static final String PARSER = "parser";
+  private static final String PATTERN = "pattern";
+  private static final String MULTILINE_PATTERN = "multiline-pattern";
+  private static final String ID = "id";
+  private static final String NAME = "name";
+  private static final String REGEX = "regex";
+  private static final String OUTPUT_EXPR = "output-expr";
+  private static final String SEVERITY = "severity";
+  private static final String EAT_LINE = "eat-line";
+  private static final String CONTINUATION = "continuation";
+  private static final String MAX_LINES = "max-lines";
+  private static final String FLUSH_TIMEOUT = "flush-timeout";
+  private static final String ENGINE = "engine";
+
+  private static volatile XMLInputFactory ourInputFactory;
+  private static volatile Schema ourSchema;
+
+  private ParserXml() {
+  }
+
+  /**
+   * @return parser or {@code null} if the document should be read by XStream
+   */
+  @Nullable
+  static RegexParser read(@NotNull final String xml) {
+    try {
+      return readAndClose(getInputFactory().createXMLStreamReader(new StringReader(xml)));
+    } catch (XMLStreamException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @param xml - UTF-8 document, read as far as needed to give up and not closed
+   * @return parser or {@code null} if the document should be read by XStream
+   */
+  @Nullable
+  static RegexParser read(@NotNull final InputStream xml) {
+    // Some readers close the stream once they give up, but it is read again by XStream then
+    final InputStream unclosed = new FilterInputStream(xml) {
+      @Override
+      public void close() {
+      }
+    };
+    try {
+      return readAndClose(getInputFactory().createXMLStreamReader(unclosed, "UTF-8"));
+    } catch (XMLStreamException e) {
+      return null;
+    }
+  }
+
+  @Nullable
+  private static RegexParser readAndClose(@NotNull final XMLStreamReader reader) {
+    try {
+      return read(reader);
+    } catch (XMLStreamException e) {
+      return null;
+    } finally {
+      try {
+        reader.close();
+      } catch (XMLStreamException ignored) {
+      }
+    }
+  }
+
+  @Nullable
+  private static RegexParser read(@NotNull final XMLStreamReader reader) throws XMLStreamException {
+    // Skips prolog comments and processing instructions, fails on DTD
+    reader.nextTag();
+    if (!isElement(reader, PARSER)) return null;
+    String id = null;
+    String name = null;
+    RegexEngine engine = null;
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      if (isIgnoredAttribute(reader, i)) continue;
+      final String attribute = reader.getAttributeLocalName(i);
+      if (ID.equals(attribute)) {
+        id = reader.getAttributeValue(i);
+      } else if (NAME.equals(attribute)) {
+        name = reader.getAttributeValue(i);
+      } else if (ENGINE.equals(attribute)) {
+        engine = parseEngine(reader.getAttributeValue(i));
+        if (engine == null) return null;
+      } else {
+        return null;
+      }
+    }
+    final RegexParser parser = new RegexParser(id, name);
+    parser.setEngine(engine);
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if (isElement(reader, PATTERN)) {
+        final RegexPattern pattern = readPattern(reader);
+        if (pattern == null) return null;
+        parser.addPattern(pattern);
+      } else if (isElement(reader, MULTILINE_PATTERN)) {
+        final MultilinePattern pattern = readMultilinePattern(reader);
+        if (pattern == null) return null;
+        parser.addMultilinePattern(pattern);
+      } else {
+        return null;
+      }
+    }
+    while (reader.hasNext()) {
+      final int event = reader.next();
+      if (event != XMLStreamConstants.COMMENT
+          && event != XMLStreamConstants.PROCESSING_INSTRUCTION
+          && event != XMLStreamConstants.SPACE
+          && event != XMLStreamConstants.END_DOCUMENT
+          && !(event == XMLStreamConstants.CHARACTERS && reader.isWhiteSpace())) {
+        return null;
+      }
+    }
+    return parser;
+  }
+
+  @Nullable
+  private static RegexPattern readPattern(@NotNull final XMLStreamReader reader) throws XMLStreamException {
+    String regex = null;
+    String expression = RegexPattern.DEFAULT_DESCRIPTION_EXPR;
+    Severity severity = RegexPattern.DEFAULT_SEVERITY;
+    boolean eatLine = RegexPattern.DEFAULT_EAT_LINE;
+    RegexEngine engine = null;
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      if (isIgnoredAttribute(reader, i)) continue;
+      final String attribute = reader.getAttributeLocalName(i);
+      final String value = reader.getAttributeValue(i);
+      if (REGEX.equals(attribute)) {
+        regex = value;
+      } else if (ENGINE.equals(attribute)) {
+        engine = parseEngine(value);
+        if (engine == null) return null;
+      } else if (OUTPUT_EXPR.equals(attribute)) {
+        expression = value;
+      } else if (SEVERITY.equals(attribute)) {
+        try {
+          severity = Severity.valueOf(value);
+        } catch (IllegalArgumentException e) {
+          return null;
+        }
+      } else if (EAT_LINE.equals(attribute)) {
+        // Same as XStream boolean conversion
+        eatLine = "true".equalsIgnoreCase(value);
+      } else {
+        return null;
+      }
+    }
+    // Text content and child elements are left to XStream
+    if (regex == null || reader.nextTag() != XMLStreamConstants.END_ELEMENT) return null;
+    final Pattern compiled;
+    try {
+      compiled = PatternPool.compile(regex, 0);
+    } catch (PatternSyntaxException e) {
+      return null;
+    }
+    final RegexPattern pattern = new RegexPattern(compiled, expression, severity, eatLine, engine);
+    // Same as XStream loading does
+    pattern.getCompiled();
+    return pattern;
+  }
+
+  @Nullable
+  private static MultilinePattern readMultilinePattern(@NotNull final XMLStreamReader reader) throws XMLStreamException {
+    String regex = null;
+    String continuation = null;
+    String expression = RegexPattern.DEFAULT_DESCRIPTION_EXPR;
+    Severity severity = RegexPattern.DEFAULT_SEVERITY;
+    boolean eatLine = RegexPattern.DEFAULT_EAT_LINE;
+    int maxLines = MultilinePattern.DEFAULT_MAX_LINES;
+    long flushTimeout = MultilinePattern.DEFAULT_FLUSH_TIMEOUT;
+    try {
+      for (int i = 0; i < reader.getAttributeCount(); i++) {
+        if (isIgnoredAttribute(reader, i)) continue;
+        final String attribute = reader.getAttributeLocalName(i);
+        final String value = reader.getAttributeValue(i);
+        if (REGEX.equals(attribute)) {
+          regex = value;
+        } else if (CONTINUATION.equals(attribute)) {
+          continuation = value;
+        } else if (OUTPUT_EXPR.equals(attribute)) {
+          expression = value;
+        } else if (SEVERITY.equals(attribute)) {
+          severity = Severity.valueOf(value);
+        } else if (EAT_LINE.equals(attribute)) {
+          eatLine = "true".equalsIgnoreCase(value);
+        } else if (MAX_LINES.equals(attribute)) {
+          maxLines = Integer.parseInt(value);
+        } else if (FLUSH_TIMEOUT.equals(attribute)) {
+          flushTimeout = Long.parseLong(value);
+        } else {
+          return null;
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      // Unknown severity or malformed number
+      return null;
+    }
+    if (regex == null || continuation == null || reader.nextTag() != XMLStreamConstants.END_ELEMENT) return null;
+    // Same as XStream loading does
+    if (maxLines < 1) maxLines = MultilinePattern.DEFAULT_MAX_LINES;
+    if (flushTimeout < 1) flushTimeout = MultilinePattern.DEFAULT_FLUSH_TIMEOUT;
+    final MultilinePattern pattern;
+    try {
+      pattern = new MultilinePattern(PatternPool.compile(regex, 0), PatternPool.compile(continuation, 0), expression, severity, eatLine, maxLines, flushTimeout);
+    } catch (PatternSyntaxException e) {
+      return null;
+    }
+    pattern.getStartPattern().getCompiled();
+    pattern.getContinuationPattern().getCompiled();
+    return pattern;
+  }
+
+  /**
+   * @return engine or {@code null} if the value is unknown
+   */
+  @Nullable
+  private static RegexEngine parseEngine(@NotNull final String value) {
+    try {
+      return RegexEngine.valueOf(value);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static boolean isElement(@NotNull final XMLStreamReader reader, @NotNull final String name) {
+    return name.equals(reader.getLocalName()) && isEmpty(reader.getPrefix()) && isEmpty(reader.getNamespaceURI());
+  }
+
+  /**
+   * XStream ignores attributes with prefixes like {@code xsi:noNamespaceSchemaLocation}.
+   */
+  private static boolean isIgnoredAttribute(@NotNull final XMLStreamReader reader, final int index) {
+    return !isEmpty(reader.getAttributePrefix(index));
+  }
+
+  private static boolean isEmpty(@Nullable final String s) {
+    return s == null || s.isEmpty();
+  }
+
+  static void write(@NotNull final RegexParser parser, @NotNull final Writer writer) throws IOException {
+    writer.write("<" + PARSER);
+    writeAttribute(writer, ID, parser.getId());
+    writeAttribute(writer, NAME, parser.getName());
+    writeEngine(writer, parser.getEngine());
+    final List<RegexPattern> patterns = parser.getPatterns();
+    final List<MultilinePattern> multilinePatterns = parser.getMultilinePatterns();
+    if (patterns.isEmpty() && multilinePatterns.isEmpty()) {
+      writer.write("/>\n");
+      return;
+    }
+    writer.write(">\n");
+    for (RegexPattern pattern : patterns) {
+      writer.write("  <" + PATTERN);
+      writeAttribute(writer, REGEX, pattern.getPattern().pattern());
+      writeAttribute(writer, OUTPUT_EXPR, pattern.getDescriptionExpression());
+      writeAttribute(writer, SEVERITY, pattern.getSeverity().name());
+      writeAttribute(writer, EAT_LINE, String.valueOf(pattern.getEatLine()));
+      writeEngine(writer, pattern.getEngine());
+      writer.write("/>\n");
+    }
+    for (MultilinePattern pattern : multilinePatterns) {
+      writer.write("  <" + MULTILINE_PATTERN);
+      writeAttribute(writer, REGEX, pattern.getPattern().pattern());
+      writeAttribute(writer, CONTINUATION, pattern.getContinuation().pattern());
+      writeAttribute(writer, OUTPUT_EXPR, pattern.getDescriptionExpression());
+      writeAttribute(writer, SEVERITY, pattern.getSeverity().name());
+      writeAttribute(writer, EAT_LINE, String.valueOf(pattern.getEatLine()));
+      writeAttribute(writer, MAX_LINES, String.valueOf(pattern.getMaxLines()));
+      writeAttribute(writer, FLUSH_TIMEOUT, String.valueOf(pattern.getFlushTimeout()));
+      writer.write("/>\n");
+    }
+    writer.write("</" + PARSER + ">\n");
+  }
+
+  private static void writeEngine(@NotNull final Writer writer, @Nullable final RegexEngine engine) throws IOException {
+    writeAttribute(writer, ENGINE, engine == null ? null : engine.name());
+  }
+
+  private static void writeAttribute(@NotNull final Writer writer, @NotNull final String name, @Nullable final String value) throws IOException {
+    if (value == null) return;
+    writer.write(' ');
+    writer.write(name);
+    writer.write("=\"");
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      switch (c) {
+        case '&':
+          writer.write("&amp;");
+          break;
+        case '<':
+          writer.write("&lt;");
+          break;
+        case '>':
+          writer.write("&gt;");
+          break;
+        case '"':
+          writer.write("&quot;");
+          break;
+        // Would be normalized to spaces on reading otherwise
+        case '\t':
+          writer.write("&#9;");
+          break;
+        case '\n':
+          writer.write("&#10;");
+          break;
+        case '\r':
+          writer.write("&#13;");
+          break;
+        default:
+          writer.write(c);
+      }
+    }
+    writer.write('"');
+  }
+
+  /**
+   * Validates the document against {@code parser-configuration.xsd}, the schema is compiled once.
+   */
+  static void validate(@NotNull final String xml) throws ParserLoadingException {
+    final Validator validator = getSchema().newValidator();
+    try {
+      validator.validate(new StreamSource(new StringReader(xml)));
+    } catch (SAXParseException e) {
+      throw new ParserLoadingException("Parser configuration does not conform to the schema at line " + e.getLineNumber()
+          + ", column " + e.getColumnNumber() + ": " + e.getMessage(), e);
+    } catch (SAXException e) {
+      throw new ParserLoadingException("Parser configuration does not conform to the schema: " + e.getMessage(), e);
+    } catch (IOException e) {
+      throw new ParserLoadingException("Cannot validate parser configuration: " + e.getMessage(), e);
+    }
+  }
+
+  @NotNull
+  private static Schema getSchema() throws ParserLoadingException {
+    Schema schema = ourSchema;
+    if (schema == null) {
+      final URL resource = ParserXml.class.getResource(SCHEMA_RESOURCE);
+      if (resource == null) {
+        throw new ParserLoadingException("Parser configuration schema not found: " + SCHEMA_RESOURCE);
+      }
+      try {
+        final SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        schema = factory.newSchema(resource);
+      } catch (SAXException e) {
+        LOG.warnAndDebugDetails("Cannot compile parser configuration schema", e);
+        throw new ParserLoadingException("Cannot compile parser configuration schema: " + e.getMessage(), e);
+      }
+      // Racing threads may compile it several times, which is harmless
+      ourSchema = schema;
+    }
+    return schema;
+  }
+
+  @NotNull
+  private static XMLInputFactory getInputFactory() {
+    XMLInputFactory factory = ourInputFactory;
+    if (factory == null) {
+      factory = XMLInputFactory.newInstance();
+      factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+      factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+      factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+      ourInputFactory = factory;
+    }
+    return factory;
+  }
+}
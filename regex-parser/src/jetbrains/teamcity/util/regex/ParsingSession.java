@@ -0,0 +1,165 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * Processing of a stream of lines with a {@link RegexParser}.
+ * <br/>
+ * Session keeps matchers and other matching state between lines, matchers are reset for every next line instead
+ * of being created again, so a line no pattern matches is processed without allocating anything.
+ * <br/>
+ * Session is not thread safe, each stream of lines should use its own one. Patterns added to the parser
+ * are picked up by existing sessions.
+ */
+public class ParsingSession {
+  @NotNull
+  private final RegexParser myParser;
+  @Nullable
+  private CompiledParser.State myState;
+  @Nullable
+  private MatchingBudget myBudget;
+  @Nullable
+  private MultilineState myMultiline;
+  private int myLinesToOrderUpdate = RegexParser.ORDER_UPDATE_INTERVAL;
+
+  ParsingSession(@NotNull final RegexParser parser) {
+    myParser = parser;
+  }
+
+  @NotNull
+  public RegexParser getParser() {
+    return myParser;
+  }
+
+  /**
+   * Same as {@link RegexParser#processLine(String, ParserManager)}.
+   *
+   * @param line          - line of the input
+   * @param parserManager - parsing manager
+   * @return true if parser recognized and accepted line, false otherwise
+   */
+  public boolean processLine(@NotNull final String line, @NotNull final ParserManager parserManager) {
+    return processLine((CharSequence)line, parserManager);
+  }
+
+  /**
+   * Same as {@link RegexParser#processLine(CharSequence, ParserManager)}.
+   *
+   * @param line          - line of the input, is not retained after the call
+   * @param parserManager - parsing manager
+   * @return true if parser recognized and accepted line, false otherwise
+   */
+  public boolean processLine(@NotNull final CharSequence line, @NotNull final ParserManager parserManager) {
+    if (--myLinesToOrderUpdate == 0) {
+      myLinesToOrderUpdate = RegexParser.ORDER_UPDATE_INTERVAL;
+      myParser.updatePatternOrder();
+    }
+    final CompiledParser compiled = myParser.getCompiled();
+    CompiledParser.State state = myState;
+    if (state == null || state.getParser() != compiled) {
+      state = compiled.createState();
+      myState = state;
+    }
+    final MatchingBudget budget = getBudget();
+    if (budget != null) budget.startLine();
+    final MultilineState multiline = getMultiline();
+    if (multiline != null && multiline.processLine(line, parserManager, budget)) {
+      return true;
+    }
+    final PatternMetrics metrics = myParser.getMetrics();
+    if (myParser.isCompiledMatching()) {
+      return compiled.processLine(line, parserManager, budget, state, metrics);
+    }
+    return compiled.processLineSequentially(line, parserManager, budget, state, metrics);
+  }
+
+  /**
+   * Same as {@link RegexParser#processLines(List, ParserManager)}.
+   *
+   * @param lines         - lines of the input
+   * @param parserManager - parsing manager
+   * @return whether parser recognized and accepted each of the lines
+   */
+  @NotNull
+  public boolean[] processLines(@NotNull final List<? extends CharSequence> lines, @NotNull final ParserManager parserManager) {
+    final boolean[] consumed = new boolean[lines.size()];
+    for (int i = 0; i < consumed.length; i++) {
+      consumed[i] = processLine(lines.get(i), parserManager);
+    }
+    return consumed;
+  }
+
+  /**
+   * Same as {@link RegexParser#process(Reader, ParserManager)}.
+   *
+   * @param reader        - input, is not closed
+   * @param parserManager - parsing manager
+   * @return number of lines processed
+   */
+  public int process(@NotNull final Reader reader, @NotNull final ParserManager parserManager) throws IOException {
+    final LineReader lines = new LineReader(reader);
+    int count = 0;
+    CharSequence line;
+    while ((line = lines.readLine()) != null) {
+      processLine(line, parserManager);
+      count++;
+    }
+    flush(parserManager);
+    return count;
+  }
+
+  /**
+   * Logs the record of a {@link MultilinePattern} collected so far, call it once the input ends.
+   * Otherwise the record is logged only when the next line comes.
+   *
+   * @param parserManager - parsing manager
+   */
+  public void flush(@NotNull final ParserManager parserManager) {
+    final MultilineState multiline = myMultiline;
+    if (multiline != null) {
+      multiline.flush(parserManager);
+    }
+  }
+
+  /**
+   * Logs the record of a {@link MultilinePattern} if its flush timeout passed since its last line. Call it periodically
+   * while lines may stop coming for a while, e.g. from a timer, so the record is not held till the next line.
+   * Calls should not overlap with processing of lines.
+   *
+   * @param parserManager - parsing manager
+   * @return whether a record was logged
+   */
+  public boolean flushExpired(@NotNull final ParserManager parserManager) {
+    final MultilineState multiline = myMultiline;
+    return multiline != null && multiline.flushExpired(parserManager);
+  }
+
+  @Nullable
+  private MultilineState getMultiline() {
+    final List<MultilinePattern> patterns = myParser.getMultilinePatterns();
+    MultilineState multiline = myMultiline;
+    if (multiline == null || multiline.getPatternsCount() != patterns.size()) {
+      if (patterns.isEmpty()) return null;
+      multiline = new MultilineState(patterns);
+      myMultiline = multiline;
+    }
+    return multiline;
+  }
+
+  @Nullable
+  private MatchingBudget getBudget() {
+    final int limit = myParser.getMatchingBudget();
+    if (limit == RegexParser.UNLIMITED_MATCHING_BUDGET) return null;
+    MatchingBudget budget = myBudget;
+    if (budget == null || budget.getLimit() != limit) {
+      budget = new MatchingBudget(limit);
+      myBudget = budget;
+    }
+    return budget;
+  }
+}
@@ -0,0 +1,225 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Facts about a {@link RegexPattern} regular expression computed once and used to speed matching up.
+ */
+final class PatternAnalysis {
+  @NotNull
+  private final RegexTree myTree;
+  @NotNull
+  private final List<List<RequiredLiterals.Factor>> myRequiredLiterals;
+  private final int myMinLength;
+  private final int myMaxLength;
+  @NotNull
+  private final String myLiteralPrefix;
+  @NotNull
+  private final String myLiteralSuffix;
+  /**
+   * Compiled on first use, as only patterns matched by {@link RegexEngine#AUTOMATON} need it.
+   */
+  private volatile boolean myAutomatonCompiled;
+  @Nullable
+  private volatile RegexAutomaton myAutomaton;
+
+  private PatternAnalysis(@NotNull final RegexTree tree) {
+    myTree = tree;
+    myRequiredLiterals = RequiredLiterals.extract(tree);
+    final RegexTree.Node root = tree.getRoot();
+    myMinLength = root == null ? 0 : (int) Math.min(minLength(root), Integer.MAX_VALUE);
+    myMaxLength = root == null ? RegexTree.UNBOUNDED : maxLength(root);
+    final StringBuilder prefix = new StringBuilder();
+    final StringBuilder suffix = new StringBuilder();
+    if (root != null) {
+      collectLiterals(root, prefix, false);
+      collectLiterals(root, suffix, true);
+    }
+    myLiteralPrefix = prefix.toString();
+    myLiteralSuffix = suffix.reverse().toString();
+  }
+
+  @NotNull
+  static PatternAnalysis analyze(@NotNull final Pattern pattern) {
+    return new PatternAnalysis(RegexTree.parse(pattern));
+  }
+
+  @NotNull
+  RegexTree getTree() {
+    return myTree;
+  }
+
+  /**
+   * @return literals every matched line contains, see {@link RequiredLiterals}
+   */
+  @NotNull
+  List<List<RequiredLiterals.Factor>> getRequiredLiterals() {
+    return myRequiredLiterals;
+  }
+
+  /**
+   * @return linear time automaton of the pattern, {@code null} if the pattern uses constructs it does not support
+   */
+  @Nullable
+  RegexAutomaton getAutomaton() {
+    if (!myAutomatonCompiled) {
+      synchronized (this) {
+        if (!myAutomatonCompiled) {
+          myAutomaton = RegexAutomaton.compile(myTree);
+          myAutomatonCompiled = true;
+        }
+      }
+    }
+    return myAutomaton;
+  }
+
+  /**
+   * @return minimal length of a text the pattern matches
+   */
+  int getMinLength() {
+    return myMinLength;
+  }
+
+  /**
+   * @return maximal length of a text the pattern matches or {@link RegexTree#UNBOUNDED}
+   */
+  int getMaxLength() {
+    return myMaxLength;
+  }
+
+  /**
+   * @return whether the pattern could match a text of given length
+   */
+  boolean isLengthAccepted(final int length) {
+    return length >= myMinLength && (myMaxLength == RegexTree.UNBOUNDED || length <= myMaxLength);
+  }
+
+  /**
+   * @return text every matched line starts with, compared case sensitively
+   */
+  @NotNull
+  String getLiteralPrefix() {
+    return myLiteralPrefix;
+  }
+
+  /**
+   * @return text every matched line ends with, compared case sensitively
+   */
+  @NotNull
+  String getLiteralSuffix() {
+    return myLiteralSuffix;
+  }
+
+  /**
+   * Appends chars every match of the node starts (or ends, if {@code backward}) with, the suffix is appended reversed.
+   *
+   * @return whether the node always matches exactly the appended text, so the following nodes may extend it
+   */
+  private static boolean collectLiterals(@NotNull final RegexTree.Node node, @NotNull final StringBuilder sb, final boolean backward) {
+    if (node instanceof RegexTree.Literal) {
+      final RegexTree.Literal literal = (RegexTree.Literal) node;
+      if (literal.isCaseInsensitive() || (literal.flags & Pattern.CANON_EQ) != 0 || Character.charCount(literal.codePoint) != 1) {
+        return false;
+      }
+      sb.append((char) literal.codePoint);
+      return true;
+    }
+    // Zero width constructs do not move the match position
+    if (node instanceof RegexTree.Assertion) return true;
+    if (node instanceof RegexTree.Group) {
+      final RegexTree.Group group = (RegexTree.Group) node;
+      return group.kind.zeroWidth || collectLiterals(group.body, sb, backward);
+    }
+    if (node instanceof RegexTree.Sequence) {
+      final List<RegexTree.Node> items = ((RegexTree.Sequence) node).items;
+      for (int i = 0; i < items.size(); i++) {
+        if (!collectLiterals(items.get(backward ? items.size() - 1 - i : i), sb, backward)) return false;
+      }
+      return true;
+    }
+    return false;
+  }
+
+  private static long minLength(@NotNull final RegexTree.Node node) {
+    if (node instanceof RegexTree.Literal) {
+      final RegexTree.Literal literal = (RegexTree.Literal) node;
+      // Case insensitive matching compares code points, so a BMP char could match a supplementary one and vice versa
+      return literal.isCaseInsensitive() ? 1 : Character.charCount(literal.codePoint);
+    }
+    if (node instanceof RegexTree.CharClass) return 1;
+    if (node instanceof RegexTree.Opaque) return ((RegexTree.Opaque) node).minLength;
+    if (node instanceof RegexTree.Group) {
+      final RegexTree.Group group = (RegexTree.Group) node;
+      return group.kind.zeroWidth ? 0 : minLength(group.body);
+    }
+    if (node instanceof RegexTree.Repeat) {
+      final RegexTree.Repeat repeat = (RegexTree.Repeat) node;
+      return Math.min(repeat.min * minLength(repeat.body), Integer.MAX_VALUE);
+    }
+    if (node instanceof RegexTree.Sequence) {
+      long sum = 0;
+      for (RegexTree.Node item : ((RegexTree.Sequence) node).items) {
+        sum = Math.min(sum + minLength(item), Integer.MAX_VALUE);
+      }
+      return sum;
+    }
+    if (node instanceof RegexTree.Alternation) {
+      long min = Integer.MAX_VALUE;
+      for (RegexTree.Node branch : ((RegexTree.Alternation) node).branches) {
+        min = Math.min(min, minLength(branch));
+      }
+      return min;
+    }
+    // Assertions are zero width, back references could be empty
+    return 0;
+  }
+
+  private static int maxLength(@NotNull final RegexTree.Node node) {
+    if (node instanceof RegexTree.Literal) {
+      final RegexTree.Literal literal = (RegexTree.Literal) node;
+      return literal.isCaseInsensitive() ? 2 : Character.charCount(literal.codePoint);
+    }
+    if (node instanceof RegexTree.CharClass) return 2;
+    if (node instanceof RegexTree.Opaque) return ((RegexTree.Opaque) node).maxLength;
+    if (node instanceof RegexTree.Assertion) return 0;
+    if (node instanceof RegexTree.BackReference) return RegexTree.UNBOUNDED;
+    if (node instanceof RegexTree.Group) {
+      final RegexTree.Group group = (RegexTree.Group) node;
+      return group.kind.zeroWidth ? 0 : maxLength(group.body);
+    }
+    if (node instanceof RegexTree.Repeat) {
+      final RegexTree.Repeat repeat = (RegexTree.Repeat) node;
+      final int body = maxLength(repeat.body);
+      if (body == 0 || repeat.max == 0) return 0;
+      if (body == RegexTree.UNBOUNDED || repeat.max == RegexTree.UNBOUNDED) return RegexTree.UNBOUNDED;
+      return bounded((long) body * repeat.max);
+    }
+    if (node instanceof RegexTree.Sequence) {
+      long sum = 0;
+      for (RegexTree.Node item : ((RegexTree.Sequence) node).items) {
+        final int length = maxLength(item);
+        if (length == RegexTree.UNBOUNDED) return RegexTree.UNBOUNDED;
+        sum += length;
+      }
+      return bounded(sum);
+    }
+    if (node instanceof RegexTree.Alternation) {
+      int max = 0;
+      for (RegexTree.Node branch : ((RegexTree.Alternation) node).branches) {
+        final int length = maxLength(branch);
+        if (length == RegexTree.UNBOUNDED) return RegexTree.UNBOUNDED;
+        max = Math.max(max, length);
+      }
+      return max;
+    }
+    return RegexTree.UNBOUNDED;
+  }
+
+  private static int bounded(final long length) {
+    return length > Integer.MAX_VALUE ? RegexTree.UNBOUNDED : (int) length;
+  }
+}
@@ -0,0 +1,33 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Class of the worst case time {@link RegexEngine#JDK} may take to match a line of length {@code n} against a pattern,
+ * as estimated by {@link ParserCostReport}. Classes are ordered from the cheapest one, {@link #UNKNOWN} goes last.
+ */
+public enum PatternCost {
+  /**
+   * Time is linear in {@code n}.
+   */
+  LINEAR,
+  /**
+   * Backtracking may take time polynomial in {@code n}, e.g. {@code .*a.*b} is quadratic on a long line of {@code a}s.
+   */
+  POLYNOMIAL,
+  /**
+   * Backtracking may take time exponential in {@code n}, e.g. {@code (a+)+b} on a long line of {@code a}s.
+   */
+  EXPONENTIAL,
+  /**
+   * Pattern could not be analyzed: it is a {@link RegexPattern} subclass or uses syntax {@link RegexTree} does not model.
+   */
+  UNKNOWN;
+
+  /**
+   * @return whether the cost is known and is not less than the threshold
+   */
+  public boolean isAtLeast(@NotNull final PatternCost threshold) {
+    return this != UNKNOWN && compareTo(threshold) >= 0;
+  }
+}
@@ -0,0 +1,174 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per pattern metrics of a {@link RegexParser}, see {@link RegexParser#enableMetrics()}.
+ * <br/>
+ * For every pattern it counts lines the pattern tried, lines it matched, failures (exceptions, exceeded matching budget)
+ * and time spent, both cumulative and the longest single line. Time includes building and logging the description of a matched line.
+ * <br/>
+ * Counters are updated without locks. Counters of a pattern are looked up in an immutable map which is replaced
+ * when a pattern shows up for the first time.
+ */
+public final class PatternMetrics {
+  @NotNull
+  private final RegexParser myParser;
+  @NotNull
+  private volatile Map<RegexPattern, Counters> myCounters = new IdentityHashMap<RegexPattern, Counters>();
+
+  PatternMetrics(@NotNull final RegexParser parser) {
+    myParser = parser;
+  }
+
+  void record(@NotNull final RegexPattern pattern, final int result, final long nanos) {
+    Counters counters = myCounters.get(pattern);
+    if (counters == null) {
+      counters = getOrCreateCounters(pattern);
+    }
+    counters.attempts.incrementAndGet();
+    if (result == RegexPattern.MATCHED || result == RegexPattern.EATEN) {
+      counters.matches.incrementAndGet();
+    } else if (result == RegexPattern.FAILED) {
+      counters.failures.incrementAndGet();
+    }
+    counters.nanos.addAndGet(nanos);
+    long max = counters.maxNanos.get();
+    while (nanos > max && !counters.maxNanos.compareAndSet(max, nanos)) {
+      max = counters.maxNanos.get();
+    }
+  }
+
+  @NotNull
+  private synchronized Counters getOrCreateCounters(@NotNull final RegexPattern pattern) {
+    Counters counters = myCounters.get(pattern);
+    if (counters == null) {
+      counters = new Counters();
+      final Map<RegexPattern, Counters> copy = new IdentityHashMap<RegexPattern, Counters>(myCounters);
+      copy.put(pattern, counters);
+      myCounters = copy;
+    }
+    return counters;
+  }
+
+  /**
+   * @return metrics of every parser pattern, in the declared order
+   */
+  @NotNull
+  public List<Snapshot> snapshot() {
+    return snapshot(false);
+  }
+
+  /**
+   * Same as {@link #snapshot()} followed by {@link #reset()}, but nothing counted in between is lost.
+   */
+  @NotNull
+  public List<Snapshot> snapshotAndReset() {
+    return snapshot(true);
+  }
+
+  public void reset() {
+    snapshot(true);
+  }
+
+  @NotNull
+  private List<Snapshot> snapshot(final boolean reset) {
+    final Map<RegexPattern, Counters> counters = myCounters;
+    final List<Snapshot> result = new ArrayList<Snapshot>();
+    for (RegexPattern pattern : myParser.getPatterns()) {
+      final Counters c = counters.get(pattern);
+      result.add(c == null ? new Snapshot(pattern, 0, 0, 0, 0, 0) : c.snapshot(pattern, reset));
+    }
+    return result;
+  }
+
+  private static final class Counters {
+    final AtomicLong attempts = new AtomicLong();
+    final AtomicLong matches = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    final AtomicLong nanos = new AtomicLong();
+    final AtomicLong maxNanos = new AtomicLong();
+
+    @NotNull
+    Snapshot snapshot(@NotNull final RegexPattern pattern, final boolean reset) {
+      if (reset) {
+        return new Snapshot(pattern, attempts.getAndSet(0), matches.getAndSet(0), failures.getAndSet(0), nanos.getAndSet(0), maxNanos.getAndSet(0));
+      }
+      return new Snapshot(pattern, attempts.get(), matches.get(), failures.get(), nanos.get(), maxNanos.get());
+    }
+  }
+
+  /**
+   * Metrics of a single pattern at some moment.
+   */
+  public static final class Snapshot {
+    @NotNull
+    private final RegexPattern myPattern;
+    private final long myAttempts;
+    private final long myMatches;
+    private final long myFailures;
+    private final long myNanos;
+    private final long myMaxNanos;
+
+    Snapshot(@NotNull final RegexPattern pattern, final long attempts, final long matches, final long failures, final long nanos, final long maxNanos) {
+      myPattern = pattern;
+      myAttempts = attempts;
+      myMatches = matches;
+      myFailures = failures;
+      myNanos = nanos;
+      myMaxNanos = maxNanos;
+    }
+
+    @NotNull
+    public RegexPattern getPattern() {
+      return myPattern;
+    }
+
+    /**
+     * @return number of lines the pattern was tried on
+     */
+    public long getAttempts() {
+      return myAttempts;
+    }
+
+    /**
+     * @return number of lines the pattern matched
+     */
+    public long getMatches() {
+      return myMatches;
+    }
+
+    /**
+     * @return number of lines the pattern failed on: exception thrown or matching budget exceeded
+     */
+    public long getFailures() {
+      return myFailures;
+    }
+
+    /**
+     * @return time spent on all the lines
+     */
+    public long getNanos() {
+      return myNanos;
+    }
+
+    /**
+     * @return the longest time spent on a single line
+     */
+    public long getMaxNanos() {
+      return myMaxNanos;
+    }
+
+    @Override
+    public String toString() {
+      return "[" + myPattern.getPattern().pattern() + "] attempts: " + myAttempts + ", matches: " + myMatches + ", failures: " + myFailures
+          + ", total: " + myNanos / 1000 + "us, max: " + myMaxNanos / 1000 + "us";
+    }
+  }
+}
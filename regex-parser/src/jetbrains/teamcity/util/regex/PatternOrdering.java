@@ -0,0 +1,116 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Order of {@link RegexParser} patterns evaluation driven by pattern hit counts.
+ * <br/>
+ * Pattern may be moved before an earlier one only if both of them can never match the same line, see {@link #areDisjoint}.
+ * Then for every line patterns matching it keep their relative order, so the line gets exactly the same output
+ * and is eaten by the same pattern as with the declared order. Only errors of patterns never reached on the line could be missed.
+ * <br/>
+ * Among the orders respecting that restriction, the one evaluating frequently accepting patterns earlier is chosen:
+ * patterns are taken greedily by hit count, ties keep the declared order.
+ */
+final class PatternOrdering {
+  @NotNull
+  private final RegexPattern[] myPatterns;
+  /**
+   * {@code myFollowers[i]} are patterns declared after pattern {@code i} which could match the same lines, so they must stay after it.
+   */
+  @NotNull
+  private final int[][] myFollowers;
+  /**
+   * Number of earlier declared patterns which must stay before the pattern.
+   */
+  @NotNull
+  private final int[] myPredecessorsCount;
+  private final boolean myFixed;
+
+  PatternOrdering(@NotNull final List<RegexPattern> patterns) {
+    myPatterns = patterns.toArray(new RegexPattern[patterns.size()]);
+    myFollowers = new int[myPatterns.length][];
+    myPredecessorsCount = new int[myPatterns.length];
+    boolean fixed = true;
+    final int[] followers = new int[myPatterns.length];
+    for (int i = 0; i < myPatterns.length; i++) {
+      int count = 0;
+      for (int j = i + 1; j < myPatterns.length; j++) {
+        if (!areDisjoint(myPatterns[i], myPatterns[j])) {
+          followers[count++] = j;
+          myPredecessorsCount[j]++;
+        }
+      }
+      myFollowers[i] = Arrays.copyOf(followers, count);
+      fixed &= count == myPatterns.length - i - 1;
+    }
+    myFixed = fixed;
+  }
+
+  int getPatternsCount() {
+    return myPatterns.length;
+  }
+
+  /**
+   * @return whether no pattern could ever be moved
+   */
+  boolean isFixed() {
+    return myFixed;
+  }
+
+  /**
+   * @return patterns in the order they should be evaluated according to current hit counts
+   */
+  @NotNull
+  List<RegexPattern> order() {
+    final List<RegexPattern> result = new ArrayList<RegexPattern>(myPatterns.length);
+    if (myFixed) {
+      result.addAll(Arrays.asList(myPatterns));
+      return result;
+    }
+    final long[] hits = new long[myPatterns.length];
+    for (int i = 0; i < hits.length; i++) {
+      hits[i] = myPatterns[i].getHits();
+    }
+    final int[] blockers = myPredecessorsCount.clone();
+    final boolean[] taken = new boolean[myPatterns.length];
+    for (int step = 0; step < myPatterns.length; step++) {
+      int best = -1;
+      for (int i = 0; i < myPatterns.length; i++) {
+        if (taken[i] || blockers[i] != 0) continue;
+        if (best == -1 || hits[i] > hits[best]) {
+          best = i;
+        }
+      }
+      taken[best] = true;
+      result.add(myPatterns[best]);
+      for (int follower : myFollowers[best]) {
+        blockers[follower]--;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return {@code true} if it is proven that no line could be matched by both patterns
+   */
+  static boolean areDisjoint(@NotNull final RegexPattern a, @NotNull final RegexPattern b) {
+    // Subclasses could match lines in their own way
+    if (a.getClass() != RegexPattern.class || b.getClass() != RegexPattern.class) return false;
+    final PatternAnalysis first = a.getAnalysis();
+    final PatternAnalysis second = b.getAnalysis();
+    if (first.getMaxLength() != RegexTree.UNBOUNDED && first.getMaxLength() < second.getMinLength()) return true;
+    if (second.getMaxLength() != RegexTree.UNBOUNDED && second.getMaxLength() < first.getMinLength()) return true;
+    final String prefix1 = first.getLiteralPrefix();
+    final String prefix2 = second.getLiteralPrefix();
+    if (!prefix1.regionMatches(0, prefix2, 0, Math.min(prefix1.length(), prefix2.length()))) return true;
+    final String suffix1 = first.getLiteralSuffix();
+    final String suffix2 = second.getLiteralSuffix();
+    final int length = Math.min(suffix1.length(), suffix2.length());
+    return !suffix1.regionMatches(suffix1.length() - length, suffix2, suffix2.length() - length, length);
+  }
+}
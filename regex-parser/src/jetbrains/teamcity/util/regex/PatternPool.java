@@ -0,0 +1,169 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled forms of patterns shared by all {@link RegexParser}s, so the same regex copied into many parser configurations
+ * is compiled and analyzed once.
+ * <br/>
+ * Entries are keyed by regex source and flags and hold the {@link Pattern}, its {@link PatternAnalysis} and a {@link CompiledPattern}
+ * per {@code output-expr}. Patterns and compiled forms are held weakly: they are kept alive by the {@link RegexPattern}s using them,
+ * so an entry is dropped once the garbage collector reclaims its pattern, i.e. once no parser uses it anymore.
+ * <br/>
+ * {@link RegexPattern} subclasses are not pooled: they could access groups directly, so their compiled forms differ.
+ */
+final class PatternPool {
+  private static final Map<Key, Entry> ourEntries = new HashMap<Key, Entry>();
+  /**
+   * Receives references to reclaimed patterns, their entries are removed on the next pool access.
+   */
+  private static final ReferenceQueue<Pattern> ourReclaimed = new ReferenceQueue<Pattern>();
+
+  private PatternPool() {
+  }
+
+  /**
+   * Same as {@link Pattern#compile(String, int)}, but returns the pooled pattern if there is one, so loaded parsers share it.
+   */
+  @NotNull
+  static Pattern compile(@NotNull final String regex, final int flags) {
+    synchronized (ourEntries) {
+      removeReclaimed();
+      final Entry entry = ourEntries.get(new Key(regex, flags));
+      final Pattern pattern = entry == null ? null : entry.pattern.get();
+      if (pattern != null) return pattern;
+    }
+    return Pattern.compile(regex, flags);
+  }
+
+  /**
+   * @return compiled form of the pattern, shared with equal patterns while any of them holds it
+   */
+  @NotNull
+  static CompiledPattern acquire(@NotNull final RegexPattern pattern) {
+    if (pattern.getClass() != RegexPattern.class) {
+      return CompiledPattern.compile(pattern, PatternAnalysis.analyze(pattern.getPattern()));
+    }
+    final Pattern regex = pattern.getPattern();
+    final Key key = new Key(regex.pattern(), regex.flags());
+    final String expression = pattern.getDescriptionExpression();
+    synchronized (ourEntries) {
+      removeReclaimed();
+      Entry entry = ourEntries.get(key);
+      if (entry == null || entry.pattern.get() == null) {
+        entry = new Entry(key, regex, PatternAnalysis.analyze(regex));
+        ourEntries.put(key, entry);
+      }
+      final WeakReference<CompiledPattern> reference = entry.compiled.get(expression);
+      CompiledPattern compiled = reference == null ? null : reference.get();
+      if (compiled == null) {
+        // Analysis depends on the regex only, so it is shared by all expressions
+        compiled = CompiledPattern.compile(pattern, entry.analysis);
+        entry.removeReclaimed();
+        entry.compiled.put(expression, new WeakReference<CompiledPattern>(compiled));
+      }
+      return compiled;
+    }
+  }
+
+  /**
+   * @return number of pooled regexes whose patterns are not reclaimed yet
+   */
+  static int size() {
+    synchronized (ourEntries) {
+      removeReclaimed();
+      return ourEntries.size();
+    }
+  }
+
+  /**
+   * @return whether the regex is pooled
+   */
+  static boolean contains(@NotNull final String regex, final int flags) {
+    synchronized (ourEntries) {
+      removeReclaimed();
+      return ourEntries.containsKey(new Key(regex, flags));
+    }
+  }
+
+  /**
+   * Removes entries of reclaimed patterns, the caller should hold the pool lock.
+   */
+  private static void removeReclaimed() {
+    Reference<? extends Pattern> reference;
+    while ((reference = ourReclaimed.poll()) != null) {
+      final Key key = ((PatternReference) reference).key;
+      final Entry entry = ourEntries.get(key);
+      // The regex could be pooled again since then
+      if (entry != null && entry.pattern == reference) {
+        ourEntries.remove(key);
+      }
+    }
+  }
+
+  private static final class PatternReference extends WeakReference<Pattern> {
+    @NotNull
+    final Key key;
+
+    PatternReference(@NotNull final Key key, @NotNull final Pattern pattern) {
+      super(pattern, ourReclaimed);
+      this.key = key;
+    }
+  }
+
+  private static final class Entry {
+    @NotNull
+    final PatternReference pattern;
+    @NotNull
+    final PatternAnalysis analysis;
+    /**
+     * Compiled forms by {@code output-expr}, {@code null} key stands for no expression.
+     */
+    @NotNull
+    final Map<String, WeakReference<CompiledPattern>> compiled = new HashMap<String, WeakReference<CompiledPattern>>(2);
+
+    Entry(@NotNull final Key key, @NotNull final Pattern pattern, @NotNull final PatternAnalysis analysis) {
+      this.pattern = new PatternReference(key, pattern);
+      this.analysis = analysis;
+    }
+
+    void removeReclaimed() {
+      final Iterator<WeakReference<CompiledPattern>> it = compiled.values().iterator();
+      while (it.hasNext()) {
+        if (it.next().get() == null) it.remove();
+      }
+    }
+  }
+
+  private static final class Key {
+    @NotNull
+    private final String myRegex;
+    private final int myFlags;
+
+    Key(@NotNull final String regex, final int flags) {
+      myRegex = regex;
+      myFlags = flags;
+    }
+
+    @Override
+    public boolean equals(@Nullable final Object o) {
+      if (!(o instanceof Key)) return false;
+      final Key key = (Key) o;
+      return myFlags == key.myFlags && myRegex.equals(key.myRegex);
+    }
+
+    @Override
+    public int hashCode() {
+      return myRegex.hashCode() * 31 + myFlags;
+    }
+  }
+}
@@ -0,0 +1,509 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Linear time matcher of a {@link RegexTree}, the {@link RegexEngine#AUTOMATON} engine.
+ * <br/>
+ * The tree is compiled into a Thompson NFA, which is simulated over the line with all its threads alive at once (Pike VM),
+ * so a line is matched in time proportional to its length times the program size whatever the regex is.
+ * Threads are kept in the order the backtracking {@link Matcher} would try them in, and a thread reaching the match drops threads
+ * of lower priority, so the simulation finds the end of exactly the match {@link Matcher#lookingAt()} finds, only without groups.
+ * <br/>
+ * Char classes and case insensitive literals are tested by {@link Pattern} itself: results for ASCII chars are computed once,
+ * other code points are matched by a single code point matcher. Constructs the simulation could not reproduce exactly make
+ * {@link #compile(RegexTree)} return {@code null}: back references, lookaround, atomic groups, possessive quantifiers,
+ * word boundaries, {@code \G}, multi-line {@code ^}, {@code \R}, {@code \X} and loops over bodies which may match an empty text,
+ * which the {@link Matcher} leaves after an empty iteration.
+ * <br/>
+ * The automaton is immutable and shared, matching state lives in a {@link Simulation}.
+ */
+final class RegexAutomaton {
+  /**
+   * Limit of the program size, counted repetitions are expanded, so {@code (a|b){1000}} takes thousands of instructions.
+   */
+  static final int MAX_INSTRUCTIONS = 10000;
+
+  /**
+   * Consumes code point equal to the argument.
+   */
+  private static final byte CHAR = 0;
+  /**
+   * Consumes code point accepted by the char test with argument index.
+   */
+  private static final byte TEST = 1;
+  /**
+   * Continues with the next instruction, then with the argument one.
+   */
+  private static final byte SPLIT = 2;
+  private static final byte JUMP = 3;
+  /**
+   * Continues with the next instruction if the assertion with argument kind holds.
+   */
+  private static final byte ASSERT = 4;
+  private static final byte MATCH = 5;
+
+  private static final int INPUT_BEGIN = 0;
+  private static final int INPUT_END = 1;
+  private static final int DOLLAR = 2;
+  private static final int MULTILINE_DOLLAR = 3;
+  private static final int UNIX_DOLLAR = 4;
+  private static final int MULTILINE_UNIX_DOLLAR = 5;
+
+  @NotNull
+  private final byte[] myOps;
+  @NotNull
+  private final int[] myArgs;
+  @NotNull
+  private final int[] myNext;
+  @NotNull
+  private final CharTest[] myTests;
+
+  private RegexAutomaton(@NotNull final Builder builder) {
+    final int size = builder.mySize;
+    myOps = new byte[size];
+    myArgs = new int[size];
+    myNext = new int[size];
+    System.arraycopy(builder.myOps, 0, myOps, 0, size);
+    System.arraycopy(builder.myArgs, 0, myArgs, 0, size);
+    System.arraycopy(builder.myNext, 0, myNext, 0, size);
+    myTests = builder.myTests.toArray(new CharTest[builder.myTests.size()]);
+  }
+
+  /**
+   * @return automaton matching exactly what the tree pattern matches, {@code null} if the tree uses unsupported constructs
+   */
+  @Nullable
+  static RegexAutomaton compile(@NotNull final RegexTree tree) {
+    final RegexTree.Node root = tree.getRoot();
+    if (root == null || tree.hasBackReferences()) return null;
+    final Builder builder = new Builder();
+    try {
+      final int match = builder.emit(MATCH, 0, -1);
+      final int start = builder.compile(root, match);
+      // The simulation starts from the first instruction
+      builder.emit(JUMP, 0, start);
+      builder.reverse();
+    } catch (UnsupportedException e) {
+      return null;
+    }
+    return new RegexAutomaton(builder);
+  }
+
+  int getSize() {
+    return myOps.length;
+  }
+
+  @NotNull
+  Simulation createSimulation() {
+    return new Simulation();
+  }
+
+  /**
+   * Whether a node may match an empty text.
+   */
+  private static boolean isNullable(@NotNull final RegexTree.Node node) {
+    if (node instanceof RegexTree.Literal || node instanceof RegexTree.CharClass) return false;
+    if (node instanceof RegexTree.Group) return isNullable(((RegexTree.Group) node).body);
+    if (node instanceof RegexTree.Repeat) {
+      final RegexTree.Repeat repeat = (RegexTree.Repeat) node;
+      return repeat.min == 0 || isNullable(repeat.body);
+    }
+    if (node instanceof RegexTree.Sequence) {
+      for (RegexTree.Node item : ((RegexTree.Sequence) node).items) {
+        if (!isNullable(item)) return false;
+      }
+      return true;
+    }
+    if (node instanceof RegexTree.Alternation) {
+      for (RegexTree.Node branch : ((RegexTree.Alternation) node).branches) {
+        if (isNullable(branch)) return true;
+      }
+      return false;
+    }
+    // Assertions, back references and opaque constructs
+    return true;
+  }
+
+  private static class UnsupportedException extends Exception {
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Compiles nodes backwards: a node is compiled knowing the instruction to continue with,
+   * so loops and alternatives need no patching. Instructions are reversed once the program is complete.
+   */
+  private static final class Builder {
+    private byte[] myOps = new byte[64];
+    private int[] myArgs = new int[64];
+    private int[] myNext = new int[64];
+    private int mySize;
+    @NotNull
+    private final List<CharTest> myTests = new ArrayList<CharTest>();
+    @NotNull
+    private final Map<String, Integer> myTestIndices = new HashMap<String, Integer>();
+
+    int emit(final byte op, final int arg, final int next) throws UnsupportedException {
+      if (mySize == MAX_INSTRUCTIONS) throw new UnsupportedException();
+      if (mySize == myOps.length) {
+        final int capacity = Math.min(2 * mySize, MAX_INSTRUCTIONS);
+        final byte[] ops = new byte[capacity];
+        final int[] args = new int[capacity];
+        final int[] nexts = new int[capacity];
+        System.arraycopy(myOps, 0, ops, 0, mySize);
+        System.arraycopy(myArgs, 0, args, 0, mySize);
+        System.arraycopy(myNext, 0, nexts, 0, mySize);
+        myOps = ops;
+        myArgs = args;
+        myNext = nexts;
+      }
+      myOps[mySize] = op;
+      myArgs[mySize] = arg;
+      myNext[mySize] = next;
+      return mySize++;
+    }
+
+    /**
+     * @return the first instruction of the node
+     */
+    int compile(@NotNull final RegexTree.Node node, final int next) throws UnsupportedException {
+      if (node instanceof RegexTree.Literal) {
+        final RegexTree.Literal literal = (RegexTree.Literal) node;
+        final int cp = literal.codePoint;
+        // Lone surrogates are compared as chars by the matcher, not as code points
+        if (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE) throw new UnsupportedException();
+        if (!literal.isCaseInsensitive()) return emit(CHAR, cp, next);
+        return emit(TEST, getTest(Pattern.quote(new String(Character.toChars(cp))), literal.flags), next);
+      }
+      if (node instanceof RegexTree.CharClass) {
+        final RegexTree.CharClass charClass = (RegexTree.CharClass) node;
+        return emit(TEST, getTest(charClass.text, charClass.flags), next);
+      }
+      if (node instanceof RegexTree.Group) {
+        final RegexTree.Group group = (RegexTree.Group) node;
+        if (group.kind != RegexTree.GroupKind.CAPTURING && group.kind != RegexTree.GroupKind.NON_CAPTURING) {
+          throw new UnsupportedException();
+        }
+        return compile(group.body, next);
+      }
+      if (node instanceof RegexTree.Repeat) {
+        return compileRepeat((RegexTree.Repeat) node, next);
+      }
+      if (node instanceof RegexTree.Sequence) {
+        final List<RegexTree.Node> items = ((RegexTree.Sequence) node).items;
+        int start = next;
+        for (int i = items.size() - 1; i >= 0; i--) {
+          start = compile(items.get(i), start);
+        }
+        return start;
+      }
+      if (node instanceof RegexTree.Alternation) {
+        final List<RegexTree.Node> branches = ((RegexTree.Alternation) node).branches;
+        int start = compile(branches.get(branches.size() - 1), next);
+        for (int i = branches.size() - 2; i >= 0; i--) {
+          final int branch = compile(branches.get(i), next);
+          start = emit(SPLIT, start, branch);
+        }
+        return start;
+      }
+      if (node instanceof RegexTree.Assertion) {
+        return emit(ASSERT, getAssertion((RegexTree.Assertion) node), next);
+      }
+      // Back references and opaque constructs
+      throw new UnsupportedException();
+    }
+
+    private int compileRepeat(@NotNull final RegexTree.Repeat repeat, final int next) throws UnsupportedException {
+      if (repeat.quantifier == RegexTree.Quantifier.POSSESSIVE) throw new UnsupportedException();
+      if ((repeat.max == RegexTree.UNBOUNDED || repeat.max > 1) && isNullable(repeat.body)) throw new UnsupportedException();
+      final boolean greedy = repeat.quantifier == RegexTree.Quantifier.GREEDY;
+      int start;
+      if (repeat.max == RegexTree.UNBOUNDED) {
+        final int loop = emit(SPLIT, 0, 0);
+        final int body = compile(repeat.body, loop);
+        myNext[loop] = greedy ? body : next;
+        myArgs[loop] = greedy ? next : body;
+        start = loop;
+      } else {
+        // x{2,4} is xx(?:x(?:x)?)?
+        start = next;
+        for (int i = repeat.min; i < repeat.max; i++) {
+          final int body = compile(repeat.body, start);
+          start = greedy ? emit(SPLIT, next, body) : emit(SPLIT, body, next);
+        }
+      }
+      for (int i = 0; i < repeat.min; i++) {
+        start = compile(repeat.body, start);
+      }
+      return start;
+    }
+
+    private static int getAssertion(@NotNull final RegexTree.Assertion assertion) throws UnsupportedException {
+      final boolean multiline = (assertion.flags & Pattern.MULTILINE) != 0;
+      final boolean unixLines = (assertion.flags & Pattern.UNIX_LINES) != 0;
+      switch (assertion.kind) {
+        case LINE_BEGIN:
+          if (multiline) throw new UnsupportedException();
+          return INPUT_BEGIN;
+        case INPUT_BEGIN:
+          return INPUT_BEGIN;
+        case INPUT_END:
+          return INPUT_END;
+        case LINE_END:
+          if (multiline) return unixLines ? MULTILINE_UNIX_DOLLAR : MULTILINE_DOLLAR;
+          return unixLines ? UNIX_DOLLAR : DOLLAR;
+        case INPUT_END_OR_TERMINATOR:
+          return unixLines ? UNIX_DOLLAR : DOLLAR;
+        default:
+          throw new UnsupportedException();
+      }
+    }
+
+    private int getTest(@NotNull final String regex, final int flags) throws UnsupportedException {
+      final String key = flags + ":" + regex;
+      final Integer index = myTestIndices.get(key);
+      if (index != null) return index;
+      final Pattern pattern;
+      try {
+        pattern = Pattern.compile(regex, flags);
+      } catch (PatternSyntaxException e) {
+        throw new UnsupportedException();
+      }
+      myTests.add(new CharTest(pattern));
+      myTestIndices.put(key, myTests.size() - 1);
+      return myTests.size() - 1;
+    }
+
+    /**
+     * Reverses the program, so it starts from the first instruction and the instruction next to a split is usually the following one.
+     */
+    void reverse() {
+      final int last = mySize - 1;
+      for (int i = 0; i < mySize / 2; i++) {
+        final byte op = myOps[i];
+        myOps[i] = myOps[last - i];
+        myOps[last - i] = op;
+        final int arg = myArgs[i];
+        myArgs[i] = myArgs[last - i];
+        myArgs[last - i] = arg;
+        final int next = myNext[i];
+        myNext[i] = myNext[last - i];
+        myNext[last - i] = next;
+      }
+      for (int i = 0; i < mySize; i++) {
+        if (myNext[i] >= 0) myNext[i] = last - myNext[i];
+        if (myOps[i] == SPLIT) myArgs[i] = last - myArgs[i];
+      }
+    }
+  }
+
+  /**
+   * Test of a single code point against a char class pattern.
+   */
+  private static final class CharTest {
+    @NotNull
+    final Pattern pattern;
+    @NotNull
+    final boolean[] ascii = new boolean[128];
+
+    CharTest(@NotNull final Pattern pattern) {
+      this.pattern = pattern;
+      final CodePoint input = new CodePoint();
+      final Matcher matcher = pattern.matcher(input);
+      for (int c = 0; c < ascii.length; c++) {
+        input.set(c);
+        ascii[c] = matcher.reset(input).matches();
+      }
+    }
+  }
+
+  /**
+   * Reusable single code point text.
+   */
+  private static final class CodePoint implements CharSequence {
+    @NotNull
+    private final char[] myChars = new char[2];
+    private int myLength;
+
+    void set(final int codePoint) {
+      myLength = Character.toChars(codePoint, myChars, 0);
+    }
+
+    public int length() {
+      return myLength;
+    }
+
+    public char charAt(final int index) {
+      return myChars[index];
+    }
+
+    @NotNull
+    public CharSequence subSequence(final int start, final int end) {
+      return new String(myChars, start, end - start);
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+      return new String(myChars, 0, myLength);
+    }
+  }
+
+  /**
+   * Matching state of the automaton: thread lists reused for every line, so matching allocates nothing. Not thread safe.
+   */
+  final class Simulation {
+    @NotNull
+    private int[] myCurrent = new int[myOps.length];
+    @NotNull
+    private int[] myFollowing = new int[myOps.length];
+    private int myCurrentSize;
+    private int myFollowingSize;
+    /**
+     * Generation an instruction was last added to a thread list in, so each is added once per position.
+     */
+    @NotNull
+    private final int[] myAdded = new int[myOps.length];
+    private int myGeneration;
+    @NotNull
+    private final int[] myStack = new int[myOps.length];
+    @NotNull
+    private final Matcher[] myTestMatchers = new Matcher[myTests.length];
+    @NotNull
+    private final CodePoint myCodePoint = new CodePoint();
+
+    /**
+     * @return whether the match {@link Matcher#lookingAt()} finds in the line covers the whole line
+     */
+    boolean matchesWhole(@NotNull final CharSequence line) {
+      final int length = line.length();
+      int matchEnd = -1;
+      int position = 0;
+      myFollowingSize = 0;
+      nextGeneration();
+      addThread(0, 0, line);
+      swap();
+      while (myCurrentSize > 0) {
+        final int cp = position < length ? Character.codePointAt(line, position) : -1;
+        final int next = cp < 0 ? position : position + Character.charCount(cp);
+        nextGeneration();
+        for (int i = 0; i < myCurrentSize; i++) {
+          final int pc = myCurrent[i];
+          final byte op = myOps[pc];
+          if (op == MATCH) {
+            matchEnd = position;
+            // Threads of lower priority would not be tried by the backtracking matcher
+            break;
+          }
+          if (cp >= 0 && (op == CHAR ? myArgs[pc] == cp : test(myArgs[pc], cp))) {
+            addThread(myNext[pc], next, line);
+          }
+        }
+        if (cp < 0) break;
+        swap();
+        position = next;
+      }
+      return matchEnd == length;
+    }
+
+    private void nextGeneration() {
+      if (++myGeneration == Integer.MAX_VALUE) {
+        for (int i = 0; i < myAdded.length; i++) {
+          myAdded[i] = 0;
+        }
+        myGeneration = 1;
+      }
+    }
+
+    private void swap() {
+      final int[] list = myCurrent;
+      myCurrent = myFollowing;
+      myCurrentSize = myFollowingSize;
+      myFollowing = list;
+      myFollowingSize = 0;
+    }
+
+    /**
+     * Adds threads of instructions consuming chars or matching reachable from the instruction to the following list,
+     * in the order the backtracking matcher would reach them.
+     */
+    private void addThread(final int start, final int position, @NotNull final CharSequence line) {
+      int top = 0;
+      myStack[top++] = start;
+      while (top > 0) {
+        final int pc = myStack[--top];
+        if (myAdded[pc] == myGeneration) continue;
+        myAdded[pc] = myGeneration;
+        switch (myOps[pc]) {
+          case JUMP:
+            myStack[top++] = myNext[pc];
+            break;
+          case SPLIT:
+            myStack[top++] = myArgs[pc];
+            myStack[top++] = myNext[pc];
+            break;
+          case ASSERT:
+            if (holds(myArgs[pc], position, line)) {
+              myStack[top++] = myNext[pc];
+            }
+            break;
+          default:
+            myFollowing[myFollowingSize++] = pc;
+        }
+      }
+    }
+
+    private boolean test(final int index, final int cp) {
+      final CharTest test = myTests[index];
+      if (cp < test.ascii.length) return test.ascii[cp];
+      Matcher matcher = myTestMatchers[index];
+      if (matcher == null) {
+        matcher = test.pattern.matcher(myCodePoint);
+        myTestMatchers[index] = matcher;
+      }
+      myCodePoint.set(cp);
+      return matcher.reset(myCodePoint).matches();
+    }
+  }
+
+  /**
+   * Same as {@code \A}, {@code \z}, {@code $} and {@code \Z} nodes of {@link Pattern} do.
+   */
+  private static boolean holds(final int assertion, final int position, @NotNull final CharSequence line) {
+    final int length = line.length();
+    switch (assertion) {
+      case INPUT_BEGIN:
+        return position == 0;
+      case INPUT_END:
+        return position == length;
+      case DOLLAR:
+      case MULTILINE_DOLLAR: {
+        final boolean multiline = assertion == MULTILINE_DOLLAR;
+        if (position == length) return true;
+        if (!multiline) {
+          if (position < length - 2) return false;
+          if (position == length - 2) return line.charAt(position) == '\r' && line.charAt(position + 1) == '\n';
+        }
+        final char c = line.charAt(position);
+        // No match between \r and \n
+        if (c == '\n') return position == 0 || line.charAt(position - 1) != '\r';
+        return c == '\r' || c == '\u0085' || (c | 1) == '\u2029';
+      }
+      case UNIX_DOLLAR:
+      case MULTILINE_UNIX_DOLLAR:
+        if (position == length) return true;
+        return line.charAt(position) == '\n' && (assertion == MULTILINE_UNIX_DOLLAR || position == length - 1);
+      default:
+        return false;
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package jetbrains.teamcity.util.regex;
+
+/**
+ * Engine matching lines against {@link RegexPattern} regexes, chosen per pattern or per parser by the {@code engine} attribute,
+ * a pattern without one uses the engine of its parser, {@link #JDK} by default.
+ * <br/>
+ * Engines match exactly the same lines, so switching an engine changes only the time matching takes.
+ * {@link MultilinePattern}s are always matched by {@link #JDK}.
+ */
+public enum RegexEngine {
+  /**
+   * {@link java.util.regex.Pattern} itself. Supports everything, but backtracks, so some regexes take time exponential
+   * in the line length on lines they do not match, e.g. {@code (a+)+b} on a long line of {@code a}s.
+   */
+  JDK,
+  /**
+   * Linear time automaton, see {@link RegexAutomaton}. Lines it rejects are not matched by the JDK at all,
+   * the JDK matches only lines the automaton accepted, to extract groups for {@code output-expr}.
+   * Regexes using constructs the automaton lacks, like back references or lookaround, fall back to {@link #JDK}.
+   */
+  AUTOMATON
+}
@@ -13,11 +13,11 @@ import jetbrains.buildServer.messages.XStreamHolder;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.xstream.XStreamWrapper;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.*;
+import java.util.*;
+import java.util.regex.Matcher;
 
 /**
  * {@code RegexParser} is an parser designed to use regular expressions in order
@@ -27,6 +27,22 @@ import java.util.List;
  */
 @XStreamAlias("parser")
 public class RegexParser {
+  /**
+   * Default limit of line chars reads a pattern may do while matching a single line, see {@link #setMatchingBudget(int)}.
+   * Enough for any sane pattern on megabytes long lines while still interrupting runaway backtracking in a fraction of second.
+   */
+  public static final int DEFAULT_MATCHING_BUDGET = 10000000;
+  public static final int UNLIMITED_MATCHING_BUDGET = Integer.MAX_VALUE;
+  /**
+   * Number of lines between checks whether patterns should be reordered according to their hit counts.
+   */
+  static final int ORDER_UPDATE_INTERVAL = 8192;
+
+  /**
+   * Budgets of lines processed without a session, a budget is not bound to a parser, so threads share one among all parsers.
+   */
+  private static final ThreadLocal<MatchingBudget> ourThreadBudgets = new ThreadLocal<MatchingBudget>();
+
   @XStreamAlias("id")
   @XStreamAsAttribute
   private final String myId;
@@ -35,10 +51,34 @@ public class RegexParser {
   @XStreamAsAttribute
   private final String myName;
 
+  /**
+   * {@code null} stands for {@link RegexEngine#JDK}.
+   */
+  @Nullable
+  @XStreamAlias("engine")
+  @XStreamAsAttribute
+  private RegexEngine myEngine;
+
   @NotNull
   @XStreamImplicit(itemFieldName = "pattern")
   private final List<RegexPattern> myPatterns = new ArrayList<RegexPattern>();
 
+  /**
+   * XStream leaves it {@code null} when there are no such patterns.
+   */
+  @Nullable
+  @XStreamImplicit(itemFieldName = "multiline-pattern")
+  private List<MultilinePattern> myMultilinePatterns;
+
+  private transient volatile CompiledParser myCompiled;
+  private transient boolean myCompiledMatchingDisabled;
+  private transient int myMatchingBudget;
+  private transient int myLinesToOrderUpdate = ORDER_UPDATE_INTERVAL;
+  private transient volatile PatternOrdering myOrdering;
+  private transient boolean myAdaptiveOrderingDisabled;
+  private transient volatile PatternMetrics myMetrics;
+  private transient volatile ParserCostReport myCostReport;
+
   /**
    * Constructor to initialize ID and name of the error parser.
    *
@@ -64,6 +104,23 @@ public class RegexParser {
     return myName;
   }
 
+  /**
+   * @return engine of patterns without one of their own, {@code null} for {@link RegexEngine#JDK}
+   */
+  @Nullable
+  public RegexEngine getEngine() {
+    return myEngine;
+  }
+
+  /**
+   * @param engine - engine to match lines of patterns without one of their own with, {@code null} for {@link RegexEngine#JDK}
+   */
+  public void setEngine(@Nullable final RegexEngine engine) {
+    myEngine = engine;
+    myCompiled = null;
+    myCostReport = null;
+  }
+
   /**
    * @return list of patterns of this parser.
    */
@@ -74,32 +131,427 @@ public class RegexParser {
 
   public void addPattern(@NotNull final RegexPattern pattern) {
     myPatterns.add(pattern);
+    myCompiled = null;
+  }
+
+  /**
+   * @return patterns of diagnostics spanning several lines, see {@link MultilinePattern}
+   */
+  @NotNull
+  public List<MultilinePattern> getMultilinePatterns() {
+    final List<MultilinePattern> patterns = myMultilinePatterns;
+    return patterns == null ? Collections.<MultilinePattern>emptyList() : patterns;
+  }
+
+  public void addMultilinePattern(@NotNull final MultilinePattern pattern) {
+    if (myMultilinePatterns == null) {
+      myMultilinePatterns = new ArrayList<MultilinePattern>();
+    }
+    myMultilinePatterns.add(pattern);
+  }
+
+  /**
+   * Drops compiled forms of the patterns shared with other parsers, e.g. while the parser is kept but is not used.
+   * Calling it is optional: forms are dropped from the pool once no parser using them is reachable.
+   * The parser stays usable: patterns are compiled again on the next use.
+   */
+  public void release() {
+    for (RegexPattern pattern : myPatterns) {
+      pattern.releaseCompiled();
+    }
+    for (MultilinePattern pattern : getMultilinePatterns()) {
+      pattern.getStartPattern().releaseCompiled();
+      pattern.getContinuationPattern().releaseCompiled();
+    }
+  }
+
+  /**
+   * @return whether patterns are matched using compiled plan (default) or one by one.
+   */
+  public boolean isCompiledMatching() {
+    return !myCompiledMatchingDisabled;
+  }
+
+  /**
+   * Compiled matching merges consecutive patterns into a single automaton. It selects exactly the same patterns
+   * as matching one by one does, so disabling it is useful only for troubleshooting.
+   *
+   * @param enabled - whether to use compiled matching plan.
+   */
+  public void setCompiledMatching(final boolean enabled) {
+    myCompiledMatchingDisabled = !enabled;
+  }
+
+  /**
+   * @return whether patterns are evaluated in order adapted to their hit counts (default) or in the declared order.
+   */
+  public boolean isAdaptiveOrdering() {
+    return !myAdaptiveOrderingDisabled;
+  }
+
+  /**
+   * Adaptive ordering evaluates frequently matching patterns earlier, but moves a pattern only before patterns
+   * which provably cannot match the same lines, so every line is processed with the same result as in the declared order.
+   *
+   * @param enabled - whether to adapt patterns evaluation order to their hit counts.
+   * @see #getPatternHitCounts()
+   */
+  public void setAdaptiveOrdering(final boolean enabled) {
+    myAdaptiveOrderingDisabled = !enabled;
+    myCompiled = null;
+  }
+
+  /**
+   * @return number of lines accepted by each of the patterns, by pattern regex
+   */
+  @NotNull
+  public Map<String, Long> getPatternHitCounts() {
+    final Map<String, Long> result = new LinkedHashMap<String, Long>();
+    for (RegexPattern pattern : myPatterns) {
+      final String regex = pattern.getPattern().pattern();
+      final Long hits = result.get(regex);
+      result.put(regex, (hits == null ? 0 : hits) + pattern.getHits());
+    }
+    return result;
+  }
+
+  /**
+   * Adds hit counts, e.g. collected by a previous build, so patterns are ordered well from the very first line.
+   *
+   * @param hits - number of lines accepted by patterns, by pattern regex, see {@link #getPatternHitCounts()}
+   */
+  public void addPatternHitCounts(@NotNull final Map<String, Long> hits) {
+    final Set<String> seen = new HashSet<String>();
+    for (RegexPattern pattern : myPatterns) {
+      final String regex = pattern.getPattern().pattern();
+      final Long count = hits.get(regex);
+      if (count != null && count > 0 && seen.add(regex)) {
+        pattern.addHits(count);
+      }
+    }
+    myCompiled = null;
+  }
+
+  /**
+   * @return metrics collector if metrics are enabled, {@code null} otherwise
+   */
+  @Nullable
+  public PatternMetrics getMetrics() {
+    return myMetrics;
+  }
+
+  /**
+   * Starts collecting per pattern metrics, see {@link PatternMetrics}.
+   * <br/>
+   * Combined automaton cannot tell which pattern the time is spent in, so patterns are matched one by one
+   * while metrics are enabled. Without metrics there is no overhead at all.
+   *
+   * @return metrics collector, the existing one if metrics are already enabled
+   */
+  @NotNull
+  public synchronized PatternMetrics enableMetrics() {
+    PatternMetrics metrics = myMetrics;
+    if (metrics == null) {
+      metrics = new PatternMetrics(this);
+      myMetrics = metrics;
+    }
+    return metrics;
+  }
+
+  public synchronized void disableMetrics() {
+    myMetrics = null;
+  }
+
+  /**
+   * @return static analysis of the patterns, see {@link ParserCostReport}, computed on the first call
+   */
+  @NotNull
+  public ParserCostReport getCostReport() {
+    ParserCostReport report = myCostReport;
+    // Patterns lists are exposed, so check they were not modified directly
+    if (report == null || report.getPatterns().size() != myPatterns.size() + 2 * getMultilinePatterns().size()) {
+      report = ParserCostReport.analyze(this);
+      myCostReport = report;
+    }
+    return report;
+  }
+
+  /**
+   * Applies the policy to patterns whose {@link PatternCost} is at least the threshold, call it before the parser is used.
+   * {@link CostPolicy#SAFE_ENGINE} replaces such patterns by equal ones with {@link RegexEngine#AUTOMATON}, if the automaton
+   * supports them. {@link MultilinePattern}s are always matched by the JDK, so they could only be rejected.
+   *
+   * @return report of the patterns the parser has after the policy is applied
+   * @throws ParserLoadingException if the policy is {@link CostPolicy#REJECT} and some pattern reaches the threshold
+   */
+  @NotNull
+  public ParserCostReport applyCostPolicy(@NotNull final CostPolicy policy, @NotNull final PatternCost threshold) throws ParserLoadingException {
+    final ParserCostReport report = getCostReport();
+    final List<ParserCostReport.PatternReport> costly = report.getPatterns(threshold);
+    if (costly.isEmpty() || policy == CostPolicy.WARN) return report;
+    if (policy == CostPolicy.REJECT) {
+      final StringBuilder sb = new StringBuilder("Parser '" + myName + "' is rejected, its patterns may take too long to match:");
+      for (ParserCostReport.PatternReport pattern : costly) {
+        sb.append("\n  ").append(pattern);
+      }
+      throw new ParserLoadingException(sb.toString());
+    }
+    final Set<RegexPattern> replaced = Collections.newSetFromMap(new IdentityHashMap<RegexPattern, Boolean>());
+    for (ParserCostReport.PatternReport pattern : costly) {
+      replaced.add(pattern.getPattern());
+    }
+    boolean changed = false;
+    for (int i = 0; i < myPatterns.size(); i++) {
+      final RegexPattern pattern = myPatterns.get(i);
+      if (!replaced.contains(pattern) || pattern.getClass() != RegexPattern.class || pattern.getAutomaton(myEngine) != null
+          || pattern.getAnalysis().getAutomaton() == null) continue;
+      final RegexPattern safe = new RegexPattern(pattern.getPattern(), pattern.getDescriptionExpression(), pattern.getSeverity(),
+                                                 pattern.getEatLine(), RegexEngine.AUTOMATON);
+      safe.addHits(pattern.getHits());
+      pattern.releaseCompiled();
+      myPatterns.set(i, safe);
+      changed = true;
+    }
+    if (!changed) return report;
+    myCompiled = null;
+    myOrdering = null;
+    myCostReport = null;
+    return getCostReport();
+  }
+
+  /**
+   * @return maximal number of line chars a pattern may read while matching a single line.
+   */
+  public int getMatchingBudget() {
+    return myMatchingBudget > 0 ? myMatchingBudget : DEFAULT_MATCHING_BUDGET;
+  }
+
+  /**
+   * Limits time a pattern may spend on a single line, e.g. because of catastrophic backtracking.
+   * Pattern exceeding the budget is reported via {@link ParserManager#parsingError(String)} and treated as not matched the line.
+   *
+   * @param budget - maximal number of line chars a pattern may read while matching a single line,
+   *               {@link #UNLIMITED_MATCHING_BUDGET} to disable the limit.
+   */
+  public void setMatchingBudget(final int budget) {
+    if (budget <= 0) throw new IllegalArgumentException("Matching budget should be positive: " + budget);
+    myMatchingBudget = budget;
   }
 
 
   /**
    * Parse a line of build output.
+   * <br/>
+   * Every call is independent and keeps no matching state: a record of {@link MultilinePattern} started by the line
+   * is logged right away.
+   * Use a {@link #createSession() session} to process a stream of lines, it also reuses matchers between lines.
    *
    * @param line          - line of the input
    * @param parserManager - parsing manager
    * @return true if parser recognized and accepted line, false otherwise
    */
   public boolean processLine(@NotNull final String line, @NotNull final ParserManager parserManager) {
-    for (final RegexPattern pattern : myPatterns) {
-      try {
-        if (pattern.processLine(line, parserManager)) {
-          return true;
-        }
-      } catch (Exception e) {
-        parserManager.parsingError("Error parsing line [" + line + "]" + StringUtil.stackTrace(e));  // TODO: using 'debug' param
-      }
+    return processLine((CharSequence)line, parserManager);
+  }
+
+  /**
+   * Parse a line of build output given as a view of some buffer, e.g. of a {@link java.nio.CharBuffer}.
+   * <br/>
+   * The line is read via {@link CharSequence#charAt(int)} and {@link CharSequence#subSequence(int, int)} only,
+   * a {@link String} is created only for output of a matched pattern. The line is not retained after the call,
+   * so the buffer may be reused for the next line.
+   *
+   * @param line          - line of the input
+   * @param parserManager - parsing manager
+   * @return true if parser recognized and accepted line, false otherwise
+   * @see #processLine(String, ParserManager)
+   */
+  public boolean processLine(@NotNull final CharSequence line, @NotNull final ParserManager parserManager) {
+    countLines(1);
+    return processLineStateless(line, parserManager);
+  }
+
+  /**
+   * Parse a batch of lines of build output, same as calling {@link #processLine(CharSequence, ParserManager)}
+   * for every line. Use a {@link #createSession() session} if a record of {@link MultilinePattern} may span lines.
+   *
+   * @param lines         - lines of the input
+   * @param parserManager - parsing manager
+   * @return whether parser recognized and accepted each of the lines
+   */
+  @NotNull
+  public boolean[] processLines(@NotNull final List<? extends CharSequence> lines, @NotNull final ParserManager parserManager) {
+    countLines(lines.size());
+    final boolean[] consumed = new boolean[lines.size()];
+    for (int i = 0; i < consumed.length; i++) {
+      consumed[i] = processLineStateless(lines.get(i), parserManager);
+    }
+    return consumed;
+  }
+
+  /**
+   * Matches the line without a {@link ParsingSession}: patterns are applied one by one with matchers created for the line,
+   * no matching state is set up for a single line.
+   */
+  private boolean processLineStateless(@NotNull final CharSequence line, @NotNull final ParserManager parserManager) {
+    final MatchingBudget budget = getThreadBudget();
+    if (budget != null) budget.startLine();
+    final List<MultilinePattern> multiline = getMultilinePatterns();
+    if (!multiline.isEmpty() && MultilineState.processSingleLine(multiline, line, parserManager, budget)) {
+      return true;
+    }
+    return getCompiled().processLineStateless(line, parserManager, budget, getMetrics());
+  }
+
+  /**
+   * @return budget reused by all stateless calls of the thread, {@code null} if matching is not limited
+   */
+  @Nullable
+  private MatchingBudget getThreadBudget() {
+    final int limit = getMatchingBudget();
+    if (limit == UNLIMITED_MATCHING_BUDGET) return null;
+    MatchingBudget budget = ourThreadBudgets.get();
+    if (budget == null || budget.getLimit() != limit) {
+      budget = new MatchingBudget(limit);
+      ourThreadBudgets.set(budget);
+    }
+    return budget;
+  }
+
+  /**
+   * Parse whole build output line by line. Lines are terminated by {@code \n}, {@code \r\n} or {@code \r}.
+   * <br/>
+   * Text is split into lines inside of a single reused buffer, lines are not copied into {@link String}s
+   * unless a pattern matched them.
+   *
+   * @param reader        - build output, is not closed
+   * @param parserManager - parsing manager
+   * @return number of lines processed
+   * @throws IOException if reading fails
+   */
+  public int process(@NotNull final Reader reader, @NotNull final ParserManager parserManager) throws IOException {
+    return createSession().process(reader, parserManager);
+  }
+
+  /**
+   * @return new session to process lines with this parser, see {@link ParsingSession}
+   */
+  @NotNull
+  public ParsingSession createSession() {
+    return new ParsingSession(this);
+  }
+
+  static boolean processLine(@NotNull final RegexPattern pattern,
+                             @NotNull final CharSequence line,
+                             @NotNull final ParserManager parserManager,
+                             @Nullable final MatchingBudget budget,
+                             @Nullable final Matcher matcher,
+                             @Nullable final RegexAutomaton.Simulation automaton,
+                             @Nullable final PatternMetrics metrics) {
+    final int result;
+    if (metrics == null) {
+      result = apply(pattern, line, parserManager, budget, matcher, automaton);
+    } else {
+      final long start = System.nanoTime();
+      result = apply(pattern, line, parserManager, budget, matcher, automaton);
+      metrics.record(pattern, result, System.nanoTime() - start);
+    }
+    if (result == RegexPattern.EATEN) {
+      pattern.addHits(1);
+      return true;
     }
     return false;
   }
 
+  private static int apply(@NotNull final RegexPattern pattern,
+                           @NotNull final CharSequence line,
+                           @NotNull final ParserManager parserManager,
+                           @Nullable final MatchingBudget budget,
+                           @Nullable final Matcher matcher,
+                           @Nullable final RegexAutomaton.Simulation automaton) {
+    try {
+      if (pattern.getClass() != RegexPattern.class) {
+        // Subclasses could override processLine, so they match lines on their own and are not limited
+        return pattern.processLine(line.toString(), parserManager) ? RegexPattern.EATEN : RegexPattern.NOT_MATCHED;
+      }
+      if (budget != null) budget.reset();
+      return pattern.apply(line, parserManager, budget, matcher, automaton);
+    } catch (MatchingBudget.ExceededException e) {
+      if (budget != null && budget.markReported()) {
+        parserManager.parsingError("Pattern [" + pattern.getPattern().pattern() + "] exceeded matching budget on line [" + line + "], line is treated as not matched by the pattern");
+      }
+      return RegexPattern.FAILED;
+    } catch (Exception e) {
+      parserManager.parsingError("Error parsing line [" + line + "]" + StringUtil.stackTrace(e));  // TODO: using 'debug' param
+      return RegexPattern.FAILED;
+    }
+  }
+
+  /**
+   * Counts lines processed without a session, patterns are reordered after every {@link #ORDER_UPDATE_INTERVAL} of them.
+   * Lines counted by racing threads may be lost, that only delays the reordering.
+   */
+  private void countLines(final int count) {
+    final int left = myLinesToOrderUpdate - count;
+    if (left > 0) {
+      myLinesToOrderUpdate = left;
+      return;
+    }
+    myLinesToOrderUpdate = ORDER_UPDATE_INTERVAL;
+    updatePatternOrder();
+  }
+
+  @NotNull
+  CompiledParser getCompiled() {
+    CompiledParser compiled = myCompiled;
+    // Patterns list is exposed via getPatterns(), so check it was not modified directly
+    if (compiled == null || compiled.getPatternsCount() != myPatterns.size()) {
+      compiled = new CompiledParser(myAdaptiveOrderingDisabled ? myPatterns : getOrdering().order(), myEngine);
+      myCompiled = compiled;
+    }
+    return compiled;
+  }
+
+  /**
+   * Recompiles the parser if patterns hit counts changed the best order of patterns evaluation.
+   */
+  void updatePatternOrder() {
+    if (myAdaptiveOrderingDisabled) return;
+    final CompiledParser compiled = getCompiled();
+    final PatternOrdering ordering = getOrdering();
+    if (ordering.isFixed()) return;
+    final List<RegexPattern> order = ordering.order();
+    if (!compiled.hasOrder(order)) {
+      myCompiled = new CompiledParser(order, myEngine);
+    }
+  }
+
+  @NotNull
+  private PatternOrdering getOrdering() {
+    PatternOrdering ordering = myOrdering;
+    if (ordering == null || ordering.getPatternsCount() != myPatterns.size()) {
+      ordering = new PatternOrdering(myPatterns);
+      myOrdering = ordering;
+    }
+    return ordering;
+  }
+
   @NotNull
   public String serialize() {
-    return XStreamWrapper.serializeObject(this, createXStreamHolder());
+    for (RegexPattern pattern : myPatterns) {
+      // Only XStream keeps classes of subclasses
+      if (pattern.getClass() != RegexPattern.class) {
+        return XStreamWrapper.serializeObject(this, ourXStreamHolder.getValue());
+      }
+    }
+    final StringWriter writer = new StringWriter();
+    try {
+      ParserXml.write(this, writer);
+    } catch (IOException e) {
+      // StringWriter never throws
+      throw new IllegalStateException(e);
+    }
+    return writer.toString();
   }
 
   private static final NotNullLazyValue<XStreamHolder> ourXStreamHolder = (new NotNullLazyValue<XStreamHolder>() {
@@ -112,26 +564,86 @@ public class RegexParser {
 
   @NotNull
   public static RegexParser deserialize(@NotNull final InputStream serialized) throws IOException, ParserLoadingException {
-    return deserialize(StreamUtil.readText(serialized, "UTF-8"));
+    // The streaming reader reads the document right from the stream, its bytes are read again only if XStream is needed
+    final InputStream input = serialized.markSupported() ? serialized : new BufferedInputStream(serialized);
+    input.mark(Integer.MAX_VALUE);
+    final RegexParser parser = ParserXml.read(input);
+    if (parser != null) {
+      return parser;
+    }
+    input.reset();
+    return deserializeByXStream(StreamUtil.readText(input, "UTF-8"));
   }
 
-
+  /**
+   * Reads parser configuration, documents in the plain {@code parser-configuration.xsd} form are read by a streaming reader,
+   * anything else is left to XStream.
+   */
   @NotNull
   public static RegexParser deserialize(@NotNull final String xml) throws ParserLoadingException {
+    final RegexParser parser = ParserXml.read(xml);
+    if (parser != null) {
+      return parser;
+    }
+    return deserializeByXStream(xml);
+  }
+
+  @NotNull
+  private static RegexParser deserializeByXStream(@NotNull final String xml) throws ParserLoadingException {
     if (xml.isEmpty()) {
       throw new ParserLoadingException("Parser configuration xml is empty");
     }
     try {
-      RegexParser parser = XStreamWrapper.deserializeObject(RegexParser.class.getClassLoader(), xml, ourXStreamHolder.getValue());
-      if (parser == null) {
+      RegexParser deserialized = XStreamWrapper.deserializeObject(RegexParser.class.getClassLoader(), xml, ourXStreamHolder.getValue());
+      if (deserialized == null) {
         throw new ParserLoadingException("Loaded parser is null");
       }
-      return parser;
+      return deserialized;
     } catch (XStreamException e) {
       throw new ParserLoadingException("Cannot deserialize parser configuration: " + e.getMessage(), e);
     }
   }
 
+  /**
+   * @param validate - whether configuration should be checked against {@code parser-configuration.xsd} first, see {@link #validate(String)}
+   */
+  @NotNull
+  public static RegexParser deserialize(@NotNull final String xml, final boolean validate) throws ParserLoadingException {
+    if (validate && !xml.isEmpty()) {
+      validate(xml);
+    }
+    return deserialize(xml);
+  }
+
+  /**
+   * Checks parser configuration against {@code parser-configuration.xsd}, which is stricter than loading:
+   * e.g. loading ignores unknown attributes and treats any {@code eat-line} value but {@code true} as {@code false}.
+   *
+   * @throws ParserLoadingException describing the first violation
+   */
+  public static void validate(@NotNull final String xml) throws ParserLoadingException {
+    ParserXml.validate(xml);
+  }
+
+  /**
+   * Writes the parser in a compact binary form, which is read much faster than XML configuration, see {@link #deserializeBinary(InputStream)}.
+   *
+   * @throws java.io.NotSerializableException if some of patterns is a {@link RegexPattern} subclass
+   */
+  public void serializeBinary(@NotNull final OutputStream output) throws IOException {
+    ParserBinaryFormat.write(this, output);
+  }
+
+  /**
+   * Reads parser written by {@link #serializeBinary(OutputStream)}, possibly by another version of the plugin.
+   *
+   * @throws ParserLoadingException if data is malformed or written in another format version
+   */
+  @NotNull
+  public static RegexParser deserializeBinary(@NotNull final InputStream serialized) throws IOException, ParserLoadingException {
+    return ParserBinaryFormat.read(serialized);
+  }
+
   @NotNull
   private static XStreamHolder createXStreamHolder() {
     return new XStreamHolder() {
@@ -139,6 +651,7 @@ public class RegexParser {
       protected void configureXStream(@NotNull final XStream xStream) {
         xStream.processAnnotations(RegexParser.class);
         xStream.processAnnotations(RegexPattern.class);
+        xStream.processAnnotations(MultilinePattern.class);
       }
     };
   }
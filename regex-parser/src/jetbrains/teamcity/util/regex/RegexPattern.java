@@ -7,7 +7,9 @@ import com.thoughtworks.xstream.annotations.XStreamAsAttribute;
 import com.thoughtworks.xstream.annotations.XStreamConverter;
 import com.thoughtworks.xstream.converters.basic.AbstractSingleValueConverter;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -17,10 +19,18 @@ import java.util.regex.Pattern;
 @XStreamAlias("pattern")
 public class RegexPattern {
   @NotNull
-  private static final Severity DEFAULT_SEVERITY = Severity.SPECIAL;
+  static final Severity DEFAULT_SEVERITY = Severity.SPECIAL;
   @NotNull
-  private static final String DEFAULT_DESCRIPTION_EXPR = "$0";
-  private static final boolean DEFAULT_EAT_LINE = true;
+  static final String DEFAULT_DESCRIPTION_EXPR = "$0";
+  static final boolean DEFAULT_EAT_LINE = true;
+
+  /**
+   * Outcomes of applying a pattern to a line.
+   */
+  static final int NOT_MATCHED = 0;
+  static final int MATCHED = 1;
+  static final int EATEN = 2;
+  static final int FAILED = 3;
 
   @NotNull
   @XStreamAlias("regex")
@@ -37,6 +47,20 @@ public class RegexPattern {
   @XStreamAlias("eat-line")
   @XStreamAsAttribute
   private Boolean myEatLine;
+  /**
+   * {@code null} to use the engine of the parser.
+   */
+  @Nullable
+  @XStreamAlias("engine")
+  @XStreamAsAttribute
+  private RegexEngine myEngine;
+
+  private transient volatile CompiledPattern myCompiled;
+  /**
+   * Number of lines accepted by the pattern, see {@link RegexParser#getPatternHitCounts()}.
+   */
+  private transient volatile long myHits;
+  private static final AtomicLongFieldUpdater<RegexPattern> ourHitsUpdater = AtomicLongFieldUpdater.newUpdater(RegexPattern.class, "myHits");
 
   public RegexPattern(@NotNull final Pattern pattern, @NotNull final String descriptionExpression, @NotNull final Severity severity, final boolean eatLine) {
     this.myPattern = pattern;
@@ -45,6 +69,18 @@ public class RegexPattern {
     this.myEatLine = eatLine;
   }
 
+  /**
+   * @param engine - engine to match lines with, {@code null} to use the engine of the parser, see {@link RegexParser#setEngine(RegexEngine)}
+   */
+  public RegexPattern(@NotNull final Pattern pattern,
+                      @NotNull final String descriptionExpression,
+                      @NotNull final Severity severity,
+                      final boolean eatLine,
+                      @Nullable final RegexEngine engine) {
+    this(pattern, descriptionExpression, severity, eatLine);
+    this.myEngine = engine;
+  }
+
   @NotNull
   public Pattern getPattern() {
     return myPattern;
@@ -62,6 +98,65 @@ public class RegexPattern {
     return myEatLine;
   }
 
+  /**
+   * @return engine to match lines with, {@code null} if the engine of the parser is used
+   */
+  @Nullable
+  public RegexEngine getEngine() {
+    return myEngine;
+  }
+
+  /**
+   * @param parserEngine - engine of the parser, used if the pattern has no engine of its own
+   * @return automaton to reject lines with before matching them by the JDK, {@code null} if lines are matched by the JDK only:
+   * the engine is {@link RegexEngine#JDK} or the regex uses constructs the automaton does not support
+   */
+  @Nullable
+  RegexAutomaton getAutomaton(@Nullable final RegexEngine parserEngine) {
+    final RegexEngine engine = myEngine != null ? myEngine : parserEngine;
+    return engine == RegexEngine.AUTOMATON ? getAnalysis().getAutomaton() : null;
+  }
+
+  long getHits() {
+    return myHits;
+  }
+
+  void addHits(final long hits) {
+    ourHitsUpdater.addAndGet(this, hits);
+  }
+
+  @NotNull
+  PatternAnalysis getAnalysis() {
+    return getCompiled().getAnalysis();
+  }
+
+  /**
+   * @return compiled form shared with equal patterns through {@link PatternPool}
+   */
+  @NotNull
+  CompiledPattern getCompiled() {
+    CompiledPattern compiled = myCompiled;
+    if (compiled == null) {
+      // Equal patterns should share the compiled form, so it is acquired once
+      synchronized (this) {
+        compiled = myCompiled;
+        if (compiled == null) {
+          compiled = PatternPool.acquire(this);
+          myCompiled = compiled;
+        }
+      }
+    }
+    return compiled;
+  }
+
+  /**
+   * Drops the compiled form, so {@link PatternPool} may drop it once other patterns do not use it.
+   * It is acquired again if the pattern is used later.
+   */
+  synchronized void releaseCompiled() {
+    myCompiled = null;
+  }
+
   private String parseStr(@NotNull final Matcher matcher, @NotNull final String str) {
     return matcher.replaceAll(str);
   }
@@ -72,7 +167,7 @@ public class RegexPattern {
    */
   @NotNull
   private Matcher getMatcher(@NotNull final CharSequence input) {
-    return myPattern.matcher(input);
+    return getCompiled().getPattern().matcher(input);
   }
 
   /**
@@ -80,7 +175,7 @@ public class RegexPattern {
    * @return parsed description or {@code null}.
    */
   protected String getDescription(@NotNull final Matcher matcher) {
-    return parseStr(matcher, myDescriptionExpression);
+    return parseStr(matcher, getCompiled().getDescriptionExpression());
   }
 
 
@@ -93,13 +188,41 @@ public class RegexPattern {
    * @return {@code true} if error/warning/info problem was found.
    */
   public boolean processLine(@NotNull final String line, @NotNull final ParserManager parserManager) {
-    final Matcher matcher = getMatcher(line);
-    // pattern should cover the whole line
-    if (!(matcher.find() && matcher.group(0).length() == line.length()))
-      return false;
+    final RegexAutomaton automaton = getAutomaton(null);
+    return apply(line, parserManager, null, null, automaton == null ? null : automaton.createSimulation()) == EATEN;
+  }
 
-    applyToManager(matcher, parserManager);
-    return myEatLine;
+  /**
+   * @param budget    - limit of matching work, matching fails with {@link MatchingBudget.ExceededException} if it is exceeded
+   * @param reusable  - matcher of {@link CompiledPattern#getPattern()} to reset instead of creating a new one
+   * @param automaton - simulation of {@link #getAutomaton(RegexEngine)} to reject lines with, {@code null} to match by the JDK only
+   * @return {@link #NOT_MATCHED}, {@link #MATCHED} or {@link #EATEN}
+   * @see #processLine(String, ParserManager)
+   */
+  int apply(@NotNull final CharSequence line,
+            @NotNull final ParserManager parserManager,
+            @Nullable final MatchingBudget budget,
+            @Nullable final Matcher reusable,
+            @Nullable final RegexAutomaton.Simulation automaton) {
+    if (!getAnalysis().isLengthAccepted(line.length()))
+      return NOT_MATCHED;
+    // The automaton finds the same match in linear time, but without groups, so only accepted lines are matched by the JDK
+    if (automaton != null && !automaton.matchesWhole(line))
+      return NOT_MATCHED;
+    final CharSequence input = budget == null ? line : budget.wrap(line);
+    final Matcher matcher = reusable == null ? getMatcher(input) : reusable.reset(input);
+    // pattern should cover the whole line, so only a match starting at the line beginning is of interest
+    if (!(matcher.lookingAt() && matcher.end() == line.length()))
+      return NOT_MATCHED;
+
+    if (budget != null) budget.disarm();
+    if (getClass() == RegexPattern.class) {
+      // Same as applyToManager, but the description is built from the precompiled template and only if it is needed
+      parserManager.logMatch(this, matcher, line);
+    } else {
+      applyToManager(matcher, parserManager);
+    }
+    return myEatLine ? EATEN : MATCHED;
   }
 
   /**
@@ -123,6 +246,7 @@ public class RegexPattern {
     if (myEatLine == null) myEatLine = DEFAULT_EAT_LINE;
     if (myDescriptionExpression == null) myDescriptionExpression = DEFAULT_DESCRIPTION_EXPR;
     if (mySeverity == null) mySeverity = DEFAULT_SEVERITY;
+    getCompiled();
     return this;
   }
 
@@ -133,7 +257,8 @@ public class RegexPattern {
       return this.myEatLine.equals(rp.myEatLine)
           && this.mySeverity.equals(rp.mySeverity)
           && this.myDescriptionExpression.equals(rp.myDescriptionExpression)
-          && this.myPattern.pattern().equals(rp.myPattern.pattern());
+          && this.myPattern.pattern().equals(rp.myPattern.pattern())
+          && this.myEngine == rp.myEngine;
     }
     return super.equals(o);
   }
@@ -144,7 +269,7 @@ public class RegexPattern {
     }
 
     public Object fromString(final String s) {
-      return Pattern.compile(s);
+      return PatternPool.compile(s, 0);
     }
 
     public boolean canConvert(final Class aClass) {
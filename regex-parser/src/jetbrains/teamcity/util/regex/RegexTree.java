@@ -0,0 +1,856 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Syntax tree of a {@link Pattern} source used for static analysis of parser patterns.
+ * <br/>
+ * Only the part of the {@link Pattern} syntax we can reason about is modelled.
+ * Anything else marks the tree as unsupported, analyses must give conservative answers for such trees.
+ */
+final class RegexTree {
+  static final int UNBOUNDED = -1;
+
+  private static final int INLINE_FLAGS = Pattern.CASE_INSENSITIVE | Pattern.MULTILINE | Pattern.DOTALL
+      | Pattern.UNICODE_CASE | Pattern.UNIX_LINES | Pattern.UNICODE_CHARACTER_CLASS;
+
+  @NotNull
+  private final String mySource;
+  private final int myFlags;
+  @Nullable
+  private final Node myRoot;
+  @Nullable
+  private final String myUnsupportedReason;
+  private final int myGroupCount;
+  @NotNull
+  private final Map<String, Integer> myNamedGroups;
+  private final boolean myHasBackReferences;
+  private final boolean myHasUnterminatedQuote;
+  private final int myTopLevelInlineFlags;
+  private final int myAmbiguousInlineFlags;
+
+  private RegexTree(@NotNull final String source, final int flags, @NotNull final Parser parser, @Nullable final Node root, @Nullable final String unsupportedReason) {
+    mySource = source;
+    myFlags = flags;
+    myRoot = root;
+    myUnsupportedReason = unsupportedReason;
+    myGroupCount = parser.myGroupCount;
+    myNamedGroups = parser.myNamedGroups.isEmpty() ? Collections.<String, Integer>emptyMap() : Collections.unmodifiableMap(parser.myNamedGroups);
+    myHasBackReferences = parser.myHasBackReferences;
+    myHasUnterminatedQuote = parser.myHasUnterminatedQuote;
+    myTopLevelInlineFlags = parser.myTopLevelInlineFlags;
+    myAmbiguousInlineFlags = parser.myAmbiguousInlineFlags;
+  }
+
+  @NotNull
+  static RegexTree parse(@NotNull final Pattern pattern) {
+    final String source = pattern.pattern();
+    final RegexTree tree = parse(source, pattern.flags());
+    // Pattern.flags() also reports flags changed by inline constructs like '(?i)' at the top level of the pattern,
+    // so compile flags are known only if those constructs precede everything else.
+    if (tree.myTopLevelInlineFlags == 0) return tree;
+    if (tree.myAmbiguousInlineFlags != 0) {
+      return new RegexTree(source, pattern.flags(), new Parser(source, pattern.flags()), null, "Cannot determine compile flags of the pattern");
+    }
+    return parse(source, pattern.flags() & ~tree.myTopLevelInlineFlags);
+  }
+
+  @NotNull
+  static RegexTree parse(@NotNull final String source, final int flags) {
+    final Parser parser = new Parser(source, flags);
+    if ((flags & (Pattern.COMMENTS | Pattern.CANON_EQ)) != 0) {
+      return new RegexTree(source, flags, parser, null, "COMMENTS and CANON_EQ flags are not supported");
+    }
+    try {
+      return new RegexTree(source, flags, parser, parser.parse(), null);
+    } catch (UnsupportedSyntaxException e) {
+      return new RegexTree(source, flags, parser, null, e.getMessage());
+    }
+  }
+
+  @NotNull
+  String getSource() {
+    return mySource;
+  }
+
+  int getFlags() {
+    return myFlags;
+  }
+
+  boolean isSupported() {
+    return myRoot != null;
+  }
+
+  /**
+   * @return root node or {@code null} if pattern uses syntax not supported by this tree.
+   */
+  @Nullable
+  Node getRoot() {
+    return myRoot;
+  }
+
+  @Nullable
+  String getUnsupportedReason() {
+    return myUnsupportedReason;
+  }
+
+  int getGroupCount() {
+    return myGroupCount;
+  }
+
+  @NotNull
+  Map<String, Integer> getNamedGroups() {
+    return myNamedGroups;
+  }
+
+  boolean hasBackReferences() {
+    return myHasBackReferences;
+  }
+
+  /**
+   * @return {@code true} if pattern ends inside of {@code \Q} quotation, so nothing could be appended to its source.
+   */
+  boolean hasUnterminatedQuote() {
+    return myHasUnterminatedQuote;
+  }
+
+  /**
+   * @return {@code true} if pattern source could be embedded into another pattern without changing its meaning
+   * provided it is wrapped into a group with {@link #getInlineFlagsPrefix()}.
+   */
+  boolean isEmbeddable() {
+    return isSupported()
+        && !myHasBackReferences
+        && !myHasUnterminatedQuote
+        && myNamedGroups.isEmpty()
+        && (myFlags & ~INLINE_FLAGS) == 0;
+  }
+
+  /**
+   * @return inline flags construct equivalent to flags the pattern was compiled with, e.g. {@code (?i)}
+   */
+  @NotNull
+  String getInlineFlagsPrefix() {
+    if ((myFlags & INLINE_FLAGS) == 0) return "";
+    final StringBuilder sb = new StringBuilder("(?");
+    if ((myFlags & Pattern.CASE_INSENSITIVE) != 0) sb.append('i');
+    if ((myFlags & Pattern.MULTILINE) != 0) sb.append('m');
+    if ((myFlags & Pattern.DOTALL) != 0) sb.append('s');
+    if ((myFlags & Pattern.UNICODE_CASE) != 0) sb.append('u');
+    if ((myFlags & Pattern.UNIX_LINES) != 0) sb.append('d');
+    if ((myFlags & Pattern.UNICODE_CHARACTER_CLASS) != 0) sb.append('U');
+    return sb.append(')').toString();
+  }
+
+  abstract static class Node {
+    /**
+     * Source range of the node.
+     */
+    final int start;
+    final int end;
+    /**
+     * Flags effective for the node, compile flags combined with inline ones.
+     */
+    final int flags;
+
+    Node(final int start, final int end, final int flags) {
+      this.start = start;
+      this.end = end;
+      this.flags = flags;
+    }
+  }
+
+  /**
+   * Single code point.
+   */
+  static final class Literal extends Node {
+    final int codePoint;
+
+    Literal(final int start, final int end, final int flags, final int codePoint) {
+      super(start, end, flags);
+      this.codePoint = codePoint;
+    }
+
+    boolean isCaseInsensitive() {
+      return (flags & Pattern.CASE_INSENSITIVE) != 0;
+    }
+  }
+
+  /**
+   * Anything matching exactly one code point: character class, predefined class or dot.
+   * {@link #text} is a standalone pattern source matching the same code points when compiled with {@link #flags}.
+   */
+  static final class CharClass extends Node {
+    @NotNull
+    final String text;
+
+    CharClass(final int start, final int end, final int flags, @NotNull final String text) {
+      super(start, end, flags);
+      this.text = text;
+    }
+  }
+
+  enum GroupKind {
+    CAPTURING(false),
+    NON_CAPTURING(false),
+    ATOMIC(false),
+    LOOKAHEAD(true),
+    NEGATIVE_LOOKAHEAD(true),
+    LOOKBEHIND(true),
+    NEGATIVE_LOOKBEHIND(true);
+
+    final boolean zeroWidth;
+
+    GroupKind(final boolean zeroWidth) {
+      this.zeroWidth = zeroWidth;
+    }
+  }
+
+  static final class Group extends Node {
+    @NotNull
+    final GroupKind kind;
+    /**
+     * Capturing group number, 0 for non-capturing groups.
+     */
+    final int index;
+    @Nullable
+    final String name;
+    @NotNull
+    final Node body;
+
+    Group(final int start, final int end, final int flags, @NotNull final GroupKind kind, final int index, @Nullable final String name, @NotNull final Node body) {
+      super(start, end, flags);
+      this.kind = kind;
+      this.index = index;
+      this.name = name;
+      this.body = body;
+    }
+  }
+
+  enum Quantifier {
+    GREEDY,
+    LAZY,
+    POSSESSIVE
+  }
+
+  static final class Repeat extends Node {
+    @NotNull
+    final Node body;
+    final int min;
+    /**
+     * Maximum number of repetitions or {@link #UNBOUNDED}.
+     */
+    final int max;
+    @NotNull
+    final Quantifier quantifier;
+
+    Repeat(final int start, final int end, final int flags, @NotNull final Node body, final int min, final int max, @NotNull final Quantifier quantifier) {
+      super(start, end, flags);
+      this.body = body;
+      this.min = min;
+      this.max = max;
+      this.quantifier = quantifier;
+    }
+  }
+
+  static final class Sequence extends Node {
+    @NotNull
+    final List<Node> items;
+
+    Sequence(final int start, final int end, final int flags, @NotNull final List<Node> items) {
+      super(start, end, flags);
+      this.items = items;
+    }
+  }
+
+  static final class Alternation extends Node {
+    @NotNull
+    final List<Node> branches;
+
+    Alternation(final int start, final int end, final int flags, @NotNull final List<Node> branches) {
+      super(start, end, flags);
+      this.branches = branches;
+    }
+  }
+
+  enum AssertionKind {
+    LINE_BEGIN,
+    LINE_END,
+    INPUT_BEGIN,
+    INPUT_END,
+    INPUT_END_OR_TERMINATOR,
+    WORD_BOUNDARY,
+    NON_WORD_BOUNDARY,
+    LAST_MATCH_END
+  }
+
+  static final class Assertion extends Node {
+    @NotNull
+    final AssertionKind kind;
+
+    Assertion(final int start, final int end, final int flags, @NotNull final AssertionKind kind) {
+      super(start, end, flags);
+      this.kind = kind;
+    }
+  }
+
+  static final class BackReference extends Node {
+    final int index;
+    @Nullable
+    final String name;
+
+    BackReference(final int start, final int end, final int flags, final int index, @Nullable final String name) {
+      super(start, end, flags);
+      this.index = index;
+      this.name = name;
+    }
+  }
+
+  /**
+   * Construct matching some text we do not model further, e.g. {@code \R} or {@code \X}.
+   */
+  static final class Opaque extends Node {
+    final int minLength;
+    final int maxLength;
+
+    Opaque(final int start, final int end, final int flags, final int minLength, final int maxLength) {
+      super(start, end, flags);
+      this.minLength = minLength;
+      this.maxLength = maxLength;
+    }
+  }
+
+  private static class UnsupportedSyntaxException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    UnsupportedSyntaxException(final String message) {
+      super(message);
+    }
+  }
+
+  private static class Parser {
+    @NotNull
+    private final String s;
+    private int pos;
+    private int flags;
+    private int myGroupCount;
+    private final Map<String, Integer> myNamedGroups = new HashMap<String, Integer>();
+    private boolean myHasBackReferences;
+    private boolean myHasUnterminatedQuote;
+    private int myDepth;
+    private boolean myTopLevelNodeSeen;
+    private int myTopLevelInlineFlags;
+    private int myAmbiguousInlineFlags;
+    private int myLastInlineFlags;
+
+    Parser(@NotNull final String source, final int flags) {
+      s = source;
+      this.flags = flags;
+    }
+
+    @NotNull
+    Node parse() throws UnsupportedSyntaxException {
+      if ((flags & Pattern.LITERAL) != 0) {
+        final List<Node> items = new ArrayList<Node>();
+        while (pos < s.length()) {
+          final int cp = s.codePointAt(pos);
+          final int next = pos + Character.charCount(cp);
+          items.add(new Literal(pos, next, flags, cp));
+          pos = next;
+        }
+        return new Sequence(0, s.length(), flags, items);
+      }
+      final Node node = parseAlternation();
+      if (pos < s.length()) {
+        throw new UnsupportedSyntaxException("Unexpected '" + s.charAt(pos) + "' at " + pos);
+      }
+      return node;
+    }
+
+    private boolean more() {
+      return pos < s.length();
+    }
+
+    private char peek() {
+      return s.charAt(pos);
+    }
+
+    private boolean lookingAt(final char c) {
+      return pos < s.length() && s.charAt(pos) == c;
+    }
+
+    @NotNull
+    private Node parseAlternation() throws UnsupportedSyntaxException {
+      final int start = pos;
+      final int startFlags = flags;
+      final Node first = parseSequence();
+      if (!lookingAt('|')) return first;
+      final List<Node> branches = new ArrayList<Node>();
+      branches.add(first);
+      while (lookingAt('|')) {
+        pos++;
+        branches.add(parseSequence());
+      }
+      return new Alternation(start, pos, startFlags, branches);
+    }
+
+    @NotNull
+    private Node parseSequence() throws UnsupportedSyntaxException {
+      final int start = pos;
+      final int startFlags = flags;
+      final List<Node> items = new ArrayList<Node>();
+      while (more() && peek() != '|' && peek() != ')') {
+        if (s.startsWith("\\Q", pos)) {
+          final List<Literal> quoted = parseQuotation();
+          if (quoted.isEmpty()) continue;
+          items.addAll(quoted.subList(0, quoted.size() - 1));
+          // Quantifier following the quotation applies to its last character
+          items.add(parseQuantifier(quoted.get(quoted.size() - 1)));
+          myTopLevelNodeSeen |= myDepth == 0;
+          continue;
+        }
+        final Node atom = parseAtom();
+        if (atom == null) continue; // Inline flags
+        items.add(parseQuantifier(atom));
+        myTopLevelNodeSeen |= myDepth == 0;
+      }
+      if (items.size() == 1) return items.get(0);
+      return new Sequence(start, pos, startFlags, items);
+    }
+
+    @NotNull
+    private List<Literal> parseQuotation() {
+      pos += 2;
+      final List<Literal> result = new ArrayList<Literal>();
+      while (more()) {
+        if (s.startsWith("\\E", pos)) {
+          pos += 2;
+          return result;
+        }
+        final int cp = s.codePointAt(pos);
+        final int next = pos + Character.charCount(cp);
+        result.add(new Literal(pos, next, flags, cp));
+        pos = next;
+      }
+      myHasUnterminatedQuote = true;
+      return result;
+    }
+
+    @NotNull
+    private Node parseQuantifier(@NotNull final Node atom) throws UnsupportedSyntaxException {
+      if (!more()) return atom;
+      final int min;
+      final int max;
+      switch (peek()) {
+        case '*':
+          min = 0;
+          max = UNBOUNDED;
+          pos++;
+          break;
+        case '+':
+          min = 1;
+          max = UNBOUNDED;
+          pos++;
+          break;
+        case '?':
+          min = 0;
+          max = 1;
+          pos++;
+          break;
+        case '{':
+          pos++;
+          min = parseNumber();
+          if (lookingAt(',')) {
+            pos++;
+            max = lookingAt('}') ? UNBOUNDED : parseNumber();
+          } else {
+            max = min;
+          }
+          if (!lookingAt('}') || (max != UNBOUNDED && max < min)) {
+            throw new UnsupportedSyntaxException("Malformed repetition at " + pos);
+          }
+          pos++;
+          break;
+        default:
+          return atom;
+      }
+      Quantifier quantifier = Quantifier.GREEDY;
+      if (lookingAt('?')) {
+        quantifier = Quantifier.LAZY;
+        pos++;
+      } else if (lookingAt('+')) {
+        quantifier = Quantifier.POSSESSIVE;
+        pos++;
+      }
+      if (more() && "*+?{".indexOf(peek()) >= 0) {
+        throw new UnsupportedSyntaxException("Repeated quantifier at " + pos);
+      }
+      return new Repeat(atom.start, pos, atom.flags, atom, min, max, quantifier);
+    }
+
+    private int parseNumber() throws UnsupportedSyntaxException {
+      final int start = pos;
+      while (more() && peek() >= '0' && peek() <= '9') pos++;
+      if (start == pos || pos - start > 9) {
+        throw new UnsupportedSyntaxException("Malformed repetition at " + start);
+      }
+      return Integer.parseInt(s.substring(start, pos));
+    }
+
+    @Nullable
+    private Node parseAtom() throws UnsupportedSyntaxException {
+      final int start = pos;
+      final char c = peek();
+      switch (c) {
+        case '(':
+          return parseGroup();
+        case '[':
+          return parseClass();
+        case '.':
+          pos++;
+          return new CharClass(start, pos, flags, ".");
+        case '^':
+          pos++;
+          return new Assertion(start, pos, flags, AssertionKind.LINE_BEGIN);
+        case '$':
+          pos++;
+          return new Assertion(start, pos, flags, AssertionKind.LINE_END);
+        case '\\':
+          return parseEscape();
+        case '*':
+        case '+':
+        case '?':
+        case '{':
+          throw new UnsupportedSyntaxException("Dangling meta character '" + c + "' at " + pos);
+        default:
+          final int cp = s.codePointAt(pos);
+          pos += Character.charCount(cp);
+          return new Literal(start, pos, flags, cp);
+      }
+    }
+
+    @Nullable
+    private Node parseGroup() throws UnsupportedSyntaxException {
+      final int start = pos;
+      final int savedFlags = flags;
+      pos++;
+      GroupKind kind = GroupKind.CAPTURING;
+      String name = null;
+      if (lookingAt('?')) {
+        pos++;
+        if (!more()) throw new UnsupportedSyntaxException("Unterminated group at " + start);
+        final char c = peek();
+        if (c == ':') {
+          kind = GroupKind.NON_CAPTURING;
+          pos++;
+        } else if (c == '=') {
+          kind = GroupKind.LOOKAHEAD;
+          pos++;
+        } else if (c == '!') {
+          kind = GroupKind.NEGATIVE_LOOKAHEAD;
+          pos++;
+        } else if (c == '>') {
+          kind = GroupKind.ATOMIC;
+          pos++;
+        } else if (c == '<') {
+          pos++;
+          if (lookingAt('=')) {
+            kind = GroupKind.LOOKBEHIND;
+            pos++;
+          } else if (lookingAt('!')) {
+            kind = GroupKind.NEGATIVE_LOOKBEHIND;
+            pos++;
+          } else {
+            name = parseGroupName();
+          }
+        } else {
+          if (parseInlineFlags()) {
+            // '(?flags)' changes flags up to the end of enclosing group
+            if (myDepth == 0) {
+              final int touched = myLastInlineFlags;
+              myTopLevelInlineFlags |= touched;
+              if (myTopLevelNodeSeen) myAmbiguousInlineFlags |= touched;
+            }
+            return null;
+          }
+          kind = GroupKind.NON_CAPTURING;
+        }
+      }
+      int index = 0;
+      if (kind == GroupKind.CAPTURING) {
+        index = ++myGroupCount;
+        if (name != null) myNamedGroups.put(name, index);
+      }
+      final int bodyFlags = flags;
+      myDepth++;
+      final Node body = parseAlternation();
+      myDepth--;
+      if (!lookingAt(')')) throw new UnsupportedSyntaxException("Unclosed group at " + start);
+      pos++;
+      flags = savedFlags;
+      return new Group(start, pos, bodyFlags, kind, index, name, body);
+    }
+
+    @NotNull
+    private String parseGroupName() throws UnsupportedSyntaxException {
+      final int start = pos;
+      while (more() && Character.isLetterOrDigit(peek())) pos++;
+      if (start == pos || !lookingAt('>')) throw new UnsupportedSyntaxException("Malformed group name at " + start);
+      final String name = s.substring(start, pos);
+      pos++;
+      return name;
+    }
+
+    /**
+     * @return {@code true} if flags construct is finished with ')', {@code false} if with ':'
+     */
+    private boolean parseInlineFlags() throws UnsupportedSyntaxException {
+      boolean on = true;
+      myLastInlineFlags = 0;
+      while (more()) {
+        final char c = peek();
+        pos++;
+        final int flag;
+        switch (c) {
+          case ')':
+            return true;
+          case ':':
+            return false;
+          case '-':
+            on = false;
+            continue;
+          case 'i':
+            flag = Pattern.CASE_INSENSITIVE;
+            break;
+          case 'm':
+            flag = Pattern.MULTILINE;
+            break;
+          case 's':
+            flag = Pattern.DOTALL;
+            break;
+          case 'u':
+            flag = Pattern.UNICODE_CASE;
+            break;
+          case 'd':
+            flag = Pattern.UNIX_LINES;
+            break;
+          case 'U':
+            flag = Pattern.UNICODE_CHARACTER_CLASS;
+            break;
+          default:
+            throw new UnsupportedSyntaxException("Unsupported inline flag '" + c + "'");
+        }
+        final int affected = flag == Pattern.UNICODE_CHARACTER_CLASS ? flag | Pattern.UNICODE_CASE : flag;
+        myLastInlineFlags |= affected;
+        if (on) {
+          flags |= affected;
+        } else {
+          flags &= ~flag;
+        }
+      }
+      throw new UnsupportedSyntaxException("Unterminated inline flags");
+    }
+
+    @NotNull
+    private Node parseClass() throws UnsupportedSyntaxException {
+      final int start = pos;
+      int depth = 0;
+      while (more()) {
+        final char c = peek();
+        if (c == '[') {
+          depth++;
+          pos++;
+          if (lookingAt('^')) pos++;
+          // Closing bracket right after the opening one is a literal
+          if (lookingAt(']')) pos++;
+        } else if (c == ']') {
+          depth--;
+          pos++;
+          if (depth == 0) {
+            return new CharClass(start, pos, flags, s.substring(start, pos));
+          }
+        } else if (c == '\\') {
+          pos++;
+          if (!more()) break;
+          final char e = peek();
+          if (e == 'Q') {
+            final int end = s.indexOf("\\E", pos);
+            if (end < 0) break;
+            pos = end + 2;
+          } else if (e == 'c') {
+            pos += 2;
+          } else {
+            pos++;
+          }
+        } else {
+          pos++;
+        }
+      }
+      throw new UnsupportedSyntaxException("Unclosed character class at " + start);
+    }
+
+    @NotNull
+    private Node parseEscape() throws UnsupportedSyntaxException {
+      final int start = pos;
+      pos++;
+      if (!more()) throw new UnsupportedSyntaxException("Trailing backslash");
+      final char c = peek();
+      pos++;
+      switch (c) {
+        case '0':
+          return literal(start, parseOctal());
+        case '1':
+        case '2':
+        case '3':
+        case '4':
+        case '5':
+        case '6':
+        case '7':
+        case '8':
+        case '9': {
+          int ref = c - '0';
+          while (more() && peek() >= '0' && peek() <= '9') {
+            final int next = ref * 10 + (peek() - '0');
+            if (next > myGroupCount) break;
+            ref = next;
+            pos++;
+          }
+          myHasBackReferences = true;
+          return new BackReference(start, pos, flags, ref, null);
+        }
+        case 'k': {
+          if (!lookingAt('<')) throw new UnsupportedSyntaxException("Malformed named back reference at " + start);
+          pos++;
+          final String name = parseGroupName();
+          final Integer index = myNamedGroups.get(name);
+          myHasBackReferences = true;
+          return new BackReference(start, pos, flags, index == null ? 0 : index, name);
+        }
+        case 't':
+          return literal(start, '\t');
+        case 'n':
+          return literal(start, '\n');
+        case 'r':
+          return literal(start, '\r');
+        case 'f':
+          return literal(start, '\f');
+        case 'a':
+          return literal(start, '\u0007');
+        case 'e':
+          return literal(start, '\u001B');
+        case 'c':
+          if (!more()) throw new UnsupportedSyntaxException("Malformed control escape at " + start);
+          return literal(start, s.charAt(pos++) ^ 64);
+        case 'x':
+          if (lookingAt('{')) {
+            final int end = s.indexOf('}', pos);
+            if (end < 0) throw new UnsupportedSyntaxException("Malformed hex escape at " + start);
+            final int cp = parseHex(pos + 1, end);
+            pos = end + 1;
+            return literal(start, cp);
+          } else {
+            final int cp = parseHex(pos, pos + 2);
+            pos += 2;
+            return literal(start, cp);
+          }
+        case 'u': {
+          int cp = parseHex(pos, pos + 4);
+          pos += 4;
+          if (Character.isHighSurrogate((char) cp) && s.startsWith("\\u", pos)) {
+            final int low = parseHex(pos + 2, pos + 6);
+            if (Character.isLowSurrogate((char) low)) {
+              cp = Character.toCodePoint((char) cp, (char) low);
+              pos += 6;
+            }
+          }
+          return literal(start, cp);
+        }
+        case 'd':
+        case 'D':
+        case 's':
+        case 'S':
+        case 'w':
+        case 'W':
+        case 'h':
+        case 'H':
+        case 'v':
+        case 'V':
+          return new CharClass(start, pos, flags, s.substring(start, pos));
+        case 'p':
+        case 'P':
+          if (lookingAt('{')) {
+            final int end = s.indexOf('}', pos);
+            if (end < 0) throw new UnsupportedSyntaxException("Malformed property escape at " + start);
+            pos = end + 1;
+          } else {
+            if (!more()) throw new UnsupportedSyntaxException("Malformed property escape at " + start);
+            pos++;
+          }
+          return new CharClass(start, pos, flags, s.substring(start, pos));
+        case 'b':
+          if (lookingAt('{')) throw new UnsupportedSyntaxException("Boundary matchers with parameters are not supported");
+          return new Assertion(start, pos, flags, AssertionKind.WORD_BOUNDARY);
+        case 'B':
+          return new Assertion(start, pos, flags, AssertionKind.NON_WORD_BOUNDARY);
+        case 'A':
+          return new Assertion(start, pos, flags, AssertionKind.INPUT_BEGIN);
+        case 'G':
+          return new Assertion(start, pos, flags, AssertionKind.LAST_MATCH_END);
+        case 'Z':
+          return new Assertion(start, pos, flags, AssertionKind.INPUT_END_OR_TERMINATOR);
+        case 'z':
+          return new Assertion(start, pos, flags, AssertionKind.INPUT_END);
+        case 'R':
+          return new Opaque(start, pos, flags, 1, 2);
+        case 'X':
+          return new Opaque(start, pos, flags, 1, UNBOUNDED);
+        default:
+          if (Character.isLetter(c)) {
+            throw new UnsupportedSyntaxException("Unsupported escape '\\" + c + "' at " + start);
+          }
+          pos--;
+          final int cp = s.codePointAt(pos);
+          pos += Character.charCount(cp);
+          return literal(start, cp);
+      }
+    }
+
+    @NotNull
+    private Literal literal(final int start, final int codePoint) {
+      return new Literal(start, pos, flags, codePoint);
+    }
+
+    private int parseOctal() throws UnsupportedSyntaxException {
+      int value = 0;
+      int digits = 0;
+      while (more() && digits < 3 && peek() >= '0' && peek() <= '7') {
+        final int next = value * 8 + (peek() - '0');
+        if (next > 0377) break;
+        value = next;
+        digits++;
+        pos++;
+      }
+      if (digits == 0) throw new UnsupportedSyntaxException("Malformed octal escape at " + pos);
+      return value;
+    }
+
+    private int parseHex(final int from, final int to) throws UnsupportedSyntaxException {
+      if (from >= to || to > s.length()) throw new UnsupportedSyntaxException("Malformed hex escape at " + from);
+      try {
+        final int cp = Integer.parseInt(s.substring(from, to), 16);
+        if (!Character.isValidCodePoint(cp)) throw new UnsupportedSyntaxException("Invalid code point at " + from);
+        return cp;
+      } catch (NumberFormatException e) {
+        throw new UnsupportedSyntaxException("Malformed hex escape at " + from);
+      }
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Extracts literal strings a line must contain to be matched by a pattern.
+ * <br/>
+ * Requirements form a conjunction of clauses, every clause is a disjunction of literal factors,
+ * e.g. {@code (error|warning) C\d+: .*} requires either {@code error} or {@code warning} and also {@code  C}.
+ * Extraction is conservative: a literal is reported only if every whole-line match contains it.
+ */
+final class RequiredLiterals {
+  /**
+   * Shorter literals are found in almost every line, so they do not help to skip patterns.
+   */
+  static final int MIN_FACTOR_LENGTH = 2;
+  private static final int MAX_CLAUSES = 3;
+  private static final int MAX_FACTORS_IN_CLAUSE = 16;
+
+  private static final Comparator<List<Factor>> BEST_CLAUSE_FIRST = new Comparator<List<Factor>>() {
+    public int compare(final List<Factor> o1, final List<Factor> o2) {
+      final int byLength = minLength(o2) - minLength(o1);
+      return byLength != 0 ? byLength : o1.size() - o2.size();
+    }
+  };
+
+  private RequiredLiterals() {
+  }
+
+  static final class Factor {
+    @NotNull
+    final String text;
+    final boolean caseInsensitive;
+
+    Factor(@NotNull final String text, final boolean caseInsensitive) {
+      this.text = text;
+      this.caseInsensitive = caseInsensitive;
+    }
+
+    @Override
+    public String toString() {
+      return caseInsensitive ? "(?i)" + text : text;
+    }
+  }
+
+  /**
+   * @return clauses every whole-line match satisfies, empty list if nothing is known about the pattern.
+   */
+  @NotNull
+  static List<List<Factor>> extract(@NotNull final RegexTree tree) {
+    final RegexTree.Node root = tree.getRoot();
+    if (root == null) return Collections.emptyList();
+    final List<List<Factor>> clauses = new ArrayList<List<Factor>>();
+    for (List<Factor> clause : collect(root)) {
+      if (minLength(clause) >= MIN_FACTOR_LENGTH) {
+        clauses.add(clause);
+      }
+    }
+    Collections.sort(clauses, BEST_CLAUSE_FIRST);
+    return clauses.size() > MAX_CLAUSES ? new ArrayList<List<Factor>>(clauses.subList(0, MAX_CLAUSES)) : clauses;
+  }
+
+  @NotNull
+  private static List<List<Factor>> collect(@NotNull final RegexTree.Node node) {
+    if (node instanceof RegexTree.Literal) {
+      final List<RegexTree.Node> single = Collections.singletonList(node);
+      return collectSequence(single);
+    }
+    if (node instanceof RegexTree.Sequence) {
+      return collectSequence(((RegexTree.Sequence) node).items);
+    }
+    if (node instanceof RegexTree.Group) {
+      final RegexTree.Group group = (RegexTree.Group) node;
+      if (group.kind.zeroWidth) return Collections.emptyList();
+      return collect(group.body);
+    }
+    if (node instanceof RegexTree.Repeat) {
+      final RegexTree.Repeat repeat = (RegexTree.Repeat) node;
+      if (repeat.min == 0) return Collections.emptyList();
+      return collect(repeat.body);
+    }
+    if (node instanceof RegexTree.Alternation) {
+      final List<Factor> clause = new ArrayList<Factor>();
+      for (RegexTree.Node branch : ((RegexTree.Alternation) node).branches) {
+        final List<List<Factor>> branchClauses = collect(branch);
+        if (branchClauses.isEmpty()) return Collections.emptyList();
+        clause.addAll(Collections.min(branchClauses, BEST_CLAUSE_FIRST));
+        if (clause.size() > MAX_FACTORS_IN_CLAUSE) return Collections.emptyList();
+      }
+      return Collections.singletonList(clause);
+    }
+    return Collections.emptyList();
+  }
+
+  @NotNull
+  private static List<List<Factor>> collectSequence(@NotNull final List<RegexTree.Node> items) {
+    final List<List<Factor>> result = new ArrayList<List<Factor>>();
+    final StringBuilder run = new StringBuilder();
+    boolean runCaseInsensitive = false;
+    for (RegexTree.Node item : items) {
+      final Literal literal = asLiteral(item);
+      if (literal != null) {
+        if (runCaseInsensitive != literal.caseInsensitive) {
+          addRun(run, runCaseInsensitive, result);
+        }
+        runCaseInsensitive = literal.caseInsensitive;
+        run.append(literal.c);
+      } else if (item instanceof RegexTree.Literal) {
+        addRun(run, runCaseInsensitive, result);
+      } else if (!isZeroWidth(item)) {
+        addRun(run, runCaseInsensitive, result);
+        result.addAll(collect(item));
+      }
+    }
+    addRun(run, runCaseInsensitive, result);
+    return result;
+  }
+
+  private static boolean isZeroWidth(@NotNull final RegexTree.Node node) {
+    // Zero width constructs do not break the run of literals around them
+    return node instanceof RegexTree.Assertion || node instanceof RegexTree.Group && ((RegexTree.Group) node).kind.zeroWidth;
+  }
+
+  private static void addRun(@NotNull final StringBuilder run, final boolean caseInsensitive, @NotNull final List<List<Factor>> result) {
+    if (run.length() == 0) return;
+    result.add(Collections.singletonList(new Factor(run.toString(), caseInsensitive)));
+    run.setLength(0);
+  }
+
+  @Nullable
+  private static Literal asLiteral(@NotNull final RegexTree.Node node) {
+    if (!(node instanceof RegexTree.Literal)) return null;
+    final RegexTree.Literal literal = (RegexTree.Literal) node;
+    if (Character.charCount(literal.codePoint) != 1) return null;
+    return new Literal((char) literal.codePoint, literal.isCaseInsensitive());
+  }
+
+  private static int minLength(@NotNull final List<Factor> clause) {
+    int min = Integer.MAX_VALUE;
+    for (Factor factor : clause) {
+      min = Math.min(min, factor.text.length());
+    }
+    return min;
+  }
+
+  private static class Literal {
+    final char c;
+    final boolean caseInsensitive;
+
+    Literal(final char c, final boolean caseInsensitive) {
+      this.c = c;
+      this.caseInsensitive = caseInsensitive;
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package jetbrains.teamcity.util.regex;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+public class ChunkedLogParserTest extends BaseTestCase {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Test
+  public void testSameAsSequential() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addPattern(new RegexPattern(Pattern.compile("start (.*)"), "$1", Severity.BLOCK_START, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("finish (.*)"), "$1", Severity.BLOCK_FINISH, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("compile (.*)"), "$1", Severity.COMPILATION_START, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("compiled (.*)"), "$1", Severity.COMPILATION_FINISH, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("error: (.*)"), "failed: $1", Severity.ERROR, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("(warning): (.*)"), "$2", Severity.WARN, false));
+    parser.addPattern(new RegexPattern(Pattern.compile(".*\u00fc.*"), "[$0]", Severity.INFO, true));
+
+    final StringBuilder text = new StringBuilder();
+    final String[] separators = {"\n", "\r\n", "\r"};
+    for (int i = 0; i < 3000; i++) {
+      switch (i % 11) {
+        case 0:
+          text.append("start b").append(i % 7);
+          break;
+        case 1:
+          text.append("compile c").append(i % 5);
+          break;
+        case 3:
+          text.append("error: e").append(i);
+          break;
+        case 4:
+          text.append("warning: w").append(i);
+          break;
+        case 5:
+          text.append("gr\u00fcn ").append(i);
+          break;
+        case 7:
+          text.append("finish b").append(i % 3);
+          break;
+        case 9:
+          text.append("compiled c").append(i % 4);
+          break;
+        default:
+          text.append("line ").append(i);
+      }
+      text.append(separators[i % separators.length]);
+    }
+    text.append("error: no line feed");
+
+    final File file = write(text.toString());
+    final ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      final RecordingLogger expected = new RecordingLogger();
+      final List<String> expectedEvents = new ArrayList<String>();
+      final ParserManager expectedManager = createManager(expected, expectedEvents);
+      Assert.assertEquals(parser.process(new StringReader(text.toString()), expectedManager), 3001);
+      Assert.assertTrue(expected.records.size() > 1000);
+
+      for (int chunkSize : new int[]{1, 100, 1000, ChunkedLogParser.DEFAULT_CHUNK_SIZE}) {
+        final ChunkedLogParser chunked = new ChunkedLogParser(parser);
+        chunked.setChunkSize(chunkSize);
+        final RecordingLogger actual = new RecordingLogger();
+        final List<String> actualEvents = new ArrayList<String>();
+        Assert.assertEquals(chunked.process(file, UTF_8, createManager(actual, actualEvents), executor), 3001);
+        Assert.assertEquals(actual.records, expected.records, "Chunk size " + chunkSize);
+        Assert.assertEquals(actualEvents, expectedEvents, "Chunk size " + chunkSize);
+      }
+    } finally {
+      executor.shutdownNow();
+      FileUtil.delete(file);
+    }
+  }
+
+  @Test
+  public void testMultilinePatternsSequentially() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addMultilinePattern(new MultilinePattern(Pattern.compile("Exception: (.*)"), Pattern.compile("\\s+at .*"),
+        "$1", Severity.ERROR, true, 100, 60000));
+    final StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 50; i++) {
+      text.append("Exception: e").append(i).append("\n  at A.a(A.java:1)\n  at B.b(B.java:2)\nother\n");
+    }
+    final File file = write(text.toString());
+    try {
+      final RecordingLogger expected = new RecordingLogger();
+      parser.process(new StringReader(text.toString()), new ParserManager(expected));
+      final ChunkedLogParser chunked = new ChunkedLogParser(parser);
+      chunked.setChunkSize(10);
+      final RecordingLogger actual = new RecordingLogger();
+      Assert.assertEquals(chunked.process(file, UTF_8, new ParserManager(actual)), 200);
+      Assert.assertEquals(actual.records, expected.records);
+      Assert.assertEquals(actual.records.size(), 50);
+    } finally {
+      FileUtil.delete(file);
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testUnsupportedCharset() throws Exception {
+    final File file = write("line");
+    try {
+      new ChunkedLogParser(new RegexParser("id", "name")).process(file, Charset.forName("UTF-16"), new ParserManager(new RecordingLogger()));
+    } finally {
+      FileUtil.delete(file);
+    }
+  }
+
+  @NotNull
+  private static ParserManager createManager(@NotNull final Logger logger, @NotNull final List<String> events) {
+    final ParserManager manager = new ParserManager(logger);
+    manager.setMaxBlocksDepth(5);
+    manager.addEventSink(new ParseEventSink() {
+      public boolean handle(@NotNull final ParseEvent event) {
+        events.add(event.getSeverity() + " " + event.getLine() + " " + event.getDescription());
+        return false;
+      }
+    });
+    return manager;
+  }
+
+  @NotNull
+  private static File write(@NotNull final String text) throws IOException {
+    final File file = File.createTempFile("chunked", ".log");
+    final Writer writer = new OutputStreamWriter(new FileOutputStream(file), UTF_8);
+    try {
+      writer.write(text);
+    } finally {
+      FileUtil.close(writer);
+    }
+    return file;
+  }
+}
@@ -2,10 +2,14 @@
 
 package jetbrains.teamcity.util.regex;
 
+import com.intellij.openapi.util.io.StreamUtil;
 import jetbrains.buildServer.BaseTestCase;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.InputStream;
 import java.util.List;
 import java.util.regex.Pattern;
@@ -57,4 +61,138 @@ public class ParserConfigReadWriteTest extends BaseTestCase {
     Assert.assertEquals(deParser.getName(), orParser.getName());
     Assert.assertEquals(deParser.getPatterns(), orParser.getPatterns());
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testSaveLoadSpecialChars() throws Exception {
+    final RegexParser orParser = new RegexParser("a&b", "<\"name\">");
+    orParser.addPattern(new RegexPattern(Pattern.compile("\t\"(.*)\"\r?\n"), "'$1' & \t", Severity.ERROR, false));
+    final RegexParser deParser = RegexParser.deserialize(orParser.serialize());
+    Assert.assertEquals(deParser.getId(), orParser.getId());
+    Assert.assertEquals(deParser.getName(), orParser.getName());
+    Assert.assertEquals(deParser.getPatterns(), orParser.getPatterns());
+  }
+
+  @Test
+  public void testValidation() throws Exception {
+    final String sample = StreamUtil.readText(this.getClass().getResourceAsStream("/sample-parser.xml"), "UTF-8");
+    RegexParser.validate(sample);
+    Assert.assertEquals(RegexParser.deserialize(sample, true).getPatterns(), RegexParser.deserialize(sample).getPatterns());
+
+    final String lenient = "<parser id=\"p\"><pattern regex=\".*\" eat-line=\"yes\"/></parser>";
+    Assert.assertFalse(RegexParser.deserialize(lenient).getPatterns().get(0).getEatLine());
+    try {
+      RegexParser.deserialize(lenient, true);
+      Assert.fail("Configuration is expected to be rejected by the schema");
+    } catch (ParserLoadingException e) {
+      Assert.assertTrue(e.getMessage().contains("line 1"), e.getMessage());
+    }
+  }
+
+  @Test
+  public void testStreamLoad() throws Exception {
+    final RegexParser orParser = new RegexParser("id", "name");
+    orParser.addPattern(new RegexPattern(Pattern.compile("\u0444: (.*)"), "$1", Severity.ERROR, true));
+    final String serialized = orParser.serialize();
+    // Unknown attribute makes the streaming reader give up after reading a part of the stream, so XStream reads it again
+    for (String xml : new String[]{serialized, serialized.replace("<parser", "<parser unknown=\"\"")}) {
+      final RegexParser deParser = RegexParser.deserialize(createStream(xml.getBytes("UTF-8")));
+      Assert.assertEquals(deParser.getId(), "id", xml);
+      Assert.assertEquals(deParser.getPatterns(), orParser.getPatterns(), xml);
+    }
+    try {
+      RegexParser.deserialize(createStream(new byte[0]));
+      Assert.fail("Empty configuration is expected to be rejected");
+    } catch (ParserLoadingException e) {
+      Assert.assertEquals(e.getMessage(), "Parser configuration xml is empty");
+    }
+  }
+
+  @Test
+  public void testBinarySaveLoad() throws Exception {
+    final RegexParser orParser = RegexParser.deserialize(this.getClass().getResourceAsStream("/sample-parser.xml"));
+    orParser.addPattern(new RegexPattern(Pattern.compile("(?i)\u0444\\s+(\\d+)", Pattern.MULTILINE), "${0}", Severity.BLOCK_START, false));
+    final RegexParser deParser = RegexParser.deserializeBinary(new ByteArrayInputStream(serializeBinary(orParser)));
+    Assert.assertEquals(deParser.getId(), orParser.getId());
+    Assert.assertEquals(deParser.getName(), orParser.getName());
+    Assert.assertEquals(deParser.getPatterns(), orParser.getPatterns());
+    Assert.assertEquals(deParser.getPatterns().get(3).getPattern().flags(), orParser.getPatterns().get(3).getPattern().flags());
+  }
+
+  @Test
+  public void testMultilinePatternSaveLoad() throws Exception {
+    final RegexParser orParser = new RegexParser("id", "name");
+    orParser.addPattern(new RegexPattern(Pattern.compile("error: (.*)"), "$1", Severity.ERROR, true));
+    orParser.addMultilinePattern(new MultilinePattern(Pattern.compile("Exception in thread \"(.*)\" (.*)"), Pattern.compile("\\s+at .*"),
+        "$2", Severity.ERROR, false, 20, 500));
+    final String serialized = orParser.serialize();
+    RegexParser.validate(serialized);
+    final RegexParser deParser = RegexParser.deserialize(serialized);
+    Assert.assertEquals(deParser.getPatterns(), orParser.getPatterns());
+    Assert.assertEquals(deParser.getMultilinePatterns(), orParser.getMultilinePatterns());
+    Assert.assertEquals(RegexParser.deserializeBinary(new ByteArrayInputStream(serializeBinary(orParser))).getMultilinePatterns(),
+        orParser.getMultilinePatterns());
+
+    // Streaming reader and XStream (unknown attribute makes the former give up) apply the same defaults
+    final String plain = "<parser id=\"p\"><multiline-pattern regex=\"a\" continuation=\"b\" max-lines=\"0\"/><pattern regex=\"c\"/></parser>";
+    final String unknown = plain.replace("<parser", "<parser unknown=\"\"");
+    for (String xml : new String[]{plain, unknown}) {
+      final RegexParser parser = RegexParser.deserialize(xml);
+      Assert.assertEquals(parser.getPatterns().size(), 1, xml);
+      final MultilinePattern pattern = parser.getMultilinePatterns().get(0);
+      Assert.assertEquals(pattern.getContinuation().pattern(), "b", xml);
+      Assert.assertEquals(pattern.getDescriptionExpression(), "$0", xml);
+      Assert.assertEquals(pattern.getSeverity(), Severity.SPECIAL, xml);
+      Assert.assertTrue(pattern.getEatLine(), xml);
+      Assert.assertEquals(pattern.getMaxLines(), MultilinePattern.DEFAULT_MAX_LINES, xml);
+      Assert.assertEquals(pattern.getFlushTimeout(), MultilinePattern.DEFAULT_FLUSH_TIMEOUT, xml);
+    }
+  }
+
+  @Test
+  public void testEngineSaveLoad() throws Exception {
+    final RegexParser orParser = new RegexParser("id", "name");
+    orParser.setEngine(RegexEngine.AUTOMATON);
+    orParser.addPattern(new RegexPattern(Pattern.compile("error: (.*)"), "$1", Severity.ERROR, true));
+    orParser.addPattern(new RegexPattern(Pattern.compile("(\\w+) \\1"), "$1", Severity.WARN, true, RegexEngine.JDK));
+    final String serialized = orParser.serialize();
+    RegexParser.validate(serialized);
+    for (RegexParser deParser : new RegexParser[]{RegexParser.deserialize(serialized),
+                                                  RegexParser.deserialize(serialized.replace("<parser", "<parser unknown=\"\"")),
+                                                  RegexParser.deserializeBinary(new ByteArrayInputStream(serializeBinary(orParser)))}) {
+      Assert.assertEquals(deParser.getEngine(), RegexEngine.AUTOMATON);
+      Assert.assertEquals(deParser.getPatterns(), orParser.getPatterns());
+      Assert.assertNull(deParser.getPatterns().get(0).getEngine());
+      Assert.assertEquals(deParser.getPatterns().get(1).getEngine(), RegexEngine.JDK);
+    }
+  }
+
+  @Test
+  public void testBinaryLoadMalformed() throws Exception {
+    final RegexParser parser = new RegexParser(null, "name");
+    parser.addPattern(new RegexPattern(Pattern.compile("error: (.*)"), "$1", Severity.ERROR, true));
+    final byte[] serialized = serializeBinary(parser);
+    Assert.assertNull(RegexParser.deserializeBinary(new ByteArrayInputStream(serialized)).getId());
+
+    serialized[7]++;
+    try {
+      RegexParser.deserializeBinary(new ByteArrayInputStream(serialized));
+      Assert.fail("Other format version is expected to be rejected");
+    } catch (ParserLoadingException ignored) {
+    }
+  }
+
+  private static byte[] serializeBinary(final RegexParser parser) throws Exception {
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    parser.serializeBinary(output);
+    return output.toByteArray();
+  }
+
+  private static InputStream createStream(final byte[] content) {
+    return new FilterInputStream(new ByteArrayInputStream(content)) {
+      @Override
+      public boolean markSupported() {
+        return false;
+      }
+    };
+  }
+}
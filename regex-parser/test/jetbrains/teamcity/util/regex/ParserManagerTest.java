@@ -7,8 +7,8 @@ import org.jetbrains.annotations.NotNull;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.regex.Pattern;
 
 /**
  * @author Vladislav.Rassokhin
@@ -75,4 +75,258 @@ public class ParserManagerTest extends BaseTestCase {
     Assert.assertEquals(logger.warning, 3);
     Assert.assertEquals(logger.special, 2);
   }
-}
\ No newline at end of file
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testBlocks() throws Exception {
+    final RecordingLogger logger = new RecordingLogger();
+    final ParserManager pm = new ParserManager(logger);
+    pm.log("a", Severity.BLOCK_START);
+    pm.log("b", Severity.COMPILATION_START);
+    pm.log("a", Severity.BLOCK_START);
+    pm.log("c", Severity.BLOCK_START);
+    // Not open, ignored
+    pm.log("x", Severity.BLOCK_FINISH);
+    // Innermost "a" with blocks inside of it
+    pm.log("a", Severity.BLOCK_FINISH);
+    Assert.assertEquals(pm.getBlocksStack().size(), 2);
+    pm.log("d", Severity.BLOCK_CHANGE);
+    Assert.assertEquals(((ParserManager.Block) pm.getBlocksStack().get(1)).getName(), "d");
+    pm.log("a", Severity.COMPILATION_FINISH);
+    Assert.assertTrue(pm.getBlocksStack().isEmpty());
+    Assert.assertEquals(logger.records.toString(), "[blockStart: a, compilationBlockStart: b, blockStart: a, blockStart: c, " +
+        "blockFinish: c, blockFinish: a, compilationBlockFinish: b, blockStart: d, blockFinish: d, blockFinish: a]");
+  }
+
+  @Test
+  public void testBlocksMaxDepth() throws Exception {
+    final RecordingLogger logger = new RecordingLogger();
+    final ParserManager pm = new ParserManager(logger);
+    pm.setMaxBlocksDepth(2);
+    pm.log("a", Severity.BLOCK_START);
+    pm.log("b", Severity.BLOCK_START);
+    pm.log("c", Severity.BLOCK_START);
+    pm.log("c", Severity.BLOCK_FINISH);
+    Assert.assertEquals(logger.records.toString(), "[blockStart: a, blockStart: b, " +
+        "warning: Parsing error: Blocks are nested deeper than 2, all open blocks are finished, blockFinish: b, blockFinish: a, " +
+        "blockStart: c, blockFinish: c]");
+  }
+
+  @Test
+  public void testBlockTracker() throws Exception {
+    final BlockTracker<ParserManager.Block> tracker = new BlockTracker<ParserManager.Block>();
+    final String name = tracker.intern(new String("name"));
+    Assert.assertSame(tracker.intern(new String("name")), name);
+    // Names used recently are kept while unique ones come and go
+    for (int i = 0; i < 5000; i++) {
+      tracker.intern("unique" + i);
+      Assert.assertSame(tracker.intern(new String("name")), name);
+    }
+    for (int i = 0; i < 20; i++) {
+      tracker.push(new ParserManager.Block(i % 2 == 0 ? "even" : "odd" + i), i % 3 == 0);
+    }
+    Assert.assertEquals(tracker.size(), 20);
+    Assert.assertEquals(tracker.indexOf("even"), 18);
+    Assert.assertEquals(tracker.indexOf("odd19"), 19);
+    Assert.assertTrue(tracker.isCompilation(18));
+    tracker.pop();
+    tracker.pop();
+    Assert.assertEquals(tracker.indexOf("even"), 16);
+    Assert.assertEquals(tracker.indexOf("odd19"), -1);
+    while (!tracker.isEmpty()) tracker.pop();
+    Assert.assertEquals(tracker.indexOf("even"), -1);
+    Assert.assertNull(tracker.peek());
+  }
+
+  @Test
+  public void testEventSinks() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addPattern(new RegexPattern(Pattern.compile("error: (.*)"), "$1", Severity.ERROR, true));
+    // Rendering the description would fail: there is no such group
+    parser.addPattern(new RegexPattern(Pattern.compile("warning: .*"), "$9", Severity.WARN, true));
+    parser.addPattern(new RegexPattern(Pattern.compile(".+"), "[$0]", Severity.INFO, true));
+
+    final RecordingLogger logger = new RecordingLogger();
+    final ParserManager pm = new ParserManager(logger);
+    final List<String> events = new ArrayList<String>();
+    pm.addEventSink(new ParseEventSink() {
+      public boolean handle(@NotNull final ParseEvent event) {
+        events.add(event.getSeverity() + " " + event.getLine().subSequence(event.getStart(), event.getEnd()));
+        return event.getSeverity() == Severity.WARN;
+      }
+    });
+    final ParseEventSink describing = new ParseEventSink() {
+      public boolean handle(@NotNull final ParseEvent event) {
+        events.add(event.getDescription());
+        return false;
+      }
+    };
+    pm.addEventSink(describing);
+
+    parser.processLine("error: a", pm);
+    parser.processLine("warning: b", pm);
+    parser.processLine("c", pm);
+    pm.removeEventSink(describing);
+    parser.processLine("d", pm);
+    Assert.assertEquals(events.toString(), "[ERROR error: a, a, WARN warning: b, INFO c, [c], INFO d]");
+    Assert.assertEquals(logger.records.toString(), "[error: a, message: [c], message: [d]]");
+  }
+
+  @Test
+  public void testMessageStatistics() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    final RegexPattern error = new RegexPattern(Pattern.compile("error: (.*)"), "$1", Severity.ERROR, true);
+    parser.addPattern(error);
+    parser.addPattern(new RegexPattern(Pattern.compile("warning: (.*)"), "$1", Severity.WARN, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("info: (.*)"), "$1", Severity.INFO, true));
+
+    final RecordingLogger logger = new RecordingLogger();
+    final ParserManager pm = new ParserManager(logger);
+    final MessageStatistics statistics = new MessageStatistics(2);
+    pm.addEventSink(statistics);
+    for (int i = 0; i < 5; i++) {
+      parser.processLine("error: a", pm);
+    }
+    parser.processLine("error: b", pm);
+    parser.processLine("warning: c", pm);
+    parser.processLine("warning: c", pm);
+    parser.processLine("info: d", pm);
+    parser.processLine("nothing", pm);
+    // Events are still logged
+    Assert.assertEquals(logger.records.size(), 9);
+
+    Assert.assertEquals(statistics.getCount(Severity.ERROR), 6);
+    Assert.assertEquals(statistics.getCount(Severity.WARN), 2);
+    Assert.assertEquals(statistics.getCount(error), 6);
+    Assert.assertEquals(statistics.getTotal(), 9);
+    // "c" replaced "b" inheriting its count
+    Assert.assertEquals(statistics.getTop().toString(), "[a: 5, c: 3]");
+    Assert.assertEquals(statistics.getTop().get(1).getError(), 1);
+    Assert.assertEquals(statistics.getSummary(), "6 errors, 2 warnings, 1 other line\nMost frequent:\n  5: a\n  3: c");
+
+    statistics.reset();
+    Assert.assertEquals(statistics.getTotal(), 0);
+    Assert.assertEquals(statistics.getCount(error), 0);
+    Assert.assertTrue(statistics.getTop().isEmpty());
+  }
+
+  @Test
+  public void testHeavyHitters() throws Exception {
+    final HeavyHitters hitters = new HeavyHitters(3);
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < HeavyHitters.MAX_TEXT_LENGTH; i++) {
+      sb.append('x');
+    }
+    final String longText = sb.toString();
+    for (int i = 0; i < 1000; i++) {
+      hitters.add(i % 2 == 0 ? "frequent" : "rare " + i);
+      if (i % 5 == 0) {
+        hitters.add(longText + "1");
+        // Same prefix, other text
+        hitters.add(longText + "2");
+      }
+    }
+    Assert.assertEquals(hitters.getTotal(), 1400);
+    final List<HeavyHitters.Entry> top = hitters.getTop();
+    Assert.assertEquals(top.size(), 3);
+    Assert.assertEquals(top.get(0).getText(), "frequent");
+    Assert.assertTrue(top.get(0).getCount() >= 500);
+    Assert.assertTrue(top.get(0).getCount() - top.get(0).getError() <= 500);
+    for (HeavyHitters.Entry entry : top) {
+      Assert.assertTrue(entry.getText().length() <= HeavyHitters.MAX_TEXT_LENGTH);
+    }
+  }
+  @Test
+  public void testMessageRateLimiter() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addPattern(new RegexPattern(Pattern.compile("warning: (.*)"), "$1", Severity.WARN, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("error: (.*)"), "$1", Severity.ERROR, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("start (.*)"), "$1", Severity.BLOCK_START, true));
+
+    final RecordingLogger logger = new RecordingLogger();
+    final ParserManager pm = new ParserManager(logger);
+    final long[] time = {0};
+    final MessageRateLimiter limiter = new MessageRateLimiter() {
+      @Override
+      long nanoTime() {
+        return time[0];
+      }
+    };
+    limiter.setLimits(Severity.WARN, 2, MessageRateLimiter.UNLIMITED);
+    limiter.setLimits(Severity.ERROR, MessageRateLimiter.UNLIMITED, 3);
+    pm.addEventSink(limiter);
+
+    for (int i = 0; i < 5; i++) {
+      parser.processLine("warning: w" + i, pm);
+      parser.processLine("error: e" + i, pm);
+      parser.processLine("start b" + i, pm);
+    }
+    Assert.assertEquals(logger.records.toString(),
+        "[warning: w0, error: e0, blockStart: b0, warning: w1, error: e1, blockStart: b1, error: e2, blockStart: b2, blockStart: b3, blockStart: b4]");
+    Assert.assertEquals(limiter.getSuppressed(), 5);
+
+    // Half a second refills a single token
+    time[0] = 500000000L;
+    logger.records.clear();
+    parser.processLine("warning: w5", pm);
+    parser.processLine("warning: w6", pm);
+    Assert.assertEquals(logger.records.toString(), "[warning: w5]");
+    Assert.assertEquals(limiter.pollSuppressed(), 0);
+
+    // Dropped lines are reported by the owner once a second passes, never in place of other lines
+    time[0] = 1000000000L;
+    parser.processLine("warning: w7", pm);
+    Assert.assertEquals(logger.records.toString(), "[warning: w5, warning: w7]");
+    Assert.assertEquals(limiter.pollSuppressed(), 6);
+    Assert.assertEquals(limiter.pollSuppressed(), 0);
+    parser.processLine("error: e5", pm);
+    Assert.assertEquals(limiter.finishStep(), 1);
+    Assert.assertEquals(limiter.getSuppressed(), 0);
+    logger.records.clear();
+    parser.processLine("error: e6", pm);
+    Assert.assertEquals(logger.records.toString(), "[error: e6]");
+  }
+  @Test
+  public void testMessageDeduplicator() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addPattern(new RegexPattern(Pattern.compile("warning: (.*)"), "$1", Severity.WARN, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("error: (.*)"), "$1", Severity.ERROR, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("info: (.*)"), "$1", Severity.INFO, true));
+
+    final RecordingLogger logger = new RecordingLogger();
+    final ParserManager pm = new ParserManager(logger);
+    final MessageDeduplicator deduplicator = new MessageDeduplicator(8);
+    deduplicator.setPolicy(Severity.WARN, MessageDeduplicator.Policy.FIRST_AND_COUNT);
+    deduplicator.setPolicy(Severity.ERROR, MessageDeduplicator.Policy.FIRST);
+    pm.addEventSink(deduplicator);
+
+    for (int i = 0; i < 3; i++) {
+      parser.processLine("warning: deprecated", pm);
+      parser.processLine("error: failed", pm);
+      parser.processLine("info: done", pm);
+    }
+    // Same description, other severity
+    parser.processLine("error: deprecated", pm);
+    Assert.assertEquals(logger.records.toString(),
+        "[warning: deprecated, error: failed, message: done, message: done, message: done, error: deprecated]");
+    Assert.assertEquals(deduplicator.getCollapsed(Severity.WARN), 2);
+    Assert.assertEquals(deduplicator.getCollapsed(Severity.ERROR), 2);
+    Assert.assertEquals(deduplicator.getCollapsed(Severity.INFO), 0);
+    Assert.assertEquals(deduplicator.getSummary(), "2 errors, 2 warnings, 0 messages repeated\nMost repeated:\n  2: deprecated");
+
+    // Memory is fixed: old descriptions are evicted
+    for (int i = 0; i < 100; i++) {
+      parser.processLine("warning: w" + i, pm);
+    }
+    logger.records.clear();
+    parser.processLine("warning: w0", pm);
+    parser.processLine("warning: w99", pm);
+    Assert.assertEquals(logger.records.toString(), "[warning: w0]");
+    Assert.assertEquals(deduplicator.getCapacity(), 8);
+
+    deduplicator.clear();
+    Assert.assertNull(deduplicator.getSummary());
+    parser.processLine("warning: w99", pm);
+    Assert.assertEquals(logger.records.toString(), "[warning: w0, warning: w99]");
+  }
+}
@@ -0,0 +1,38 @@
+package jetbrains.teamcity.util.regex;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class RecordingLogger implements Logger {
+  public final List<String> records = new ArrayList<String>();
+
+  public void message(@NotNull final String message) {
+    records.add("message: " + message);
+  }
+
+  public void error(@NotNull final String message) {
+    records.add("error: " + message);
+  }
+
+  public void warning(@NotNull final String message) {
+    records.add("warning: " + message);
+  }
+
+  public void blockStart(@NotNull final String name) {
+    records.add("blockStart: " + name);
+  }
+
+  public void blockFinish(@NotNull final String name) {
+    records.add("blockFinish: " + name);
+  }
+
+  public void compilationBlockStart(@NotNull final String name) {
+    records.add("compilationBlockStart: " + name);
+  }
+
+  public void compilationBlockFinish(@NotNull final String name) {
+    records.add("compilationBlockFinish: " + name);
+  }
+}
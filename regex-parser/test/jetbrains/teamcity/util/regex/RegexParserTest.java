@@ -0,0 +1,571 @@
+package jetbrains.teamcity.util.regex;
+
+import jetbrains.buildServer.BaseTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+public class RegexParserTest extends BaseTestCase {
+  private static final String[] LINES = {
+      "",
+      "error: something bad",
+      "Error: case matters",
+      "warning C4996: deprecated",
+      "foo.c:12: warning: unused variable",
+      "ab",
+      "aa",
+      "abab",
+      "[ 50%] Building CXX object",
+      "plain info line",
+      "CMake Error at CMakeLists.txt:3",
+  };
+
+  @Test
+  public void testCompiledMatchingSelectsSamePatterns() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addPattern(new RegexPattern(Pattern.compile("a|ab"), "short: $0", Severity.WARN, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("error: (.*)"), "$1", Severity.ERROR, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("(?i)error: .*"), "$0", Severity.ERROR, true));
+    parser.addPattern(new RegexPattern(Pattern.compile(".*warning.*"), "$0", Severity.WARN, false));
+    parser.addPattern(new RegexPattern(Pattern.compile("(.*): warning: (.*)"), "$2 at $1", Severity.WARN, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("(a)\\1"), "double", Severity.INFO, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("(ab)+", Pattern.CASE_INSENSITIVE), "$1", Severity.INFO, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("\\[\\s*(\\d+)%\\] (.*)"), "$2", Severity.COMPILATION_START, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("CMake Error.*"), "$0", Severity.ERROR, true));
+
+    Assert.assertEquals(process(parser, true), process(parser, false));
+  }
+
+  @Test
+  public void testFirstMatchWins() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addPattern(new RegexPattern(Pattern.compile("a|ab"), "first", Severity.INFO, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("ab"), "second", Severity.INFO, true));
+    parser.addPattern(new RegexPattern(Pattern.compile(".*"), "third", Severity.INFO, true));
+
+    final RecordingLogger logger = new RecordingLogger();
+    Assert.assertTrue(parser.processLine("ab", new ParserManager(logger)));
+    Assert.assertTrue(parser.processLine("a", new ParserManager(logger)));
+    Assert.assertEquals(logger.records.toString(), "[message: second, message: first]");
+  }
+
+  @Test
+  public void testNotEatenLineReachesNextPatterns() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addPattern(new RegexPattern(Pattern.compile("x.*"), "first", Severity.INFO, false));
+    parser.addPattern(new RegexPattern(Pattern.compile("y.*"), "unexpected", Severity.INFO, true));
+    parser.addPattern(new RegexPattern(Pattern.compile(".*z"), "second", Severity.WARN, true));
+
+    final RecordingLogger logger = new RecordingLogger();
+    Assert.assertTrue(parser.processLine("xyz", new ParserManager(logger)));
+    Assert.assertFalse(parser.processLine("xy", new ParserManager(logger)));
+    Assert.assertEquals(logger.records.toString(), "[message: first, warning: second, message: first]");
+  }
+
+  @Test
+  public void testAddPatternAfterMatching() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addPattern(new RegexPattern(Pattern.compile("a"), "a", Severity.INFO, true));
+    final ParserManager manager = new ParserManager(new RecordingLogger());
+    Assert.assertFalse(parser.processLine("b", manager));
+    parser.addPattern(new RegexPattern(Pattern.compile("b"), "b", Severity.INFO, true));
+    Assert.assertTrue(parser.processLine("b", manager));
+  }
+
+  @Test
+  public void testRequiredLiterals() throws Exception {
+    Assert.assertEquals(requiredLiterals("error: (.*)"), "[[error: ]]");
+    Assert.assertEquals(requiredLiterals("(error|warning) C\\d+: .*"), "[[error, warning], [ C], [: ]]");
+    Assert.assertEquals(requiredLiterals("(?i)cmake error.*"), "[[(?i)cmake error]]");
+    Assert.assertEquals(requiredLiterals("(ab)?x.*"), "[]");
+    Assert.assertEquals(requiredLiterals("(a)\\1"), "[]");
+  }
+
+  @Test
+  public void testPrefilterRespectsCase() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addPattern(new RegexPattern(Pattern.compile("Error: (.*)"), "sensitive", Severity.ERROR, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("(?i)warning: .*"), "insensitive", Severity.WARN, true));
+
+    final RecordingLogger logger = new RecordingLogger();
+    final ParserManager manager = new ParserManager(logger);
+    Assert.assertFalse(parser.processLine("error: lower case", manager));
+    Assert.assertTrue(parser.processLine("Error: upper case", manager));
+    Assert.assertTrue(parser.processLine("WARNING: upper case", manager));
+    Assert.assertEquals(logger.records.toString(), "[error: sensitive, warning: insensitive]");
+  }
+
+  @Test
+  public void testMatchingBudget() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addPattern(new RegexPattern(Pattern.compile("(a+)+b"), "unexpected", Severity.ERROR, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("(a|aa)+c"), "unexpected", Severity.ERROR, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("a+"), "ok", Severity.INFO, true));
+    parser.setMatchingBudget(100000);
+    final String line = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+
+    for (boolean compiled : new boolean[]{true, false}) {
+      parser.setCompiledMatching(compiled);
+      final RecordingLogger logger = new RecordingLogger();
+      Assert.assertTrue(parser.processLine(line, new ParserManager(logger)));
+      Assert.assertEquals(logger.records.size(), 2, logger.records.toString());
+      Assert.assertTrue(logger.records.get(0).startsWith("warning: Parsing error: Pattern [(a+)+b] exceeded matching budget"), logger.records.get(0));
+      Assert.assertEquals(logger.records.get(1), "message: ok");
+    }
+  }
+
+  @Test
+  public void testAutomatonEngine() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addPattern(new RegexPattern(Pattern.compile("(a+)+b"), "unexpected", Severity.ERROR, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("(a|aa)+c"), "unexpected", Severity.ERROR, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("a+"), "ok", Severity.INFO, true));
+    parser.setMatchingBudget(100000);
+    parser.setEngine(RegexEngine.AUTOMATON);
+    final StringBuilder line = new StringBuilder();
+    for (int i = 0; i < 100000; i++) {
+      line.append('a');
+    }
+
+    for (boolean compiled : new boolean[]{true, false}) {
+      parser.setCompiledMatching(compiled);
+      final RecordingLogger logger = new RecordingLogger();
+      Assert.assertTrue(parser.processLine(line, new ParserManager(logger)));
+      Assert.assertEquals(logger.records.toString(), "[message: ok]");
+    }
+
+    // Engine of the pattern wins
+    parser.getPatterns().add(0, new RegexPattern(Pattern.compile("(a|aa)+b"), "unexpected", Severity.ERROR, true, RegexEngine.JDK));
+    final RecordingLogger logger = new RecordingLogger();
+    Assert.assertTrue(parser.processLine(line.substring(0, 40), new ParserManager(logger)));
+    Assert.assertEquals(logger.records.size(), 2, logger.records.toString());
+    Assert.assertTrue(logger.records.get(0).startsWith("warning: Parsing error: Pattern [(a|aa)+b] exceeded matching budget"), logger.records.get(0));
+  }
+
+  @Test
+  public void testAutomatonEngineSelectsSamePatterns() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addPattern(new RegexPattern(Pattern.compile("a|ab"), "short: $0", Severity.WARN, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("(?i)error: (.*)"), "$1", Severity.ERROR, true));
+    parser.addPattern(new RegexPattern(Pattern.compile(".*warning.*"), "$0", Severity.WARN, false));
+    parser.addPattern(new RegexPattern(Pattern.compile("(.*?): warning: (.*)$"), "$2 at $1", Severity.WARN, true));
+    // Back reference and lookahead are matched by the JDK
+    parser.addPattern(new RegexPattern(Pattern.compile("(a)\\1"), "double", Severity.INFO, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("(?!plain)\\w+ (.*)"), "$1", Severity.INFO, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("\\[\\s*(\\d+)%\\] (.*)"), "$2", Severity.COMPILATION_START, true));
+
+    final List<String> expected = process(parser, true);
+    parser.setEngine(RegexEngine.AUTOMATON);
+    Assert.assertEquals(process(parser, true), expected);
+    Assert.assertEquals(process(parser, false), expected);
+  }
+
+  @Test
+  public void testSessionReusedBetweenLines() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addPattern(new RegexPattern(Pattern.compile("error: (.*)"), "$1", Severity.ERROR, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("(a)\\1"), "double", Severity.INFO, true));
+    final ParsingSession session = parser.createSession();
+
+    final RecordingLogger logger = new RecordingLogger();
+    final ParserManager manager = new ParserManager(logger);
+    Assert.assertTrue(session.processLine("error: first", manager));
+    Assert.assertFalse(session.processLine("warning: skipped", manager));
+    Assert.assertTrue(session.processLine("aa", manager));
+    Assert.assertTrue(session.processLine("error: second", manager));
+    parser.addPattern(new RegexPattern(Pattern.compile("warning: (.*)"), "$1", Severity.WARN, true));
+    Assert.assertTrue(session.processLine("warning: added", manager));
+    Assert.assertEquals(logger.records.toString(), "[error: first, message: double, error: second, warning: added]");
+  }
+
+  @Test
+  public void testProcessReader() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addPattern(new RegexPattern(Pattern.compile("error: (.*)"), "$1", Severity.ERROR, true));
+    parser.addPattern(new RegexPattern(Pattern.compile(".+"), "[$0]", Severity.INFO, true));
+
+    final String text = "error: lf\nplain\r\nerror: crlf\rerror: cr\n\nlast";
+    for (int bufferSize : new int[]{1, 2, 3, 8192}) {
+      final RecordingLogger logger = new RecordingLogger();
+      final ParserManager manager = new ParserManager(logger);
+      final LineReader reader = new LineReader(new StringReader(text), bufferSize);
+      CharSequence line;
+      while ((line = reader.readLine()) != null) {
+        parser.processLine(line, manager);
+      }
+      Assert.assertEquals(logger.records.toString(), "[error: lf, message: [plain], error: crlf, error: cr, message: [last]]", "Buffer size " + bufferSize);
+    }
+
+    final RecordingLogger logger = new RecordingLogger();
+    Assert.assertEquals(parser.process(new StringReader("a\r\n\r\nb\r"), new ParserManager(logger)), 3);
+    Assert.assertEquals(logger.records.toString(), "[message: [a], message: [b]]");
+    Assert.assertEquals(parser.process(new StringReader(""), new ParserManager(logger)), 0);
+  }
+
+  @Test
+  public void testProcessCharSequence() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addPattern(new RegexPattern(Pattern.compile("(.*):(\\d+): error: (.*)"), "$3 at $1:$2", Severity.ERROR, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("warning: .*"), "$0", Severity.WARN, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("x*"), "<$0>", Severity.INFO, true));
+
+    final RecordingLogger logger = new RecordingLogger();
+    final ParserManager manager = new ParserManager(logger);
+    final CharBuffer buffer = CharBuffer.wrap("##foo.c:12: error: bad##warning: w##xx##");
+    Assert.assertTrue(parser.processLine(buffer.subSequence(2, 22), manager));
+    Assert.assertTrue(parser.processLine(buffer.subSequence(24, 34), manager));
+    Assert.assertTrue(parser.processLine(buffer.subSequence(36, 38), manager));
+    Assert.assertFalse(parser.processLine(buffer.subSequence(0, 2), manager));
+    Assert.assertEquals(logger.records.toString(), "[error: bad at foo.c:12, warning: warning: w, message: <xx><>]");
+  }
+
+  @Test
+  public void testProcessLines() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addPattern(new RegexPattern(Pattern.compile("error: (.*)"), "$1", Severity.ERROR, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("warning: (.*)"), "$1", Severity.WARN, false));
+
+    final RecordingLogger logger = new RecordingLogger();
+    final boolean[] consumed = parser.processLines(Arrays.asList("error: a", "plain", "warning: b", "error: c"), new ParserManager(logger));
+    Assert.assertEquals(Arrays.toString(consumed), "[true, false, false, true]");
+    Assert.assertEquals(logger.records.toString(), "[error: a, warning: b, error: c]");
+  }
+
+  @Test
+  public void testDisjointPatterns() throws Exception {
+    Assert.assertTrue(areDisjoint("error: .*", "warning: (.*)"));
+    Assert.assertTrue(areDisjoint("^\\[ERROR\\] .*", "\\[WARNING\\] .*"));
+    Assert.assertTrue(areDisjoint("(.*)\\.c", "(.*)\\.h$"));
+    Assert.assertTrue(areDisjoint("a{1,3}", "b{5,}"));
+    Assert.assertFalse(areDisjoint("error.*", "error: .*"));
+    Assert.assertFalse(areDisjoint(".*error.*", "warning: .*"));
+    Assert.assertFalse(areDisjoint("(?i)error: .*", "ERROR: .*"));
+    Assert.assertFalse(areDisjoint("(error|warning): .*", "warning: .*"));
+  }
+
+  @Test
+  public void testAdaptiveOrdering() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    final RegexPattern rare = new RegexPattern(Pattern.compile("rare: .*"), "$0", Severity.INFO, true);
+    final RegexPattern frequent = new RegexPattern(Pattern.compile("error: (.*)"), "$1", Severity.ERROR, true);
+    final RegexPattern other = new RegexPattern(Pattern.compile("(error|rare): (.*)"), "other", Severity.WARN, true);
+    final RegexPattern catchAll = new RegexPattern(Pattern.compile("(.*)"), "$1", Severity.INFO, false);
+    parser.addPattern(rare);
+    parser.addPattern(frequent);
+    parser.addPattern(other);
+    parser.addPattern(catchAll);
+
+    final List<String> lines = new ArrayList<String>();
+    for (int i = 0; i < 20000; i++) {
+      lines.add(i % 100 == 0 ? "rare: " + i : "error: " + i);
+    }
+    final RecordingLogger adaptive = new RecordingLogger();
+    parser.createSession().processLines(lines, new ParserManager(adaptive));
+    Assert.assertTrue(parser.getCompiled().hasOrder(Arrays.asList(frequent, rare, other, catchAll)));
+    Assert.assertEquals(parser.getPatternHitCounts().toString(), "{rare: .*=200, error: (.*)=19800, (error|rare): (.*)=0, (.*)=0}");
+
+    parser.setAdaptiveOrdering(false);
+    final RecordingLogger declared = new RecordingLogger();
+    parser.createSession().processLines(lines, new ParserManager(declared));
+    Assert.assertEquals(adaptive.records, declared.records);
+  }
+
+  @Test
+  public void testAddPatternHitCounts() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    final RegexPattern first = new RegexPattern(Pattern.compile("a.*"), "a", Severity.INFO, true);
+    final RegexPattern second = new RegexPattern(Pattern.compile("b.*"), "b", Severity.INFO, true);
+    parser.addPattern(first);
+    parser.addPattern(second);
+    Assert.assertTrue(parser.getCompiled().hasOrder(Arrays.asList(first, second)));
+
+    parser.addPatternHitCounts(Collections.singletonMap("b.*", 10L));
+    Assert.assertTrue(parser.getCompiled().hasOrder(Arrays.asList(second, first)));
+    Assert.assertEquals(parser.getPatternHitCounts().toString(), "{a.*=0, b.*=10}");
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addPattern(new RegexPattern(Pattern.compile("error: (.*)"), "$1", Severity.ERROR, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("warning: (.*)"), "$1", Severity.WARN, false));
+    parser.addPattern(new RegexPattern(Pattern.compile("(.*): (.*)"), "$3", Severity.INFO, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("never"), "", Severity.INFO, true));
+    Assert.assertNull(parser.getMetrics());
+
+    final PatternMetrics metrics = parser.enableMetrics();
+    Assert.assertSame(parser.enableMetrics(), metrics);
+    final ParserManager manager = new ParserManager(new RecordingLogger());
+    parser.createSession().processLines(Arrays.asList("error: a", "warning: b", "info: c", "plain"), manager);
+    final List<PatternMetrics.Snapshot> snapshot = metrics.snapshotAndReset();
+    Assert.assertEquals(snapshot.size(), 4);
+    assertMetrics(snapshot.get(0), 1, 1, 0);
+    assertMetrics(snapshot.get(1), 1, 1, 0);
+    // "(.*): (.*)" has no group 3, so describing fails; "plain" is skipped by the prefilter
+    assertMetrics(snapshot.get(2), 2, 0, 2);
+    assertMetrics(snapshot.get(3), 0, 0, 0);
+    Assert.assertTrue(snapshot.get(2).getNanos() >= snapshot.get(2).getMaxNanos());
+    assertMetrics(metrics.snapshot().get(2), 0, 0, 0);
+
+    parser.disableMetrics();
+    parser.processLine("error: a", manager);
+    Assert.assertNull(parser.getMetrics());
+    assertMetrics(metrics.snapshot().get(0), 0, 0, 0);
+  }
+
+  @Test
+  public void testMultilinePattern() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addMultilinePattern(new MultilinePattern(Pattern.compile("Exception in thread \"(.*)\" (.*)"), Pattern.compile("\\s+at .*|Caused by: .*"),
+        "$2 in $1", Severity.ERROR, true, 100, 60000));
+    parser.addPattern(new RegexPattern(Pattern.compile("\\s+at .*"), "stray: $0", Severity.WARN, true));
+
+    final RecordingLogger logger = new RecordingLogger();
+    final ParserManager manager = new ParserManager(logger);
+    final ParsingSession session = parser.createSession();
+    Assert.assertTrue(session.processLine("Exception in thread \"main\" java.lang.NullPointerException", manager));
+    Assert.assertTrue(session.processLine("\tat A.foo(A.java:1)", manager));
+    Assert.assertTrue(session.processLine("Caused by: java.io.IOException", manager));
+    Assert.assertTrue(logger.records.isEmpty(), logger.records.toString());
+    Assert.assertFalse(session.processLine("done", manager));
+    // Continuation outside of a record goes to ordinary patterns
+    Assert.assertTrue(session.processLine("\tat B.bar(B.java:2)", manager));
+    Assert.assertEquals(logger.records.toString(),
+        "[error: java.lang.NullPointerException in main\n\tat A.foo(A.java:1)\nCaused by: java.io.IOException, warning: stray: \tat B.bar(B.java:2)]");
+
+    // Parser keeps no state between calls, so the record ends with the line
+    logger.records.clear();
+    Assert.assertTrue(parser.processLine("Exception in thread \"main\" E", manager));
+    Assert.assertEquals(logger.records.toString(), "[error: E in main]");
+    Assert.assertTrue(parser.processLine("\tat A.foo(A.java:1)", new ParserManager(new RecordingLogger())));
+    Assert.assertEquals(logger.records.toString(), "[error: E in main]");
+
+    // Record is logged at the end of the input
+    final RecordingLogger endLogger = new RecordingLogger();
+    Assert.assertEquals(parser.process(new StringReader("Exception in thread \"t\" E\n  at X.y(X.java:3)"), new ParserManager(endLogger)), 2);
+    Assert.assertEquals(endLogger.records.toString(), "[error: E in t\n  at X.y(X.java:3)]");
+  }
+
+  @Test
+  public void testMultilinePatternLimits() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addMultilinePattern(new MultilinePattern(Pattern.compile("CMake Error.*"), Pattern.compile("  .*"), "$0", Severity.ERROR, false, 2, 60000));
+
+    final RecordingLogger logger = new RecordingLogger();
+    final ParserManager manager = new ParserManager(logger);
+    final ParsingSession session = parser.createSession();
+    // Lines are not eaten, so they are left to the caller
+    Assert.assertFalse(session.processLine("CMake Error at CMakeLists.txt:3", manager));
+    Assert.assertFalse(session.processLine("  first", manager));
+    Assert.assertFalse(session.processLine("  second", manager));
+    Assert.assertEquals(logger.records.toString(), "[error: CMake Error at CMakeLists.txt:3\n  first]");
+    session.flush(manager);
+    session.flush(manager);
+    Assert.assertEquals(logger.records.toString(), "[error: CMake Error at CMakeLists.txt:3\n  first]");
+
+    final RegexParser timeoutParser = new RegexParser("id", "name");
+    timeoutParser.addMultilinePattern(new MultilinePattern(Pattern.compile("start"), Pattern.compile("more"), "$0", Severity.WARN, true, 100, 1));
+    final ParsingSession timeoutSession = timeoutParser.createSession();
+    logger.records.clear();
+    Assert.assertTrue(timeoutSession.processLine("start", manager));
+    Thread.sleep(20);
+    // Next line came too late, so it starts nothing and the record is logged alone
+    Assert.assertFalse(timeoutSession.processLine("more", manager));
+    Assert.assertEquals(logger.records.toString(), "[warning: start]");
+
+    // Expired record is logged without waiting for the next line
+    logger.records.clear();
+    Assert.assertTrue(timeoutSession.processLine("start", manager));
+    Assert.assertTrue(timeoutSession.processLine("more", manager));
+    Thread.sleep(20);
+    Assert.assertTrue(timeoutSession.flushExpired(manager));
+    Assert.assertFalse(timeoutSession.flushExpired(manager));
+    Assert.assertEquals(logger.records.toString(), "[warning: start\nmore]");
+    Assert.assertFalse(session.flushExpired(manager));
+  }
+
+  @Test
+  public void testPatternPool() throws Exception {
+    final String xml = "<parser id=\"pool\"><pattern regex=\"pool-test: (\\w+) (.*)\" output-expr=\"$2\"/><pattern regex=\"pool-test: (\\w+) (.*)\"/></parser>";
+    RegexParser first = RegexParser.deserialize(xml);
+    RegexParser second = RegexParser.deserialize(xml);
+    RegexPattern a = first.getPatterns().get(0);
+    RegexPattern b = second.getPatterns().get(0);
+    Assert.assertNotSame(a, b);
+    Assert.assertSame(a.getPattern(), b.getPattern());
+    Assert.assertSame(a.getCompiled(), b.getCompiled());
+    // Other output-expr, same regex
+    Assert.assertNotSame(first.getPatterns().get(1).getCompiled(), a.getCompiled());
+    Assert.assertSame(first.getPatterns().get(1).getAnalysis(), a.getAnalysis());
+
+    first.release();
+    first.release();
+    // Released parser is still usable
+    final RecordingLogger logger = new RecordingLogger();
+    Assert.assertTrue(first.processLine("pool-test: x y", new ParserManager(logger)));
+    Assert.assertEquals(logger.records.toString(), "[message: y]");
+    Assert.assertSame(a.getCompiled(), b.getCompiled());
+    Assert.assertTrue(PatternPool.contains("pool-test: (\\w+) (.*)", 0));
+
+    // Dropped parsers need no release
+    first = null;
+    second = null;
+    a = null;
+    b = null;
+    Assert.assertTrue(awaitRemoved("pool-test: (\\w+) (.*)"));
+  }
+
+  private static boolean awaitRemoved(final String regex) throws InterruptedException {
+    for (int i = 0; i < 100; i++) {
+      if (!PatternPool.contains(regex, 0)) return true;
+      System.gc();
+      Thread.sleep(10);
+    }
+    return false;
+  }
+
+  @Test
+  public void testParserGroup() throws Exception {
+    final RegexParser errors = new RegexParser("errors", "errors");
+    errors.addPattern(new RegexPattern(Pattern.compile("error: (.*)"), "$1", Severity.ERROR, true));
+    final RegexParser warnings = new RegexParser("warnings", "warnings");
+    warnings.addPattern(new RegexPattern(Pattern.compile("warning: .{3,}"), "$0", Severity.WARN, true));
+    final RegexParser any = new RegexParser("any", "any");
+    any.addPattern(new RegexPattern(Pattern.compile(".*"), "$0", Severity.INFO, false));
+    final RegexParser records = new RegexParser("records", "records");
+    records.addMultilinePattern(new MultilinePattern(Pattern.compile("begin"), Pattern.compile("  .*"), "$0", Severity.INFO, true, 100, 60000));
+
+    final ParserGroup group = new ParserGroup(Arrays.asList(errors, warnings, any, records));
+    final ParserGroup.Selection selection = group.createSelection();
+    selection.select("error: x");
+    Assert.assertTrue(selection.isSelected(0));
+    Assert.assertFalse(selection.isSelected(1));
+    Assert.assertTrue(selection.isSelected(2));
+    Assert.assertTrue(selection.isSelected(3));
+    // Literal is there, but the line is too short
+    selection.select("warning: x");
+    Assert.assertFalse(selection.isSelected(0));
+    Assert.assertFalse(selection.isSelected(1));
+    selection.select("warning: xyz");
+    Assert.assertTrue(selection.isSelected(1));
+
+    Assert.assertTrue(group.isUpToDate());
+    warnings.addPattern(new RegexPattern(Pattern.compile("note: .*"), "$0", Severity.INFO, true));
+    Assert.assertFalse(group.isUpToDate());
+  }
+
+  @Test
+  public void testCostReport() throws Exception {
+    Assert.assertEquals(cost("error: (.*)"), PatternCost.LINEAR);
+    Assert.assertEquals(cost("(a+b)+"), PatternCost.LINEAR);
+    Assert.assertEquals(cost("(?:a++)+b"), PatternCost.LINEAR);
+    Assert.assertEquals(cost("\\S+:\\d+: .*"), PatternCost.LINEAR);
+    Assert.assertEquals(cost("(a+)+b"), PatternCost.EXPONENTIAL);
+    Assert.assertEquals(cost("(\\w+\\s?)+:"), PatternCost.EXPONENTIAL);
+    Assert.assertEquals(cost("(\\d|\\w)+x"), PatternCost.EXPONENTIAL);
+    Assert.assertEquals(cost("(a+){2,5}b"), PatternCost.POLYNOMIAL);
+    Assert.assertEquals(cost(".*a.*b"), PatternCost.POLYNOMIAL);
+    Assert.assertEquals(cost("\\S+\\d+x"), PatternCost.POLYNOMIAL);
+    // Repetition ending the pattern never fails
+    Assert.assertEquals(cost(".*a.*"), PatternCost.LINEAR);
+    Assert.assertEquals(cost("(\\w+) \\1"), PatternCost.POLYNOMIAL);
+    Assert.assertEquals(cost("(?x)a b"), PatternCost.UNKNOWN);
+
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addPattern(new RegexPattern(Pattern.compile("error: (.*)"), "$1", Severity.ERROR, true));
+    parser.addPattern(new RegexPattern(Pattern.compile(".*warning.*"), "$0", Severity.WARN, false));
+    parser.addPattern(new RegexPattern(Pattern.compile("(.*)"), "$1", Severity.INFO, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("x{1000}"), "$0", Severity.INFO, true));
+    final ParserCostReport report = parser.getCostReport();
+    Assert.assertSame(parser.getCostReport(), report);
+    Assert.assertEquals(report.getSummary(), "4 LINEAR, 3 findings");
+    Assert.assertEquals(issues(report.getPatterns().get(0)), "[]");
+    Assert.assertEquals(issues(report.getPatterns().get(1)), "[UNANCHORED]");
+    // Catch-all itself is not reported as unanchored
+    Assert.assertEquals(issues(report.getPatterns().get(2)), "[]");
+    Assert.assertEquals(issues(report.getPatterns().get(3)), "[EXPENSIVE, SHADOWED]");
+    Assert.assertTrue(report.toString().contains("pattern #4 [x{1000}]: LINEAR\n    EXPENSIVE: "), report.toString());
+  }
+
+  @Test
+  public void testCostPolicy() throws Exception {
+    final RegexParser parser = new RegexParser("id", "name");
+    parser.addPattern(new RegexPattern(Pattern.compile("(a+)+b"), "unexpected", Severity.ERROR, true));
+    parser.addPattern(new RegexPattern(Pattern.compile(".*a.*b"), "unexpected", Severity.ERROR, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("a+"), "ok", Severity.INFO, true));
+    parser.setMatchingBudget(100000);
+
+    Assert.assertEquals(parser.applyCostPolicy(CostPolicy.WARN, PatternCost.POLYNOMIAL).getSummary(), "1 LINEAR, 1 POLYNOMIAL, 1 EXPONENTIAL, 3 findings");
+    Assert.assertNull(parser.getPatterns().get(0).getEngine());
+    try {
+      parser.applyCostPolicy(CostPolicy.REJECT, PatternCost.EXPONENTIAL);
+      Assert.fail("Parser should be rejected");
+    } catch (ParserLoadingException e) {
+      Assert.assertTrue(e.getMessage().contains("pattern #1 [(a+)+b]: EXPONENTIAL"), e.getMessage());
+      Assert.assertFalse(e.getMessage().contains("pattern #2"), e.getMessage());
+    }
+
+    final ParserCostReport report = parser.applyCostPolicy(CostPolicy.SAFE_ENGINE, PatternCost.EXPONENTIAL);
+    Assert.assertEquals(parser.getPatterns().get(0).getEngine(), RegexEngine.AUTOMATON);
+    Assert.assertNull(parser.getPatterns().get(1).getEngine());
+    Assert.assertTrue(report.getPatterns().get(0).isAutomaton());
+    Assert.assertSame(report.getPatterns().get(0).getPattern(), parser.getPatterns().get(0));
+    parser.applyCostPolicy(CostPolicy.SAFE_ENGINE, PatternCost.POLYNOMIAL);
+    Assert.assertEquals(parser.getPatterns().get(1).getEngine(), RegexEngine.AUTOMATON);
+    final StringBuilder line = new StringBuilder();
+    for (int i = 0; i < 100000; i++) {
+      line.append('a');
+    }
+    final RecordingLogger logger = new RecordingLogger();
+    Assert.assertTrue(parser.processLine(line, new ParserManager(logger)));
+    Assert.assertEquals(logger.records.toString(), "[message: ok]");
+  }
+
+  private static PatternCost cost(final String regex) {
+    return CostAnalyzer.analyze(RegexTree.parse(Pattern.compile(regex))).getCost();
+  }
+
+  private static String issues(final ParserCostReport.PatternReport report) {
+    final List<ParserCostReport.Issue> issues = new ArrayList<ParserCostReport.Issue>();
+    for (ParserCostReport.Finding finding : report.getFindings()) {
+      issues.add(finding.getIssue());
+    }
+    return issues.toString();
+  }
+
+  private static void assertMetrics(final PatternMetrics.Snapshot snapshot, final long attempts, final long matches, final long failures) {
+    Assert.assertEquals(snapshot.getAttempts(), attempts, snapshot.toString());
+    Assert.assertEquals(snapshot.getMatches(), matches, snapshot.toString());
+    Assert.assertEquals(snapshot.getFailures(), failures, snapshot.toString());
+  }
+
+  private static boolean areDisjoint(final String first, final String second) {
+    final RegexPattern a = new RegexPattern(Pattern.compile(first), "$0", Severity.INFO, true);
+    final RegexPattern b = new RegexPattern(Pattern.compile(second), "$0", Severity.INFO, true);
+    Assert.assertEquals(PatternOrdering.areDisjoint(b, a), PatternOrdering.areDisjoint(a, b));
+    return PatternOrdering.areDisjoint(a, b);
+  }
+
+  private static String requiredLiterals(final String regex) {
+    return RequiredLiterals.extract(RegexTree.parse(Pattern.compile(regex))).toString();
+  }
+
+  private static List<String> process(final RegexParser parser, final boolean compiled) {
+    parser.setCompiledMatching(compiled);
+    final RecordingLogger logger = new RecordingLogger();
+    final ParserManager manager = new ParserManager(logger);
+    final List<String> result = new ArrayList<String>();
+    for (String line : LINES) {
+      result.add(line + " -> " + parser.processLine(line, manager));
+    }
+    result.addAll(logger.records);
+    return result;
+  }
+}
@@ -6,6 +6,7 @@ import jetbrains.buildServer.BaseTestCase;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -32,4 +33,83 @@ public class RegexPatternTest extends BaseTestCase {
 
     Assert.assertEquals(((Pattern) parsedObject).pattern(), patternString);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testUnreferencedGroupsBecomeNonCapturing() throws Exception {
+    final RegexPattern pattern = new RegexPattern(Pattern.compile("(\\w+):(\\d+): (error|warning): (.*)"), "$4 at $1", Severity.ERROR, true);
+    Assert.assertEquals(pattern.getCompiled().getPattern().pattern(), "(\\w+):(?:\\d+): (?:error|warning): (.*)");
+    Assert.assertEquals(pattern.getCompiled().getDescriptionExpression(), "$2 at $1");
+    Assert.assertEquals(pattern.getPattern().pattern(), "(\\w+):(\\d+): (error|warning): (.*)");
+
+    final RecordingLogger logger = new RecordingLogger();
+    Assert.assertTrue(pattern.processLine("main:12: error: oops", new ParserManager(logger)));
+    Assert.assertEquals(logger.records.toString(), "[error: oops at main]");
+  }
+
+  @Test
+  public void testGroupReferenceDigitsAreKept() throws Exception {
+    final RegexPattern pattern = new RegexPattern(Pattern.compile("(a)(b)(c)(d)(e)(f)(g)(h)(i)(j)"), "$10$9", Severity.INFO, true);
+    Assert.assertEquals(pattern.getCompiled().getDescriptionExpression(), "$2$1");
+
+    final RecordingLogger logger = new RecordingLogger();
+    Assert.assertTrue(pattern.processLine("abcdefghij", new ParserManager(logger)));
+    Assert.assertEquals(logger.records.toString(), "[message: ji]");
+  }
+
+  @Test
+  public void testMatchLengthBounds() throws Exception {
+    final PatternAnalysis fixed = PatternAnalysis.analyze(Pattern.compile("error C\\d{4}(: .{0,3})?"));
+    Assert.assertEquals(fixed.getMinLength(), 11);
+    // Classes could match supplementary characters, so every class counts for two chars
+    Assert.assertEquals(fixed.getMaxLength(), 7 + 4 * 2 + 2 + 3 * 2);
+
+    final PatternAnalysis unbounded = PatternAnalysis.analyze(Pattern.compile("(?i)warning: .*"));
+    Assert.assertEquals(unbounded.getMinLength(), 9);
+    Assert.assertEquals(unbounded.getMaxLength(), RegexTree.UNBOUNDED);
+    Assert.assertFalse(unbounded.isLengthAccepted(8));
+    Assert.assertTrue(unbounded.isLengthAccepted(100000));
+  }
+
+  @Test
+  public void testAutomatonMatchesAsJdk() throws Exception {
+    final String[] lines = {"", "a", "ab", "aab", "abab", "aaaa", "Warning: x", "warning: x\n", "x\r\n", "b\u00e9", "\ud83d\ude00!"};
+    final String[] regexes = {"a*", "a*?b?", "(a|ab)(c|bcd)?(d*)", "(ab|a)+?b?", "a{1,2}(ab){0,1}", "(?i)warning: .*$", "x\\Z",
+        "[^a]+.", ".{2}", "\\w+\\W?", "(?:a|b)*ab\\z", "^(a+)+$", "(?s).+", "b\\p{L}"};
+    for (String regex : regexes) {
+      final Pattern pattern = Pattern.compile(regex);
+      final RegexAutomaton automaton = PatternAnalysis.analyze(pattern).getAutomaton();
+      Assert.assertNotNull(automaton, regex);
+      final RegexAutomaton.Simulation simulation = automaton.createSimulation();
+      for (String line : lines) {
+        final Matcher matcher = pattern.matcher(line);
+        Assert.assertEquals(simulation.matchesWhole(line), matcher.lookingAt() && matcher.end() == line.length(), regex + " on " + line);
+      }
+    }
+    // Matched by the JDK only
+    for (String regex : new String[]{"(a)\\1", "a(?=b)", "(?<!a)b", "(?>a|ab)", "a++", "\\bword", "(?m)^a", "(a*)*", "\\R"}) {
+      Assert.assertNull(PatternAnalysis.analyze(Pattern.compile(regex)).getAutomaton(), regex);
+    }
+  }
+
+  @Test
+  public void testDescriptionTemplate() throws Exception {
+    final String line = "error: file.c: oops";
+    final RegexPattern whole = new RegexPattern(Pattern.compile("error: (.*)"), "$0", Severity.ERROR, true);
+    final Matcher matcher = whole.getCompiled().getPattern().matcher(line);
+    Assert.assertTrue(matcher.lookingAt());
+    Assert.assertSame(whole.getCompiled().describe(matcher, line), line);
+
+    assertDescribedAsReplaceAll(line, "error: ([^:]*): (.*)", "$2 in \\$$1\\\\");
+    assertDescribedAsReplaceAll(line, "error: (?<file>[^:]*)(: )?(.*)", "${file}$2$3");
+    assertDescribedAsReplaceAll(line, "(x)?.*", "[$0$1]");
+    assertDescribedAsReplaceAll(line, ".*", "constant");
+  }
+
+  private static void assertDescribedAsReplaceAll(final String line, final String regex, final String expression) {
+    final Pattern pattern = Pattern.compile(regex);
+    final CompiledPattern compiled = new RegexPattern(pattern, expression, Severity.INFO, true).getCompiled();
+    final Matcher matcher = compiled.getPattern().matcher(line);
+    Assert.assertTrue(matcher.lookingAt());
+    Assert.assertEquals(compiled.describe(matcher, line), pattern.matcher(line).replaceAll(expression));
+  }
+}
@@ -0,0 +1,136 @@
+package jetbrains.buildServer.agent.messages;
+
+import jetbrains.buildServer.messages.BuildMessage1;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@linkplain SimpleMessagesTranslator} able to process a batch of text messages at once.
+ * <br/>
+ * {@linkplain TextBuildMessagesTranslator} passes consecutive text messages as a single batch,
+ * so locks, buffers and dispatch are paid once per batch instead of once per line.
+ * Result for every text is the same as {@linkplain #doProcessText(String, BuildLogTail)} would return.
+ */
+public interface BatchMessagesTranslator extends SimpleMessagesTranslator {
+  @NotNull
+  BatchResult doProcessTexts(@NotNull List<String> texts, @NotNull BuildLogTail tail);
+
+  /**
+   * Results of a batch: per text result code plus a single list of all the messages produced.
+   */
+  final class BatchResult {
+    public static final byte SKIP = 0;
+    public static final byte KEEP_ORIGIN = 1;
+    public static final byte EAT = 2;
+    public static final byte REPLACE = 3;
+
+    @NotNull
+    private final byte[] myCodes;
+    /**
+     * Messages replacing text {@code i} are {@code myMessages[myOffsets[i], myOffsets[i + 1])}.
+     */
+    @NotNull
+    private final int[] myOffsets;
+    @NotNull
+    private final List<BuildMessage1> myMessages;
+
+    private BatchResult(@NotNull final byte[] codes, @NotNull final int[] offsets, @NotNull final List<BuildMessage1> messages) {
+      myCodes = codes;
+      myOffsets = offsets;
+      myMessages = messages;
+    }
+
+    public int size() {
+      return myCodes.length;
+    }
+
+    /**
+     * @return one of {@link #SKIP}, {@link #KEEP_ORIGIN}, {@link #EAT} or {@link #REPLACE}
+     */
+    public byte getCode(final int text) {
+      return myCodes[text];
+    }
+
+    public boolean isConsumed(final int text) {
+      return myCodes[text] != SKIP;
+    }
+
+    public boolean isKeepOrigin(final int text) {
+      return myCodes[text] == SKIP || myCodes[text] == KEEP_ORIGIN;
+    }
+
+    /**
+     * @return messages replacing the text, empty unless its code is {@link #REPLACE}
+     */
+    @NotNull
+    public List<BuildMessage1> getMessages(final int text) {
+      if (myCodes[text] != REPLACE) return Collections.emptyList();
+      return myMessages.subList(myOffsets[text], myOffsets[text + 1]);
+    }
+
+    /**
+     * @return messages produced for all the texts of the batch
+     */
+    @NotNull
+    public List<BuildMessage1> getAllMessages() {
+      return Collections.unmodifiableList(myMessages);
+    }
+
+    @NotNull
+    public SimpleMessagesTranslator.Result toResult(final int text) {
+      switch (myCodes[text]) {
+        case KEEP_ORIGIN:
+          return Result.KEEP_ORIGIN;
+        case EAT:
+          return Result.EAT;
+        case REPLACE:
+          return Result.REPLACE(getMessages(text));
+        default:
+          return Result.SKIP;
+      }
+    }
+
+    /**
+     * Collects results of a batch text by text.
+     */
+    public static final class Builder {
+      @NotNull
+      private final byte[] myCodes;
+      @NotNull
+      private final int[] myOffsets;
+      @NotNull
+      private final List<BuildMessage1> myMessages = new ArrayList<BuildMessage1>();
+      private int mySize;
+
+      public Builder(final int size) {
+        myCodes = new byte[size];
+        myOffsets = new int[size + 1];
+      }
+
+      /**
+       * @param code     - result code of the next text
+       * @param messages - messages replacing the text, taken into account for {@link #REPLACE} code only
+       */
+      @NotNull
+      public Builder add(final byte code, @NotNull final List<BuildMessage1> messages) {
+        myCodes[mySize] = code;
+        if (code == REPLACE) {
+          myMessages.addAll(messages);
+        }
+        myOffsets[++mySize] = myMessages.size();
+        return this;
+      }
+
+      @NotNull
+      public BatchResult build() {
+        if (mySize != myCodes.length) {
+          throw new IllegalStateException("Results for " + mySize + " texts of " + myCodes.length + " were added");
+        }
+        return new BatchResult(myCodes, myOffsets, myMessages);
+      }
+    }
+  }
+}
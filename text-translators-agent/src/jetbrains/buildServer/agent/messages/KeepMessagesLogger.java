@@ -4,8 +4,10 @@ package jetbrains.buildServer.agent.messages;
 
 import jetbrains.buildServer.agent.BaseServerLoggerFacade;
 import jetbrains.buildServer.messages.BuildMessage1;
+import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -28,4 +30,12 @@ public class KeepMessagesLogger extends BaseServerLoggerFacade {
     myUnprocessedMessages.clear();
     return list;
   }
+
+  /**
+   * Same as {@linkplain #getUnprocessedMessagesAndReset()}, but adds messages to the given collection instead of creating a new one.
+   */
+  public void drainUnprocessedMessagesTo(@NotNull final Collection<? super BuildMessage1> target) {
+    target.addAll(myUnprocessedMessages);
+    myUnprocessedMessages.clear();
+  }
 }
\ No newline at end of file
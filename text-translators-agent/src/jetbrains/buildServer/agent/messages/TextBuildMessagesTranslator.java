@@ -73,56 +73,93 @@ public class TextBuildMessagesTranslator implements BuildMessagesTranslator {
 
     final ArrayList<BuildMessage1> result = new ArrayList<BuildMessage1>(messages.size());
     final List<SimpleMessagesTranslator> translators = getAllTranslators((AgentRunningBuildEx) build);
-
-
-    for (BuildMessage1 message : messages) {
-      ServiceMessagesProcessor.processTextMessage(message, new AbstractTextMessageProcessor() {
-        public void processServiceMessage(final @NotNull ServiceMessage message, final @NotNull BuildMessage1 originalMessage) {
-          if (ServiceMessage.DISABLE.equals(message.getMessageName())) {
-            mySuspendServiceMessages = true;
-            return;
-          }
-          if (ServiceMessage.ENABLE.equals(message.getMessageName())) {
-            mySuspendServiceMessages = false;
-            return;
-          }
-          if (mySuspendServiceMessages) return;
-
-          for (SimpleMessagesTranslator simpleMessagesTranslator : translators) {
-            final SimpleMessagesTranslator.Result result1 = simpleMessagesTranslator.doProcessMessage(message, tail);
-            if (!result1.isConsumed()) continue;
-            final List<BuildMessage1> additional = new ArrayList<BuildMessage1>();
-            if (result1.isKeepOrigin()) {
-              additional.add(originalMessage);
-            }
-            additional.addAll(result1.getMessages());
-            result.addAll(additional);
-          }
+    // Consecutive text messages are translated as a single batch, service messages in between flush the batch to keep the order
+    final List<BuildMessage1> texts = new ArrayList<BuildMessage1>(messages.size());
+
+    final AbstractTextMessageProcessor processor = new AbstractTextMessageProcessor() {
+      public void processServiceMessage(final @NotNull ServiceMessage message, final @NotNull BuildMessage1 originalMessage) {
+        processTexts(texts, translators, tail, result);
+        if (ServiceMessage.DISABLE.equals(message.getMessageName())) {
+          mySuspendServiceMessages = true;
+          return;
+        }
+        if (ServiceMessage.ENABLE.equals(message.getMessageName())) {
+          mySuspendServiceMessages = false;
+          return;
         }
+        if (mySuspendServiceMessages) return;
 
-        @Override
-        public void processText(final @NotNull BuildMessage1 originalMessage) {
-          for (SimpleMessagesTranslator simpleMessagesTranslator : translators) {
-            final SimpleMessagesTranslator.Result result1 = simpleMessagesTranslator.doProcessText((String) originalMessage.getValue(), tail);
-            if (!result1.isConsumed()) continue;
-            final List<BuildMessage1> additional = new ArrayList<BuildMessage1>();
-            if (result1.isKeepOrigin()) {
-              additional.add(originalMessage);
-            }
-            additional.addAll(result1.getMessages());
-            result.addAll(additional);
+        for (SimpleMessagesTranslator simpleMessagesTranslator : translators) {
+          final SimpleMessagesTranslator.Result result1 = simpleMessagesTranslator.doProcessMessage(message, tail);
+          if (!result1.isConsumed()) continue;
+          if (result1.isKeepOrigin()) {
+            result.add(originalMessage);
           }
+          result.addAll(result1.getMessages());
         }
+      }
 
-        @Override
-        public void processParseException(final @NotNull ParseException e, final @NotNull BuildMessage1 originalMessage) {
-          LOG.warn("Invalid service message: " + originalMessage.getValue() + ", error: " + e.toString());
-        }
-      });
+      @Override
+      public void processText(final @NotNull BuildMessage1 originalMessage) {
+        texts.add(originalMessage);
+      }
+
+      @Override
+      public void processParseException(final @NotNull ParseException e, final @NotNull BuildMessage1 originalMessage) {
+        LOG.warn("Invalid service message: " + originalMessage.getValue() + ", error: " + e.toString());
+      }
+    };
+    for (BuildMessage1 message : messages) {
+      ServiceMessagesProcessor.processTextMessage(message, processor);
     }
+    processTexts(texts, translators, tail, result);
     return result;
   }
 
+  /**
+   * Translates text messages collected so far and clears the list.
+   * <br/>
+   * {@linkplain BatchMessagesTranslator}s get all the texts in a single call, other translators get texts one by one.
+   * Translated messages are added to the result in the same order as if every text was passed to every translator in turn.
+   */
+  private static void processTexts(@NotNull final List<BuildMessage1> texts,
+                                   @NotNull final List<SimpleMessagesTranslator> translators,
+                                   @NotNull final BuildLogTail tail,
+                                   @NotNull final List<BuildMessage1> result) {
+    if (texts.isEmpty()) return;
+    final List<String> values = new ArrayList<String>(texts.size());
+    for (BuildMessage1 text : texts) {
+      values.add((String) text.getValue());
+    }
+    final BatchMessagesTranslator.BatchResult[] batches = new BatchMessagesTranslator.BatchResult[translators.size()];
+    for (int t = 0; t < batches.length; t++) {
+      final SimpleMessagesTranslator translator = translators.get(t);
+      if (translator instanceof BatchMessagesTranslator) {
+        batches[t] = ((BatchMessagesTranslator) translator).doProcessTexts(values, tail);
+      }
+    }
+    for (int i = 0; i < texts.size(); i++) {
+      for (int t = 0; t < batches.length; t++) {
+        final BatchMessagesTranslator.BatchResult batch = batches[t];
+        if (batch != null) {
+          if (!batch.isConsumed(i)) continue;
+          if (batch.isKeepOrigin(i)) {
+            result.add(texts.get(i));
+          }
+          result.addAll(batch.getMessages(i));
+        } else {
+          final SimpleMessagesTranslator.Result result1 = translators.get(t).doProcessText(values.get(i), tail);
+          if (!result1.isConsumed()) continue;
+          if (result1.isKeepOrigin()) {
+            result.add(texts.get(i));
+          }
+          result.addAll(result1.getMessages());
+        }
+      }
+    }
+    texts.clear();
+  }
+
   @NotNull
   private List<SimpleMessagesTranslator> getAllTranslators(@NotNull final AgentRunningBuildEx build) {
     final BuildRunnerContext runnerContext = myActiveRunner.get();
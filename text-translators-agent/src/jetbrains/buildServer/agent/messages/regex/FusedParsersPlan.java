@@ -0,0 +1,148 @@
+package jetbrains.buildServer.agent.messages.regex;
+
+import jetbrains.buildServer.agent.messages.BatchMessagesTranslator.BatchResult;
+import jetbrains.buildServer.messages.BuildMessage1;
+import jetbrains.teamcity.util.regex.ParserGroup;
+import jetbrains.teamcity.util.regex.RegexParser;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Evaluates all enabled parsers in a single pass over a batch of texts.
+ * <br/>
+ * Adapters stay registered as separate translators, so the translators chain gets exactly the same per parser results.
+ * The first adapter asked to process a batch makes the plan process it with all the adapters at once, under a single lock:
+ * each text is scanned once by a {@link ParserGroup} and only parsers which could match it run their patterns.
+ * Results of other adapters are kept until they are asked for the same batch.
+ * <br/>
+ * Every adapter processes every text once: an adapter asking for a batch its result was not computed for, e.g. asking again
+ * or while results of another batch are not taken yet, processes the batch on its own. An adapter never taking its result
+ * makes the plan fall back to that until the plan is replaced.
+ */
+public final class FusedParsersPlan {
+  @NotNull
+  private final RegexParserToSimpleMessagesTranslatorAdapter[] myAdapters;
+  @NotNull
+  private ParserGroup myGroup;
+  private ParserGroup.Selection mySelection;
+  /**
+   * Batch the results are computed for, compared by identity.
+   */
+  private List<String> myTexts;
+  @NotNull
+  private final BatchResult[] myResults;
+  /**
+   * Number of results computed for {@link #myTexts} which are not taken yet.
+   */
+  private int myPending;
+  @NotNull
+  private final List<BuildMessage1> myLineMessages = new ArrayList<BuildMessage1>();
+
+  public FusedParsersPlan(@NotNull final List<RegexParserToSimpleMessagesTranslatorAdapter> adapters) {
+    myAdapters = adapters.toArray(new RegexParserToSimpleMessagesTranslatorAdapter[adapters.size()]);
+    myResults = new BatchResult[myAdapters.length];
+    myGroup = createGroup();
+  }
+
+  /**
+   * Makes adapters use this plan.
+   */
+  public void attach() {
+    for (RegexParserToSimpleMessagesTranslatorAdapter adapter : myAdapters) {
+      adapter.setPlan(this);
+    }
+  }
+
+  /**
+   * Makes adapters process texts on their own again.
+   */
+  public void detach() {
+    for (RegexParserToSimpleMessagesTranslatorAdapter adapter : myAdapters) {
+      adapter.setPlan(null);
+    }
+  }
+
+  public int size() {
+    return myAdapters.length;
+  }
+
+  /**
+   * @return result of the adapter for the batch, each result is returned once, a batch asked for again is processed again
+   * by the adapter alone
+   */
+  @NotNull
+  synchronized BatchResult getResult(@NotNull final RegexParserToSimpleMessagesTranslatorAdapter adapter, @NotNull final List<String> texts) {
+    final int index = indexOf(adapter);
+    if (index < 0) {
+      throw new IllegalArgumentException("Parser '" + adapter.getName() + "' is not a part of the plan");
+    }
+    if (texts == myTexts ? myResults[index] == null : myPending > 0) {
+      // Fused pass would make other adapters process texts once more
+      return adapter.processTexts(texts);
+    }
+    if (texts != myTexts) {
+      process(texts);
+    }
+    final BatchResult result = myResults[index];
+    myResults[index] = null;
+    myPending--;
+    return result;
+  }
+
+  /**
+   * Lock adapters of the plan should hold while processing texts on their own.
+   */
+  @NotNull
+  Object getLock() {
+    return this;
+  }
+
+  private void process(@NotNull final List<String> texts) {
+    if (!myGroup.isUpToDate()) {
+      myGroup = createGroup();
+      mySelection = null;
+    }
+    if (mySelection == null) {
+      mySelection = myGroup.createSelection();
+    }
+    final BatchResult.Builder[] builders = new BatchResult.Builder[myAdapters.length];
+    for (int a = 0; a < myAdapters.length; a++) {
+      builders[a] = new BatchResult.Builder(texts.size());
+    }
+    for (String text : texts) {
+      mySelection.select(text);
+      for (int a = 0; a < myAdapters.length; a++) {
+        if (!mySelection.isSelected(a)) {
+          builders[a].add(BatchResult.SKIP, Collections.<BuildMessage1>emptyList());
+          continue;
+        }
+        builders[a].add(myAdapters[a].processText(text, myLineMessages), myLineMessages);
+        myLineMessages.clear();
+      }
+    }
+    for (int a = 0; a < myAdapters.length; a++) {
+      myResults[a] = builders[a].build();
+    }
+    myTexts = texts;
+    myPending = myAdapters.length;
+  }
+
+  @NotNull
+  private ParserGroup createGroup() {
+    final List<RegexParser> parsers = new ArrayList<RegexParser>(myAdapters.length);
+    for (RegexParserToSimpleMessagesTranslatorAdapter adapter : myAdapters) {
+      parsers.add(adapter.getParser());
+    }
+    return new ParserGroup(parsers);
+  }
+
+  private int indexOf(@NotNull final RegexParserToSimpleMessagesTranslatorAdapter adapter) {
+    for (int i = 0; i < myAdapters.length; i++) {
+      if (myAdapters[i] == adapter) return i;
+    }
+    return -1;
+  }
+}
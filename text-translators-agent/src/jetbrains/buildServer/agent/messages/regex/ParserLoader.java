@@ -17,4 +17,14 @@ public interface ParserLoader {
   RegexParser load(@NotNull final ParserCommand.ParserId parserId) throws FileNotFoundException, ParserLoadingException;
 
   void unload(@NotNull final ParserCommand.ParserId parserId);
+
+  /**
+   * Marks the parser as used, e.g. registered, so it is not {@link RegexParser#release() released} while it is used.
+   */
+  void acquire(@NotNull RegexParser parser);
+
+  /**
+   * Releases a use of the parser, the parser is {@link RegexParser#release() released} once it is neither used nor loaded.
+   */
+  void release(@NotNull RegexParser parser);
 }
\ No newline at end of file
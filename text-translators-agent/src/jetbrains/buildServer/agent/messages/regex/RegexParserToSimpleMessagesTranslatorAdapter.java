@@ -3,35 +3,74 @@
 package jetbrains.buildServer.agent.messages.regex;
 
 import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import jetbrains.buildServer.agent.messages.BatchMessagesTranslator;
 import jetbrains.buildServer.agent.messages.BuildLogTail;
 import jetbrains.buildServer.agent.messages.KeepMessagesLogger;
-import jetbrains.buildServer.agent.messages.SimpleMessagesTranslator;
 import jetbrains.buildServer.messages.BuildMessage1;
 import jetbrains.buildServer.messages.serviceMessages.ServiceMessage;
+import jetbrains.teamcity.util.regex.MultilinePattern;
+import jetbrains.teamcity.util.regex.ParseEvent;
+import jetbrains.teamcity.util.regex.ParseEventSink;
 import jetbrains.teamcity.util.regex.ParserManager;
+import jetbrains.teamcity.util.regex.ParsingSession;
 import jetbrains.teamcity.util.regex.RegexParser;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
 import java.util.List;
 
-public class RegexParserToSimpleMessagesTranslatorAdapter implements SimpleMessagesTranslator {
+public class RegexParserToSimpleMessagesTranslatorAdapter implements BatchMessagesTranslator {
   private static final Logger LOG = Logger.getInstance(RegexParserToSimpleMessagesTranslatorAdapter.class.getName());
   private final RegexParser myParser;
+  private final ParsingSession mySession;
   private final ParserManager myManager;
   private final KeepMessagesLogger myLogger;
+  /**
+   * Messages of the line being processed in a batch, reused from line to line.
+   */
+  private final List<BuildMessage1> myLineMessages = new ArrayList<BuildMessage1>();
+  /**
+   * Whether a record of {@link MultilinePattern} was logged while processing the current line.
+   */
+  private boolean myRecordLogged;
+  /**
+   * Plan evaluating this parser together with other enabled ones, see {@link FusedParsersPlan}.
+   */
+  @Nullable
+  private volatile FusedParsersPlan myPlan;
 
   public RegexParserToSimpleMessagesTranslatorAdapter(@NotNull final RegexParser parser,
                                                       @NotNull final ParserManager manager,
                                                       @NotNull final KeepMessagesLogger logger) {
     myParser = parser;
+    mySession = parser.createSession();
     myManager = manager;
     myLogger = logger;
+    manager.addEventSink(new ParseEventSink() {
+      public boolean handle(@NotNull final ParseEvent event) {
+        if (!myRecordLogged && isRecordStart(event)) {
+          myRecordLogged = true;
+        }
+        return false;
+      }
+    });
   }
 
   public String getName() {
     return myParser.getName();
   }
 
+  @NotNull
+  public RegexParser getParser() {
+    return myParser;
+  }
+
+  void setPlan(@Nullable final FusedParsersPlan plan) {
+    myPlan = plan;
+  }
+
   @Override
   public Result doProcessMessage(@NotNull final ServiceMessage message, @NotNull final BuildLogTail tail) {
     return Result.SKIP;
@@ -39,28 +78,141 @@ public class RegexParserToSimpleMessagesTranslatorAdapter implements SimpleMessa
 
   @Override
   public Result doProcessText(@NotNull final String text, @NotNull final BuildLogTail tail) {
-    final List<BuildMessage1> messages;
-    final boolean consumed;
+    final List<BuildMessage1> messages = new ArrayList<BuildMessage1>();
+    final byte code;
+    synchronized (getLock()) {
+      code = processText(text, messages);
+    }
+    switch (code) {
+      case BatchResult.KEEP_ORIGIN:
+        return Result.KEEP_ORIGIN;
+      case BatchResult.EAT:
+        return Result.EAT;
+      case BatchResult.REPLACE:
+        return Result.REPLACE(messages);
+      default:
+        return Result.SKIP;
+    }
+  }
+
+  @NotNull
+  public BatchResult doProcessTexts(@NotNull final List<String> texts, @NotNull final BuildLogTail tail) {
+    final FusedParsersPlan plan = myPlan;
+    if (plan != null) {
+      return plan.getResult(this, texts);
+    }
     synchronized (this) {
-      consumed = myParser.processLine(text, myManager);
-      messages = myLogger.getUnprocessedMessagesAndReset();
+      return processTexts(texts);
     }
-    if (!consumed) {
-      if (!messages.isEmpty()) {
-        LOG.warn("Parser '" + myParser.getId() + "'not consumed message but there some pending messages produced: " + messages);
+  }
+
+  /**
+   * Logs the record of a {@link MultilinePattern} collected so far to the logger. Call it once no more lines come:
+   * when the step finishes or the parser is disabled, otherwise the record is logged only when the next line comes.
+   */
+  public void flush(@NotNull final BuildProgressLogger logger) {
+    flush(logger, false);
+  }
+
+  /**
+   * Logs the record of a {@link MultilinePattern} to the logger if its {@code flush-timeout} passed, so a record is not held
+   * while the output is quiet. Lines coming meanwhile check the timeout on their own.
+   */
+  public void flushExpired(@NotNull final BuildProgressLogger logger) {
+    flush(logger, true);
+  }
+
+  private void flush(@NotNull final BuildProgressLogger logger, final boolean expiredOnly) {
+    final List<BuildMessage1> messages = new ArrayList<BuildMessage1>();
+    synchronized (getLock()) {
+      if (expiredOnly) {
+        mySession.flushExpired(myManager);
+      } else {
+        mySession.flush(myManager);
       }
-      return Result.SKIP;
+      myLogger.drainUnprocessedMessagesTo(messages);
+    }
+    for (BuildMessage1 message : messages) {
+      logger.logMessage(message);
+    }
+  }
+
+  /**
+   * Processes the texts one by one, the caller should hold {@link #getLock()}.
+   */
+  @NotNull
+  BatchResult processTexts(@NotNull final List<String> texts) {
+    final BatchResult.Builder builder = new BatchResult.Builder(texts.size());
+    for (String text : texts) {
+      builder.add(processText(text, myLineMessages), myLineMessages);
+      myLineMessages.clear();
+    }
+    return builder.build();
+  }
+
+  /**
+   * Processes the text, the caller should hold {@link #getLock()}.
+   *
+   * @param messages - collects messages replacing the text
+   * @return result code, see {@link BatchResult}
+   */
+  byte processText(@NotNull final String text, @NotNull final List<BuildMessage1> messages) {
+    final boolean consumed = processLine(text, messages);
+    return getResultCode(text, consumed, messages);
+  }
+
+  /**
+   * @return lock guarding the parsing session, shared by all adapters of a plan
+   */
+  @NotNull
+  private Object getLock() {
+    final FusedParsersPlan plan = myPlan;
+    return plan == null ? this : plan.getLock();
+  }
+
+  /**
+   * Processes the line and collects messages logged meanwhile.
+   * <br/>
+   * A line not consumed by the parser may still have messages: the record of a multi-line pattern the line ended.
+   * The line is then added after them and replaced by them all, as messages can be emitted only in place of the line being processed.
+   * Messages of a pattern not eating the line are dropped, the line is left as is.
+   */
+  private boolean processLine(@NotNull final String text, @NotNull final List<BuildMessage1> messages) {
+    myRecordLogged = false;
+    final boolean consumed = mySession.processLine(text, myManager);
+    myLogger.drainUnprocessedMessagesTo(messages);
+    if (consumed || messages.isEmpty()) return consumed;
+    if (!myRecordLogged) {
+      LOG.warn("Parser '" + myParser.getId() + "' not consumed message but there some pending messages produced: " + messages);
+      messages.clear();
+      return false;
+    }
+    myLogger.message(text);
+    myLogger.drainUnprocessedMessagesTo(messages);
+    return true;
+  }
+
+  private boolean isRecordStart(@NotNull final ParseEvent event) {
+    for (MultilinePattern pattern : myParser.getMultilinePatterns()) {
+      if (pattern.getStartPattern() == event.getPattern()) return true;
+    }
+    return false;
+  }
+
+  private byte getResultCode(@NotNull final String text, final boolean consumed, @NotNull final List<BuildMessage1> messages) {
+    if (!consumed) {
+      return BatchResult.SKIP;
     }
     if (messages.isEmpty()) {
-      return Result.EAT;
+      return BatchResult.EAT;
     }
     if (messages.size() == 1) {
       final BuildMessage1 msg = messages.iterator().next();
       if (msg.getValue() instanceof String && text.equals(msg.getValue())) {
-        return Result.KEEP_ORIGIN;
+        return BatchResult.KEEP_ORIGIN;
       }
     }
-    return Result.REPLACE(messages);
+    return BatchResult.REPLACE;
   }
 
-}
\ No newline at end of file
+}
@@ -15,11 +15,16 @@ import java.io.FileNotFoundException;
 public class RegexParsersHelper {
   @NotNull
   public static RegexParser loadParserFromFile(@NotNull final File file) throws FileNotFoundException, ParserLoadingException {
+    return loadParserFromFile(file, false);
+  }
+
+  @NotNull
+  public static RegexParser loadParserFromFile(@NotNull final File file, final boolean validate) throws FileNotFoundException, ParserLoadingException {
     if (file.exists() && file.isFile()) {
       FileInputStream fis = null;
       try {
         fis = new FileInputStream(file);
-        return ParserLoader.loadParser(fis);
+        return ParserLoader.loadParser(fis, validate);
       } finally {
         FileUtil.close(fis);
       }
@@ -0,0 +1,276 @@
+package jetbrains.buildServer.agent.messages.regex.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.agent.messages.regex.ParserCommand;
+import jetbrains.teamcity.util.regex.MultilinePattern;
+import jetbrains.teamcity.util.regex.ParserLoadingException;
+import jetbrains.teamcity.util.regex.RegexParser;
+import jetbrains.teamcity.util.regex.RegexPattern;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Parsers loaded by {@link ParserLoaderImpl}, bounded by number of parsers and by their total weight: the length of all regexes
+ * and {@code output-expr}s, as compiled patterns take memory roughly in proportion to it.
+ * The least recently used parsers are evicted first, the last loaded one is kept even if it alone exceeds the limits.
+ * Parsers are {@link #acquire acquired} by their users, e.g. the registry they are registered in. An evicted or replaced
+ * parser is {@link RegexParser#release() released} once it is not used, a used one is released with its last user.
+ * <br/>
+ * A parser loaded from a file is reused only while the id resolves to the same file and the file is unchanged:
+ * its modification time and size are compared first, and if only the time differs, e.g. after a fresh checkout,
+ * the content is compared by hash, so the parser is not reloaded for a mere touch.
+ * <br/>
+ * Loading is single-flight: threads loading the same id at once wait for the first of them, so a parser is compiled once.
+ */
+final class LoadedParsersCache {
+  private static final Logger LOG = Logger.getInstance(LoadedParsersCache.class.getName());
+
+  interface Loader {
+    /**
+     * @param content - content of the configuration file read by the cache, {@code null} for a resource or if the file cannot be read
+     * @param hash    - {@link ParsersCache#hash hash} of the content, {@code null} if it is not known
+     */
+    @NotNull
+    RegexParser load(@Nullable byte[] content, @Nullable String hash) throws FileNotFoundException, ParserLoadingException;
+  }
+
+  /**
+   * In access order, the eldest entry is evicted first.
+   */
+  private final LinkedHashMap<ParserCommand.ParserId, Entry> myEntries = new LinkedHashMap<ParserCommand.ParserId, Entry>(16, 0.75f, true);
+  private final ConcurrentMap<ParserCommand.ParserId, FutureTask<Entry>> myLoading = new ConcurrentHashMap<ParserCommand.ParserId, FutureTask<Entry>>();
+  /**
+   * Number of users of parsers, by parser identity.
+   */
+  private final Map<RegexParser, Integer> myUsers = new IdentityHashMap<RegexParser, Integer>();
+  private long myWeight;
+  private int myMaxCount = Integer.MAX_VALUE;
+  private long myMaxWeight = Long.MAX_VALUE;
+
+  /**
+   * @param maxCount  - maximal number of parsers kept
+   * @param maxWeight - maximal total weight of parsers kept
+   */
+  synchronized void setLimits(final int maxCount, final long maxWeight) {
+    myMaxCount = Math.max(maxCount, 1);
+    myMaxWeight = Math.max(maxWeight, 1);
+    evict();
+  }
+
+  /**
+   * @param file   - configuration file the id resolves to now, {@code null} for parsers from resources
+   * @param loader - loads the parser if there is no up-to-date one
+   */
+  @NotNull
+  RegexParser get(@NotNull final ParserCommand.ParserId id, @Nullable final File file, @NotNull final Loader loader)
+      throws FileNotFoundException, ParserLoadingException {
+    final Entry cached;
+    synchronized (this) {
+      cached = myEntries.get(id);
+    }
+    if (cached != null && cached.isUpToDate(file)) {
+      return cached.parser;
+    }
+    final FutureTask<Entry> task = new FutureTask<Entry>(new Callable<Entry>() {
+      public Entry call() throws Exception {
+        final Entry entry = Entry.load(file, loader);
+        put(id, entry);
+        return entry;
+      }
+    });
+    FutureTask<Entry> loading = myLoading.putIfAbsent(id, task);
+    if (loading == null) {
+      loading = task;
+      try {
+        task.run();
+      } finally {
+        myLoading.remove(id, task);
+      }
+    }
+    final Entry loaded = getResult(loading);
+    if (file == null ? loaded.file != null : !file.equals(loaded.file)) {
+      // Another thread loaded the id resolved to another file, e.g. relative to another checkout directory
+      final Entry entry = Entry.load(file, loader);
+      put(id, entry);
+      return entry.parser;
+    }
+    return loaded.parser;
+  }
+
+  synchronized void remove(@NotNull final ParserCommand.ParserId id) {
+    final Entry entry = myEntries.remove(id);
+    if (entry != null) {
+      myWeight -= entry.weight;
+      dropped(entry.parser);
+    }
+  }
+
+  /**
+   * Marks the parser as used, so it is not released once it is evicted.
+   */
+  synchronized void acquire(@NotNull final RegexParser parser) {
+    final Integer users = myUsers.get(parser);
+    myUsers.put(parser, users == null ? 1 : users + 1);
+  }
+
+  /**
+   * Releases a use of the parser, the parser is released once it is neither used nor kept.
+   */
+  synchronized void release(@NotNull final RegexParser parser) {
+    final Integer users = myUsers.get(parser);
+    if (users != null && users > 1) {
+      myUsers.put(parser, users - 1);
+      return;
+    }
+    myUsers.remove(parser);
+    for (Entry entry : myEntries.values()) {
+      if (entry.parser == parser) return;
+    }
+    parser.release();
+  }
+
+  /**
+   * @return parsers kept, from the least recently used one
+   */
+  @NotNull
+  synchronized Map<ParserCommand.ParserId, RegexParser> getParsers() {
+    final Map<ParserCommand.ParserId, RegexParser> result = new LinkedHashMap<ParserCommand.ParserId, RegexParser>();
+    for (Map.Entry<ParserCommand.ParserId, Entry> entry : myEntries.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().parser);
+    }
+    return result;
+  }
+
+  synchronized long getWeight() {
+    return myWeight;
+  }
+
+  private synchronized void put(@NotNull final ParserCommand.ParserId id, @NotNull final Entry entry) {
+    final Entry old = myEntries.put(id, entry);
+    if (old != null) {
+      myWeight -= old.weight;
+      if (old.parser != entry.parser) {
+        dropped(old.parser);
+      }
+    }
+    myWeight += entry.weight;
+    evict();
+  }
+
+  private void evict() {
+    final Iterator<Map.Entry<ParserCommand.ParserId, Entry>> iterator = myEntries.entrySet().iterator();
+    while ((myEntries.size() > myMaxCount || myWeight > myMaxWeight) && myEntries.size() > 1) {
+      final Map.Entry<ParserCommand.ParserId, Entry> eldest = iterator.next();
+      iterator.remove();
+      myWeight -= eldest.getValue().weight;
+      LOG.debug("Parser '" + eldest.getValue().parser.getName() + "' is evicted from loaded parsers");
+      dropped(eldest.getValue().parser);
+    }
+  }
+
+  /**
+   * Releases the parser which is not kept anymore unless it is used.
+   */
+  private void dropped(@NotNull final RegexParser parser) {
+    if (!myUsers.containsKey(parser)) {
+      parser.release();
+    }
+  }
+
+  @NotNull
+  private static Entry getResult(@NotNull final FutureTask<Entry> task) throws FileNotFoundException, ParserLoadingException {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ParserLoadingException("Parser loading is interrupted", e);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof FileNotFoundException) throw (FileNotFoundException) cause;
+      if (cause instanceof ParserLoadingException) throw (ParserLoadingException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new ParserLoadingException("Failed to load parser: " + cause, cause);
+    }
+  }
+
+  private static long weigh(@NotNull final RegexParser parser) {
+    long weight = 1;
+    for (RegexPattern pattern : parser.getPatterns()) {
+      weight += pattern.getPattern().pattern().length() + length(pattern.getDescriptionExpression());
+    }
+    for (MultilinePattern pattern : parser.getMultilinePatterns()) {
+      weight += pattern.getPattern().pattern().length() + pattern.getContinuation().pattern().length()
+          + length(pattern.getDescriptionExpression());
+    }
+    return weight;
+  }
+
+  private static int length(@Nullable final String s) {
+    return s == null ? 0 : s.length();
+  }
+
+  private static final class Entry {
+    @NotNull
+    final RegexParser parser;
+    @Nullable
+    final File file;
+    final long length;
+    /**
+     * Updated once the content is found unchanged, so the file is hashed once per modification.
+     */
+    volatile long lastModified;
+    @Nullable
+    final String hash;
+    final long weight;
+
+    private Entry(@NotNull final RegexParser parser, @Nullable final File file, final long lastModified, final long length, @Nullable final String hash) {
+      this.parser = parser;
+      this.file = file;
+      this.lastModified = lastModified;
+      this.length = length;
+      this.hash = hash;
+      weight = weigh(parser);
+    }
+
+    @NotNull
+    static Entry load(@Nullable final File file, @NotNull final Loader loader) throws FileNotFoundException, ParserLoadingException {
+      if (file == null) {
+        return new Entry(loader.load(null, null), null, 0, 0, null);
+      }
+      // Taken before loading: if the file changes meanwhile, the entry is found stale on the next use
+      final long lastModified = file.lastModified();
+      final long length = file.length();
+      byte[] content;
+      try {
+        content = ParsersCache.readBytes(file);
+      } catch (IOException e) {
+        // Loader reports the failure
+        content = null;
+      }
+      final String hash = content == null ? null : ParsersCache.hash(content);
+      return new Entry(loader.load(content, hash), file, lastModified, length, hash);
+    }
+
+    boolean isUpToDate(@Nullable final File current) {
+      if (file == null || current == null) return file == current;
+      if (!file.equals(current)) return false;
+      final long modified = current.lastModified();
+      if (modified == lastModified && current.length() == length) return true;
+      if (modified == 0 || current.length() != length || hash == null) return false;
+      try {
+        if (!hash.equals(ParsersCache.hash(ParsersCache.readBytes(current)))) return false;
+      } catch (IOException e) {
+        return false;
+      }
+      lastModified = modified;
+      return true;
+    }
+  }
+}
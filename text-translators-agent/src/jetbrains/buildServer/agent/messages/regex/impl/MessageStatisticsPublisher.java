@@ -0,0 +1,259 @@
+package jetbrains.buildServer.agent.messages.regex.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.agent.*;
+import jetbrains.buildServer.agent.messages.regex.RegexParserToSimpleMessagesTranslatorAdapter;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.teamcity.util.regex.MessageDeduplicator;
+import jetbrains.teamcity.util.regex.MessageRateLimiter;
+import jetbrains.teamcity.util.regex.MessageStatistics;
+import jetbrains.teamcity.util.regex.ParserCostReport;
+import jetbrains.teamcity.util.regex.RegexParser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Logs a summary of every enabled parser when a build step finishes: lines it matched, see {@link MessageStatistics},
+ * duplicates dropped by its {@link MessageDeduplicator} and lines dropped by its {@link MessageRateLimiter} not reported yet.
+ * <br/>
+ * Statistics, remembered duplicates and per step limits are reset after each step, so every summary covers a single step.
+ * A parser disabled during the step is still summarized at its end. Nothing is logged for a parser which matched nothing.
+ * <br/>
+ * Multi-line records parsers collected so far are logged once no more lines come to them: when a parser is disabled or replaced
+ * during a step and when the step finishes, see {@link RegexParserToSimpleMessagesTranslatorAdapter#flush(BuildProgressLogger)}.
+ * While a step runs, records whose {@code flush-timeout} passed and lines dropped by rate limits during the last second are logged
+ * every {@link #FLUSH_PERIOD_MILLIS}, so they are not held while the output is quiet.
+ * <br/>
+ * {@link ParserCostReport} of a parser is logged to the build the first time the parser is enabled in it.
+ */
+public class MessageStatisticsPublisher extends AgentLifeCycleAdapter {
+  private static final Logger LOG = Logger.getInstance(MessageStatisticsPublisher.class.getName());
+  static final long FLUSH_PERIOD_MILLIS = 250;
+  /**
+   * Enabled parsers by name, in order parsers were enabled.
+   */
+  private final Map<String, ParserSummary> myParsers = new LinkedHashMap<String, ParserSummary>();
+  /**
+   * Disabled parsers, summarized and dropped at the step end.
+   */
+  private final List<ParserSummary> myDisabled = new ArrayList<ParserSummary>();
+  /**
+   * Parsers whose cost report is logged to the running build.
+   */
+  private final Set<RegexParser> myReportedParsers = Collections.newSetFromMap(new IdentityHashMap<RegexParser, Boolean>());
+  @Nullable
+  private volatile AgentRunningBuild myBuild;
+  @Nullable
+  private volatile BuildRunnerContext myRunner;
+  @Nullable
+  private ScheduledExecutorService myExecutor;
+  @Nullable
+  private ScheduledFuture<?> myFlushTask;
+
+  public MessageStatisticsPublisher(@NotNull final EventDispatcher<AgentLifeCycleListener> dispatcher) {
+    dispatcher.addListener(this);
+  }
+
+  /**
+   * Registers the enabled parser, a parser registered with the same name before is unregistered.
+   */
+  public void register(@NotNull final RegexParserToSimpleMessagesTranslatorAdapter adapter,
+                       @Nullable final MessageStatistics statistics,
+                       @Nullable final MessageDeduplicator deduplicator,
+                       @Nullable final MessageRateLimiter limiter) {
+    final String name = adapter.getName();
+    unregister(name);
+    synchronized (this) {
+      myParsers.put(name, new ParserSummary(name, adapter, statistics, deduplicator, limiter));
+    }
+  }
+
+  /**
+   * Unregisters the disabled parser: its record collected so far is logged to the running step, its summary is logged at the step end.
+   */
+  public void unregister(@NotNull final String name) {
+    final ParserSummary old;
+    synchronized (this) {
+      old = myParsers.remove(name);
+      if (old == null) return;
+      myDisabled.add(old);
+    }
+    final BuildRunnerContext runner = myRunner;
+    if (runner != null) {
+      old.myAdapter.flush(runner.getBuild().getBuildLogger());
+    }
+  }
+
+  /**
+   * Logs cost report of the enabled parser to the running build, unless it is logged there already.
+   * The report is computed once per parser, see {@link RegexParser#getCostReport()}.
+   */
+  public void reportCost(@NotNull final RegexParser parser) {
+    final AgentRunningBuild build = myBuild;
+    if (build == null) return;
+    synchronized (this) {
+      if (!myReportedParsers.add(parser)) return;
+    }
+    final ParserCostReport report = parser.getCostReport();
+    if (report.hasFindings()) {
+      build.getBuildLogger().warning(report.toString());
+    } else {
+      build.getBuildLogger().message(report.toString());
+    }
+  }
+
+  @Override
+  public void buildStarted(@NotNull final AgentRunningBuild build) {
+    synchronized (this) {
+      myReportedParsers.clear();
+    }
+    myBuild = build;
+  }
+
+  @Override
+  public void buildFinished(@NotNull final AgentRunningBuild build, @NotNull final BuildFinishedStatus status) {
+    myBuild = null;
+    synchronized (this) {
+      myReportedParsers.clear();
+    }
+  }
+
+  @Override
+  public void beforeRunnerStart(@NotNull final BuildRunnerContext runner) {
+    myRunner = runner;
+    startFlushing();
+  }
+
+  @Override
+  public void runnerFinished(@NotNull final BuildRunnerContext runner, @NotNull final BuildFinishedStatus status) {
+    myRunner = null;
+    stopFlushing();
+    final List<ParserSummary> parsers;
+    synchronized (this) {
+      parsers = new ArrayList<ParserSummary>(myDisabled);
+      parsers.addAll(myParsers.values());
+      myDisabled.clear();
+    }
+    final BuildProgressLogger logger = runner.getBuild().getBuildLogger();
+    for (ParserSummary parser : parsers) {
+      parser.publish(logger);
+    }
+  }
+
+  @Override
+  public synchronized void agentShutdown() {
+    stopFlushing();
+    if (myExecutor != null) {
+      myExecutor.shutdown();
+      myExecutor = null;
+    }
+  }
+
+  private synchronized void startFlushing() {
+    if (myFlushTask != null) return;
+    if (myExecutor == null) {
+      myExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(@NotNull final Runnable runnable) {
+          final Thread thread = new Thread(runnable, "Output parsers flush");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    myFlushTask = myExecutor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        flushExpired();
+      }
+    }, FLUSH_PERIOD_MILLIS, FLUSH_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void stopFlushing() {
+    if (myFlushTask != null) {
+      myFlushTask.cancel(false);
+      myFlushTask = null;
+    }
+  }
+
+  private void flushExpired() {
+    final BuildRunnerContext runner = myRunner;
+    if (runner == null) return;
+    final List<ParserSummary> parsers;
+    synchronized (this) {
+      parsers = new ArrayList<ParserSummary>(myParsers.values());
+    }
+    final BuildProgressLogger logger = runner.getBuild().getBuildLogger();
+    for (ParserSummary parser : parsers) {
+      try {
+        parser.myAdapter.flushExpired(logger);
+        if (parser.myLimiter != null) {
+          parser.reportSuppressed(logger, parser.myLimiter.pollSuppressed());
+        }
+      } catch (RuntimeException e) {
+        // Task throwing an exception is not run anymore
+        LOG.warn("Failed to flush records of parser '" + parser.myName + "': " + e.toString());
+      }
+    }
+  }
+
+  private static final class ParserSummary {
+    @NotNull
+    private final String myName;
+    @NotNull
+    private final RegexParserToSimpleMessagesTranslatorAdapter myAdapter;
+    @Nullable
+    private final MessageStatistics myStatistics;
+    @Nullable
+    private final MessageDeduplicator myDeduplicator;
+    @Nullable
+    private final MessageRateLimiter myLimiter;
+
+    ParserSummary(@NotNull final String name,
+                  @NotNull final RegexParserToSimpleMessagesTranslatorAdapter adapter,
+                  @Nullable final MessageStatistics statistics,
+                  @Nullable final MessageDeduplicator deduplicator,
+                  @Nullable final MessageRateLimiter limiter) {
+      myName = name;
+      myAdapter = adapter;
+      myStatistics = statistics;
+      myDeduplicator = deduplicator;
+      myLimiter = limiter;
+    }
+
+    void publish(@NotNull final BuildProgressLogger logger) {
+      // Record goes first, so statistics count its lines
+      myAdapter.flush(logger);
+      if (myStatistics != null) {
+        final String summary;
+        synchronized (myStatistics) {
+          summary = myStatistics.getTotal() == 0 ? null : myStatistics.getSummary();
+          myStatistics.reset();
+        }
+        if (summary != null) {
+          logger.message("Parser '" + myName + "' summary: " + summary);
+        }
+      }
+      if (myDeduplicator != null) {
+        final String summary;
+        synchronized (myDeduplicator) {
+          summary = myDeduplicator.getSummary();
+          myDeduplicator.clear();
+        }
+        if (summary != null) {
+          logger.message("Parser '" + myName + "' duplicates: " + summary);
+        }
+      }
+      if (myLimiter != null) {
+        reportSuppressed(logger, myLimiter.finishStep());
+      }
+    }
+
+    void reportSuppressed(@NotNull final BuildProgressLogger logger, final long suppressed) {
+      if (suppressed > 0) {
+        logger.warning("Parser '" + myName + "': " + suppressed + " messages suppressed: rate limit exceeded");
+      }
+    }
+  }
+}
@@ -7,23 +7,57 @@ import jetbrains.buildServer.agent.CurrentBuildTracker;
 import jetbrains.buildServer.agent.messages.regex.ParserCommand;
 import jetbrains.buildServer.agent.messages.regex.ParserLoader;
 import jetbrains.buildServer.agent.messages.regex.RegexParsersHelper;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
+import jetbrains.teamcity.util.regex.CostPolicy;
+import jetbrains.teamcity.util.regex.ParserCostReport;
 import jetbrains.teamcity.util.regex.ParserLoadingException;
+import jetbrains.teamcity.util.regex.PatternCost;
 import jetbrains.teamcity.util.regex.RegexParser;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.Collections;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class ParserLoaderImpl implements ParserLoader {
   private static final Logger LOG = Logger.getInstance(ParserLoaderImpl.class.getName());
+  /**
+   * Whether parsers loaded from files are cached in the agent cache directory in binary form, enabled by default.
+   */
+  public static final String CACHE_ENABLED_PROPERTY = "teamcity.agent.build.messages.parsers.cache";
+  /**
+   * Whether configuration files are checked against {@code parser-configuration.xsd}, disabled by default.
+   * See {@link RegexParser#validate(String)}.
+   */
+  public static final String VALIDATION_PROPERTY = "teamcity.agent.build.messages.parsers.validate";
+  /**
+   * Maximal number of loaded parsers kept in memory, see {@link LoadedParsersCache}.
+   */
+  public static final String LOADED_COUNT_PROPERTY = "teamcity.agent.build.messages.parsers.loaded.maxCount";
+  public static final int DEFAULT_LOADED_COUNT = 64;
+  /**
+   * Maximal total length of regexes and {@code output-expr}s of loaded parsers kept in memory.
+   */
+  public static final String LOADED_WEIGHT_PROPERTY = "teamcity.agent.build.messages.parsers.loaded.maxWeight";
+  public static final long DEFAULT_LOADED_WEIGHT = 1000000;
+  /**
+   * What happens to a loaded parser with patterns whose estimated cost reaches {@link #COST_THRESHOLD_PROPERTY}:
+   * {@code warn} (default) only reports them, see {@link MessageStatisticsPublisher#reportCost(RegexParser)}, {@code reject} fails loading,
+   * {@code safeEngine} matches them with the automaton engine. See {@link RegexParser#applyCostPolicy(CostPolicy, PatternCost)}.
+   */
+  public static final String COST_POLICY_PROPERTY = "teamcity.agent.build.messages.parsers.costPolicy";
+  /**
+   * Cost the policy applies from: {@code polynomial} or {@code exponential} (default), see {@link PatternCost}.
+   */
+  public static final String COST_THRESHOLD_PROPERTY = "teamcity.agent.build.messages.parsers.costThreshold";
+  private static final String CACHE_DIRECTORY = "parsers";
   @NotNull
   private final CurrentBuildTracker myBuildTracker;
-  private final Map<ParserCommand.ParserId, RegexParser> myLoadedParsers = new ConcurrentHashMap<ParserCommand.ParserId, RegexParser>();
+  private final LoadedParsersCache myLoadedParsers = new LoadedParsersCache();
 
   public ParserLoaderImpl(@NotNull final CurrentBuildTracker buildTracker) {
     myBuildTracker = buildTracker;
@@ -32,16 +66,30 @@ public class ParserLoaderImpl implements ParserLoader {
   @NotNull
   @Override
   public Map<ParserCommand.ParserId, RegexParser> getLoadedParsers() {
-    return Collections.unmodifiableMap(myLoadedParsers);
+    return Collections.unmodifiableMap(myLoadedParsers.getParsers());
   }
 
   @NotNull
   public RegexParser load(@NotNull final ParserCommand.ParserId parserId) throws FileNotFoundException, ParserLoadingException {
-    RegexParser parser = myLoadedParsers.get(parserId);
-    if (parser != null) return parser;
-    parser = doLoadPath(parserId);
-    myLoadedParsers.put(parserId, parser);
-    return parser;
+    myLoadedParsers.setLimits(TeamCityProperties.getInteger(LOADED_COUNT_PROPERTY, DEFAULT_LOADED_COUNT),
+                              TeamCityProperties.getLong(LOADED_WEIGHT_PROPERTY, DEFAULT_LOADED_WEIGHT));
+    final File file = resolveFile(parserId);
+    return myLoadedParsers.get(parserId, file, new LoadedParsersCache.Loader() {
+      @NotNull
+      public RegexParser load(@Nullable final byte[] content, @Nullable final String hash) throws FileNotFoundException, ParserLoadingException {
+        final RegexParser parser;
+        if (file == null) {
+          final String path = parserId.getResourcePath();
+          LOG.info("Loading parser config from resource " + path);
+          parser = RegexParsersHelper.loadParserFromResource(path);
+        } else {
+          LOG.info("Loading parser config from file " + file.getAbsolutePath());
+          parser = loadParserFromFile(file, content, hash);
+        }
+        applyCostPolicy(parser);
+        return parser;
+      }
+    });
   }
 
   @Override
@@ -49,13 +97,23 @@ public class ParserLoaderImpl implements ParserLoader {
     myLoadedParsers.remove(parserId);
   }
 
-  @NotNull
-  private RegexParser doLoadPath(@NotNull final ParserCommand.ParserId parserId) throws FileNotFoundException, ParserLoadingException {
-    RegexParser parser;
+  @Override
+  public void acquire(@NotNull final RegexParser parser) {
+    myLoadedParsers.acquire(parser);
+  }
+
+  @Override
+  public void release(@NotNull final RegexParser parser) {
+    myLoadedParsers.release(parser);
+  }
+
+  /**
+   * @return canonical configuration file of the parser, {@code null} if the parser is loaded from a resource
+   */
+  @Nullable
+  private File resolveFile(@NotNull final ParserCommand.ParserId parserId) throws FileNotFoundException {
     if (!StringUtil.isEmptyOrSpaces(parserId.getResourcePath())) {
-      final String path = parserId.getResourcePath();
-      LOG.info("Loading parser config from resource " + path);
-      parser = RegexParsersHelper.loadParserFromResource(path);
+      return null;
     } else if (!StringUtil.isEmptyOrSpaces(parserId.getFile())) {
       final String path = parserId.getFile();
       final File file;
@@ -72,9 +130,7 @@ public class ParserLoaderImpl implements ParserLoader {
         file = new File(wd, path);
       }
       if (file.exists()) {
-        final File cf = FileUtil.getCanonicalFile(file);
-        LOG.info("Loading parser config from file " + cf.getAbsolutePath());
-        parser = RegexParsersHelper.loadParserFromFile(cf);
+        return FileUtil.getCanonicalFile(file);
       } else {
         String message = "Cannot register parser from file: file not found: " + file.getAbsolutePath();
         LOG.warn(message);
@@ -83,6 +139,46 @@ public class ParserLoaderImpl implements ParserLoader {
     } else {
       throw new IllegalArgumentException("Expected non-empty resource path or file path");
     }
-    return parser;
   }
-}
\ No newline at end of file
+
+  private static void applyCostPolicy(@NotNull final RegexParser parser) throws ParserLoadingException {
+    final String value = TeamCityProperties.getProperty(COST_POLICY_PROPERTY, "warn");
+    final CostPolicy policy;
+    if ("reject".equalsIgnoreCase(value)) {
+      policy = CostPolicy.REJECT;
+    } else if ("safeEngine".equalsIgnoreCase(value)) {
+      policy = CostPolicy.SAFE_ENGINE;
+    } else {
+      if (!"warn".equalsIgnoreCase(value)) {
+        LOG.warn("Unknown parser cost policy '" + value + "', costly patterns are only reported");
+      }
+      policy = CostPolicy.WARN;
+    }
+    final boolean polynomial = "polynomial".equalsIgnoreCase(TeamCityProperties.getProperty(COST_THRESHOLD_PROPERTY, "exponential"));
+    // Analyzes the patterns even if they are only reported, so it is done once per load, not on every enable
+    parser.applyCostPolicy(policy, polynomial ? PatternCost.POLYNOMIAL : PatternCost.EXPONENTIAL);
+    final ParserCostReport report = parser.getCostReport();
+    if (report.hasFindings()) {
+      LOG.warn(report.toString());
+    } else {
+      LOG.info(report.toString());
+    }
+  }
+
+  /**
+   * @param content - content of the file if it is already read, see {@link LoadedParsersCache.Loader#load(byte[], String)}
+   */
+  @NotNull
+  private RegexParser loadParserFromFile(@NotNull final File file, @Nullable final byte[] content, @Nullable final String hash)
+      throws FileNotFoundException, ParserLoadingException {
+    final boolean validate = TeamCityProperties.getBoolean(VALIDATION_PROPERTY);
+    if (content == null) {
+      return RegexParsersHelper.loadParserFromFile(file, validate);
+    }
+    if (!myBuildTracker.isRunningBuild() || !TeamCityProperties.getBooleanOrTrue(CACHE_ENABLED_PROPERTY)) {
+      return ParsersCache.parse(content, validate);
+    }
+    final File cacheDirectory = myBuildTracker.getCurrentBuild().getAgentConfiguration().getCacheDirectory(PatternHitsStorage.CACHE_DIRECTORY_KEY);
+    return new ParsersCache(new File(cacheDirectory, CACHE_DIRECTORY)).load(file, content, hash, validate);
+  }
+}
@@ -0,0 +1,172 @@
+package jetbrains.buildServer.agent.messages.regex.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.teamcity.util.regex.ParserLoader;
+import jetbrains.teamcity.util.regex.ParserLoadingException;
+import jetbrains.teamcity.util.regex.RegexParser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Keeps parsers loaded from configuration files in the agent cache directory in {@link RegexParser#serializeBinary binary form}.
+ * <br/>
+ * Entries are keyed by hash of the configuration file content: a changed file never hits a stale entry,
+ * while the same configuration checked out by many builds is parsed from XML only once.
+ * Patterns are still compiled on load, {@link java.util.regex.Pattern} has no precompiled form.
+ * <br/>
+ * Entry is written to a temporary file and renamed, so a reader never sees a partially written one.
+ * Unreadable entries are deleted and rewritten. Entries not used for {@link #EXPIRATION_MILLIS} are removed.
+ */
+final class ParsersCache {
+  private static final Logger LOG = Logger.getInstance(ParsersCache.class.getName());
+  private static final String EXTENSION = ".bin";
+  private static final long EXPIRATION_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+  @NotNull
+  private final File myDirectory;
+
+  ParsersCache(@NotNull final File directory) {
+    myDirectory = directory;
+  }
+
+  /**
+   * @param file     - configuration file the content is read from
+   * @param content  - content of the configuration file
+   * @param key      - {@link #hash hash} of the content, {@code null} to parse the content without the cache
+   * @param validate - whether configuration should be checked against the schema, it is checked on cache hits too
+   */
+  @NotNull
+  RegexParser load(@NotNull final File file, @NotNull final byte[] content, @Nullable final String key, final boolean validate)
+      throws ParserLoadingException {
+    if (key == null) {
+      return parse(content, validate);
+    }
+    if (validate) {
+      RegexParser.validate(toText(content));
+    }
+    final File entry = new File(myDirectory, key + EXTENSION);
+    final RegexParser cached = read(entry);
+    if (cached != null) {
+      LOG.debug("Parser config " + file.getAbsolutePath() + " loaded from cache " + entry.getAbsolutePath());
+      return cached;
+    }
+    final RegexParser parser = ParserLoader.loadParser(new ByteArrayInputStream(content));
+    write(parser, entry);
+    return parser;
+  }
+
+  /**
+   * @param validate - whether configuration should be checked against the schema
+   */
+  @NotNull
+  static RegexParser parse(@NotNull final byte[] content, final boolean validate) throws ParserLoadingException {
+    if (validate) {
+      RegexParser.validate(toText(content));
+    }
+    return ParserLoader.loadParser(new ByteArrayInputStream(content));
+  }
+
+  @Nullable
+  private static RegexParser read(@NotNull final File entry) {
+    if (!entry.isFile()) return null;
+    InputStream input = null;
+    try {
+      input = new FileInputStream(entry);
+      final RegexParser parser = RegexParser.deserializeBinary(input);
+      //noinspection ResultOfMethodCallIgnored
+      entry.setLastModified(System.currentTimeMillis());
+      return parser;
+    } catch (IOException e) {
+      LOG.debug("Cannot read cached parser " + entry.getAbsolutePath() + ", it will be recreated: " + e.getMessage());
+    } catch (ParserLoadingException e) {
+      LOG.debug("Cannot read cached parser " + entry.getAbsolutePath() + ", it will be recreated: " + e.getMessage());
+    } finally {
+      FileUtil.close(input);
+    }
+    FileUtil.delete(entry);
+    return null;
+  }
+
+  private void write(@NotNull final RegexParser parser, @NotNull final File entry) {
+    removeExpired();
+    final File temp = new File(myDirectory, entry.getName() + "." + Thread.currentThread().getId() + ".tmp");
+    OutputStream output = null;
+    boolean written = false;
+    try {
+      FileUtil.createParentDirs(temp);
+      output = new FileOutputStream(temp);
+      parser.serializeBinary(output);
+      written = true;
+    } catch (IOException e) {
+      LOG.warn("Cannot cache parser '" + parser.getName() + "' to " + entry.getAbsolutePath() + ": " + e.getMessage());
+    } finally {
+      FileUtil.close(output);
+    }
+    // Another build could have written the same entry meanwhile, its content is the same
+    if (written && !temp.renameTo(entry) && !entry.isFile()) {
+      LOG.warn("Cannot cache parser '" + parser.getName() + "': failed to rename " + temp.getAbsolutePath() + " to " + entry.getName());
+    }
+    FileUtil.delete(temp);
+  }
+
+  private void removeExpired() {
+    final File[] files = myDirectory.listFiles();
+    if (files == null) return;
+    final long threshold = System.currentTimeMillis() - EXPIRATION_MILLIS;
+    for (File file : files) {
+      if (file.lastModified() < threshold) {
+        FileUtil.delete(file);
+      }
+    }
+  }
+
+  @NotNull
+  static byte[] readBytes(@NotNull final File file) throws IOException {
+    final InputStream input = new FileInputStream(file);
+    try {
+      final ByteArrayOutputStream output = new ByteArrayOutputStream((int) file.length());
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = input.read(buffer)) != -1) {
+        output.write(buffer, 0, read);
+      }
+      return output.toByteArray();
+    } finally {
+      FileUtil.close(input);
+    }
+  }
+
+  @NotNull
+  private static String toText(@NotNull final byte[] content) throws ParserLoadingException {
+    try {
+      return new String(content, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new ParserLoadingException("Failed to read parser configuration: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @return SHA-256 of the content in hex, {@code null} if the algorithm is not available
+   */
+  @Nullable
+  static String hash(@NotNull final byte[] content) {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      LOG.warn("Parsers cache is disabled: " + e.getMessage());
+      return null;
+    }
+    final byte[] hash = digest.digest(content);
+    final StringBuilder sb = new StringBuilder(hash.length * 2);
+    for (byte b : hash) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+}
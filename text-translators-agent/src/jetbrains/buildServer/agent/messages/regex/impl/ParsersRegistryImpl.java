@@ -6,37 +6,89 @@ import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.agent.messages.KeepMessagesLogger;
 import jetbrains.buildServer.agent.messages.TranslatorsRegistry;
 import jetbrains.buildServer.agent.messages.regex.*;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.StringUtil;
+import jetbrains.teamcity.util.regex.MessageDeduplicator;
+import jetbrains.teamcity.util.regex.MessageRateLimiter;
+import jetbrains.teamcity.util.regex.MessageStatistics;
 import jetbrains.teamcity.util.regex.ParserManager;
 import jetbrains.teamcity.util.regex.RegexParser;
+import jetbrains.teamcity.util.regex.Severity;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 // TODO: Support scopes
 public class ParsersRegistryImpl implements ParsersRegistry {
   private static final Logger LOG = Logger.getInstance(ParsersRegistryImpl.class.getName());
+  /**
+   * Maximal number of line chars a parser pattern may read while matching a single line, non-positive value disables the limit.
+   * See {@link RegexParser#setMatchingBudget(int)}.
+   */
+  public static final String MATCHING_BUDGET_PROPERTY = "teamcity.agent.build.messages.parsers.matchingBudget";
+  /**
+   * Whether parser patterns are evaluated in order adapted to their hit counts, enabled by default.
+   * See {@link RegexParser#setAdaptiveOrdering(boolean)}.
+   */
+  public static final String ADAPTIVE_ORDERING_PROPERTY = "teamcity.agent.build.messages.parsers.adaptiveOrdering";
+  /**
+   * Whether enabled parsers are evaluated together in a single pass over each batch of texts, enabled by default.
+   * See {@link FusedParsersPlan}.
+   */
+  public static final String FUSED_EVALUATION_PROPERTY = "teamcity.agent.build.messages.parsers.fusedEvaluation";
+  /**
+   * Whether a summary of lines matched by each parser is logged at the end of every build step, disabled by default.
+   * See {@link MessageStatisticsPublisher}.
+   */
+  public static final String STATISTICS_PROPERTY = "teamcity.agent.build.messages.parsers.statistics";
+  /**
+   * Maximal number of errors, warnings and messages each parser may log per second, not limited by default,
+   * non-positive value disables the limit. Limit of a severity could be set with the severity name suffix, e.g. {@code teamcity.agent.build.messages.parsers.rateLimit.warn}.
+   * See {@link MessageRateLimiter}.
+   */
+  public static final String RATE_LIMIT_PROPERTY = "teamcity.agent.build.messages.parsers.rateLimit";
+  /**
+   * Maximal number of errors, warnings and messages each parser may log per build step, not limited by default,
+   * non-positive value disables the limit. Limit of a severity could be set with the severity name suffix, e.g. {@code teamcity.agent.build.messages.parsers.stepLimit.info}.
+   * See {@link MessageRateLimiter}.
+   */
+  public static final String STEP_LIMIT_PROPERTY = "teamcity.agent.build.messages.parsers.stepLimit";
+  /**
+   * What happens to errors, warnings and messages each parser logged recently: {@code none} (default) logs them again,
+   * {@code first} drops them, {@code count} drops them and summarizes the most repeated ones at the step end.
+   * Policy of a severity could be set with the severity name suffix, e.g. {@code teamcity.agent.build.messages.parsers.deduplication.warn}.
+   * See {@link MessageDeduplicator}.
+   */
+  public static final String DEDUPLICATION_PROPERTY = "teamcity.agent.build.messages.parsers.deduplication";
+  /**
+   * Number of recent descriptions each parser remembers to find duplicates.
+   */
+  public static final String DEDUPLICATION_CAPACITY_PROPERTY = "teamcity.agent.build.messages.parsers.deduplication.capacity";
+  private static final Severity[] LIMITED_SEVERITIES = {Severity.ERROR, Severity.WARN, Severity.INFO};
 
   private final TranslatorsRegistry myTranslatorsRegistry;
   @NotNull
   private final ParserLoader myLoader;
-  private final KeepMessagesLogger myKeepMessagesLogger;
-  private final ParserManager myDefaultParsersManager;
+  @NotNull
+  private final PatternHitsStorage myHitsStorage;
+  @NotNull
+  private final MessageStatisticsPublisher myStatisticsPublisher;
   private final Map<String, RegexParserToSimpleMessagesTranslatorAdapter> myRegisteredTranslators;
   private final Map<String, RegexParser> myKnownParsers = new HashMap<String, RegexParser>();
   private final Map<ParserCommand.ParserId, String> myParsersHistory = new HashMap<ParserCommand.ParserId, String>();
+  @Nullable
+  private FusedParsersPlan myPlan;
 
 
   public ParsersRegistryImpl(@NotNull final TranslatorsRegistry translatorsRegistry,
-                             @NotNull final ParserLoader loader) {
+                             @NotNull final ParserLoader loader,
+                             @NotNull final PatternHitsStorage hitsStorage,
+                             @NotNull final MessageStatisticsPublisher statisticsPublisher) {
     myTranslatorsRegistry = translatorsRegistry;
     myLoader = loader;
-    myKeepMessagesLogger = new KeepMessagesLogger();
-    final SimpleLogger logger = new SimpleLogger(myKeepMessagesLogger);
-    myDefaultParsersManager = new ParserManager(logger);
+    myHitsStorage = hitsStorage;
+    myStatisticsPublisher = statisticsPublisher;
     myRegisteredTranslators = new HashMap<String, RegexParserToSimpleMessagesTranslatorAdapter>();
   }
 
@@ -79,8 +131,37 @@ public class ParsersRegistryImpl implements ParsersRegistry {
   }
 
   public void enable(@NotNull final RegexParser parser, @Nullable final ParserCommand.Scope scope) {
-    final RegexParserToSimpleMessagesTranslatorAdapter adapter = new RegexParserToSimpleMessagesTranslatorAdapter(parser, myDefaultParsersManager, myKeepMessagesLogger);
+    final int budget = TeamCityProperties.getInteger(MATCHING_BUDGET_PROPERTY, RegexParser.DEFAULT_MATCHING_BUDGET);
+    parser.setMatchingBudget(budget > 0 ? budget : RegexParser.UNLIMITED_MATCHING_BUDGET);
+    final boolean adaptiveOrdering = TeamCityProperties.getBooleanOrTrue(ADAPTIVE_ORDERING_PROPERTY);
+    if (parser.isAdaptiveOrdering() != adaptiveOrdering) {
+      parser.setAdaptiveOrdering(adaptiveOrdering);
+    }
+    if (adaptiveOrdering) {
+      myHitsStorage.load(parser);
+    }
+    // Each adapter collects messages of its own parser, so adapters never see messages of each other
+    final KeepMessagesLogger keepMessagesLogger = new KeepMessagesLogger();
+    final ParserManager manager = new ParserManager(new SimpleLogger(keepMessagesLogger));
+    MessageStatistics statistics = null;
+    if (TeamCityProperties.getBoolean(STATISTICS_PROPERTY)) {
+      statistics = new MessageStatistics();
+      manager.addEventSink(statistics);
+    }
+    // Added after statistics, so dropped lines are counted too, and duplicates are dropped before they take rate limits
+    final MessageDeduplicator deduplicator = createDeduplicator();
+    if (deduplicator != null) {
+      manager.addEventSink(deduplicator);
+    }
+    final MessageRateLimiter limiter = createRateLimiter();
+    if (limiter != null) {
+      manager.addEventSink(limiter);
+    }
+    final RegexParserToSimpleMessagesTranslatorAdapter adapter = new RegexParserToSimpleMessagesTranslatorAdapter(parser, manager, keepMessagesLogger);
     enable(adapter);
+    // Replaced adapter gets no more lines now, so its pending record is logged
+    myStatisticsPublisher.register(adapter, statistics, deduplicator, limiter);
+    myStatisticsPublisher.reportCost(parser);
   }
 
   public void enable(@NotNull final RegexParserToSimpleMessagesTranslatorAdapter adapter) {
@@ -91,6 +172,7 @@ public class ParsersRegistryImpl implements ParsersRegistry {
       myTranslatorsRegistry.unregister(old);
     }
     myTranslatorsRegistry.register(adapter);
+    updatePlan();
   }
 
   @Override
@@ -112,6 +194,8 @@ public class ParsersRegistryImpl implements ParsersRegistry {
     } else {
       myTranslatorsRegistry.unregister(translator);
       myRegisteredTranslators.remove(name);
+      myStatisticsPublisher.unregister(name);
+      updatePlan();
     }
   }
 
@@ -119,6 +203,68 @@ public class ParsersRegistryImpl implements ParsersRegistry {
     final String name = adapter.getName();
     LOG.info("Unregistering '" + name + "' text translator");
     myTranslatorsRegistry.unregister(adapter);
+    if (myRegisteredTranslators.get(name) == adapter) {
+      myRegisteredTranslators.remove(name);
+      myStatisticsPublisher.unregister(name);
+    }
+    updatePlan();
+  }
+
+  @Nullable
+  private static MessageDeduplicator createDeduplicator() {
+    MessageDeduplicator deduplicator = null;
+    for (Severity severity : LIMITED_SEVERITIES) {
+      final String suffix = "." + severity.name().toLowerCase(Locale.ENGLISH);
+      final String value = TeamCityProperties.getProperty(DEDUPLICATION_PROPERTY + suffix, TeamCityProperties.getProperty(DEDUPLICATION_PROPERTY, "none"));
+      final MessageDeduplicator.Policy policy;
+      if ("first".equalsIgnoreCase(value)) {
+        policy = MessageDeduplicator.Policy.FIRST;
+      } else if ("count".equalsIgnoreCase(value)) {
+        policy = MessageDeduplicator.Policy.FIRST_AND_COUNT;
+      } else {
+        if (!"none".equalsIgnoreCase(value)) {
+          LOG.warn("Unknown deduplication policy '" + value + "' of " + severity + " messages, duplicates are logged");
+        }
+        continue;
+      }
+      if (deduplicator == null) {
+        final int capacity = TeamCityProperties.getInteger(DEDUPLICATION_CAPACITY_PROPERTY, MessageDeduplicator.DEFAULT_CAPACITY);
+        deduplicator = new MessageDeduplicator(capacity > 0 ? capacity : MessageDeduplicator.DEFAULT_CAPACITY);
+      }
+      deduplicator.setPolicy(severity, policy);
+    }
+    return deduplicator;
+  }
+
+  @Nullable
+  private static MessageRateLimiter createRateLimiter() {
+    MessageRateLimiter limiter = null;
+    for (Severity severity : LIMITED_SEVERITIES) {
+      final String suffix = "." + severity.name().toLowerCase(Locale.ENGLISH);
+      final int perSecond = TeamCityProperties.getInteger(RATE_LIMIT_PROPERTY + suffix, TeamCityProperties.getInteger(RATE_LIMIT_PROPERTY, MessageRateLimiter.UNLIMITED));
+      final int perStep = TeamCityProperties.getInteger(STEP_LIMIT_PROPERTY + suffix, TeamCityProperties.getInteger(STEP_LIMIT_PROPERTY, MessageRateLimiter.UNLIMITED));
+      if (perSecond <= 0 && perStep <= 0) continue;
+      if (limiter == null) {
+        limiter = new MessageRateLimiter();
+      }
+      limiter.setLimits(severity, Math.max(perSecond, MessageRateLimiter.UNLIMITED), Math.max(perStep, MessageRateLimiter.UNLIMITED));
+    }
+    return limiter;
+  }
+
+  /**
+   * Rebuilds the plan evaluating enabled parsers together, a single parser is left to evaluate lines on its own.
+   */
+  private synchronized void updatePlan() {
+    final FusedParsersPlan old = myPlan;
+    if (old != null) {
+      old.detach();
+      myPlan = null;
+    }
+    if (myRegisteredTranslators.size() < 2 || !TeamCityProperties.getBooleanOrTrue(FUSED_EVALUATION_PROPERTY)) return;
+    final FusedParsersPlan plan = new FusedParsersPlan(new ArrayList<RegexParserToSimpleMessagesTranslatorAdapter>(myRegisteredTranslators.values()));
+    plan.attach();
+    myPlan = plan;
   }
 
   @Override
@@ -131,8 +277,12 @@ public class ParsersRegistryImpl implements ParsersRegistry {
         } else {
           LOG.warn("Parser with name '" + name + "' already registered. Nothing is changed. Unregister parser first.");
         }
+        if (already != parser) {
+          myLoader.release(parser);
+        }
       } else {
         myKnownParsers.put(name, parser);
+        myLoader.acquire(parser);
       }
     }
   }
@@ -140,7 +290,11 @@ public class ParsersRegistryImpl implements ParsersRegistry {
   @Override
   public void unregister(@NotNull final String name) {
     synchronized (myKnownParsers) {
-      myKnownParsers.remove(name);
+      final RegexParser parser = myKnownParsers.remove(name);
+      if (parser != null) {
+        // Kept while loaded, so enabling it again needs no compilation
+        myLoader.release(parser);
+      }
     }
   }
 
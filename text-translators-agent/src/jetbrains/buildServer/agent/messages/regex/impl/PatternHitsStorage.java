@@ -0,0 +1,118 @@
+package jetbrains.buildServer.agent.messages.regex.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.agent.*;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.teamcity.util.regex.RegexParser;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Keeps parsers pattern hit counts in the agent cache directory between builds,
+ * so {@link RegexParser#isAdaptiveOrdering() adaptive ordering} starts with a good patterns order.
+ * <br/>
+ * Counts are loaded once parser is enabled for the first time and saved before every build finish.
+ * Loaded counts are halved, so recent builds weigh more than old ones.
+ */
+public class PatternHitsStorage extends AgentLifeCycleAdapter {
+  private static final Logger LOG = Logger.getInstance(PatternHitsStorage.class.getName());
+  public static final String CACHE_DIRECTORY_KEY = "output-parsers";
+  private static final String HITS_DIRECTORY = "hits";
+
+  @NotNull
+  private final CurrentBuildTracker myBuildTracker;
+  /**
+   * Parsers hits were loaded for, parsers are compared by identity.
+   */
+  private final Map<RegexParser, Boolean> myParsers = new WeakHashMap<RegexParser, Boolean>();
+
+  public PatternHitsStorage(@NotNull final EventDispatcher<AgentLifeCycleListener> dispatcher,
+                            @NotNull final CurrentBuildTracker buildTracker) {
+    myBuildTracker = buildTracker;
+    dispatcher.addListener(this);
+  }
+
+  /**
+   * Adds hit counts saved by previous builds to the parser, does nothing if they were already added.
+   */
+  public void load(@NotNull final RegexParser parser) {
+    synchronized (myParsers) {
+      if (myParsers.put(parser, Boolean.TRUE) != null) return;
+    }
+    if (!myBuildTracker.isRunningBuild()) return;
+    final File file = getFile(myBuildTracker.getCurrentBuild(), parser);
+    if (!file.isFile()) return;
+    final Properties properties = new Properties();
+    InputStream input = null;
+    try {
+      input = new BufferedInputStream(new FileInputStream(file));
+      properties.load(input);
+    } catch (IOException e) {
+      LOG.warn("Cannot read pattern hit counts of parser '" + parser.getName() + "' from " + file.getAbsolutePath() + ": " + e.getMessage());
+      return;
+    } finally {
+      FileUtil.close(input);
+    }
+    final Map<String, Long> hits = new HashMap<String, Long>();
+    for (String regex : properties.stringPropertyNames()) {
+      try {
+        hits.put(regex, Long.parseLong(properties.getProperty(regex)) / 2);
+      } catch (NumberFormatException e) {
+        LOG.debug("Ignoring malformed hit count of pattern '" + regex + "' in " + file.getAbsolutePath());
+      }
+    }
+    parser.addPatternHitCounts(hits);
+  }
+
+  @Override
+  public void beforeBuildFinish(@NotNull final AgentRunningBuild build, @NotNull final BuildFinishedStatus buildStatus) {
+    final List<RegexParser> parsers;
+    synchronized (myParsers) {
+      parsers = new ArrayList<RegexParser>(myParsers.keySet());
+    }
+    for (RegexParser parser : parsers) {
+      save(build, parser);
+    }
+  }
+
+  private static void save(@NotNull final AgentRunningBuild build, @NotNull final RegexParser parser) {
+    final Properties properties = new Properties();
+    for (Map.Entry<String, Long> entry : parser.getPatternHitCounts().entrySet()) {
+      if (entry.getValue() > 0) {
+        properties.setProperty(entry.getKey(), String.valueOf(entry.getValue()));
+      }
+    }
+    if (properties.isEmpty()) return;
+    final File file = getFile(build, parser);
+    OutputStream output = null;
+    try {
+      FileUtil.createParentDirs(file);
+      output = new BufferedOutputStream(new FileOutputStream(file));
+      properties.store(output, "Pattern hit counts of parser '" + parser.getName() + "'");
+    } catch (IOException e) {
+      LOG.warn("Cannot save pattern hit counts of parser '" + parser.getName() + "' to " + file.getAbsolutePath() + ": " + e.getMessage());
+    } finally {
+      FileUtil.close(output);
+    }
+  }
+
+  @NotNull
+  private static File getFile(@NotNull final AgentRunningBuild build, @NotNull final RegexParser parser) {
+    final File directory = new File(build.getAgentConfiguration().getCacheDirectory(CACHE_DIRECTORY_KEY), HITS_DIRECTORY);
+    return new File(directory, toFileName(parser.getId() + "-" + parser.getName()) + ".properties");
+  }
+
+  @NotNull
+  private static String toFileName(@NotNull final String name) {
+    final StringBuilder sb = new StringBuilder(name.length() + 9);
+    for (int i = 0; i < name.length(); i++) {
+      final char c = name.charAt(i);
+      sb.append(Character.isLetterOrDigit(c) || c == '-' || c == '.' ? c : '_');
+    }
+    // Different names could give the same sanitized name
+    return sb.append('-').append(Integer.toHexString(name.hashCode())).toString();
+  }
+}
@@ -7,16 +7,21 @@ import jetbrains.buildServer.agent.AgentLifeCycleListener;
 import jetbrains.buildServer.agent.CurrentBuildTracker;
 import jetbrains.buildServer.agent.impl.CurrentBuildTrackerImpl;
 import jetbrains.buildServer.agent.messages.impl.TranslatorsRegistryImpl;
+import jetbrains.buildServer.agent.messages.regex.impl.MessageStatisticsPublisher;
 import jetbrains.buildServer.agent.messages.regex.impl.ParserLoaderImpl;
 import jetbrains.buildServer.agent.messages.regex.impl.ParsersRegistryImpl;
+import jetbrains.buildServer.agent.messages.regex.impl.PatternHitsStorage;
 import jetbrains.buildServer.serverSide.BasePropertiesModel;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.CollectionsUtil;
 import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.teamcity.util.regex.RegexParser;
 import org.jetbrains.annotations.NotNull;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.*;
 import java.util.Map;
 
 @Test
@@ -46,7 +51,8 @@ public class ParsersRegistryImplTest extends BaseTestCase {
     myCurrentBuildTracker = new CurrentBuildTrackerImpl(myEventDispatcher);
     myTranslatorsRegistry = new TranslatorsRegistryImpl();
     myParserLoader = new ParserLoaderImpl(myCurrentBuildTracker);
-    myParsersRegistry = new ParsersRegistryImpl(myTranslatorsRegistry, myParserLoader);
+    myParsersRegistry = new ParsersRegistryImpl(myTranslatorsRegistry, myParserLoader, new PatternHitsStorage(myEventDispatcher, myCurrentBuildTracker),
+                                                new MessageStatisticsPublisher(myEventDispatcher));
   }
 
   @Test
@@ -108,6 +114,36 @@ public class ParsersRegistryImplTest extends BaseTestCase {
     assertTranslatorsCount(0);
   }
 
+  @Test
+  public void testLoadedParserReloadedWhenFileChanges() throws Throwable {
+    final File file = File.createTempFile("parser", ".xml");
+    try {
+      writeParser(file, "first");
+      final ParserCommand.ParserId id = ParserCommand.ParserId.byFilePath(file.getAbsolutePath());
+      final RegexParser parser = myParserLoader.load(id);
+      assertSame(parser, myParserLoader.load(id));
+      // Same content, only modification time differs
+      assertTrue(file.setLastModified(file.lastModified() - 10000));
+      assertSame(parser, myParserLoader.load(id));
+      writeParser(file, "second");
+      final RegexParser reloaded = myParserLoader.load(id);
+      assertNotSame(parser, reloaded);
+      assertEquals("second", reloaded.getPatterns().get(0).getPattern().pattern());
+      assertSame(reloaded, myParserLoader.getLoadedParsers().get(id));
+    } finally {
+      FileUtil.delete(file);
+    }
+  }
+
+  private static void writeParser(@NotNull final File file, @NotNull final String regex) throws IOException {
+    final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      writer.write("<parser id=\"file-parser\" name=\"file-parser\"><pattern regex=\"" + regex + "\" severity=\"INFO\"/></parser>");
+    } finally {
+      FileUtil.close(writer);
+    }
+  }
+
   protected void assertTranslatorsCount(final int expected) {
     assertEquals(expected, myTranslatorsRegistry.getAllTranslators().size());
   }
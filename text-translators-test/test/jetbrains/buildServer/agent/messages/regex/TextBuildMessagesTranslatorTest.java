@@ -0,0 +1,455 @@
+package jetbrains.buildServer.agent.messages.regex;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.ServiceLocator;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.AgentRunningBuildEx;
+import jetbrains.buildServer.agent.BuildFinishedStatus;
+import jetbrains.buildServer.agent.BuildRunnerContext;
+import jetbrains.buildServer.agent.impl.CurrentBuildTrackerImpl;
+import jetbrains.buildServer.agent.impl.runContext.RunningBuildServiceLocator;
+import jetbrains.buildServer.agent.messages.*;
+import jetbrains.buildServer.agent.messages.impl.TranslatorsRegistryImpl;
+import jetbrains.buildServer.agent.messages.regex.impl.MessageStatisticsPublisher;
+import jetbrains.buildServer.agent.messages.regex.impl.ParserLoaderImpl;
+import jetbrains.buildServer.agent.messages.regex.impl.ParsersRegistryImpl;
+import jetbrains.buildServer.agent.messages.regex.impl.PatternHitsStorage;
+import jetbrains.buildServer.messages.BuildMessage1;
+import jetbrains.buildServer.messages.DefaultMessagesInfo;
+import jetbrains.buildServer.messages.serviceMessages.ServiceMessage;
+import jetbrains.buildServer.serverSide.BasePropertiesModel;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.teamcity.util.regex.MultilinePattern;
+import jetbrains.teamcity.util.regex.ParserManager;
+import jetbrains.teamcity.util.regex.RegexParser;
+import jetbrains.teamcity.util.regex.RegexPattern;
+import jetbrains.teamcity.util.regex.Severity;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Drives texts through {@link TextBuildMessagesTranslator} the way the agent does.
+ */
+@Test
+public class TextBuildMessagesTranslatorTest extends BaseTestCase {
+  private final Map<String, String> myProperties = new HashMap<String, String>();
+  private EventDispatcher<AgentLifeCycleListener> myEventDispatcher;
+  private TranslatorsRegistryImpl myTranslatorsRegistry;
+  private ParsersRegistryImpl myParsersRegistry;
+  private KeepMessagesLogger myBuildLogger;
+  private List<String> myEvents;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myProperties.clear();
+    myProperties.put("teamcity.agent.build.messages.translators.enabled", "true");
+    new TeamCityProperties() {{
+      setModel(new BasePropertiesModel() {
+        @NotNull
+        @Override
+        public Map<String, String> getUserDefinedProperties() {
+          return myProperties;
+        }
+      });
+    }};
+    myEventDispatcher = EventDispatcher.create(AgentLifeCycleListener.class);
+    final CurrentBuildTrackerImpl currentBuildTracker = new CurrentBuildTrackerImpl(myEventDispatcher);
+    myTranslatorsRegistry = new TranslatorsRegistryImpl();
+    myParsersRegistry = new ParsersRegistryImpl(myTranslatorsRegistry, new ParserLoaderImpl(currentBuildTracker),
+                                                new PatternHitsStorage(myEventDispatcher, currentBuildTracker),
+                                                new MessageStatisticsPublisher(myEventDispatcher));
+    myBuildLogger = new KeepMessagesLogger();
+    myEvents = new ArrayList<String>();
+  }
+
+  @Test
+  public void testServiceMessageFlushesBatch() throws Throwable {
+    myTranslatorsRegistry.register(new BatchRecordingTranslator());
+    final List<BuildMessage1> result = translate(myTranslatorsRegistry, "a", "b", "##teamcity[message text='m']", "c");
+    assertEquals(Arrays.asList("batch [a, b]", "service message", "batch [c]"), myEvents);
+    assertEquals(Arrays.asList("a", "b", "##teamcity[message text='m']", "c"), getValues(result));
+  }
+
+  @Test
+  public void testBatchResultCodesMatchPerTextResults() throws Throwable {
+    myTranslatorsRegistry.register(new BatchRecordingTranslator());
+    myTranslatorsRegistry.register(new RecordingTranslator());
+    final List<BuildMessage1> result = translate(myTranslatorsRegistry, "keep 1", "skip 2", "eat 3", "replace 4", "keep 5");
+    assertEquals(Arrays.asList("batch [keep 1, skip 2, eat 3, replace 4, keep 5]",
+                               "text keep 1", "text skip 2", "text eat 3", "text replace 4", "text keep 5"), myEvents);
+    // Translators are applied to every text in turn, as if texts were not batched
+    assertEquals(Arrays.asList("keep 1", "keep 1", "replaced replace 4", "replaced replace 4", "keep 5", "keep 5"), getValues(result));
+  }
+
+  @Test
+  public void testBatchResult() throws Throwable {
+    final BuildMessage1 replaced = DefaultMessagesInfo.createTextMessage("replaced");
+    final BatchMessagesTranslator.BatchResult result = new BatchMessagesTranslator.BatchResult.Builder(4)
+      .add(BatchMessagesTranslator.BatchResult.SKIP, Collections.singletonList(replaced))
+      .add(BatchMessagesTranslator.BatchResult.KEEP_ORIGIN, Collections.<BuildMessage1>emptyList())
+      .add(BatchMessagesTranslator.BatchResult.REPLACE, Collections.singletonList(replaced))
+      .add(BatchMessagesTranslator.BatchResult.EAT, Collections.<BuildMessage1>emptyList())
+      .build();
+    assertEquals(4, result.size());
+    assertFalse(result.isConsumed(0));
+    assertTrue(result.isKeepOrigin(0));
+    assertEquals(0, result.getMessages(0).size());
+    assertTrue(result.isConsumed(1));
+    assertTrue(result.isKeepOrigin(1));
+    assertTrue(result.isConsumed(2));
+    assertFalse(result.isKeepOrigin(2));
+    assertEquals(Collections.singletonList(replaced), result.getMessages(2));
+    assertTrue(result.isConsumed(3));
+    assertFalse(result.isKeepOrigin(3));
+    assertEquals(0, result.getMessages(3).size());
+    assertEquals(Collections.singletonList(replaced), result.getAllMessages());
+    assertSame(SimpleMessagesTranslator.Result.EAT, result.toResult(3));
+    try {
+      new BatchMessagesTranslator.BatchResult.Builder(2).add(BatchMessagesTranslator.BatchResult.EAT, Collections.<BuildMessage1>emptyList()).build();
+      fail("Results of all the texts should be added");
+    } catch (IllegalStateException ignored) {
+    }
+  }
+
+  @Test
+  public void testFusedPlanMatchesPerParserEvaluation() throws Throwable {
+    final TranslatorsRegistryImpl fused = new TranslatorsRegistryImpl();
+    final List<RegexParserToSimpleMessagesTranslatorAdapter> adapters = new ArrayList<RegexParserToSimpleMessagesTranslatorAdapter>();
+    adapters.add(createAdapter(createCompilerParser()));
+    adapters.add(createAdapter(createTestsParser()));
+    for (RegexParserToSimpleMessagesTranslatorAdapter adapter : adapters) {
+      fused.register(adapter);
+    }
+    new FusedParsersPlan(adapters).attach();
+
+    final TranslatorsRegistryImpl separate = new TranslatorsRegistryImpl();
+    separate.register(createAdapter(createCompilerParser()));
+    separate.register(createAdapter(createTestsParser()));
+
+    final String[][] batches = {
+      {"compiling", "error: cannot find symbol", "warning: unchecked call", "Exception: boom", "  at Foo.bar", "  at Foo.main"},
+      {"12 tests passed", "##teamcity[message text='m']", "Exception: again", "3 tests passed", "done"},
+      {"warning: deprecated", "error: missing return", "plain"}
+    };
+    for (String[] batch : batches) {
+      assertEquals(getValues(translate(separate, batch)), getValues(translate(fused, batch)));
+    }
+  }
+
+  @Test
+  public void testNotEatenSingleLineMatchPassesThrough() throws Throwable {
+    final RegexParserToSimpleMessagesTranslatorAdapter adapter = createAdapter(createCompilerParser());
+    final BatchMessagesTranslator.BatchResult result = adapter.doProcessTexts(Arrays.asList("warning: unchecked call", "error: cannot find symbol"), createTail());
+    assertFalse(result.isConsumed(0));
+    assertEquals(0, result.getMessages(0).size());
+    assertEquals(BatchMessagesTranslator.BatchResult.REPLACE, result.getCode(1));
+    assertEquals(Collections.singletonList("cannot find symbol"), getValues(result.getMessages(1)));
+  }
+
+  @Test
+  public void testMultilineRecordReplacesLineEndingIt() throws Throwable {
+    final RegexParserToSimpleMessagesTranslatorAdapter adapter = createAdapter(createCompilerParser());
+    final BatchMessagesTranslator.BatchResult result = adapter.doProcessTexts(Arrays.asList("Exception: boom", "  at Foo.bar", "done"), createTail());
+    assertEquals(BatchMessagesTranslator.BatchResult.EAT, result.getCode(0));
+    assertEquals(BatchMessagesTranslator.BatchResult.EAT, result.getCode(1));
+    assertEquals(BatchMessagesTranslator.BatchResult.REPLACE, result.getCode(2));
+    final List<String> messages = getValues(result.getMessages(2));
+    assertEquals(2, messages.size());
+    assertTrue(messages.get(0).startsWith("Exception: boom"), messages.get(0));
+    assertEquals("done", messages.get(1));
+  }
+
+  @Test
+  public void testNoSummariesByDefault() throws Throwable {
+    myParsersRegistry.enable(createCompilerParser(), null);
+    translate(myTranslatorsRegistry, "error: a", "error: a", "warning: x");
+    finishStep();
+    assertEquals(0, myBuildLogger.getUnprocessedMessagesAndReset().size());
+  }
+
+  @Test
+  public void testSummariesAtStepEnd() throws Throwable {
+    myProperties.put(ParsersRegistryImpl.STATISTICS_PROPERTY, "true");
+    myProperties.put(ParsersRegistryImpl.DEDUPLICATION_PROPERTY + ".error", "count");
+    myProperties.put(ParsersRegistryImpl.STEP_LIMIT_PROPERTY + ".warn", "1");
+    myParsersRegistry.enable(createCountingParser(), null);
+
+    final List<BuildMessage1> result = translate(myTranslatorsRegistry, "error: a", "error: a", "warning: x", "warning: y", "warning: z");
+    // Duplicated error and warnings over the limit are eaten
+    assertEquals(Arrays.asList("a", "x"), getValues(result));
+
+    finishStep();
+    final List<String> summaries = getValues(myBuildLogger.getUnprocessedMessagesAndReset());
+    assertEquals(3, summaries.size(), summaries.toString());
+    // Statistics count dropped lines too
+    assertTrue(summaries.get(0).startsWith("Parser 'counting' summary: 2 errors, 3 warnings, 0 other lines"), summaries.get(0));
+    assertTrue(summaries.get(1).startsWith("Parser 'counting' duplicates: 1 error, 0 warnings, 0 messages repeated"), summaries.get(1));
+    assertEquals("Parser 'counting': 2 messages suppressed: rate limit exceeded", summaries.get(2));
+
+    // Every summary covers a single step
+    finishStep();
+    assertEquals(0, myBuildLogger.getUnprocessedMessagesAndReset().size());
+    assertEquals(Arrays.asList("a", "x"), getValues(translate(myTranslatorsRegistry, "error: a", "warning: x", "warning: y")));
+    finishStep();
+    final List<String> next = getValues(myBuildLogger.getUnprocessedMessagesAndReset());
+    assertEquals(2, next.size(), next.toString());
+    assertTrue(next.get(0).startsWith("Parser 'counting' summary: 1 error, 2 warnings, 0 other lines"), next.get(0));
+    assertEquals("Parser 'counting': 1 messages suppressed: rate limit exceeded", next.get(1));
+  }
+
+  @Test
+  public void testDisabledParserSummarizedAtStepEnd() throws Throwable {
+    myProperties.put(ParsersRegistryImpl.STATISTICS_PROPERTY, "true");
+    myParsersRegistry.enable(createCountingParser(), null);
+    translate(myTranslatorsRegistry, "error: a");
+    myParsersRegistry.disable("counting", null);
+    finishStep();
+    final List<String> summaries = getValues(myBuildLogger.getUnprocessedMessagesAndReset());
+    assertEquals(1, summaries.size(), summaries.toString());
+    assertTrue(summaries.get(0).startsWith("Parser 'counting' summary: 1 error, 0 warnings, 0 other lines"), summaries.get(0));
+    finishStep();
+    assertEquals(0, myBuildLogger.getUnprocessedMessagesAndReset().size());
+  }
+
+  @Test
+  public void testPendingRecordLoggedAtStepEnd() throws Throwable {
+    myParsersRegistry.enable(createCompilerParser(), null);
+    assertEquals(0, translate(myTranslatorsRegistry, "Exception: boom", "  at Foo.bar").size());
+    finishStep();
+    final List<String> messages = getValues(myBuildLogger.getUnprocessedMessagesAndReset());
+    assertEquals(1, messages.size(), messages.toString());
+    assertEquals("Exception: boom\n  at Foo.bar", messages.get(0));
+    finishStep();
+    assertEquals(0, myBuildLogger.getUnprocessedMessagesAndReset().size());
+  }
+
+  @Test
+  public void testPendingRecordLoggedOnDisable() throws Throwable {
+    startStep();
+    myParsersRegistry.enable(createCompilerParser(), null);
+    assertEquals(0, translate(myTranslatorsRegistry, "Exception: boom", "  at Foo.bar").size());
+    myParsersRegistry.disable("compiler", null);
+    assertEquals(Collections.singletonList("Exception: boom\n  at Foo.bar"), getValues(myBuildLogger.getUnprocessedMessagesAndReset()));
+    finishStep();
+    assertEquals(0, myBuildLogger.getUnprocessedMessagesAndReset().size());
+  }
+
+  @Test
+  public void testExpiredRecordLoggedWhileOutputIsQuiet() throws Throwable {
+    final RegexParser parser = new RegexParser("traces", "traces");
+    parser.addMultilinePattern(new MultilinePattern(Pattern.compile("Exception: .*"), Pattern.compile("\\s+at .*"), "$0", Severity.ERROR, true, 10, 1));
+    startStep();
+    myParsersRegistry.enable(parser, null);
+    assertEquals(0, translate(myTranslatorsRegistry, "Exception: boom", "  at Foo.bar").size());
+    List<String> messages = Collections.emptyList();
+    for (int i = 0; i < 100 && messages.isEmpty(); i++) {
+      Thread.sleep(50);
+      messages = getValues(myBuildLogger.getUnprocessedMessagesAndReset());
+    }
+    // Logged with no more lines coming and before the step end
+    assertEquals(Collections.singletonList("Exception: boom\n  at Foo.bar"), messages);
+    finishStep();
+    assertEquals(0, myBuildLogger.getUnprocessedMessagesAndReset().size());
+  }
+
+  @Test
+  public void testSuppressedLinesReportedAtWindowEnd() throws Throwable {
+    myProperties.put(ParsersRegistryImpl.RATE_LIMIT_PROPERTY + ".warn", "1");
+    startStep();
+    myParsersRegistry.enable(createCountingParser(), null);
+    assertEquals(Arrays.asList("x"), getValues(translate(myTranslatorsRegistry, "warning: x", "warning: y", "warning: z")));
+    List<String> messages = Collections.emptyList();
+    for (int i = 0; i < 100 && messages.isEmpty(); i++) {
+      Thread.sleep(50);
+      messages = getValues(myBuildLogger.getUnprocessedMessagesAndReset());
+    }
+    // Reported with no more lines coming, and only once
+    assertEquals(Collections.singletonList("Parser 'counting': 2 messages suppressed: rate limit exceeded"), messages);
+    finishStep();
+    assertEquals(0, myBuildLogger.getUnprocessedMessagesAndReset().size());
+  }
+
+  @Test
+  public void testCostReportLoggedOncePerBuild() throws Throwable {
+    final RegexParser parser = new RegexParser("slow", "slow");
+    parser.addPattern(new RegexPattern(Pattern.compile("(a+)+b"), "$0", Severity.WARN, true));
+    final String report = parser.getCostReport().toString();
+    myParsersRegistry.enable(parser, null);
+    assertEquals(0, myBuildLogger.getUnprocessedMessagesAndReset().size());
+
+    startBuild();
+    myParsersRegistry.enable(parser, null);
+    myParsersRegistry.disable("slow", null);
+    myParsersRegistry.enable(parser, null);
+    assertEquals(Collections.singletonList(report), getValues(myBuildLogger.getUnprocessedMessagesAndReset()));
+    finishBuild();
+
+    startBuild();
+    myParsersRegistry.enable(parser, null);
+    assertEquals(Collections.singletonList(report), getValues(myBuildLogger.getUnprocessedMessagesAndReset()));
+    finishBuild();
+  }
+
+  @NotNull
+  private List<BuildMessage1> translate(@NotNull final TranslatorsRegistry registry, @NotNull final String... texts) {
+    final List<BuildMessage1> messages = new ArrayList<BuildMessage1>(texts.length);
+    for (String text : texts) {
+      messages.add(DefaultMessagesInfo.createTextMessage(text));
+    }
+    return new TextBuildMessagesTranslator(myEventDispatcher, registry).translateMessages(createBuild(registry), messages);
+  }
+
+  private void startBuild() {
+    myEventDispatcher.getMulticaster().buildStarted(createBuild(myTranslatorsRegistry));
+  }
+
+  private void finishBuild() {
+    myEventDispatcher.getMulticaster().buildFinished(createBuild(myTranslatorsRegistry), BuildFinishedStatus.FINISHED_SUCCESS);
+  }
+
+  private void startStep() {
+    myEventDispatcher.getMulticaster().beforeRunnerStart(createRunner());
+  }
+
+  private void finishStep() {
+    myEventDispatcher.getMulticaster().runnerFinished(createRunner(), BuildFinishedStatus.FINISHED_SUCCESS);
+  }
+
+  @NotNull
+  private BuildRunnerContext createRunner() {
+    final Map<String, Object> runner = new HashMap<String, Object>();
+    runner.put("getBuild", createBuild(myTranslatorsRegistry));
+    return stub(BuildRunnerContext.class, runner);
+  }
+
+  @NotNull
+  private AgentRunningBuildEx createBuild(@NotNull final TranslatorsRegistry registry) {
+    // Per build registry is the same as the global one, so the translators are applied once
+    final Map<String, Object> locator = new HashMap<String, Object>();
+    locator.put("getSingletonService", registry);
+    final Map<String, Object> buildLocator = new HashMap<String, Object>();
+    buildLocator.put("getPerBuildServiceLocator", stub(ServiceLocator.class, locator));
+    final Map<String, Object> build = new HashMap<String, Object>();
+    build.put("getBuildId", 1L);
+    build.put("getBuildLogTail", createTail());
+    build.put("getPerBuildService", stub(RunningBuildServiceLocator.class, buildLocator));
+    build.put("getBuildLogger", myBuildLogger);
+    return stub(AgentRunningBuildEx.class, build);
+  }
+
+  @NotNull
+  private static BuildLogTail createTail() {
+    return stub(BuildLogTail.class, Collections.<String, Object>singletonMap("getBuildId", "1"));
+  }
+
+  /**
+   * @return implementation of the interface returning values of its methods by name
+   */
+  @NotNull
+  private static <T> T stub(@NotNull final Class<T> type, @NotNull final Map<String, Object> values) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class[]{type}, new InvocationHandler() {
+      public Object invoke(final Object proxy, final Method method, final Object[] args) {
+        if (values.containsKey(method.getName())) return values.get(method.getName());
+        if ("equals".equals(method.getName())) return proxy == args[0];
+        if ("hashCode".equals(method.getName())) return System.identityHashCode(proxy);
+        if ("toString".equals(method.getName())) return type.getSimpleName();
+        throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName());
+      }
+    }));
+  }
+
+  @NotNull
+  private static RegexParserToSimpleMessagesTranslatorAdapter createAdapter(@NotNull final RegexParser parser) {
+    final KeepMessagesLogger logger = new KeepMessagesLogger();
+    return new RegexParserToSimpleMessagesTranslatorAdapter(parser, new ParserManager(new SimpleLogger(logger)), logger);
+  }
+
+  @NotNull
+  private static RegexParser createCompilerParser() {
+    final RegexParser parser = new RegexParser("compiler", "compiler");
+    parser.addPattern(new RegexPattern(Pattern.compile("error: (.*)"), "$1", Severity.ERROR, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("warning: (.*)"), "$1", Severity.WARN, false));
+    parser.addMultilinePattern(new MultilinePattern(Pattern.compile("Exception: .*"), Pattern.compile("\\s+at .*"), "$0", Severity.ERROR, true, 10, 60000));
+    return parser;
+  }
+
+  @NotNull
+  private static RegexParser createTestsParser() {
+    final RegexParser parser = new RegexParser("tests", "tests");
+    parser.addPattern(new RegexPattern(Pattern.compile("(\\d+) tests passed"), "passed: $1", Severity.INFO, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("warning: (.*)"), "$0", Severity.INFO, true));
+    return parser;
+  }
+
+  @NotNull
+  private static RegexParser createCountingParser() {
+    final RegexParser parser = new RegexParser("counting", "counting");
+    parser.addPattern(new RegexPattern(Pattern.compile("error: (.*)"), "$1", Severity.ERROR, true));
+    parser.addPattern(new RegexPattern(Pattern.compile("warning: (.*)"), "$1", Severity.WARN, true));
+    return parser;
+  }
+
+  @NotNull
+  private static List<String> getValues(@NotNull final List<BuildMessage1> messages) {
+    final List<String> values = new ArrayList<String>(messages.size());
+    for (BuildMessage1 message : messages) {
+      values.add(String.valueOf(message.getValue()));
+    }
+    return values;
+  }
+
+  /**
+   * Records calls to {@link #myEvents}, result of a text depends on its prefix: {@code skip}, {@code eat} or {@code replace},
+   * other texts are kept.
+   */
+  private class RecordingTranslator implements SimpleMessagesTranslator {
+    public Result doProcessMessage(@NotNull final ServiceMessage message, @NotNull final BuildLogTail tail) {
+      myEvents.add("service " + message.getMessageName());
+      return Result.KEEP_ORIGIN;
+    }
+
+    public Result doProcessText(@NotNull final String text, @NotNull final BuildLogTail tail) {
+      myEvents.add("text " + text);
+      return getResult(text);
+    }
+
+    @NotNull
+    Result getResult(@NotNull final String text) {
+      if (text.startsWith("skip")) return Result.SKIP;
+      if (text.startsWith("eat")) return Result.EAT;
+      if (text.startsWith("replace")) return Result.REPLACE(Collections.singletonList(DefaultMessagesInfo.createTextMessage("replaced " + text)));
+      return Result.KEEP_ORIGIN;
+    }
+  }
+
+  private class BatchRecordingTranslator extends RecordingTranslator implements BatchMessagesTranslator {
+    @NotNull
+    public BatchResult doProcessTexts(@NotNull final List<String> texts, @NotNull final BuildLogTail tail) {
+      myEvents.add("batch " + texts);
+      final BatchResult.Builder builder = new BatchResult.Builder(texts.size());
+      for (String text : texts) {
+        final Result result = getResult(text);
+        final byte code;
+        if (!result.isConsumed()) {
+          code = BatchResult.SKIP;
+        } else if (result.isKeepOrigin()) {
+          code = BatchResult.KEEP_ORIGIN;
+        } else {
+          code = result.getMessages().isEmpty() ? BatchResult.EAT : BatchResult.REPLACE;
+        }
+        builder.add(code, result.getMessages());
+      }
+      return builder.build();
+    }
+  }
+}